@@ -28,6 +28,25 @@ public enum MinecraftDimension {
 		return villagePath;
 	}
 
+	/**
+	 * Resolve the {@link #getRegionPath() region path} against a world folder. Unlike {@link Path#resolve(Path)}, this works for worlds on other
+	 * file systems as well, like the contents of a zip file.
+	 */
+	public Path resolveRegionPath(Path world) {
+		return resolve(world, regionPath);
+	}
+
+	/** Resolve the {@link #getVillagePath() village path} against a world folder, which may be on any file system. */
+	public Path resolveVillagePath(Path world) {
+		return resolve(world, villagePath);
+	}
+
+	private static Path resolve(Path world, Path relative) {
+		for (Path name : relative)
+			world = world.resolve(name.toString());
+		return world;
+	}
+
 	public static MinecraftDimension byID(int id) {
 		switch (id) {
 		case -1:
@@ -124,13 +124,16 @@ public final class Color {
 
 	// https://computergraphics.stackexchange.com/a/7947/6092
 
+	/** There are only 256 possible inputs, so cache them */
+	private static final float[] SRGB_TO_LINEAR = new float[256];
+
+	static {
+		for (int i = 0; i < 256; i++)
+			SRGB_TO_LINEAR[i] = (float) sRGBToLinear(i / 255.0);
+	}
+
 	static float sRGBToLinear(int component) {
-		double tempComponent = component / 255.0;
-		if (tempComponent <= 0.04045f)
-			tempComponent = tempComponent / 12.92;
-		else
-			tempComponent = Math.pow((tempComponent + 0.055) / (1.055), 2.4);
-		return (float) tempComponent;
+		return SRGB_TO_LINEAR[component];
 	}
 
 	public static double sRGBToLinear(double component) {
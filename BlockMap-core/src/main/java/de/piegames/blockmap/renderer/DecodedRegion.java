@@ -0,0 +1,277 @@
+package de.piegames.blockmap.renderer;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.flowpowered.nbt.CompoundMap;
+import com.flowpowered.nbt.CompoundTag;
+import com.flowpowered.nbt.regionfile.Chunk;
+import com.flowpowered.nbt.regionfile.RegionFile;
+import com.flowpowered.nbt.stream.NBTInputStream;
+
+/**
+ * The decompressed and parsed NBT data of all chunks in a region file. Reading it is the I/O heavy part of rendering a region, while rendering it
+ * afterwards using {@link RegionRenderer#render(org.joml.Vector2ic, DecodedRegion)} is purely CPU bound. Splitting both allows to read the next
+ * regions ahead while others are still being rendered.
+ * <p>
+ * Keep in mind that the decoded data of a region takes a lot more memory than the file itself, so only few of them should be held at a time.
+ */
+public class DecodedRegion {
+
+	private static Log				log			= LogFactory.getLog(DecodedRegion.class);
+
+	/** The size of a sector in a region file, in bytes */
+	private static final int		SECTOR_SIZE	= 4096;
+	/** How often to read a chunk again if it fails to decode because it is being written at the same time */
+	private static final int		MAX_RETRIES	= 3;
+
+	/** The root tag of each chunk, indexed by {@code x | z << 5}. Absent and failed chunks are {@code null}. */
+	private final CompoundMap[]		chunks		= new CompoundMap[32 * 32];
+	/** The chunks that exist, but could not be read */
+	private final BitSet			failed		= new BitSet(32 * 32);
+	/** The chunks that kept changing while reading them. They are marked as failed as well. */
+	private final BitSet			changing	= new BitSet(32 * 32);
+
+	private DecodedRegion() {
+	}
+
+	/**
+	 * Read and decode all chunks of a region file. Chunks that fail to decode will be logged and marked as failed instead of throwing an
+	 * exception.
+	 */
+	public static DecodedRegion read(RegionFile file) {
+		DecodedRegion region = new DecodedRegion();
+		for (Chunk chunk : file) {
+			if (chunk == null)
+				continue;
+			try {
+				region.chunks[chunk.x | chunk.z << 5] = chunk.readTag().getValue();
+			} catch (Exception e) {
+				log.warn("Failed to read chunk (" + chunk.x + ", " + chunk.z + ")", e);
+				region.failed.set(chunk.x | chunk.z << 5);
+			}
+		}
+		return region;
+	}
+
+	/**
+	 * Decode all chunks of a region file that has already been loaded into memory, for example from an archive. This does the same as
+	 * {@link #read(RegionFile)}, but without needing the file to be on the disk.
+	 * 
+	 * @param data
+	 *            the contents of the region file, starting at the buffer's current position. The position is not modified.
+	 */
+	public static DecodedRegion read(ByteBuffer data) {
+		DecodedRegion region = new DecodedRegion();
+		ByteBuffer file = data.slice();
+		if (file.remaining() < 2 * SECTOR_SIZE)
+			/* Minecraft treats files without a proper header as empty */
+			return region;
+		for (int i = 0; i < 32 * 32; i++) {
+			int location = file.getInt(i * 4);
+			/* The upper three bytes are the offset in sectors, the lowest one the number of sectors */
+			if ((location >>> 8) == 0 || (location & 0xFF) == 0)
+				continue;
+			try {
+				int offset = (int) chunkOffset(location, file.remaining());
+				region.chunks[i] = decodeChunk(file.duplicate().position(offset).limit(offset + (location & 0xFF) * SECTOR_SIZE).slice());
+			} catch (Exception e) {
+				log.warn("Failed to read chunk (" + (i & 31) + ", " + (i >> 5) + ")", e);
+				region.failed.set(i);
+			}
+		}
+		return region;
+	}
+
+	/**
+	 * Read and decode all chunks of a region file that may be written to at the same time, for example by a running Minecraft server. The file is
+	 * read using a {@link SeekableByteChannel}, so it may be on any file system.
+	 * <p>
+	 * Servers write a chunk either in place or to a new location and then update the header. Reading the file at the same time may thus see a
+	 * chunk only partially written, or a header pointing to outdated data. Each chunk is checked for consistency: it must lie within the file, its
+	 * length must fit into its sectors and it must decode without errors. If it doesn't, the header will be read again to find the chunk's new
+	 * location and it will be retried a few times. Chunks that still fail while their header entry keeps changing are marked as
+	 * {@link #isChanging(int, int) changing} instead of failed, so that they can be rendered again later on.
+	 */
+	public static DecodedRegion read(Path file) throws IOException {
+		try (SeekableByteChannel channel = Files.newByteChannel(file, StandardOpenOption.READ)) {
+			return read(channel);
+		}
+	}
+
+	/**
+	 * Like {@link #read(Path)}, but from a channel that has already been opened. The header is read again from the start of the channel before
+	 * each retry, and the channel is not closed.
+	 */
+	public static DecodedRegion read(SeekableByteChannel channel) throws IOException {
+		DecodedRegion region = new DecodedRegion();
+		ByteBuffer header = readHeader(channel);
+		if (header == null)
+			/* Minecraft treats files without a proper header as empty */
+			return region;
+		/* Chunks that failed to read in the current round, together with the exception of their last attempt */
+		Map<Integer, Exception> retry = new HashMap<>();
+		for (int i = 0; i < 32 * 32; i++)
+			region.tryRead(channel, header, i, retry);
+		/* Retry all failed chunks at once, so that each round only has to wait and read the header once */
+		for (int attempt = 0; attempt < MAX_RETRIES && !retry.isEmpty(); attempt++) {
+			try {
+				Thread.sleep(10 << attempt);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting to read the chunks again");
+			}
+			ByteBuffer newHeader = readHeader(channel);
+			if (newHeader == null)
+				throw new IOException("The region file has been truncated while reading it");
+			Map<Integer, Exception> failed = new HashMap<>();
+			for (int i : retry.keySet()) {
+				if (newHeader.getInt(i * 4) != header.getInt(i * 4) || newHeader.getInt(SECTOR_SIZE + i * 4) != header.getInt(SECTOR_SIZE + i * 4))
+					region.changing.set(i);
+				region.tryRead(channel, newHeader, i, failed);
+			}
+			header = newHeader;
+			retry = failed;
+		}
+		for (Entry<Integer, Exception> e : retry.entrySet()) {
+			int i = e.getKey();
+			if (region.changing.get(i))
+				log.warn("Chunk (" + (i & 31) + ", " + (i >> 5) + ") kept changing while reading it, skipping it for now", e.getValue());
+			else
+				log.warn("Failed to read chunk (" + (i & 31) + ", " + (i >> 5) + ")", e.getValue());
+			region.failed.set(i);
+		}
+		/* Chunks that could be read eventually are not changing anymore */
+		for (int i = 0; i < 32 * 32; i++)
+			if (!region.failed.get(i))
+				region.changing.clear(i);
+		return region;
+	}
+
+	/** Try to read the chunk at the given index as specified by the header. If it fails, the exception is put into {@code failed}. */
+	private void tryRead(SeekableByteChannel channel, ByteBuffer header, int i, Map<Integer, Exception> failed) {
+		int location = header.getInt(i * 4);
+		chunks[i] = null;
+		/* The upper three bytes are the offset in sectors, the lowest one the number of sectors */
+		if ((location >>> 8) == 0 || (location & 0xFF) == 0)
+			return;
+		try {
+			chunks[i] = readChunk(channel, location);
+		} catch (Exception e) {
+			failed.put(i, e);
+		}
+	}
+
+	/** Read the 8KiB header of a region file, or {@code null} if the file is too short */
+	private static ByteBuffer readHeader(SeekableByteChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(2 * SECTOR_SIZE);
+		channel.position(0);
+		while (header.hasRemaining())
+			if (channel.read(header) < 0)
+				return null;
+		header.flip();
+		return header;
+	}
+
+	/** Read and decode a single chunk, checking its bounds to detect inconsistencies */
+	private static CompoundMap readChunk(SeekableByteChannel channel, int location) throws IOException {
+		long offset = chunkOffset(location, channel.size());
+		ByteBuffer data = ByteBuffer.allocate((location & 0xFF) * SECTOR_SIZE);
+		channel.position(offset);
+		while (data.hasRemaining())
+			if (channel.read(data) < 0)
+				throw new EOFException("The region file has been truncated while reading it");
+		return decodeChunk(data.flip());
+	}
+
+	/**
+	 * Check that a chunk lies within the file, after the header.
+	 * 
+	 * @param location
+	 *            the chunk's entry in the header
+	 * @return the offset of the chunk in bytes
+	 */
+	private static long chunkOffset(int location, long fileSize) throws IOException {
+		/* The upper three bytes are the offset in sectors, the lowest one the number of sectors */
+		long offset = (long) (location >>> 8) * SECTOR_SIZE;
+		if (offset < 2 * SECTOR_SIZE)
+			throw new IOException("Chunk overlaps with the header");
+		if (offset + (long) (location & 0xFF) * SECTOR_SIZE > fileSize)
+			throw new IOException("Chunk lies outside of the file");
+		return offset;
+	}
+
+	/** Check the length of a chunk and decode it. The buffer must contain exactly the sectors of the chunk. */
+	private static CompoundMap decodeChunk(ByteBuffer sectors) throws IOException {
+		int length = sectors.getInt(0);
+		if (length <= 1 || length > sectors.remaining() - 4)
+			throw new IOException("Invalid chunk length " + length);
+		byte[] data;
+		int start;
+		if (sectors.hasArray()) {
+			data = sectors.array();
+			start = sectors.arrayOffset() + 5;
+		} else {
+			data = new byte[length - 1];
+			sectors.duplicate().position(5).get(data);
+			start = 0;
+		}
+		try (NBTInputStream in = new NBTInputStream(new ByteArrayInputStream(data, start, length - 1), toNBTCompression(sectors.get(4)))) {
+			return ((CompoundTag) in.readTag()).getValue();
+		}
+	}
+
+	private static int toNBTCompression(int compression) throws IOException {
+		switch (compression) {
+		case 1:
+			return NBTInputStream.GZIP_COMPRESSION;
+		case 2:
+			return NBTInputStream.ZLIB_COMPRESSION;
+		case 3:
+			return NBTInputStream.NO_COMPRESSION;
+		default:
+			throw new IOException("Unsupported compression type " + compression);
+		}
+	}
+
+	/**
+	 * @return the root tag of the chunk at the given position within the region, or {@code null} if the chunk does not exist or could not be
+	 *         read
+	 */
+	public CompoundMap getChunk(int x, int z) {
+		return chunks[x | z << 5];
+	}
+
+	/** Returns whether the chunk at the given position within the region exists, regardless of whether it could be read. */
+	public boolean isPresent(int x, int z) {
+		return chunks[x | z << 5] != null || failed.get(x | z << 5);
+	}
+
+	/** Returns whether the chunk at the given position within the region exists, but could not be read. */
+	public boolean isFailed(int x, int z) {
+		return failed.get(x | z << 5);
+	}
+
+	/**
+	 * Returns whether the chunk at the given position within the region could not be read because it kept changing at the same time.
+	 * 
+	 * @see #read(Path)
+	 */
+	public boolean isChanging(int x, int z) {
+		return changing.get(x | z << 5);
+	}
+}
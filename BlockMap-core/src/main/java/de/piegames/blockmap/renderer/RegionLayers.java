@@ -0,0 +1,103 @@
+package de.piegames.blockmap.renderer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Objects;
+
+import de.piegames.blockmap.color.Color;
+
+/**
+ * The intermediate result of rendering a region, right before it gets shaded: the color, height and biome of each column. Keeping it allows to apply a
+ * different {@link RegionShader} without reading and rendering the region file again.
+ * <p>
+ * The data is stored in a compact form: colors as packed sRGB with linear alpha (see {@link Color#toRGB()}), heights as {@code short} and biomes as
+ * {@code byte}. This takes 7 bytes per column, or 1.75MiB per region. Storing the colors with 8 bits per channel introduces rounding errors, so the channels
+ * of the pixels may differ by one from those of an image that was shaded right away.
+ * 
+ * @see RegionRenderer#render(org.joml.Vector2ic, com.flowpowered.nbt.regionfile.RegionFile, boolean)
+ * @see RegionRenderer#shade(org.joml.Vector2ic, RegionLayers)
+ */
+public class RegionLayers {
+
+	/** Biome IDs fit into a byte. The value 255 is used for positions without biome (-1 in the unpacked form) */
+	private static final int	NO_BIOME	= 0xFF;
+
+	protected final int[]		colors;
+	protected final short[]		height;
+	protected final byte[]		biomes;
+
+	/**
+	 * @param colors
+	 *            The packed colors, {@code 0} where nothing has been rendered
+	 * @param height
+	 *            The height of the first non-translucent block of each column
+	 * @param biomes
+	 *            The biome ID of each column, {@code 255} where nothing has been rendered
+	 */
+	public RegionLayers(int[] colors, short[] height, byte[] biomes) {
+		this.colors = Objects.requireNonNull(colors);
+		this.height = Objects.requireNonNull(height);
+		this.biomes = Objects.requireNonNull(biomes);
+		if (colors.length != 512 * 512 || height.length != 512 * 512 || biomes.length != 512 * 512)
+			throw new IllegalArgumentException("All layers must have a size of 512*512");
+	}
+
+	/** Pack the uncompressed layers as they are passed to {@link RegionShader#shade(Color[], int[], int[], de.piegames.blockmap.color.BiomeColorMap)}. */
+	public static RegionLayers pack(Color[] map, int[] height, int[] biome) {
+		int[] packedColors = new int[512 * 512];
+		short[] packedHeight = new short[512 * 512];
+		byte[] packedBiomes = new byte[512 * 512];
+		for (int i = 0; i < 512 * 512; i++) {
+			packedColors[i] = map[i] == null ? 0 : map[i].toRGB();
+			packedHeight[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, height[i]));
+			packedBiomes[i] = (byte) (biome[i] == -1 ? NO_BIOME : biome[i]);
+		}
+		return new RegionLayers(packedColors, packedHeight, packedBiomes);
+	}
+
+	/** Returns a new array containing the colors. Positions without color will be {@code null}. */
+	public Color[] getColors() {
+		Color[] ret = new Color[512 * 512];
+		for (int i = 0; i < 512 * 512; i++)
+			if (colors[i] != 0)
+				ret[i] = Color.fromRGB(colors[i]);
+		return ret;
+	}
+
+	/** Returns a new array containing the height map */
+	public int[] getHeight() {
+		int[] ret = new int[512 * 512];
+		for (int i = 0; i < 512 * 512; i++)
+			ret[i] = height[i];
+		return ret;
+	}
+
+	/** Returns a new array containing the biome IDs, {@code -1} where there is no biome. */
+	public int[] getBiomes() {
+		int[] ret = new int[512 * 512];
+		for (int i = 0; i < 512 * 512; i++)
+			ret[i] = (biomes[i] & 0xFF) == NO_BIOME ? -1 : biomes[i] & 0xFF;
+		return ret;
+	}
+
+	public void write(DataOutput out) throws IOException {
+		for (int i = 0; i < 512 * 512; i++)
+			out.writeInt(colors[i]);
+		for (int i = 0; i < 512 * 512; i++)
+			out.writeShort(height[i]);
+		out.write(biomes);
+	}
+
+	public static RegionLayers read(DataInput in) throws IOException {
+		int[] colors = new int[512 * 512];
+		short[] height = new short[512 * 512];
+		byte[] biomes = new byte[512 * 512];
+		for (int i = 0; i < 512 * 512; i++)
+			colors[i] = in.readInt();
+		for (int i = 0; i < 512 * 512; i++)
+			height[i] = in.readShort();
+		in.readFully(biomes);
+		return new RegionLayers(colors, height, biomes);
+	}
+}
@@ -1,16 +1,23 @@
 package de.piegames.blockmap.renderer;
 
 import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
 import java.util.stream.Collectors;
 
 import org.apache.commons.logging.Log;
@@ -36,6 +43,7 @@ import de.piegames.blockmap.world.ChunkMetadata;
 import de.piegames.blockmap.world.ChunkMetadata.ChunkGenerationStatus;
 import de.piegames.blockmap.world.ChunkMetadata.ChunkRenderState;
 import de.piegames.blockmap.world.Region.BufferedRegion;
+import de.piegames.blockmap.world.RegionMetadata;
 
 /**
  * Use this class to transform a Minecraft region file into a top-down image view of it.
@@ -44,17 +52,30 @@ import de.piegames.blockmap.world.Region.BufferedRegion;
  */
 public class RegionRenderer {
 
-	private static Log			log						= LogFactory.getLog(RegionRenderer.class);
+	private static Log				log						= LogFactory.getLog(RegionRenderer.class);
 
-	public final RenderSettings	settings;
+	private volatile RenderSettings	settings;
 
-	/* Only keep track of this so that the respecting warning is only logged once. */
-	private Set<Block>			blocksWithMissingColor	= new HashSet<>();
+	/* Only keep track of this so that the respecting warning is only logged once. Regions may be rendered concurrently. */
+	private Set<Block>				blocksWithMissingColor	= ConcurrentHashMap.newKeySet();
 
 	public RegionRenderer(RenderSettings settings) {
 		this.settings = Objects.requireNonNull(settings);
 	}
 
+	public RenderSettings getSettings() {
+		return settings;
+	}
+
+	/**
+	 * Replace the settings used for rendering. Each render task takes a snapshot of the settings when it starts and uses it all the way through.
+	 * Tasks that are still running with older settings will notice it between two chunks and abort with a {@link CancellationException}, since
+	 * their result would be outdated anyway.
+	 */
+	public void setSettings(RenderSettings settings) {
+		this.settings = Objects.requireNonNull(settings);
+	}
+
 	/**
 	 * Render a given {@link RegionFile} to a {@link BufferedImage}. The image will always have a width and height of 512 pixels.
 	 * 
@@ -63,18 +84,176 @@ public class RegionRenderer {
 	 * @param regionPos
 	 *            The position of the region file in region coordinates. Used to check if blocks are within the bounds of the area to render.
 	 * @return An array of colors representing the final image. The image is square and 512x512 wide. The array sorted in XZ order.
+	 * @throws CancellationException
+	 *             if the settings get changed while rendering or if the thread gets interrupted
 	 */
 	public BufferedRegion render(Vector2ic regionPos, RegionFile file) {
+		int[] pixels = new int[512 * 512];
+		RegionMetadata metadata = new RegionMetadata(regionPos);
+		render(regionPos, file, pixels, metadata);
+		return new BufferedRegion(regionPos, pixels, metadata);
+	}
+
+	/**
+	 * Render a region like {@link #render(Vector2ic, RegionFile)} does, but from data that has already been read from the region file. This does not
+	 * do any I/O.
+	 * 
+	 * @see DecodedRegion#read(RegionFile)
+	 */
+	public BufferedRegion render(Vector2ic regionPos, DecodedRegion region) {
+		return render(regionPos, region, false);
+	}
+
+	/**
+	 * Render a region from data that has already been read from the region file, keeping the unshaded layers and surface stacks if requested.
+	 * 
+	 * @see #render(Vector2ic, RegionFile, boolean)
+	 * @see DecodedRegion#read(java.nio.file.Path)
+	 */
+	public BufferedRegion render(Vector2ic regionPos, DecodedRegion region, boolean keepLayers) {
 		log.info("Rendering region file " + regionPos.x() + " " + regionPos.y());
-		BufferedImage image = new BufferedImage(512, 512, BufferedImage.TYPE_INT_ARGB);
-		Map<Vector2ic, ChunkMetadata> metadata = new HashMap<>();
-		Color[] colors = renderRaw(regionPos, file, metadata);
-		// image.setRGB(0, 0, 512, 512, colors, 0, 512);
-		for (int x = 0; x < 512; x++)
-			for (int z = 0; z < 512; z++)
-				if (colors[x | (z << 9)] != null)
-					image.setRGB(x, z, colors[x | (z << 9)].toRGB());
-		return new BufferedRegion(regionPos, image, metadata);
+		RenderSettings settings = this.settings;
+		Color[] map = new Color[512 * 512];
+		int[] height = new int[512 * 512];
+		int[] regionBiomes = new int[512 * 512];
+		RegionMetadata metadata = new RegionMetadata(regionPos);
+		SurfaceStacks.Builder stacks = keepLayers && settings.sampling == 1 ? new SurfaceStacks.Builder(settings.minY, settings.maxY) : null;
+		renderUnshaded(settings, regionPos, region, metadata, settings.sampling, map, height, regionBiomes, stacks);
+		/* Pack before shading, since the shader modifies the colors */
+		RegionLayers layers = keepLayers ? RegionLayers.pack(map, height, regionBiomes) : null;
+		settings.shader.shade(map, height, regionBiomes, settings.biomeColors);
+		int[] pixels = new int[512 * 512];
+		toRGB(map, IntBuffer.wrap(pixels));
+		return new BufferedRegion(regionPos, pixels, layers, stacks == null ? null : stacks.build(), metadata);
+	}
+
+	/**
+	 * Render a quick, low resolution preview from data that has already been read from the region file.
+	 * 
+	 * @see #renderPreview(Vector2ic, RegionFile, int)
+	 */
+	public BufferedRegion renderPreview(Vector2ic regionPos, DecodedRegion region, int sampling) {
+		log.debug("Rendering preview of region file " + regionPos.x() + " " + regionPos.y());
+		RenderSettings settings = this.settings;
+		Color[] map = new Color[512 * 512];
+		int[] height = new int[512 * 512];
+		int[] regionBiomes = new int[512 * 512];
+		RegionMetadata metadata = new RegionMetadata(regionPos);
+		renderUnshaded(settings, regionPos, region, metadata, sampling, map, height, regionBiomes, null);
+		settings.shader.shade(map, height, regionBiomes, settings.biomeColors);
+		int[] pixels = new int[512 * 512];
+		toRGB(map, IntBuffer.wrap(pixels));
+		return new BufferedRegion(regionPos, pixels, metadata);
+	}
+
+	/**
+	 * Render a region file that has already been loaded into memory, for example from an archive.
+	 * 
+	 * @param data
+	 *            the contents of the region file, starting at the buffer's current position. The position is not modified.
+	 * @see DecodedRegion#read(ByteBuffer)
+	 */
+	public BufferedRegion render(Vector2ic regionPos, ByteBuffer data) {
+		return render(regionPos, DecodedRegion.read(data));
+	}
+
+	/**
+	 * Check the chunks of a region file without rendering them. This reads the chunks and their metadata, but does not decode their sections. The
+	 * resulting metadata is the same as when rendering the region, except that chunks with corrupt sections will not be detected and that nothing
+	 * will be culled.
+	 * 
+	 * @return the metadata of each existing chunk, indexed by its position in chunk coordinates
+	 */
+	public static Map<Vector2ic, ChunkMetadata> scan(Vector2ic regionPos, DecodedRegion region) {
+		RegionMetadata metadata = new RegionMetadata(regionPos);
+		for (int z = 0; z < 32; z++)
+			for (int x = 0; x < 32; x++) {
+				if (!region.isPresent(x, z))
+					continue;
+				Vector2ic chunkPos = new Vector2i((regionPos.x() << 5) | x, (regionPos.y() << 5) | z);
+				if (region.isChanging(x, z))
+					metadata.put(chunkPos, new ChunkMetadata(chunkPos, ChunkRenderState.CHANGING, null));
+				else if (region.isFailed(x, z))
+					metadata.put(chunkPos, new ChunkMetadata(chunkPos, ChunkRenderState.FAILED, null));
+				else
+					try {
+						metadata.put(chunkPos, scanChunk(chunkPos, region.getChunk(x, z)));
+					} catch (Exception e) {
+						log.warn("Failed to scan chunk (" + x + ", " + z + ")", e);
+						metadata.put(chunkPos, new ChunkMetadata(chunkPos, ChunkRenderState.FAILED, null));
+					}
+			}
+		return metadata;
+	}
+
+	/**
+	 * Check the chunks of a region file without rendering them, reading the chunks directly from the file.
+	 * 
+	 * @see #scan(Vector2ic, DecodedRegion)
+	 */
+	public static Map<Vector2ic, ChunkMetadata> scan(Vector2ic regionPos, RegionFile file) {
+		RegionMetadata metadata = new RegionMetadata(regionPos);
+		for (Chunk chunk : file) {
+			if (chunk == null)
+				continue;
+			Vector2ic chunkPos = new Vector2i((regionPos.x() << 5) | chunk.x, (regionPos.y() << 5) | chunk.z);
+			try {
+				metadata.put(chunkPos, scanChunk(chunkPos, chunk.readTag().getValue()));
+			} catch (Exception e) {
+				log.warn("Failed to scan chunk (" + chunk.x + ", " + chunk.z + ")", e);
+				metadata.put(chunkPos, new ChunkMetadata(chunkPos, ChunkRenderState.FAILED, null));
+			}
+		}
+		return metadata;
+	}
+
+	/**
+	 * Render a given {@link RegionFile} directly into an array of packed ARGB pixels (sRGB with linear alpha, the format used by
+	 * {@link BufferedImage#TYPE_INT_ARGB} as well as JavaFX's {@code PixelFormat.getIntArgbInstance()}). No intermediate image is created, so
+	 * the array can be uploaded or wrapped as is.
+	 * 
+	 * @param output
+	 *            The array to write the pixels to. Must be at least 512*512 elements long. Pixels are in XZ order, with a scanline stride of 512.
+	 * @param metadata
+	 *            All generated chunk metadata will be put in here
+	 * @see #render(Vector2ic, RegionFile, IntBuffer, Map)
+	 */
+	public void render(Vector2ic regionPos, RegionFile file, int[] output, Map<Vector2ic, ChunkMetadata> metadata) {
+		render(regionPos, file, IntBuffer.wrap(output), metadata);
+	}
+
+	/**
+	 * Render a given {@link RegionFile} directly into a buffer of packed ARGB pixels. 512*512 pixels will be written in XZ order, beginning at
+	 * the buffer's current position. The position is not modified.
+	 * 
+	 * @see #render(Vector2ic, RegionFile, int[], Map)
+	 */
+	public void render(Vector2ic regionPos, RegionFile file, IntBuffer output, Map<Vector2ic, ChunkMetadata> metadata) {
+		log.info("Rendering region file " + regionPos.x() + " " + regionPos.y());
+		RenderSettings settings = this.settings;
+		toRGB(renderRaw(settings, regionPos, file, metadata, settings.sampling), output);
+	}
+
+	/**
+	 * Render a quick, low resolution preview of a given {@link RegionFile}. This works like {@link #render(Vector2ic, RegionFile)}, but uses the given
+	 * sampling instead of the one from the settings. The resulting image still is 512x512 pixels large.
+	 * 
+	 * @param sampling
+	 *            Only render one column per {@code sampling×sampling} blocks. Must be a power of two between 1 and 16.
+	 * @see RenderSettings#sampling
+	 */
+	public BufferedRegion renderPreview(Vector2ic regionPos, RegionFile file, int sampling) {
+		log.debug("Rendering preview of region file " + regionPos.x() + " " + regionPos.y());
+		int[] pixels = new int[512 * 512];
+		RegionMetadata metadata = new RegionMetadata(regionPos);
+		toRGB(renderRaw(settings, regionPos, file, metadata, sampling), IntBuffer.wrap(pixels));
+		return new BufferedRegion(regionPos, pixels, metadata);
+	}
+
+	private static void toRGB(Color[] colors, IntBuffer output) {
+		int offset = output.position();
+		for (int i = 0; i < 512 * 512; i++)
+			output.put(offset + i, colors[i] == null ? 0 : colors[i].toRGB());
 	}
 
 	/**
@@ -90,205 +269,533 @@ public class RegionRenderer {
 	 * @see RegionFile
 	 */
 	public Color[] renderRaw(Vector2ic regionPos, RegionFile file, Map<Vector2ic, ChunkMetadata> metadata) {
+		RenderSettings settings = this.settings;
+		return renderRaw(settings, regionPos, file, metadata, settings.sampling);
+	}
+
+	/**
+	 * Render a given {@link RegionFile} to an image, only rendering one column of blocks per {@code sampling×sampling} area.
+	 * 
+	 * @see #renderRaw(Vector2ic, RegionFile, Map)
+	 * @see RenderSettings#sampling
+	 */
+	public Color[] renderRaw(Vector2ic regionPos, RegionFile file, Map<Vector2ic, ChunkMetadata> metadata, int sampling) {
+		return renderRaw(settings, regionPos, file, metadata, sampling);
+	}
+
+	private Color[] renderRaw(RenderSettings settings, Vector2ic regionPos, RegionFile file, Map<Vector2ic, ChunkMetadata> metadata, int sampling) {
 		/* The final map of the chunk, 512*512 pixels, XZ */
 		Color[] map = new Color[512 * 512];
-		/* If nothing is set otherwise, the height map is set to the minimum height. */
 		int[] height = new int[512 * 512];
 		int[] regionBiomes = new int[512 * 512];
-		Arrays.fill(height, settings.minY);
-		Arrays.fill(regionBiomes, -1);
-
-		chunk: for (Chunk chunk : file) {
-			if (chunk == null)
-				continue;
-			int chunkX = ((regionPos.x() << 5) | chunk.x);
-			int chunkZ = ((regionPos.y() << 5) | chunk.z);
-			Vector2ic chunkPos = new Vector2i(chunkX, chunkZ);
-			try {
-				if ((chunkX + 16 < settings.minX || chunkX > settings.maxX)
-						&& (chunkZ + 16 < settings.minZ || chunkZ > settings.maxZ)) {
-					metadata.put(chunkPos, new ChunkMetadata(chunkPos, ChunkRenderState.CULLED, null));
-					continue;
-				}
+		renderUnshaded(settings, regionPos, file, metadata, sampling, map, height, regionBiomes, null);
+		settings.shader.shade(map, height, regionBiomes, settings.biomeColors);
+		return map;
+	}
 
-				CompoundMap root = chunk.readTag().getValue();
+	/**
+	 * Render a given {@link RegionFile} like {@link #render(Vector2ic, RegionFile)} does, but keep the unshaded {@link RegionLayers} in the returned region if
+	 * requested. They can be used to apply a different shader later on without rendering the region again. Unless sampling is used, the
+	 * {@link SurfaceStacks} will be kept as well, to apply a different color map later on.
+	 * 
+	 * @see #shade(Vector2ic, RegionLayers)
+	 * @see #recolor(Vector2ic, SurfaceStacks)
+	 * @see BufferedRegion#getLayers()
+	 * @see BufferedRegion#getStacks()
+	 */
+	public BufferedRegion render(Vector2ic regionPos, RegionFile file, boolean keepLayers) {
+		log.info("Rendering region file " + regionPos.x() + " " + regionPos.y());
+		RenderSettings settings = this.settings;
+		Color[] map = new Color[512 * 512];
+		int[] height = new int[512 * 512];
+		int[] regionBiomes = new int[512 * 512];
+		RegionMetadata metadata = new RegionMetadata(regionPos);
+		SurfaceStacks.Builder stacks = keepLayers && settings.sampling == 1 ? new SurfaceStacks.Builder(settings.minY, settings.maxY) : null;
+		renderUnshaded(settings, regionPos, file, metadata, settings.sampling, map, height, regionBiomes, stacks);
+		/* Pack before shading, since the shader modifies the colors */
+		RegionLayers layers = keepLayers ? RegionLayers.pack(map, height, regionBiomes) : null;
+		settings.shader.shade(map, height, regionBiomes, settings.biomeColors);
+		int[] pixels = new int[512 * 512];
+		toRGB(map, IntBuffer.wrap(pixels));
+		return new BufferedRegion(regionPos, pixels, layers, stacks == null ? null : stacks.build(), metadata);
+	}
 
-				{ // Check data version
-					if (root.containsKey("DataVersion")) {
-						// 1519 is the internal version number of 1.13
-						int dataVersion = ((Integer) root.get("DataVersion").getValue());
-						if (dataVersion < 1519) {
-							log.warn("Skipping chunk because it is too old");
-							metadata.put(chunkPos, new ChunkMetadata(chunkPos, ChunkRenderState.TOO_OLD, null));
+	/**
+	 * Render a given {@link RegionFile} chunk by chunk and publish each chunk as soon as it is done, instead of waiting for the whole region. The
+	 * published chunks are not shaded, since shading needs the neighboring chunks. Absent chunks are skipped.
+	 * <p>
+	 * The returned publisher is cold: each subscriber triggers its own render run on the given executor, with the settings that are current at
+	 * the time of subscribing. The rendering thread blocks while the subscriber's buffer is full, and stops once the subscription has been
+	 * cancelled. If the settings change in between, the subscriber will receive a {@link CancellationException}. The region file must not be
+	 * closed before the subscriber has been completed.
+	 * 
+	 * @param executor
+	 *            the executor to render on. The items are delivered to the subscriber using the {@link ForkJoinPool#commonPool()}, so that a
+	 *            single threaded executor will not dead-lock.
+	 * @see RenderedChunk
+	 */
+	public Flow.Publisher<RenderedChunk> renderChunks(Vector2ic regionPos, RegionFile file, Executor executor) {
+		return subscriber -> {
+			RenderSettings settings = this.settings;
+			SubmissionPublisher<RenderedChunk> publisher = new SubmissionPublisher<>();
+			publisher.subscribe(subscriber);
+			executor.execute(() -> {
+				try {
+					int sampling = settings.sampling;
+					/* Only one chunk is rendered at a time, so this only needs the space for 16 scanlines of 512 columns */
+					Color[] map = new Color[16 << 9];
+					int[] height = new int[16 << 9];
+					int[] regionBiomes = new int[16 << 9];
+					prepareUnshaded(settings, sampling, height, regionBiomes);
+					for (Chunk chunk : file) {
+						if (!publisher.hasSubscribers())
+							break;
+						checkCancelled(settings);
+						if (chunk == null)
 							continue;
+						/* Clear what the previous chunk left behind */
+						for (int z = 0; z < 16; z++) {
+							Arrays.fill(map, z << 9, z << 9 | 16, null);
+							Arrays.fill(height, z << 9, z << 9 | 16, settings.minY);
+							Arrays.fill(regionBiomes, z << 9, z << 9 | 16, -1);
 						}
-					} else {
-						log.warn("Skipping chunk because it is way too old (pre 1.9)");
-						metadata.put(chunkPos, new ChunkMetadata(chunkPos, ChunkRenderState.TOO_OLD, null));
-						continue;
+						ChunkMetadata metadata = renderChunk(settings, regionPos, chunk, 0, sampling, map, height, regionBiomes, null);
+						publisher.submit(RenderedChunk.extract(metadata, sampling, map, height, regionBiomes));
 					}
+					publisher.close();
+				} catch (Throwable e) {
+					publisher.closeExceptionally(e);
 				}
+			});
+		};
+	}
 
-				CompoundMap level = ((CompoundTag) root.get("Level")).getValue();
+	/**
+	 * Apply the shader from the settings to previously rendered layers, without reading the region file again. The returned region will not
+	 * contain any chunk metadata.
+	 * 
+	 * @see #render(Vector2ic, RegionFile, boolean)
+	 */
+	public BufferedRegion shade(Vector2ic regionPos, RegionLayers layers) {
+		RenderSettings settings = this.settings;
+		Color[] map = layers.getColors();
+		settings.shader.shade(map, layers.getHeight(), layers.getBiomes(), settings.biomeColors);
+		int[] pixels = new int[512 * 512];
+		toRGB(map, IntBuffer.wrap(pixels));
+		return new BufferedRegion(regionPos, pixels, layers, null, Collections.emptyMap());
+	}
 
-				/* Check chunk status */
-				ChunkGenerationStatus generationStatus = ChunkGenerationStatus.forName(((String) level.get("Status").getValue()));
-				if (generationStatus == ChunkGenerationStatus.EMPTY || generationStatus == null) {
-					metadata.put(chunkPos, new ChunkMetadata(chunkPos, ChunkRenderState.RENDERED, generationStatus));
-					continue;
-				}
+	/**
+	 * Apply the color map from the settings to previously recorded surface stacks, without reading the region file again. The returned region will
+	 * contain the new layers, but no chunk metadata.
+	 * 
+	 * @return {@code null} if the stacks have been recorded with a different height range or if the color map looks deeper into a column than
+	 *         recorded. The region must be rendered from its file in that case.
+	 * @see #render(Vector2ic, RegionFile, boolean)
+	 */
+	public BufferedRegion recolor(Vector2ic regionPos, SurfaceStacks stacks) {
+		RenderSettings settings = this.settings;
+		if (stacks.minY != settings.minY || stacks.maxY != settings.maxY)
+			return null;
+		Color[] map = new Color[512 * 512];
+		int[] height = new int[512 * 512];
+		int[] regionBiomes = stacks.getBiomes();
+		Arrays.fill(height, settings.minY);
 
-				Map<String, Vector3ic> structureCenters = new HashMap<>();
-				if (level.containsKey("Structures") && ((CompoundTag) level.get("Structures")).getValue().containsKey("Starts")) {// Load saved structures
-					CompoundMap structures = ((CompoundTag) ((CompoundTag) level.get("Structures")).getValue().get("Starts")).getValue();
-					for (Tag<?> structureTag : structures.values()) {
-						CompoundMap structure = ((CompoundTag) structureTag).getValue();
-						String id = ((StringTag) structure.get("id")).getValue();
-						if (!id.equals("INVALID")) {
-							int[] bb = ((IntArrayTag) structure.get("BB")).getValue();
-							Vector3i center = new Vector3i(bb[0], bb[1], bb[2]).add(bb[3], bb[4], bb[5]);
-							// JOML has no Vector3i#div function, why?
-							center.x /= 2;
-							center.y /= 2;
-							center.z /= 2;
-							structureCenters.put(id, center);
-						}
-					}
+		for (int i = 0; i < 512 * 512; i++) {
+			/* Check once per row of chunks */
+			if ((i & 0x1FFF) == 0)
+				checkCancelled(settings);
+			if (!stacks.isPresent(i))
+				continue;
+			boolean heightSet = false;
+			ColorColumn color = new ColorColumn();
+			for (int run = stacks.getStart(i); run < stacks.getEnd(i) && !color.needStop; run++) {
+				Block block = stacks.getBlock(run);
+				BlockColor colorData = settings.blockColors.getBlockColor(block);
+				if (!colorData.isTranslucent && !heightSet) {
+					height[i] = stacks.getY(run);
+					heightSet = true;
 				}
+				Color currentColor = getColor(settings, block, colorData, regionBiomes[i]);
+				/* An opaque block stops the column, so it is only put once */
+				color.putColor(currentColor, currentColor.a > 0.9999 ? 1 : stacks.getLength(run));
+			}
+			if (!color.needStop && !stacks.isComplete(i))
+				return null;
+			map[i] = color.getFinal();
+		}
 
-				int[] biomes = ((IntArrayTag) level.get("Biomes")).getValue();
-
-				/*
-				 * The height of the lowest section that has already been loaded. Section are loaded lazily from top to bottom and this value gets decreased
-				 * each time a new one has been loaded
-				 */
-				int lowestLoadedSection = 16;
-				/* Null entries indicate a section full of air */
-				Block[][] loadedSections = new Block[16][];
-
-				// Get the list of all sections and map them to their y coordinate using streams
-				@SuppressWarnings("unchecked")
-				Map<Byte, CompoundMap> sections = ((ListTag<CompoundTag>) level.getOrDefault("Sections",
-						new ListTag<>("sections", CompoundTag.class, Collections.emptyList()))).getValue().stream()
-								.collect(Collectors.toMap(s -> (Byte) s.getValue().get("Y").getValue(), s -> s.getValue()));
-
-				/*
-				 * Save the final color of this pixel. It starts with transparent and will be modified over time through overlay operations. The last color
-				 * is saved with the amount of times it was present in a row. This way, overlaying the same color over and over again can be optimized into
-				 * one operation with specialized alpha calculation.
-				 */
-				class ColorColumn {
-					Color	color			= Color.TRANSPARENT, lastColor = Color.TRANSPARENT;
-					int		lastColorTimes	= 0;
-					boolean	needStop		= false;
-
-					void putColor(Color currentColor) {
-						putColor(currentColor, 1);
-					}
+		RegionLayers layers = RegionLayers.pack(map, height, regionBiomes);
+		settings.shader.shade(map, height, regionBiomes, settings.biomeColors);
+		int[] pixels = new int[512 * 512];
+		toRGB(map, IntBuffer.wrap(pixels));
+		return new BufferedRegion(regionPos, pixels, layers, stacks, Collections.emptyMap());
+	}
 
-					void putColor(Color currentColor, int times) {
-						if (currentColor.equals(lastColor))
-							lastColorTimes += times;
-						else {
-							color = Color.alphaUnder(color, lastColor, lastColorTimes);
-							lastColorTimes = times;
-							lastColor = currentColor;
-						}
-						if (currentColor.a > 0.9999)
-							needStop = true;
-					}
+	/**
+	 * Render a region file without shading it. The results will be written to the given arrays, each 512*512 elements large in XZ order.
+	 * Positions without any rendered blocks will have no color, a height of {@link RenderSettings#minY} and a biome of {@code -1}.
+	 * 
+	 * @param stacks
+	 *            if not {@code null}, the surface stack of each column will be recorded to it
+	 */
+	private void renderUnshaded(RenderSettings settings, Vector2ic regionPos, RegionFile file, Map<Vector2ic, ChunkMetadata> metadata, int sampling,
+			Color[] map, int[] height, int[] regionBiomes, SurfaceStacks.Builder stacks) {
+		prepareUnshaded(settings, sampling, height, regionBiomes);
 
-					Color getFinal() {
-						/*
-						 * Due to the alpha optimizations, putColor will only update the color when that one changes. This means that color will never contain
-						 * the latest results. Putting a different color (transparent here) will trigger it to apply the last remaining color. If the last color
-						 * is already transparent, this will do nothing which doesn't matter since it wouldn't make any effect anyway.
-						 */
-						putColor(Color.TRANSPARENT);
-						return color;
-					}
+		for (Chunk chunk : file) {
+			checkCancelled(settings);
+			if (chunk == null)
+				continue;
+			ChunkMetadata chunkMetadata = renderChunk(settings, regionPos, chunk, chunk.x << 4 | chunk.z << 13, sampling, map, height, regionBiomes, stacks);
+			metadata.put(chunkMetadata.position, chunkMetadata);
+		}
+		fillSampled(sampling, map, height, regionBiomes);
+	}
+
+	/** Like {@link #renderUnshaded(RenderSettings, Vector2ic, RegionFile, Map, int, Color[], int[], int[], SurfaceStacks.Builder)}, but from decoded data */
+	private void renderUnshaded(RenderSettings settings, Vector2ic regionPos, DecodedRegion region, Map<Vector2ic, ChunkMetadata> metadata, int sampling,
+			Color[] map, int[] height, int[] regionBiomes, SurfaceStacks.Builder stacks) {
+		prepareUnshaded(settings, sampling, height, regionBiomes);
+		for (int z = 0; z < 32; z++)
+			for (int x = 0; x < 32; x++) {
+				checkCancelled(settings);
+				if (!region.isPresent(x, z))
+					continue;
+				Vector2ic chunkPos = new Vector2i((regionPos.x() << 5) | x, (regionPos.y() << 5) | z);
+				ChunkMetadata chunkMetadata;
+				if (isCulled(settings, chunkPos))
+					chunkMetadata = new ChunkMetadata(chunkPos, ChunkRenderState.CULLED, null);
+				else if (region.isChanging(x, z))
+					chunkMetadata = new ChunkMetadata(chunkPos, ChunkRenderState.CHANGING, null);
+				else if (region.isFailed(x, z))
+					chunkMetadata = new ChunkMetadata(chunkPos, ChunkRenderState.FAILED, null);
+				else
+					chunkMetadata = renderChunk(settings, chunkPos, x, z, region.getChunk(x, z), sampling, map, height, regionBiomes, stacks);
+				metadata.put(chunkPos, chunkMetadata);
+			}
+		fillSampled(sampling, map, height, regionBiomes);
+	}
+
+	/** Check the sampling and initialize the arrays for {@link #renderUnshaded} */
+	private static void prepareUnshaded(RenderSettings settings, int sampling, int[] height, int[] regionBiomes) {
+		if (sampling < 1 || sampling > 16 || Integer.bitCount(sampling) != 1)
+			throw new IllegalArgumentException("Sampling must be a power of two between 1 and 16, but is " + sampling);
+		/* If nothing is set otherwise, the height map is set to the minimum height. */
+		Arrays.fill(height, settings.minY);
+		Arrays.fill(regionBiomes, -1);
+	}
+
+	private static void fillSampled(int sampling, Color[] map, int[] height, int[] regionBiomes) {
+		if (sampling > 1) {
+			/* Fill the areas between the rendered columns */
+			int mask = (sampling - 1) | (sampling - 1) << 9;
+			for (int i = 0; i < 512 * 512; i++) {
+				int sample = i & ~mask;
+				if (sample != i) {
+					map[i] = map[sample];
+					height[i] = height[sample];
+					regionBiomes[i] = regionBiomes[sample];
 				}
+			}
+		}
+	}
 
-				// Traverse the chunk in YXZ order
-				for (byte z = 0; z < 16; z++)
-					for (byte x = 0; x < 16; x++) {
-						if (x < settings.minX || x > settings.maxX || z < settings.minZ || z > settings.maxZ)
-							continue;
+	/**
+	 * Render a single chunk without shading it. The results will be written to the respective area of the given arrays, as described in
+	 * {@link #renderUnshaded(RenderSettings, Vector2ic, RegionFile, Map, int, Color[], int[], int[], SurfaceStacks.Builder)}, but without filling the
+	 * gaps between sampled columns.
+	 * 
+	 * @param offset
+	 *            the index of the chunk's first column in the arrays. They don't need to be as large as the region, but still have a scanline stride
+	 *            of 512.
+	 * @return the metadata of the chunk. If it failed to render, the arrays may contain partial results.
+	 */
+	private ChunkMetadata renderChunk(RenderSettings settings, Vector2ic regionPos, Chunk chunk, int offset, int sampling, Color[] map, int[] height,
+			int[] regionBiomes, SurfaceStacks.Builder stacks) {
+		Vector2ic chunkPos = new Vector2i((regionPos.x() << 5) | chunk.x, (regionPos.y() << 5) | chunk.z);
+		if (isCulled(settings, chunkPos))
+			return new ChunkMetadata(chunkPos, ChunkRenderState.CULLED, null);
+		CompoundMap root;
+		try {
+			root = chunk.readTag().getValue();
+		} catch (Exception e) {
+			log.warn("Failed to render chunk (" + chunk.x + ", " + chunk.z + ")", e);
+			return new ChunkMetadata(chunkPos, ChunkRenderState.FAILED, null);
+		}
+		return renderChunk(settings, chunkPos, chunk.x, chunk.z, offset, root, sampling, map, height, regionBiomes, stacks);
+	}
 
-						regionBiomes[chunk.x << 4 | x | chunk.z << 13 | z << 9] = biomes[x | z << 4];
+	private static boolean isCulled(RenderSettings settings, Vector2ic chunkPos) {
+		return (chunkPos.x() + 16 < settings.minX || chunkPos.x() > settings.maxX)
+				&& (chunkPos.y() + 16 < settings.minZ || chunkPos.y() > settings.maxZ);
+	}
 
-						/* Once the height calculation is completed (we found a non-translucent block), set this flag to stop searching. */
-						boolean heightSet = false;
-						ColorColumn color = new ColorColumn();
-						height: for (byte s = 15; s >= 0; s--) {
-							if ((s << 4) > settings.maxY)
-								continue;
-							if (s < lowestLoadedSection) {
-								// log.debug("Loading section " + s);
-								try {
-									loadedSections[s] = renderSection(sections.get(s));
-								} catch (Exception e) {
-									log.warn("Failed to render chunk (" + chunk.x + ", " + chunk.z + ") section " + s
-											+ ". This is very likely because your chunk is corrupt. If possible, please verify it "
-											+ "manually before sending a bug report.", e);
-									metadata.put(chunkPos, new ChunkMetadata(chunkPos, ChunkRenderState.FAILED, generationStatus));
-									continue chunk;
-								}
-								lowestLoadedSection = s;
+	/**
+	 * Render the already decoded data of a single chunk.
+	 * 
+	 * @param chunkX
+	 *            the x coordinate of the chunk within its region, between 0 and 31
+	 * @param chunkZ
+	 *            the z coordinate of the chunk within its region, between 0 and 31
+	 * @see #renderChunk(RenderSettings, Vector2ic, Chunk, int, int, Color[], int[], int[], SurfaceStacks.Builder)
+	 */
+	private ChunkMetadata renderChunk(RenderSettings settings, Vector2ic chunkPos, int chunkX, int chunkZ, CompoundMap root, int sampling, Color[] map,
+			int[] height, int[] regionBiomes, SurfaceStacks.Builder stacks) {
+		return renderChunk(settings, chunkPos, chunkX, chunkZ, chunkX << 4 | chunkZ << 13, root, sampling, map, height, regionBiomes, stacks);
+	}
+
+	/**
+	 * Like {@link #renderChunk(RenderSettings, Vector2ic, int, int, CompoundMap, int, Color[], int[], int[], SurfaceStacks.Builder)}, but the
+	 * chunk's first column is at the given index of the arrays.
+	 * 
+	 * @see #renderChunk(RenderSettings, Vector2ic, Chunk, int, int, Color[], int[], int[], SurfaceStacks.Builder)
+	 */
+	private ChunkMetadata renderChunk(RenderSettings settings, Vector2ic chunkPos, int chunkX, int chunkZ, int offset, CompoundMap root, int sampling,
+			Color[] map, int[] height, int[] regionBiomes, SurfaceStacks.Builder stacks) {
+		try {
+			ChunkMetadata metadata = scanChunk(chunkPos, root);
+			ChunkGenerationStatus generationStatus = metadata.generationStatus;
+			if (metadata.renderState != ChunkRenderState.RENDERED || generationStatus == ChunkGenerationStatus.EMPTY || generationStatus == null)
+				return metadata;
+			CompoundMap level = ((CompoundTag) root.get("Level")).getValue();
+
+			int[] biomes = ((IntArrayTag) level.get("Biomes")).getValue();
+
+			/*
+			 * The height of the lowest section that has already been loaded. Section are loaded lazily from top to bottom and this value gets decreased
+			 * each time a new one has been loaded
+			 */
+			int lowestLoadedSection = 16;
+			/* Null entries indicate a section full of air */
+			Block[][] loadedSections = new Block[16][];
+
+			// Get the list of all sections and map them to their y coordinate using streams
+			@SuppressWarnings("unchecked")
+			Map<Byte, CompoundMap> sections = ((ListTag<CompoundTag>) level.getOrDefault("Sections",
+					new ListTag<>("sections", CompoundTag.class, Collections.emptyList()))).getValue().stream()
+							.collect(Collectors.toMap(s -> (Byte) s.getValue().get("Y").getValue(), s -> s.getValue()));
+
+			// Traverse the chunk in YXZ order
+			for (byte z = 0; z < 16; z += sampling)
+				for (byte x = 0; x < 16; x += sampling) {
+					if (x < settings.minX || x > settings.maxX || z < settings.minZ || z > settings.maxZ)
+						continue;
+
+					regionBiomes[offset | x | z << 9] = biomes[x | z << 4];
+
+					/* Once the height calculation is completed (we found a non-translucent block), set this flag to stop searching. */
+					boolean heightSet = false;
+					ColorColumn color = new ColorColumn();
+					/*
+					 * The height at which the color stopped, and whether all blocks below have been recorded to the stack. Once the stack is full, the
+					 * color is still computed down to where it stops, only recording ends.
+					 */
+					int stopY = Integer.MIN_VALUE;
+					boolean complete = true, recording = stacks != null;
+					if (stacks != null)
+						stacks.beginColumn();
+					height: for (byte s = 15; s >= 0; s--) {
+						if ((s << 4) > settings.maxY)
+							continue;
+						if (s < lowestLoadedSection) {
+							// log.debug("Loading section " + s);
+							try {
+								loadedSections[s] = renderSection(sections.get(s), sampling);
+							} catch (Exception e) {
+								log.warn("Failed to render chunk (" + chunkX + ", " + chunkZ + ") section " + s
+										+ ". This is very likely because your chunk is corrupt. If possible, please verify it "
+										+ "manually before sending a bug report.", e);
+								return new ChunkMetadata(chunkPos, ChunkRenderState.FAILED, generationStatus);
 							}
-							if (loadedSections[s] == null) {
-								// Sector is full of air
+							lowestLoadedSection = s;
+						}
+						if (loadedSections[s] == null) {
+							// Sector is full of air
+							if (!color.needStop) {
 								color.putColor(settings.blockColors.getAirColor(), 16);
-								continue;
+								if (color.needStop)
+									stopY = s << 4 | 15;
 							}
-							for (int y = 15; y >= 0; y--) {
-								if ((y | s << 4) < settings.minY)
-									break height;
-								if ((y | s << 4) > settings.maxY)
-									continue;
+							if (recording && !record(stacks, color, stopY, Block.AIR, s << 4 | 15, 16)) {
+								complete = false;
+								recording = false;
+							}
+							if (!recording && color.needStop)
+								break height;
+							continue;
+						}
+						for (int y = 15; y >= 0; y--) {
+							if ((y | s << 4) < settings.minY)
+								break height;
+							if ((y | s << 4) > settings.maxY)
+								continue;
 
-								int i = x | z << 4 | y << 8;
-								Block block = loadedSections[s][i];
+							int i = x | z << 4 | y << 8;
+							Block block = loadedSections[s][i];
 
+							if (!color.needStop) {
 								BlockColor colorData = settings.blockColors.getBlockColor(block);
-								Color currentColor = colorData.color;
-								if (currentColor == Color.MISSING && blocksWithMissingColor.add(block)) // == is correct here
-									log.warn("Missing color for " + block);
-								if (colorData.isGrass)
-									currentColor = Color.multiplyRGB(currentColor, settings.biomeColors.getGrassColor(biomes[i & 0xFF]));
-								if (colorData.isFoliage)
-									currentColor = Color.multiplyRGB(currentColor, settings.biomeColors.getFoliageColor(biomes[i & 0xFF]));
-								if (colorData.isWater)
-									currentColor = Color.multiplyRGB(currentColor, settings.biomeColors.getWaterColor(biomes[i & 0xFF]));
 								if (!colorData.isTranslucent && !heightSet) {
-									height[chunk.x << 4 | x | chunk.z << 13 | z << 9] = s << 4 | y;
+									height[offset | x | z << 9] = s << 4 | y;
 									heightSet = true;
 								}
 
-								color.putColor(currentColor);
+								color.putColor(getColor(settings, block, colorData, biomes[i & 0xFF]));
 								if (color.needStop)
-									break height;
+									stopY = s << 4 | y;
 							}
+							if (recording && !record(stacks, color, stopY, block, s << 4 | y, 1)) {
+								complete = false;
+								recording = false;
+							}
+							/* Without recording the stack, nothing below is of interest */
+							if (!recording && color.needStop)
+								break height;
 						}
-						map[chunk.x << 4 | x | chunk.z << 13 | z << 9] = color.getFinal();
 					}
-				metadata.put(chunkPos, new ChunkMetadata(chunkPos, ChunkRenderState.RENDERED, generationStatus, structureCenters));
-			} catch (Exception e) {
-				log.warn("Failed to render chunk (" + chunk.x + ", " + chunk.z + ")", e);
-				metadata.put(chunkPos, new ChunkMetadata(chunkPos, ChunkRenderState.FAILED, null));
-				continue;
+					map[offset | x | z << 9] = color.getFinal();
+					if (stacks != null)
+						stacks.endColumn(offset | x | z << 9, biomes[x | z << 4], complete);
+				}
+			return metadata;
+		} catch (Exception e) {
+			log.warn("Failed to render chunk (" + chunkX + ", " + chunkZ + ")", e);
+			return new ChunkMetadata(chunkPos, ChunkRenderState.FAILED, null);
+		}
+	}
+
+	/**
+	 * Read the metadata of a chunk: check its data version and generation status and load its structures.
+	 * 
+	 * @return the metadata of the chunk, with a render state of {@link ChunkRenderState#RENDERED} if the chunk can be rendered
+	 * @throws RuntimeException
+	 *             if the chunk data is malformed
+	 */
+	private static ChunkMetadata scanChunk(Vector2ic chunkPos, CompoundMap root) {
+		{ // Check data version
+			if (root.containsKey("DataVersion")) {
+				// 1519 is the internal version number of 1.13
+				int dataVersion = ((Integer) root.get("DataVersion").getValue());
+				if (dataVersion < 1519) {
+					log.warn("Skipping chunk because it is too old");
+					return new ChunkMetadata(chunkPos, ChunkRenderState.TOO_OLD, null);
+				}
+			} else {
+				log.warn("Skipping chunk because it is way too old (pre 1.9)");
+				return new ChunkMetadata(chunkPos, ChunkRenderState.TOO_OLD, null);
 			}
 		}
 
-		settings.shader.shade(map, height, regionBiomes, settings.biomeColors);
-		return map;
+		CompoundMap level = ((CompoundTag) root.get("Level")).getValue();
+
+		/* Check chunk status */
+		ChunkGenerationStatus generationStatus = ChunkGenerationStatus.forName(((String) level.get("Status").getValue()));
+		if (generationStatus == ChunkGenerationStatus.EMPTY || generationStatus == null) {
+			return new ChunkMetadata(chunkPos, ChunkRenderState.RENDERED, generationStatus);
+		}
+
+		Map<String, Vector3ic> structureCenters = new HashMap<>();
+		if (level.containsKey("Structures") && ((CompoundTag) level.get("Structures")).getValue().containsKey("Starts")) {// Load saved structures
+			CompoundMap structures = ((CompoundTag) ((CompoundTag) level.get("Structures")).getValue().get("Starts")).getValue();
+			for (Tag<?> structureTag : structures.values()) {
+				CompoundMap structure = ((CompoundTag) structureTag).getValue();
+				String id = ((StringTag) structure.get("id")).getValue();
+				if (!id.equals("INVALID")) {
+					int[] bb = ((IntArrayTag) structure.get("BB")).getValue();
+					Vector3i center = new Vector3i(bb[0], bb[1], bb[2]).add(bb[3], bb[4], bb[5]);
+					// JOML has no Vector3i#div function, why?
+					center.x /= 2;
+					center.y /= 2;
+					center.z /= 2;
+					structureCenters.put(id, center);
+				}
+			}
+		}
+
+		return new ChunkMetadata(chunkPos, ChunkRenderState.RENDERED, generationStatus, structureCenters);
+	}
+
+	/**
+	 * Abort rendering by throwing a {@link CancellationException} if the given settings are outdated or if the current thread has been interrupted.
+	 */
+	private void checkCancelled(RenderSettings settings) {
+		if (this.settings.version != settings.version)
+			throw new CancellationException("The settings changed while rendering");
+		if (Thread.currentThread().isInterrupted())
+			throw new CancellationException("Rendering has been interrupted");
+	}
+
+	/**
+	 * Apply the biome tints to a block's color.
+	 */
+	private Color getColor(RenderSettings settings, Block block, BlockColor colorData, int biome) {
+		Color color = colorData.color;
+		if (color == Color.MISSING && blocksWithMissingColor.add(block)) // == is correct here
+			log.warn("Missing color for " + block);
+		if (colorData.isGrass)
+			color = Color.multiplyRGB(color, settings.biomeColors.getGrassColor(biome));
+		if (colorData.isFoliage)
+			color = Color.multiplyRGB(color, settings.biomeColors.getFoliageColor(biome));
+		if (colorData.isWater)
+			color = Color.multiplyRGB(color, settings.biomeColors.getWaterColor(biome));
+		return color;
+	}
+
+	/**
+	 * Add some blocks to the surface stack of the current column. Returns {@code false} if the stack is full or if the blocks lie too far below the point where
+	 * the color stopped.
+	 */
+	private static boolean record(SurfaceStacks.Builder stacks, ColorColumn color, int stopY, Block block, int y, int length) {
+		if (color.needStop && stopY - y > SurfaceStacks.MAX_DEPTH)
+			return false;
+		return stacks.add(block, y, length);
+	}
+
+	/*
+	 * Save the final color of this pixel. It starts with transparent and will be modified over time through overlay operations. The last color
+	 * is saved with the amount of times it was present in a row. This way, overlaying the same color over and over again can be optimized into
+	 * one operation with specialized alpha calculation.
+	 */
+	private static class ColorColumn {
+		Color	color			= Color.TRANSPARENT, lastColor = Color.TRANSPARENT;
+		int		lastColorTimes	= 0;
+		boolean	needStop		= false;
+
+		void putColor(Color currentColor) {
+			putColor(currentColor, 1);
+		}
+
+		void putColor(Color currentColor, int times) {
+			if (currentColor.equals(lastColor))
+				lastColorTimes += times;
+			else {
+				color = Color.alphaUnder(color, lastColor, lastColorTimes);
+				lastColorTimes = times;
+				lastColor = currentColor;
+			}
+			if (currentColor.a > 0.9999)
+				needStop = true;
+		}
+
+		Color getFinal() {
+			/*
+			 * Due to the alpha optimizations, putColor will only update the color when that one changes. This means that color will never contain
+			 * the latest results. Putting a different color (transparent here) will trigger it to apply the last remaining color. If the last color
+			 * is already transparent, this will do nothing which doesn't matter since it wouldn't make any effect anyway.
+			 */
+			putColor(Color.TRANSPARENT);
+			return color;
+		}
 	}
 
 	/**
 	 * Takes in the NBT data for a section and returns an int[] containing the color of each block in that section. The returned array thus has
-	 * a length of 16³=4096 items and the blocks are mapped to them in XZY order.
+	 * a length of 16³=4096 items and the blocks are mapped to them in XZY order. If sampling is used, only the blocks of the sampled columns
+	 * will be set.
 	 */
-	private Block[] renderSection(CompoundMap section) {
+	private Block[] renderSection(CompoundMap section, int sampling) {
 		if (section == null)
 			return null;
 
@@ -305,8 +812,11 @@ public class RegionRenderer {
 
 		int bitsPerIndex = blocks.length * 64 / 4096;
 		Block[] ret = new Block[16 * 16 * 16];
+		int mask = (sampling - 1) | (sampling - 1) << 4;
 
 		for (int i = 0; i < 4096; i++) {
+			if ((i & mask) != 0)
+				continue;
 			long blockIndex = Chunk.extractFromLong(blocks, i, bitsPerIndex);
 
 			if (blockIndex >= palette.size()) {
@@ -53,9 +53,27 @@ public interface RegionShader {
 		}
 	}
 
-	/** This shader does some classic relief shading with a fictional light source coming from the north-west. */
+	/** This shader does some classic relief shading with a fictional light source, coming from the north-west by default. */
 	public class ReliefShader implements RegionShader {
 
+		/* The direction of the light, scaled so that both components are 1 for the default direction */
+		protected final double lightX, lightY;
+
+		/** Light the map from the north-west. */
+		public ReliefShader() {
+			lightX = 1;
+			lightY = 1;
+		}
+
+		/**
+		 * @param azimuth
+		 *            The direction the light comes from, in radians. 0 means west, π/2 means north. The default is π/4.
+		 */
+		public ReliefShader(double azimuth) {
+			lightX = Math.sqrt(2) * Math.cos(azimuth);
+			lightY = Math.sqrt(2) * Math.sin(azimuth);
+		}
+
 		@Override
 		public void shade(Color[] map, int[] height, int[] biome, BiomeColorMap biomeColors) {
 			for (int z = 0; z < 512; z++)
@@ -99,7 +117,7 @@ public interface RegionShader {
 					// Map to [-1..1]
 					// factor = (factor + 1) / 2;
 
-					double factor = -Math.tanh((gX + gY) / 10);
+					double factor = -Math.tanh((gX * lightX + gY * lightY) / 10);
 					factor *= 0.3;
 
 					// if (g == 0)
@@ -1,27 +1,89 @@
 package de.piegames.blockmap.renderer;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import de.piegames.blockmap.color.BiomeColorMap;
 import de.piegames.blockmap.color.BlockColorMap;
 import de.piegames.blockmap.renderer.RegionShader.ReliefShader;
 
-public class RenderSettings {
+/**
+ * An immutable snapshot of all settings that influence rendering. Use the {@code with*} methods to derive modified settings. Since instances never
+ * change, a render task can hold on to the settings it started with while others are being set.
+ * 
+ * @see RegionRenderer#setSettings(RenderSettings)
+ */
+public final class RenderSettings {
+
+	private static final AtomicLong	versions	= new AtomicLong();
+
+	/**
+	 * Every snapshot gets its own version number. Settings that were created later on have a higher version. Comparing the versions is cheaper than
+	 * comparing all the fields, but two snapshots with different versions may still be equal.
+	 */
+	public final long				version;
 
-	public int				minX	= Integer.MIN_VALUE;
-	public int				maxX	= Integer.MAX_VALUE;
-	public int				minY	= Integer.MIN_VALUE;
-	public int				maxY	= Integer.MAX_VALUE;
-	public int				minZ	= Integer.MIN_VALUE;
-	public int				maxZ	= Integer.MAX_VALUE;
+	public final int				minX, maxX;
+	public final int				minY, maxY;
+	public final int				minZ, maxZ;
 
-	public BlockColorMap	blockColors;
-	public BiomeColorMap	biomeColors;
-	public RegionShader		shader	= new ReliefShader();
+	public final BlockColorMap		blockColors;
+	public final BiomeColorMap		biomeColors;
+	public final RegionShader		shader;
+	/**
+	 * Only render one column of blocks per {@code sampling×sampling} area and use its color for the whole area. Higher values render a lot faster at the cost
+	 * of detail, which is useful for previews. Must be a power of two between 1 (full detail) and 16 (one column per chunk).
+	 */
+	public final int				sampling;
 
+	/** Create settings without bounds, using the relief shader and no color maps. */
 	public RenderSettings() {
+		this(Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, null, null, new ReliefShader(),
+				1);
+	}
+
+	public RenderSettings(int minX, int maxX, int minY, int maxY, int minZ, int maxZ, BlockColorMap blockColors, BiomeColorMap biomeColors,
+			RegionShader shader, int sampling) {
+		this.version = versions.incrementAndGet();
+		this.minX = minX;
+		this.maxX = maxX;
+		this.minY = minY;
+		this.maxY = maxY;
+		this.minZ = minZ;
+		this.maxZ = maxZ;
+		this.blockColors = blockColors;
+		this.biomeColors = biomeColors;
+		this.shader = shader;
+		this.sampling = sampling;
+	}
+
+	/** Returns a copy of these settings that uses the default block and biome color maps. */
+	public RenderSettings withDefaultColors() {
+		return new RenderSettings(minX, maxX, minY, maxY, minZ, maxZ, BlockColorMap.loadDefault(), BiomeColorMap.loadDefault(), shader, sampling);
+	}
+
+	/** Returns a copy of these settings with different horizontal bounds, in block coordinates. */
+	public RenderSettings withBounds(int minX, int maxX, int minZ, int maxZ) {
+		return new RenderSettings(minX, maxX, minY, maxY, minZ, maxZ, blockColors, biomeColors, shader, sampling);
+	}
+
+	/** Returns a copy of these settings with a different height range */
+	public RenderSettings withHeight(int minY, int maxY) {
+		return new RenderSettings(minX, maxX, minY, maxY, minZ, maxZ, blockColors, biomeColors, shader, sampling);
+	}
+
+	public RenderSettings withBlockColors(BlockColorMap blockColors) {
+		return new RenderSettings(minX, maxX, minY, maxY, minZ, maxZ, blockColors, biomeColors, shader, sampling);
+	}
+
+	public RenderSettings withBiomeColors(BiomeColorMap biomeColors) {
+		return new RenderSettings(minX, maxX, minY, maxY, minZ, maxZ, blockColors, biomeColors, shader, sampling);
+	}
+
+	public RenderSettings withShader(RegionShader shader) {
+		return new RenderSettings(minX, maxX, minY, maxY, minZ, maxZ, blockColors, biomeColors, shader, sampling);
 	}
 
-	public void loadDefaultColors() {
-		blockColors = BlockColorMap.loadDefault();
-		biomeColors = BiomeColorMap.loadDefault();
+	public RenderSettings withSampling(int sampling) {
+		return new RenderSettings(minX, maxX, minY, maxY, minZ, maxZ, blockColors, biomeColors, shader, sampling);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,52 @@
+package de.piegames.blockmap.renderer;
+
+import java.util.Objects;
+
+import de.piegames.blockmap.color.Color;
+import de.piegames.blockmap.world.ChunkMetadata;
+
+/**
+ * The unshaded result of rendering a single chunk, as published by {@link RegionRenderer#renderChunks}. It contains the same information as the
+ * {@link RegionLayers} of a region, but only for the 16*16 columns of that chunk, each in XZ order. Like there, the colors are packed to save
+ * memory. Shading is left to the consumer, since most shaders need to look at the neighboring chunks.
+ *
+ * @see RegionRenderer#renderChunks(org.joml.Vector2ic, com.flowpowered.nbt.regionfile.RegionFile, java.util.concurrent.Executor)
+ */
+public class RenderedChunk {
+
+	/** The metadata of the chunk. Its position is in chunk coordinates. */
+	public final ChunkMetadata	metadata;
+	/** The color of each column packed as sRGB with linear alpha (see {@link Color#toRGB()}), {@code 0} where nothing has been rendered */
+	public final int[]			colors;
+	/** The height of the first non-translucent block of each column */
+	public final int[]			height;
+	/** The biome ID of each column, {@code -1} where nothing has been rendered */
+	public final int[]			biomes;
+
+	public RenderedChunk(ChunkMetadata metadata, int[] colors, int[] height, int[] biomes) {
+		this.metadata = Objects.requireNonNull(metadata);
+		this.colors = Objects.requireNonNull(colors);
+		this.height = Objects.requireNonNull(height);
+		this.biomes = Objects.requireNonNull(biomes);
+		if (colors.length != 16 * 16 || height.length != 16 * 16 || biomes.length != 16 * 16)
+			throw new IllegalArgumentException("All arrays must have a size of 16*16");
+	}
+
+	/**
+	 * Copy a chunk out of unshaded arrays with a scanline stride of 512, starting at index 0. The gaps between sampled columns will be filled.
+	 */
+	static RenderedChunk extract(ChunkMetadata metadata, int sampling, Color[] map, int[] height, int[] biomes) {
+		int[] chunkColors = new int[16 * 16];
+		int[] chunkHeight = new int[16 * 16];
+		int[] chunkBiomes = new int[16 * 16];
+		int mask = ~(sampling - 1);
+		for (int z = 0; z < 16; z++)
+			for (int x = 0; x < 16; x++) {
+				int i = (x & mask) | (z & mask) << 9;
+				chunkColors[x | z << 4] = map[i] == null ? 0 : map[i].toRGB();
+				chunkHeight[x | z << 4] = height[i];
+				chunkBiomes[x | z << 4] = biomes[i];
+			}
+		return new RenderedChunk(metadata, chunkColors, chunkHeight, chunkBiomes);
+	}
+}
@@ -0,0 +1,242 @@
+package de.piegames.blockmap.renderer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * For each column of a region, the sequence of blocks that are visible from above, run length encoded. Since the resulting color of a column only depends on
+ * those blocks and on the biome, any {@link de.piegames.blockmap.color.BlockColorMap} can be applied to them without reading the region file again.
+ * <p>
+ * How far down a column is visible depends on the color map. The renderer records the blocks down to where the color map used while rendering stops, and
+ * then continues a bit further (see {@link #MAX_RUNS} and {@link #MAX_DEPTH}) to support other color maps as well. If a color map needs to look even deeper,
+ * the column will be marked as incomplete and the region needs to be rendered from the file again. The stacks are only valid for the Y range they have been
+ * recorded with.
+ * <p>
+ * Each run is packed into an {@code int}: the index of the block in the palette in the upper 16 bits, followed by the height of the topmost block of the run
+ * and the length of the run minus one, 8 bits each.
+ * 
+ * @see RegionRenderer#render(org.joml.Vector2ic, com.flowpowered.nbt.regionfile.RegionFile, boolean)
+ * @see RegionRenderer#recolor(org.joml.Vector2ic, SurfaceStacks)
+ */
+public class SurfaceStacks {
+
+	/** The maximum number of runs per column */
+	public static final int		MAX_RUNS	= 16;
+	/** How many blocks below the point where the color map used for rendering stopped will be recorded at most */
+	public static final int		MAX_DEPTH	= 32;
+
+	private static final int	NO_BIOME	= 0xFF;
+
+	/** The Y range these stacks have been recorded with */
+	public final int			minY, maxY;
+	protected final List<Block>	palette;
+	/** For each column, the number of runs and the index of its first run. The runs are stored in column order, so the latter follows from the former. */
+	protected final byte[]		count;
+	protected final int[]		start;
+	protected final int[]		runs;
+	protected final byte[]		biomes;
+	/** Columns that have been rendered, and columns that have been recorded down to the bottom */
+	protected final BitSet		present, complete;
+
+	protected SurfaceStacks(int minY, int maxY, List<Block> palette, byte[] count, int[] runs, byte[] biomes, BitSet present, BitSet complete) {
+		this.minY = minY;
+		this.maxY = maxY;
+		this.palette = Objects.requireNonNull(palette);
+		this.count = Objects.requireNonNull(count);
+		start = new int[512 * 512];
+		for (int i = 1; i < 512 * 512; i++)
+			start[i] = start[i - 1] + count[i - 1];
+		this.runs = Objects.requireNonNull(runs);
+		this.biomes = Objects.requireNonNull(biomes);
+		this.present = Objects.requireNonNull(present);
+		this.complete = Objects.requireNonNull(complete);
+	}
+
+	/** Whether the column at this index (XZ order) has been rendered. If not, it is empty. */
+	public boolean isPresent(int column) {
+		return present.get(column);
+	}
+
+	/** Whether all visible blocks of the column have been recorded, down to the bottom of the Y range. */
+	public boolean isComplete(int column) {
+		return complete.get(column);
+	}
+
+	/** The index of the first run of the given column. The runs of a column have consecutive indices, from top to bottom. */
+	public int getStart(int column) {
+		return start[column];
+	}
+
+	/** The index after the last run of the given column */
+	public int getEnd(int column) {
+		return start[column] + count[column];
+	}
+
+	public Block getBlock(int run) {
+		return palette.get(runs[run] >>> 16);
+	}
+
+	/** The height of the topmost block of a run */
+	public int getY(int run) {
+		return (runs[run] >>> 8) & 0xFF;
+	}
+
+	public int getLength(int run) {
+		return (runs[run] & 0xFF) + 1;
+	}
+
+	/** Returns a new array containing the biome IDs, {@code -1} where there is no biome. */
+	public int[] getBiomes() {
+		int[] ret = new int[512 * 512];
+		for (int i = 0; i < 512 * 512; i++)
+			ret[i] = (biomes[i] & 0xFF) == NO_BIOME ? -1 : biomes[i] & 0xFF;
+		return ret;
+	}
+
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(minY);
+		out.writeInt(maxY);
+		out.writeInt(palette.size());
+		for (Block block : palette) {
+			out.writeBoolean(block != null);
+			if (block != null)
+				out.writeUTF(block.toString());
+		}
+		out.write(count);
+		out.writeInt(runs.length);
+		for (int run : runs)
+			out.writeInt(run);
+		out.write(biomes);
+		writeBits(out, present);
+		writeBits(out, complete);
+	}
+
+	public static SurfaceStacks read(DataInput in) throws IOException {
+		int minY = in.readInt();
+		int maxY = in.readInt();
+		List<Block> palette = new ArrayList<>();
+		for (int i = in.readInt(); i > 0; i--)
+			palette.add(in.readBoolean() ? Block.byCompactForm(in.readUTF()).get(0) : null);
+		byte[] count = new byte[512 * 512];
+		in.readFully(count);
+		int[] runs = new int[in.readInt()];
+		for (int i = 0; i < runs.length; i++)
+			runs[i] = in.readInt();
+		byte[] biomes = new byte[512 * 512];
+		in.readFully(biomes);
+		return new SurfaceStacks(minY, maxY, Collections.unmodifiableList(palette), count, runs, biomes, readBits(in), readBits(in));
+	}
+
+	private static void writeBits(DataOutput out, BitSet bits) throws IOException {
+		long[] data = bits.toLongArray();
+		out.writeInt(data.length);
+		for (long l : data)
+			out.writeLong(l);
+	}
+
+	private static BitSet readBits(DataInput in) throws IOException {
+		long[] data = new long[in.readInt()];
+		for (int i = 0; i < data.length; i++)
+			data[i] = in.readLong();
+		return BitSet.valueOf(data);
+	}
+
+	/**
+	 * Records the stacks while rendering. Columns may be recorded in any order, but only one at a time. Columns that are begun but never ended will be treated
+	 * as not present.
+	 */
+	public static class Builder {
+
+		protected final int					minY, maxY;
+		protected final List<Block>			palette		= new ArrayList<>();
+		protected final Map<Block, Integer>	paletteIds	= new HashMap<>();
+		protected final int[]				start		= new int[512 * 512];
+		protected final byte[]				count		= new byte[512 * 512];
+		protected int[]						runs		= new int[512 * 512 * 4];
+		protected int						size;
+		protected final byte[]				biomes		= new byte[512 * 512];
+		protected final BitSet				present		= new BitSet(512 * 512), complete = new BitSet(512 * 512);
+
+		/* The column currently being recorded */
+		protected int						columnStart, columnCount;
+
+		public Builder(int minY, int maxY) {
+			this.minY = minY;
+			this.maxY = maxY;
+			Arrays.fill(biomes, (byte) NO_BIOME);
+		}
+
+		public void beginColumn() {
+			columnStart = size;
+			columnCount = 0;
+		}
+
+		/**
+		 * Append blocks to the current column, below all others.
+		 * 
+		 * @param y
+		 *            the height of the topmost of the added blocks
+		 * @return {@code false} if the column is full and nothing has been added
+		 */
+		public boolean add(Block block, int y, int length) {
+			if (columnCount > 0) {
+				int last = runs[size - 1];
+				int lastLength = (last & 0xFF) + 1;
+				if (Objects.equals(palette.get(last >>> 16), block) && ((last >>> 8) & 0xFF) - lastLength == y && lastLength + length <= 256) {
+					runs[size - 1] = last + length;
+					return true;
+				}
+			}
+			if (columnCount == MAX_RUNS)
+				return false;
+			Integer id = paletteIds.get(block);
+			if (id == null) {
+				if (palette.size() == 1 << 16)
+					return false;
+				id = palette.size();
+				palette.add(block);
+				paletteIds.put(block, id);
+			}
+			if (size == runs.length)
+				runs = Arrays.copyOf(runs, runs.length * 2);
+			runs[size++] = id << 16 | y << 8 | (length - 1);
+			columnCount++;
+			return true;
+		}
+
+		/**
+		 * @param column
+		 *            the index of the column in XZ order
+		 * @param complete
+		 *            if all blocks down to the bottom have been added
+		 */
+		public void endColumn(int column, int biome, boolean complete) {
+			start[column] = columnStart;
+			count[column] = (byte) columnCount;
+			biomes[column] = (byte) (biome == -1 ? NO_BIOME : biome);
+			present.set(column);
+			this.complete.set(column, complete);
+		}
+
+		public SurfaceStacks build() {
+			/* Bring the runs into column order and drop those of unfinished columns */
+			int[] sorted = new int[size];
+			int index = 0;
+			for (int i = 0; i < 512 * 512; i++) {
+				System.arraycopy(runs, start[i], sorted, index, count[i]);
+				index += count[i];
+			}
+			return new SurfaceStacks(minY, maxY, Collections.unmodifiableList(new ArrayList<>(palette)), count, Arrays.copyOf(sorted, index), biomes,
+					present, complete);
+		}
+	}
+}
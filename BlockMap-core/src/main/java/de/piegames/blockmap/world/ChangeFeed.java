@@ -0,0 +1,169 @@
+package de.piegames.blockmap.world;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.joml.Vector2i;
+import org.joml.Vector2ic;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+
+import de.piegames.blockmap.world.Region.LocalSavedRegion;
+import de.piegames.blockmap.world.RegionFolder.RegionHelper;
+
+/**
+ * A log of the regions that have been rendered again since a world has been saved, so that viewers can update only those instead of loading the
+ * whole world again. It is a file with one JSON object per line, each one describing the regions that got rendered in one go:
+ *
+ * <pre>
+ * {"id": &lt;NUMBER>, "time": &lt;NUMBER>, "regions": [&lt;REGION ARRAY>]}
+ * </pre>
+ *
+ * The regions have the same format as in older save files (see {@link RegionFolder.SavedRegionFolder#parseSaved(com.google.gson.JsonElement)}),
+ * with the image paths relative to the log file. If the chunk metadata of a region is in a separate file, it is referenced using
+ * {@code "metadataFile"} instead of being inlined as {@code "metadata"}. The ids are increasing, so each change has a newer version than the
+ * ones before. The time is in milliseconds since the epoch.
+ * <p>
+ * The log is meant to be put next to the save file. It is written by {@code render --watch} and can be followed over HTTP as
+ * <a href="https://html.spec.whatwg.org/multipage/server-sent-events.html">server-sent events</a> using {@code serve}.
+ */
+public class ChangeFeed {
+
+	/** The usual name of the log, next to the {@code rendered.json} */
+	public static final String	FILE_NAME	= "changes.jsonl";
+
+	/** One line of the log */
+	public static class Change {
+		public final long			id;
+		public final long			time;
+		final List<RegionHelper>	regions;
+
+		Change(long id, long time, List<RegionHelper> regions) {
+			this.id = id;
+			this.time = time;
+			this.regions = regions;
+		}
+
+		/** The positions of all regions that changed */
+		public Set<Vector2ic> getPositions() {
+			return regions.stream().map(r -> new Vector2i(r.x, r.z)).collect(Collectors.toSet());
+		}
+
+		/**
+		 * Parse a line of the log.
+		 *
+		 * @throws JsonParseException
+		 *             if the line is not valid
+		 */
+		public static Change parse(String line) {
+			JsonElement element = new JsonParser().parse(line);
+			if (!element.isJsonObject())
+				throw new JsonParseException("A change must be an object");
+			JsonObject o = element.getAsJsonObject();
+			if (!isNumber(o.get("id")) || !isNumber(o.get("time")) || o.get("regions") == null || !o.get("regions").isJsonArray())
+				throw new JsonParseException("A change needs an id, a time and the regions");
+			List<RegionHelper> regions = RegionFolder.GSON.fromJson(o.get("regions"), new TypeToken<List<RegionHelper>>() {
+			}.getType());
+			if (regions.contains(null))
+				throw new JsonParseException("Each region of a change must be an object");
+			return new Change(o.get("id").getAsLong(), o.get("time").getAsLong(), regions);
+		}
+
+		private static boolean isNumber(JsonElement element) {
+			return element != null && element.isJsonPrimitive() && element.getAsJsonPrimitive().isNumber();
+		}
+	}
+
+	protected final Path	file;
+	protected long			lastId;
+
+	/**
+	 * Open a log for appending to it. If it already exists, new changes will continue with the ids of the existing ones.
+	 */
+	public ChangeFeed(Path file) throws IOException {
+		this.file = file;
+		List<Change> existing = read(file, -1);
+		lastId = existing.isEmpty() ? 0 : existing.get(existing.size() - 1).id;
+	}
+
+	/**
+	 * Append a line with the given regions to the log. The line is written using a single write call to the end of the file, without buffering.
+	 * Readers may still see the end of the line missing while it is being written, so they must skip lines that can't be parsed like
+	 * {@link #read(Path, long)} does.
+	 *
+	 * @return the id of the new line
+	 */
+	public synchronized long append(Collection<LocalSavedRegion> changed) throws IOException {
+		Path base = file.toAbsolutePath().normalize().getParent();
+		List<RegionHelper> regions = new ArrayList<>(changed.size());
+		for (LocalSavedRegion region : changed) {
+			RegionHelper helper = new RegionHelper();
+			helper.x = region.getPosition().x();
+			helper.z = region.getPosition().y();
+			helper.image = base.relativize(region.getPath().toAbsolutePath().normalize()).toString().replace('\\', '/');
+			if (region.getMetadataPath() != null)
+				helper.metadataFile = base.relativize(region.getMetadataPath().toAbsolutePath().normalize()).toString().replace('\\', '/');
+			else
+				helper.metadata = new ArrayList<>(region.getChunkMetadata().values());
+			regions.add(helper);
+		}
+		/* Use the time as id if possible, so that the ids stay unique even if the log gets deleted */
+		long id = Math.max(lastId + 1, System.currentTimeMillis());
+		JsonObject line = new JsonObject();
+		line.addProperty("id", id);
+		line.addProperty("time", System.currentTimeMillis());
+		line.add("regions", RegionFolder.GSON.toJsonTree(regions));
+		/* The pretty printing of the default instance would spread it across multiple lines */
+		ByteBuffer data = ByteBuffer.wrap((line.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE)) {
+			/* A single call writes everything to regular files, unless the line is huge */
+			while (data.hasRemaining())
+				channel.write(data);
+		}
+		lastId = id;
+		return id;
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * Read all changes newer than the given id. Lines that are not complete yet or otherwise invalid will be skipped.
+	 *
+	 * @return the changes in the order they have been written, or an empty list if the file does not exist
+	 */
+	public static List<Change> read(Path file, long after) throws IOException {
+		if (!Files.exists(file))
+			return Collections.emptyList();
+		List<Change> changes = new ArrayList<>();
+		try (BufferedReader reader = Files.newBufferedReader(file)) {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				try {
+					Change change = Change.parse(line);
+					if (change.id > after)
+						changes.add(change);
+				} catch (JsonParseException e) {
+					/* Most likely a line that is still being written */
+				}
+			}
+		}
+		return changes;
+	}
+}
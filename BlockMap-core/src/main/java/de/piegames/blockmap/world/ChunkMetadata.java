@@ -26,7 +26,12 @@ public class ChunkMetadata {
 		/** The chunk is outside the bounds specified by the render settings */
 		CULLED,
 		/** The chunk still has the old pre-1.13 format */
-		TOO_OLD;
+		TOO_OLD,
+		/**
+		 * The chunk kept being rewritten while reading it, so no consistent version of it could be read. This happens when rendering the world of a
+		 * running server. It should be rendered again later on.
+		 */
+		CHANGING;
 	}
 
 	public static enum ChunkGenerationStatus {
@@ -98,6 +103,7 @@ public class ChunkMetadata {
 		this.position = Objects.requireNonNull(position);
 		this.renderState = Objects.requireNonNull(renderState);
 		this.generationStatus = generationStatus;
-		this.structures = Collections.unmodifiableMap(structures);
+		/* Most chunks don't contain any structures, so don't wrap an empty map for each one of them */
+		this.structures = structures.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(structures);
 	}
 }
@@ -0,0 +1,195 @@
+package de.piegames.blockmap.world;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+
+import org.joml.Vector2ic;
+
+/**
+ * A hash map with primitive {@code long} keys, meant for region and chunk positions packed using {@link #key(int, int)}. Looking up a position does
+ * not need to allocate a vector or to box the key, which makes a difference in code that does this many times per frame. It uses open addressing
+ * with linear probing, so it does not allocate any objects per entry either.
+ * <p>
+ * {@code null} values are not supported. This class is not thread safe.
+ *
+ * @see LongSet
+ */
+public class LongMap<V> {
+
+	/** Keys may take any value, so empty slots are the ones without a value */
+	private long[]		keys;
+	private Object[]	values;
+	private int			size;
+	/** The number of bits of the table size */
+	private int			bits;
+
+	public LongMap() {
+		this(16);
+	}
+
+	/** Create an empty map which can hold the given number of entries without growing */
+	public LongMap(int expectedSize) {
+		bits = tableBits(expectedSize);
+		keys = new long[1 << bits];
+		values = new Object[1 << bits];
+	}
+
+	/** Pack a position into a {@code long}, with {@code x} in the upper and {@code z} in the lower 32 bits. */
+	public static long key(int x, int z) {
+		return (long) x << 32 | (z & 0xFFFFFFFFL);
+	}
+
+	/** @see #key(int, int) */
+	public static long key(Vector2ic position) {
+		return key(position.x(), position.y());
+	}
+
+	public static int x(long key) {
+		return (int) (key >> 32);
+	}
+
+	public static int z(long key) {
+		return (int) key;
+	}
+
+	/** The number of bits of a table that can hold the given number of keys with a load factor of at most 2/3 */
+	static int tableBits(int expectedSize) {
+		int bits = 4;
+		while ((1 << bits) * 2 / 3 < expectedSize)
+			bits++;
+		return bits;
+	}
+
+	/** Fibonacci hashing, so that neighboring positions get spread across the table */
+	static int slot(long key, int bits) {
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - bits));
+	}
+
+	/** Returns the slot of the key, or the empty slot where it would have to be inserted */
+	private int find(long key) {
+		int mask = keys.length - 1;
+		int i = slot(key, bits);
+		while (values[i] != null && keys[i] != key)
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		return (V) values[find(key)];
+	}
+
+	public boolean containsKey(long key) {
+		return values[find(key)] != null;
+	}
+
+	/**
+	 * Associate the value with the given key.
+	 *
+	 * @return the previous value, or {@code null} if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		Objects.requireNonNull(value);
+		int i = find(key);
+		V previous = (V) values[i];
+		keys[i] = key;
+		values[i] = value;
+		if (previous == null && ++size > keys.length * 2 / 3)
+			resize(bits + 1);
+		return previous;
+	}
+
+	/** Like {@link java.util.Map#computeIfAbsent(Object, java.util.function.Function)}. If the function returns {@code null}, nothing is added. */
+	@SuppressWarnings("unchecked")
+	public V computeIfAbsent(long key, LongFunction<? extends V> mappingFunction) {
+		V value = (V) values[find(key)];
+		if (value == null) {
+			value = mappingFunction.apply(key);
+			if (value != null)
+				put(key, value);
+		}
+		return value;
+	}
+
+	/** @return the removed value, or {@code null} if there was none */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int i = find(key);
+		V previous = (V) values[i];
+		if (previous != null) {
+			removeAt(keys, values, null, i, bits);
+			size--;
+		}
+		return previous;
+	}
+
+	/**
+	 * Remove the entry at the given slot by moving the following entries of the same probe sequence back, so that no tombstones are needed. This
+	 * is shared with {@link LongSet}, which passes its occupation flags instead of the values.
+	 */
+	static void removeAt(long[] keys, Object[] values, boolean[] used, int i, int bits) {
+		int mask = keys.length - 1;
+		for (int j = (i + 1) & mask; values != null ? values[j] != null : used[j]; j = (j + 1) & mask) {
+			int home = slot(keys[j], bits);
+			/* Only move the entry if its home slot is not cyclically within (i, j] */
+			if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+				keys[i] = keys[j];
+				if (values != null)
+					values[i] = values[j];
+				i = j;
+			}
+		}
+		if (values != null)
+			values[i] = null;
+		else
+			used[i] = false;
+	}
+
+	private void resize(int newBits) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		bits = newBits;
+		keys = new long[1 << bits];
+		values = new Object[1 << bits];
+		for (int i = 0; i < oldKeys.length; i++)
+			if (oldValues[i] != null) {
+				int j = find(oldKeys[i]);
+				keys[j] = oldKeys[i];
+				values[j] = oldValues[i];
+			}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	/** Returns all keys, in no particular order */
+	public long[] keys() {
+		long[] ret = new long[size];
+		int n = 0;
+		for (int i = 0; i < keys.length; i++)
+			if (values[i] != null)
+				ret[n++] = keys[i];
+		return ret;
+	}
+
+	/** Call the action for each value, in no particular order. The map must not be modified while doing so. */
+	@SuppressWarnings("unchecked")
+	public void forEachValue(Consumer<? super V> action) {
+		for (Object value : values)
+			if (value != null)
+				action.accept((V) value);
+	}
+}
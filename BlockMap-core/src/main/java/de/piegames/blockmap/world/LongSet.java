@@ -0,0 +1,113 @@
+package de.piegames.blockmap.world;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * A hash set of primitive {@code long}s, meant for region and chunk positions packed using {@link LongMap#key(int, int)}. It works like
+ * {@link LongMap}, without the values.
+ * <p>
+ * This class is not thread safe.
+ */
+public class LongSet {
+
+	private long[]		keys;
+	/** Keys may take any value, so the occupied slots are flagged separately */
+	private boolean[]	used;
+	private int			size;
+	private int			bits;
+
+	public LongSet() {
+		this(16);
+	}
+
+	/** Create an empty set which can hold the given number of keys without growing */
+	public LongSet(int expectedSize) {
+		bits = LongMap.tableBits(expectedSize);
+		keys = new long[1 << bits];
+		used = new boolean[1 << bits];
+	}
+
+	/** Returns the slot of the key, or the empty slot where it would have to be inserted */
+	private int find(long key) {
+		int mask = keys.length - 1;
+		int i = LongMap.slot(key, bits);
+		while (used[i] && keys[i] != key)
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	public boolean contains(long key) {
+		return used[find(key)];
+	}
+
+	public boolean contains(int x, int z) {
+		return contains(LongMap.key(x, z));
+	}
+
+	/** @return {@code true} if the key has not been in the set before */
+	public boolean add(long key) {
+		int i = find(key);
+		if (used[i])
+			return false;
+		keys[i] = key;
+		used[i] = true;
+		if (++size > keys.length * 2 / 3)
+			resize(bits + 1);
+		return true;
+	}
+
+	/** @return {@code true} if the key has been in the set */
+	public boolean remove(long key) {
+		int i = find(key);
+		if (!used[i])
+			return false;
+		LongMap.removeAt(keys, null, used, i, bits);
+		size--;
+		return true;
+	}
+
+	private void resize(int newBits) {
+		long[] oldKeys = keys;
+		boolean[] oldUsed = used;
+		bits = newBits;
+		keys = new long[1 << bits];
+		used = new boolean[1 << bits];
+		for (int i = 0; i < oldKeys.length; i++)
+			if (oldUsed[i]) {
+				int j = find(oldKeys[i]);
+				keys[j] = oldKeys[i];
+				used[j] = true;
+			}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		Arrays.fill(used, false);
+		size = 0;
+	}
+
+	/** Call the action for each key, in no particular order. The set must not be modified while doing so. */
+	public void forEach(LongConsumer action) {
+		for (int i = 0; i < keys.length; i++)
+			if (used[i])
+				action.accept(keys[i]);
+	}
+
+	/** Returns all keys, in no particular order */
+	public long[] toArray() {
+		long[] ret = new long[size];
+		int n = 0;
+		for (int i = 0; i < keys.length; i++)
+			if (used[i])
+				ret[n++] = keys[i];
+		return ret;
+	}
+}
@@ -1,17 +1,31 @@
 package de.piegames.blockmap.world;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Objects;
 
 import javax.imageio.ImageIO;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.joml.Vector2ic;
 
+import de.piegames.blockmap.renderer.RegionLayers;
+import de.piegames.blockmap.renderer.SurfaceStacks;
+
 /** Objects of this class represent a rendered Minecraft region. */
 public abstract class Region {
 	protected Vector2ic position;
@@ -27,6 +41,14 @@ public abstract class Region {
 	/** Retrieve the rendered image. The image may already be in memory or it might be loaded lazily from a resource location. */
 	public abstract BufferedImage getImage() throws IOException;
 
+	/**
+	 * Retrieve the rendered image as packed ARGB pixels in XZ order, 512*512 elements. If the image is backed by such an array, it will be
+	 * returned without copying it, so don't modify it.
+	 */
+	public int[] getPixels() throws IOException {
+		return unwrapPixels(getImage());
+	}
+
 	/**
 	 * Get the metadata for all existing chunks indexed by their location in world space. Does not need to contain an entry for every chunk in
 	 * the region. Must not contain entries for chunks outside of the region. Must not be <code>null</code>.
@@ -35,9 +57,56 @@ public abstract class Region {
 	 */
 	public abstract Map<? extends Vector2ic, ChunkMetadata> getChunkMetadata();
 
+	/**
+	 * The unshaded layers this region has been rendered from, if they have been kept. They allow applying a different shader without rendering
+	 * the region again. Returns {@code null} by default.
+	 * 
+	 * @see RegionFolder#render(Vector2ic, boolean)
+	 */
+	public RegionLayers getLayers() {
+		return null;
+	}
+
+	/**
+	 * The surface stacks this region has been rendered from, if they have been kept. They allow applying a different color map without reading
+	 * the region file again. Returns {@code null} by default.
+	 * 
+	 * @see RegionFolder#recolor(Vector2ic, SurfaceStacks)
+	 */
+	public SurfaceStacks getStacks() {
+		return null;
+	}
+
+	/**
+	 * Wrap an array of 512*512 packed ARGB pixels into a {@link BufferedImage} of type {@link BufferedImage#TYPE_INT_ARGB} without copying it.
+	 * Changes to the array will be reflected in the image.
+	 */
+	public static BufferedImage wrapPixels(int[] pixels) {
+		DirectColorModel model = (DirectColorModel) ColorModel.getRGBdefault();
+		WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(pixels, 512 * 512), 512, 512, 512, model.getMasks(), null);
+		return new BufferedImage(model, raster, false, null);
+	}
+
+	/**
+	 * Get the packed ARGB pixels of a 512*512 image. If the image is of type {@link BufferedImage#TYPE_INT_ARGB} and backed by a single array,
+	 * that array will be returned directly. Otherwise, the pixels are copied.
+	 */
+	public static int[] unwrapPixels(BufferedImage image) {
+		if (image.getType() == BufferedImage.TYPE_INT_ARGB
+				&& image.getRaster().getDataBuffer() instanceof DataBufferInt
+				&& image.getRaster().getDataBuffer().getNumBanks() == 1
+				&& image.getRaster().getDataBuffer().getSize() == 512 * 512)
+			return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		else
+			return image.getRGB(0, 0, 512, 512, null, 0, 512);
+	}
+
 	public static class BufferedRegion extends Region {
 
 		protected BufferedImage								image;
+		protected int[]										pixels;
+		protected RegionLayers								layers;
+		protected SurfaceStacks								stacks;
 		protected Map<? extends Vector2ic, ChunkMetadata>	metadata;
 
 		public BufferedRegion(Vector2ic position, BufferedImage image, Map<? extends Vector2ic, ChunkMetadata> metadata) {
@@ -46,60 +115,256 @@ public abstract class Region {
 			this.metadata = Objects.requireNonNull(metadata);
 		}
 
+		/**
+		 * @param pixels
+		 *            The rendered image as packed ARGB pixels in XZ order. The array will be used directly and wrapped into an image only if needed.
+		 */
+		public BufferedRegion(Vector2ic position, int[] pixels, Map<? extends Vector2ic, ChunkMetadata> metadata) {
+			this(position, pixels, null, null, metadata);
+		}
+
+		/**
+		 * @param layers
+		 *            The unshaded layers the pixels have been rendered from. May be {@code null}.
+		 * @param stacks
+		 *            The surface stacks the layers have been rendered from. May be {@code null}.
+		 * @see #BufferedRegion(Vector2ic, int[], Map)
+		 */
+		public BufferedRegion(Vector2ic position, int[] pixels, RegionLayers layers, SurfaceStacks stacks,
+				Map<? extends Vector2ic, ChunkMetadata> metadata) {
+			super(position);
+			this.pixels = Objects.requireNonNull(pixels);
+			this.layers = layers;
+			this.stacks = stacks;
+			this.metadata = Objects.requireNonNull(metadata);
+		}
+
 		@Override
 		public BufferedImage getImage() throws IOException {
+			if (image == null)
+				image = wrapPixels(pixels);
 			return image;
 		}
 
+		@Override
+		public int[] getPixels() throws IOException {
+			if (pixels == null)
+				pixels = unwrapPixels(image);
+			return pixels;
+		}
+
 		@Override
 		public Map<? extends Vector2ic, ChunkMetadata> getChunkMetadata() {
 			return metadata;
 		}
 
+		@Override
+		public RegionLayers getLayers() {
+			return layers;
+		}
+
+		@Override
+		public SurfaceStacks getStacks() {
+			return stacks;
+		}
+
 		public LocalSavedRegion save(Path out) throws IOException {
-			ImageIO.write(image, "png", Files.newOutputStream(out));
+			try (OutputStream stream = Files.newOutputStream(out)) {
+				ImageIO.write(getImage(), "png", stream);
+			}
 			return new LocalSavedRegion(position, out, metadata);
 		}
 	}
 
 	public static class SavedRegion extends Region {
 
-		protected URI										path;
-		protected Map<? extends Vector2ic, ChunkMetadata>	metadata;
+		private static Log											log	= LogFactory.getLog(SavedRegion.class);
+
+		protected URI												path;
+		protected URI												metadataPath;
+		protected volatile Map<? extends Vector2ic, ChunkMetadata>	metadata;
 
 		public SavedRegion(Vector2ic position, URI path, Map<? extends Vector2ic, ChunkMetadata> metadata) {
+			this(position, path, null, Objects.requireNonNull(metadata));
+		}
+
+		/**
+		 * @param metadataPath
+		 *            a file containing the chunk metadata, as written by {@link RegionFolder#writeMetadata(Path, RegionMetadata)}. It will only be loaded once
+		 *            the metadata is needed. May be {@code null} if the metadata is given directly.
+		 * @param metadata
+		 *            the chunk metadata. May be {@code null} if it shall be loaded from {@code metadataPath}.
+		 */
+		public SavedRegion(Vector2ic position, URI path, URI metadataPath, Map<? extends Vector2ic, ChunkMetadata> metadata) {
 			super(position);
 			this.path = Objects.requireNonNull(path);
-			this.metadata = Objects.requireNonNull(metadata);
-
+			this.metadataPath = metadataPath;
+			this.metadata = metadata;
+			if (metadataPath == null && metadata == null)
+				throw new NullPointerException("Either the metadata or the path to it must be given");
 		}
 
+		/** The image is decoded into the {@link TileCache#getShared() shared cache}, so don't modify it. */
 		@Override
 		public BufferedImage getImage() throws IOException {
-			return ImageIO.read(path.toURL().openStream());
+			return wrapPixels(getPixels());
+		}
+
+		/**
+		 * The pixels are taken from the {@link TileCache#getShared() shared cache} if the image has not changed since it has been decoded last
+		 * time.
+		 */
+		@Override
+		public int[] getPixels() throws IOException {
+			byte[] data = load();
+			return TileCache.getShared().get(path, TileCache.version(data), () -> TileDecoder.decode(data));
+		}
+
+		/** Load the encoded image */
+		protected byte[] load() throws IOException {
+			try (InputStream in = path.toURL().openStream()) {
+				return in.readAllBytes();
+			}
 		}
 
+		/** If the metadata is in a separate file, it will be loaded now. If that fails, the metadata will be empty and loading it will be retried next time. */
 		@Override
 		public Map<? extends Vector2ic, ChunkMetadata> getChunkMetadata() {
+			Map<? extends Vector2ic, ChunkMetadata> metadata = this.metadata;
+			if (metadata == null) {
+				try (InputStream in = openMetadata()) {
+					this.metadata = metadata = RegionFolder.readMetadata(in);
+				} catch (IOException e) {
+					log.warn("Could not load the chunk metadata of region " + position + " from " + metadataPath, e);
+					return Collections.emptyMap();
+				}
+			}
 			return metadata;
 		}
 
+		protected InputStream openMetadata() throws IOException {
+			return metadataPath.toURL().openStream();
+		}
+
 		public URI getURI() {
 			return path;
 		}
+
+		/** The file containing the chunk metadata, or {@code null} if it is held in memory */
+		public URI getMetadataURI() {
+			return metadataPath;
+		}
+	}
+
+	/** A {@link SavedRegion} on a remote server, that gets its image using a {@link TileDownloader} */
+	public static class RemoteSavedRegion extends SavedRegion {
+
+		protected SavedRegion		region;
+		protected TileDownloader	downloader;
+
+		/** Download the image of the given region. The chunk metadata is taken from it, so that it only needs to be loaded once. */
+		public RemoteSavedRegion(SavedRegion region, TileDownloader downloader) {
+			super(region.getPosition(), region.path, region.metadataPath, region.metadata);
+			this.region = region;
+			this.downloader = Objects.requireNonNull(downloader);
+		}
+
+		@Override
+		protected byte[] load() throws IOException {
+			return TileDownloader.join(downloader.fetch(path));
+		}
+
+		@Override
+		public Map<? extends Vector2ic, ChunkMetadata> getChunkMetadata() {
+			return region.getChunkMetadata();
+		}
+	}
+
+	/** A {@link SavedRegion} whose image is a tile in a {@link TileArchive} */
+	public static class ArchivedRegion extends SavedRegion {
+
+		protected TileArchive	archive;
+		protected String		hash;
+		protected String		metadataHash;
+
+		public ArchivedRegion(Vector2ic position, TileArchive archive, String hash, Map<? extends Vector2ic, ChunkMetadata> metadata) {
+			this(position, archive, hash, null, Objects.requireNonNull(metadata));
+		}
+
+		/**
+		 * @param metadataHash
+		 *            the hash of the tile containing the compressed chunk metadata. It will only be loaded once the metadata is needed. May be
+		 *            {@code null} if the metadata is given directly.
+		 * @see SavedRegion#SavedRegion(Vector2ic, URI, URI, Map)
+		 */
+		public ArchivedRegion(Vector2ic position, TileArchive archive, String hash, String metadataHash, Map<? extends Vector2ic, ChunkMetadata> metadata) {
+			super(position, archive.getURI().resolve("#" + hash), metadataHash == null ? null : archive.getURI().resolve("#" + metadataHash), metadata);
+			this.archive = archive;
+			this.hash = Objects.requireNonNull(hash);
+			this.metadataHash = metadataHash;
+		}
+
+		@Override
+		protected InputStream openMetadata() throws IOException {
+			return new ByteArrayInputStream(archive.getTile(metadataHash));
+		}
+
+		/** The URI contains the hash of the image, so it never changes and the tile is only read from the archive if it is not in the cache */
+		@Override
+		public int[] getPixels() throws IOException {
+			return TileCache.getShared().get(path, 0, () -> TileDecoder.decode(load()));
+		}
+
+		@Override
+		protected byte[] load() throws IOException {
+			return archive.getTile(hash);
+		}
+
+		/** The hash of the tile within the archive */
+		public String getHash() {
+			return hash;
+		}
 	}
 
 	public static class LocalSavedRegion extends SavedRegion {
 
-		protected Path path;
+		protected Path	path;
+		protected Path	metadataFile;
 
 		public LocalSavedRegion(Vector2ic position, Path path, Map<? extends Vector2ic, ChunkMetadata> metadata) {
-			super(position, path.toUri(), metadata);
+			this(position, path, null, Objects.requireNonNull(metadata));
+		}
+
+		/** @see SavedRegion#SavedRegion(Vector2ic, URI, URI, Map) */
+		public LocalSavedRegion(Vector2ic position, Path path, Path metadataFile, Map<? extends Vector2ic, ChunkMetadata> metadata) {
+			super(position, path.toUri(), metadataFile == null ? null : metadataFile.toUri(), metadata);
 			this.path = path;
+			this.metadataFile = metadataFile;
+		}
+
+		/** Uses the modification time of the file as version, so that it is only read if it is not in the cache */
+		@Override
+		public int[] getPixels() throws IOException {
+			return TileCache.getShared().get(super.path, Files.getLastModifiedTime(path).toMillis(), () -> TileDecoder.decode(load()));
+		}
+
+		@Override
+		protected byte[] load() throws IOException {
+			return Files.readAllBytes(path);
+		}
+
+		@Override
+		protected InputStream openMetadata() throws IOException {
+			return Files.newInputStream(metadataFile);
 		}
 
 		public Path getPath() {
 			return path;
 		}
+
+		/** The file containing the chunk metadata, or {@code null} if it is held in memory */
+		public Path getMetadataPath() {
+			return metadataFile;
+		}
 	}
 }
@@ -0,0 +1,233 @@
+package de.piegames.blockmap.world;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import org.joml.Vector2i;
+import org.joml.Vector2ic;
+
+import de.piegames.blockmap.MinecraftDimension;
+import de.piegames.blockmap.renderer.DecodedRegion;
+
+/**
+ * Access worlds within backup archives without extracting them first.
+ * <ul>
+ * <li>Zip files can be opened as a {@link FileSystem} and used like a normal world folder, see {@link #openZip(Path)}.</li>
+ * <li>Tar files can only be read sequentially, so each region file is passed on as soon as it has been read, see
+ * {@link #readTar(InputStream, MinecraftDimension, BiConsumer)}.</li>
+ * </ul>
+ */
+public class RegionArchives {
+
+	private static final int BLOCK_SIZE = 512;
+
+	private RegionArchives() {
+	}
+
+	public static boolean isZip(Path file) {
+		return Files.isRegularFile(file) && file.getFileName().toString().endsWith(".zip");
+	}
+
+	public static boolean isTar(Path file) {
+		String name = file.getFileName().toString();
+		return Files.isRegularFile(file) && (name.endsWith(".tar") || name.endsWith(".tar.gz") || name.endsWith(".tgz"));
+	}
+
+	/**
+	 * Open a zip file and return the path of the world within. If the archive only contains a single folder, like it is the case when zipping a
+	 * world folder, this folder will be returned. Otherwise, it is the root of the archive. The returned path can be passed to
+	 * {@link RegionFolder.WorldRegionFolder#load(Path, MinecraftDimension, de.piegames.blockmap.renderer.RegionRenderer, boolean)} and
+	 * {@link WorldPins#loadFromWorld(Path, MinecraftDimension)} like any other path. Its {@link FileSystem} must be closed once it isn't needed anymore.
+	 */
+	public static Path openZip(Path file) throws IOException {
+		FileSystem zip = FileSystems.newFileSystem(file, (ClassLoader) null);
+		Path root = zip.getRootDirectories().iterator().next();
+		try (Stream<Path> list = Files.list(root)) {
+			List<Path> content = list.collect(Collectors.toList());
+			if (content.size() == 1 && Files.isDirectory(content.get(0)))
+				return content.get(0);
+		} catch (IOException | RuntimeException e) {
+			zip.close();
+			throw e;
+		}
+		return root;
+	}
+
+	/** Open a tar file for reading, decompressing it if its name ends with {@code .gz} or {@code .tgz}. */
+	public static InputStream openTar(Path file) throws IOException {
+		InputStream in = Files.newInputStream(file);
+		String name = file.getFileName().toString();
+		if (name.endsWith(".gz") || name.endsWith(".tgz"))
+			in = new GZIPInputStream(in);
+		return in;
+	}
+
+	/**
+	 * Read a tar archive sequentially and pass the contents of each region file to the consumer as soon as it has been read. The data can be
+	 * rendered using {@link de.piegames.blockmap.renderer.RegionRenderer#render(Vector2ic, ByteBuffer)} or {@link DecodedRegion#read(ByteBuffer)}.
+	 * The consumer is called on the reading thread, so it should hand the work off to other threads to keep reading while rendering.
+	 *
+	 * @param in
+	 *            the uncompressed tar stream. It will not be closed.
+	 * @param dimension
+	 *            only pass on region files of this dimension, judging from their path. If {@code null}, only the overworld's {@code region}
+	 *            folder will be read, and not the region files of other dimensions or the {@code poi} and {@code entities} folders.
+	 */
+	public static void readTar(InputStream in, MinecraftDimension dimension, BiConsumer<Vector2ic, ByteBuffer> consumer) throws IOException {
+		byte[] header = new byte[BLOCK_SIZE];
+		String longName = null;
+		while (readBlock(in, header)) {
+			/* The archive ends with empty blocks */
+			if (isEmpty(header))
+				break;
+			String name = readString(header, 0, 100);
+			/* The POSIX ustar format splits long names into a prefix and a name. GNU tar uses that space for other things. */
+			if (readString(header, 257, 6).equals("ustar") && header[345] != 0)
+				name = readString(header, 345, 155) + "/" + name;
+			if (longName != null)
+				name = longName;
+			longName = null;
+			long size = readOctal(header, 124, 12);
+			byte type = header[156];
+			Vector2ic region = (type == '0' || type == 0) ? acceptRegion(name, dimension) : null;
+
+			if (type == 'L') {
+				/* GNU tar puts long names in a separate entry before the actual one */
+				longName = new String(readData(in, size), StandardCharsets.UTF_8).trim();
+			} else if (type == 'x') {
+				/* PAX headers may contain a long name as well, everything else is not of interest */
+				longName = readPaxPath(new String(readData(in, size), StandardCharsets.UTF_8));
+			} else if (region != null) {
+				consumer.accept(region, ByteBuffer.wrap(readData(in, size)));
+			} else {
+				skipData(in, size);
+			}
+		}
+	}
+
+	/**
+	 * Check if an entry of an archive is a region file of the given dimension.
+	 *
+	 * @return the position of the region file, or {@code null} if it shall not be rendered
+	 */
+	static Vector2ic acceptRegion(String name, MinecraftDimension dimension) {
+		List<String> path = Arrays.stream(name.split("/")).filter(s -> !s.isEmpty() && !s.equals(".")).collect(Collectors.toList());
+		if (path.isEmpty())
+			return null;
+		Matcher m = RegionFolder.WorldRegionFolder.rfpat.matcher(path.get(path.size() - 1));
+		if (!m.matches())
+			return null;
+		if (dimensionOf(path.subList(0, path.size() - 1)) != (dimension == null ? MinecraftDimension.OVERWORLD : dimension))
+			return null;
+		return new Vector2i(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)));
+	}
+
+	/** Find the dimension whose region path matches the end of the given folder the best */
+	private static MinecraftDimension dimensionOf(List<String> folder) {
+		MinecraftDimension best = null;
+		int bestLength = 0;
+		for (MinecraftDimension dimension : MinecraftDimension.values()) {
+			Path regionPath = dimension.getRegionPath();
+			int length = regionPath.getNameCount();
+			if (length <= bestLength || length > folder.size())
+				continue;
+			boolean matches = true;
+			for (int i = 0; i < length; i++)
+				matches &= regionPath.getName(i).toString().equals(folder.get(folder.size() - length + i));
+			if (matches) {
+				best = dimension;
+				bestLength = length;
+			}
+		}
+		return best;
+	}
+
+	private static String readPaxPath(String records) {
+		for (String record : records.split("\n")) {
+			int start = record.indexOf(" path=");
+			if (start >= 0)
+				return record.substring(start + " path=".length());
+		}
+		return null;
+	}
+
+	private static boolean readBlock(InputStream in, byte[] block) throws IOException {
+		int read = in.readNBytes(block, 0, block.length);
+		if (read == 0)
+			return false;
+		if (read < block.length)
+			throw new EOFException("Truncated tar header");
+		return true;
+	}
+
+	/** Read the data of an entry, including the padding to the next block */
+	private static byte[] readData(InputStream in, long size) throws IOException {
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("Entry too large: " + size + " bytes");
+		byte[] data = new byte[(int) size];
+		if (in.readNBytes(data, 0, data.length) < data.length)
+			throw new EOFException("Truncated tar entry");
+		skipFully(in, padding(size));
+		return data;
+	}
+
+	private static void skipData(InputStream in, long size) throws IOException {
+		skipFully(in, size + padding(size));
+	}
+
+	private static long padding(long size) {
+		return (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+	}
+
+	private static void skipFully(InputStream in, long n) throws IOException {
+		while (n > 0) {
+			long skipped = in.skip(n);
+			if (skipped <= 0) {
+				/* Some streams don't support skipping, so read instead */
+				if (in.read() < 0)
+					throw new EOFException("Truncated tar entry");
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+
+	private static boolean isEmpty(byte[] block) {
+		for (byte b : block)
+			if (b != 0)
+				return false;
+		return true;
+	}
+
+	private static String readString(byte[] header, int offset, int length) {
+		int end = offset;
+		while (end < offset + length && header[end] != 0)
+			end++;
+		return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+	}
+
+	private static long readOctal(byte[] header, int offset, int length) throws IOException {
+		if ((header[offset] & 0x80) != 0)
+			throw new IOException("Binary entry sizes are not supported");
+		String value = readString(header, offset, length).trim();
+		try {
+			return value.isEmpty() ? 0 : Long.parseLong(value, 8);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid tar header", e);
+		}
+	}
+}
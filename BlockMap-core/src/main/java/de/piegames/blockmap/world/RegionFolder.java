@@ -1,46 +1,73 @@
 package de.piegames.blockmap.world;
 
 import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
-import java.util.function.Function;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.joml.Vector2i;
 import org.joml.Vector2ic;
 import org.joml.Vector3i;
 import org.joml.Vector3ic;
 
-import com.flowpowered.nbt.regionfile.RegionFile;
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.google.gson.stream.JsonWriter;
 
 import de.piegames.blockmap.MinecraftDimension;
+import de.piegames.blockmap.renderer.DecodedRegion;
+import de.piegames.blockmap.renderer.RegionLayers;
+import de.piegames.blockmap.renderer.SurfaceStacks;
 import de.piegames.blockmap.renderer.RegionRenderer;
+import de.piegames.blockmap.renderer.RenderSettings;
+import de.piegames.blockmap.world.ChunkMetadata.ChunkRenderState;
+import de.piegames.blockmap.world.Region.ArchivedRegion;
 import de.piegames.blockmap.world.Region.BufferedRegion;
 import de.piegames.blockmap.world.Region.LocalSavedRegion;
+import de.piegames.blockmap.world.Region.RemoteSavedRegion;
 import de.piegames.blockmap.world.Region.SavedRegion;
 import io.gsonfire.GsonFireBuilder;
 
@@ -57,6 +84,51 @@ public abstract class RegionFolder {
 			.setPrettyPrinting()
 			.create();
 
+	/** The version of the save files written by {@link CachedRegionFolder#save(Path, String, boolean)} */
+	public static final int SAVE_VERSION = 2;
+
+	/** Gets each region as soon as it has been rendered by {@link RegionFolder#renderAll(Collection, RenderPipeline, RenderCallback)} */
+	@FunctionalInterface
+	public static interface RenderCallback {
+		/**
+		 * Called once for each region, on the thread that completed it. This may happen on multiple threads at once.
+		 *
+		 * @param region
+		 *            the rendered region, or {@code null} if it does not exist or could not be rendered
+		 * @param error
+		 *            why the region could not be rendered, or {@code null} if it has been rendered
+		 */
+		public void rendered(Vector2ic pos, Region region, Throwable error);
+	}
+
+	/** Read the chunk metadata of a region as written by {@link #writeMetadata(Path, RegionMetadata)} */
+	static RegionMetadata readMetadata(InputStream in) throws IOException {
+		try (DataInputStream data = new DataInputStream(new BufferedInputStream(new GZIPInputStream(in)))) {
+			return RegionMetadata.read(data);
+		}
+	}
+
+	/** Write the chunk metadata of a region to a separate file, in the compressed binary format of {@link RegionMetadata#write(DataOutput)} */
+	static void writeMetadata(Path file, RegionMetadata metadata) throws IOException {
+		writeMetadata(Files.newOutputStream(file), metadata);
+	}
+
+	/** Like {@link #writeMetadata(Path, RegionMetadata)}, but to a stream. It will be closed afterwards. */
+	static void writeMetadata(OutputStream out, RegionMetadata metadata) throws IOException {
+		try (DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(out)))) {
+			metadata.write(data);
+		}
+	}
+
+	/** Convert the chunk metadata of a region from its json representation. It may be {@code null} if there is none. */
+	static RegionMetadata toMetadataMap(Vector2ic position, List<ChunkMetadata> metadata) {
+		RegionMetadata ret = new RegionMetadata(position);
+		if (metadata != null)
+			for (ChunkMetadata chunk : metadata)
+				ret.put(chunk.position, chunk);
+		return ret;
+	}
+
 	/**
 	 * Lists all existing region file in this RegionFolder. If one of the returned positions is passed to {@link #render(Vector2ic)}, it must
 	 * not return {@code null}.
@@ -77,6 +149,128 @@ public abstract class RegionFolder {
 	 */
 	public abstract Region render(Vector2ic pos) throws IOException;
 
+	/**
+	 * Like {@link #render(Vector2ic)}, but without blocking the calling thread. The default implementation simply calls {@link #render(Vector2ic)} on the
+	 * given executor. Implementations override this to split their work into I/O and computation, so that both can overlap when rendering many regions
+	 * at once.
+	 * 
+	 * @param executor
+	 *            the executor to do the work on
+	 * @return a future that completes with the rendered region, or with {@code null} if {@code listRegions().contains(pos)} evaluates to
+	 *         {@code false}. If the region could not be rendered, it completes exceptionally, with the {@link IOException} as cause.
+	 * @see #renderAll(Collection, Executor)
+	 */
+	public CompletableFuture<Region> renderAsync(Vector2ic pos, Executor executor) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return render(pos);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}, executor);
+	}
+
+	/**
+	 * Start rendering all the given regions asynchronously using {@link #renderAsync(Vector2ic, Executor)}.
+	 * 
+	 * @return the future of each position, in the iteration order of {@code positions}
+	 */
+	public Map<Vector2ic, CompletableFuture<Region>> renderAll(Collection<? extends Vector2ic> positions, Executor executor) {
+		Map<Vector2ic, CompletableFuture<Region>> ret = new LinkedHashMap<>();
+		for (Vector2ic pos : positions)
+			ret.put(pos, renderAsync(pos, executor));
+		return ret;
+	}
+
+	/**
+	 * Like {@link #renderAsync(Vector2ic, Executor)}, but split the work across the stages of a {@link RenderPipeline}. This may block while the
+	 * queue of the first stage is full. The default implementation does all the work in the render stage.
+	 */
+	public CompletableFuture<Region> renderAsync(Vector2ic pos, RenderPipeline pipeline) {
+		return renderAsync(pos, pipeline.getRender());
+	}
+
+	/**
+	 * Start rendering all the given regions using {@link #renderAsync(Vector2ic, RenderPipeline)}. They will be submitted in
+	 * {@link RenderPipeline#hilbertOrder(Collection) Hilbert order}, and this call blocks until the last one has been submitted.
+	 * 
+	 * @return the future of each position, in the order they have been submitted
+	 */
+	public Map<Vector2ic, CompletableFuture<Region>> renderAll(Collection<? extends Vector2ic> positions, RenderPipeline pipeline) {
+		Map<Vector2ic, CompletableFuture<Region>> ret = new LinkedHashMap<>();
+		for (Vector2ic pos : RenderPipeline.hilbertOrder(positions))
+			ret.put(pos, renderAsync(pos, pipeline));
+		return ret;
+	}
+
+	/**
+	 * Like {@link #renderAll(Collection, RenderPipeline)}, but pass each region to the callback as soon as it is done instead of returning them
+	 * all at once. Nothing keeps a reference to the regions afterwards, so rendering a large world does not require keeping all of it in memory.
+	 * This call blocks until the last region has been submitted.
+	 *
+	 * @return a future that completes once the callback has been called for every region. It completes exceptionally if the callback threw an
+	 *         exception.
+	 */
+	public CompletableFuture<Void> renderAll(Collection<? extends Vector2ic> positions, RenderPipeline pipeline, RenderCallback callback) {
+		List<CompletableFuture<Void>> done = new ArrayList<>(positions.size());
+		for (Vector2ic pos : RenderPipeline.hilbertOrder(positions))
+			done.add(renderAsync(pos, pipeline).handle((region, e) -> {
+				callback.rendered(pos, region, e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+				return null;
+			}));
+		return CompletableFuture.allOf(done.toArray(new CompletableFuture[done.size()]));
+	}
+
+	/**
+	 * Like {@link #render(Vector2ic)}, but additionally keep the unshaded {@link Region#getLayers() layers} in the returned region if requested
+	 * and supported. Pass them to {@link #reshade(Vector2ic, RegionLayers)} later on to apply a changed shader quickly. The same goes for the
+	 * {@link Region#getStacks() surface stacks} and {@link #recolor(Vector2ic, SurfaceStacks)}. The default implementation ignores the flag.
+	 */
+	public Region render(Vector2ic pos, boolean keepLayers) throws IOException {
+		return render(pos);
+	}
+
+	/**
+	 * Apply the current shader to the layers of a previously rendered region, without rendering it again. This is only valid if nothing but the
+	 * shader has changed since then. The returned region contains no chunk metadata.
+	 * 
+	 * @return the shaded region or {@code null} if this is not supported. The region must be rendered again in that case.
+	 * @see #render(Vector2ic, boolean)
+	 */
+	public Region reshade(Vector2ic pos, RegionLayers layers) throws IOException {
+		return null;
+	}
+
+	/**
+	 * Apply the current color map and shader to the {@link Region#getStacks() surface stacks} of a previously rendered region, without reading it
+	 * again. This is only valid if nothing but the color map or the shader have changed since then. The returned region contains the new
+	 * layers, but no chunk metadata.
+	 * 
+	 * @return the colored region or {@code null} if this is not supported or not possible with the given stacks. The region must be rendered
+	 *         again in that case.
+	 * @see #render(Vector2ic, boolean)
+	 */
+	public Region recolor(Vector2ic pos, SurfaceStacks stacks) throws IOException {
+		return null;
+	}
+
+	/**
+	 * Generates a quick, low resolution preview of the region file at the given position. It is meant to be shown while the actual image is
+	 * still being {@link #render(Vector2ic) rendered}. Implementations that cannot do this faster than {@link #render(Vector2ic)} will return
+	 * {@code null}, which is also the default.
+	 * 
+	 * @param pos
+	 *            the position of the region file to render
+	 * @param sampling
+	 *            the level of detail of the preview. See {@link RenderSettings#sampling}.
+	 * @return a preview of the region file or {@code null} if none is available
+	 * @throws IOException
+	 *             if the preview could not be generated
+	 */
+	public Region renderPreview(Vector2ic pos, int sampling) throws IOException {
+		return null;
+	}
+
 	/** Returns the pins of this specific world or {@code Optional.empty()} if they are not loaded. */
 	public abstract Optional<WorldPins> getPins();
 
@@ -115,18 +309,93 @@ public abstract class RegionFolder {
 			return Collections.unmodifiableSet(regions.keySet());
 		}
 
+		/**
+		 * The region file may be written to at the same time, chunks that keep changing while reading them will be marked as
+		 * {@link ChunkRenderState#CHANGING}.
+		 * 
+		 * @see DecodedRegion#read(Path)
+		 */
 		@Override
 		public BufferedRegion render(Vector2ic pos) throws IOException {
+			return render(pos, false);
+		}
+
+		@Override
+		public BufferedRegion render(Vector2ic pos, boolean keepLayers) throws IOException {
+			Path path = regions.get(pos);
+			if (path == null)
+				return null;
+			return renderer.render(pos, DecodedRegion.read(path), keepLayers);
+		}
+
+		/**
+		 * Read and decode the region file in the read stage, then render it in the render stage. The file may be written to at the same time, chunks
+		 * that keep changing while reading them will be marked as {@link ChunkRenderState#CHANGING}.
+		 * 
+		 * @see DecodedRegion#read(Path)
+		 */
+		@Override
+		public CompletableFuture<Region> renderAsync(Vector2ic pos, RenderPipeline pipeline) {
+			Path path = regions.get(pos);
+			if (path == null)
+				return CompletableFuture.completedFuture(null);
+			return CompletableFuture.supplyAsync(() -> {
+				try {
+					return DecodedRegion.read(path);
+				} catch (IOException e) {
+					throw new CompletionException(e);
+				}
+			}, pipeline.getRead()).thenApplyAsync(decoded -> renderer.render(pos, decoded), pipeline.getRender());
+		}
+
+		@Override
+		public BufferedRegion reshade(Vector2ic pos, RegionLayers layers) {
 			if (regions.containsKey(pos))
-				return renderer.render(pos, new RegionFile(regions.get(pos)));
+				return renderer.shade(pos, layers);
 			else
 				return null;
 		}
 
+		@Override
+		public BufferedRegion recolor(Vector2ic pos, SurfaceStacks stacks) {
+			if (regions.containsKey(pos))
+				return renderer.recolor(pos, stacks);
+			else
+				return null;
+		}
+
+		@Override
+		public BufferedRegion renderPreview(Vector2ic pos, int sampling) throws IOException {
+			Path path = regions.get(pos);
+			if (path == null)
+				return null;
+			return renderer.renderPreview(pos, DecodedRegion.read(path), sampling);
+		}
+
 		public Path getPath(Vector2ic pos) {
 			return regions.get(pos);
 		}
 
+		/**
+		 * Read the {@link RegionHeader header} of every region file in parallel. This only reads the first 8KiB of each file, which is fast enough to
+		 * get an overview of the world before rendering it.
+		 * 
+		 * @return a future that completes with the header of each region, or exceptionally if one of them could not be read
+		 */
+		public CompletableFuture<Map<Vector2ic, RegionHeader>> scanHeaders(Executor executor) {
+			Map<Vector2ic, CompletableFuture<RegionHeader>> futures = new HashMap<>();
+			for (Entry<Vector2ic, Path> e : regions.entrySet())
+				futures.put(e.getKey(), CompletableFuture.supplyAsync(() -> {
+					try {
+						return RegionHeader.read(e.getKey(), e.getValue());
+					} catch (IOException ex) {
+						throw new CompletionException(ex);
+					}
+				}, executor));
+			return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[futures.size()]))
+					.thenApply(v -> futures.entrySet().stream().collect(Collectors.toMap(Entry::getKey, e -> e.getValue().join())));
+		}
+
 		@Override
 		public Optional<WorldPins> getPins() {
 			return Optional.ofNullable(pins);
@@ -136,12 +405,23 @@ public abstract class RegionFolder {
 			this.pins = pins;
 		}
 
+		/**
+		 * Add a region file that has been created after loading this folder, or change the path of an existing one. This only works if the map
+		 * passed to the constructor is mutable, which is the case for folders created using {@link #load(Path, RegionRenderer)}.
+		 * 
+		 * @see RegionWatcher
+		 */
+		public void addRegion(Vector2ic pos, Path file) {
+			regions.put(pos, file);
+		}
+
 		/**
 		 * Loads a region folder from a given world path.
 		 * 
 		 * @param world
 		 *            the path to the world folder. It has to be a directory pointing to a valid Minecraft world. World folders usually contain a
-		 *            {@code level.dat} file.
+		 *            {@code level.dat} file. It may be on any file system, like the one of a zip file opened with
+		 *            {@link RegionArchives#openZip(Path)}.
 		 * @param dimension
 		 *            the Minecraft dimension to render. It will be used to resolve the region folder path from the world path.
 		 * @param loadPins
@@ -149,7 +429,7 @@ public abstract class RegionFolder {
 		 * @see #load(Path, MinecraftDimension, RegionRenderer)
 		 */
 		public static WorldRegionFolder load(Path world, MinecraftDimension dimension, RegionRenderer renderer, boolean loadPins) throws IOException {
-			WorldRegionFolder folder = load(world.resolve(dimension.getRegionPath()), renderer);
+			WorldRegionFolder folder = load(dimension.resolveRegionPath(world), renderer);
 			if (loadPins)
 				folder.setPins(WorldPins.loadFromWorld(world, dimension));
 			return folder;
@@ -157,7 +437,7 @@ public abstract class RegionFolder {
 
 		/**
 		 * Loads a region folder from a given path. All region files found in this folder (not searching recursively) will be added to the returned
-		 * object. Files added later on won't be recognized. Removing files will lead to errors when trying to render them. All files whose name
+		 * object. Files added later on won't be recognized unless {@link #addRegion(Vector2ic, Path) added} manually. Removing files will lead to errors when trying to render them. All files whose name
 		 * matches {@code ^r\.(-?\d+)\.(-?\d+)\.mca$} are taken. If one of them isn't a proper region file, rendering it will fail.
 		 * 
 		 * @param regionFolder
@@ -165,7 +445,7 @@ public abstract class RegionFolder {
 		 *            Minecraft world, but this is not a hard requirement. It has to be a directory.
 		 */
 		public static WorldRegionFolder load(Path regionFolder, RegionRenderer renderer) throws IOException {
-			Map<Vector2ic, Path> files = new HashMap<>();
+			Map<Vector2ic, Path> files = new ConcurrentHashMap<>();
 			for (Path p : Files.list(regionFolder).collect(Collectors.toList())) {
 				Matcher m = rfpat.matcher(p.getFileName().toString());
 				if (m.matches())
@@ -188,6 +468,8 @@ public abstract class RegionFolder {
 
 		protected final Map<Vector2ic, R>	regions;
 		protected final Optional<WorldPins>	pins;
+		/** The save file this folder has been loaded from, {@code null} if it has been created from a map */
+		protected final T					file;
 
 		/**
 		 * Creates the region folder with a custom mapping
@@ -199,19 +481,24 @@ public abstract class RegionFolder {
 		 * @see #parseSaved(JsonElement)
 		 */
 		protected SavedRegionFolder(Map<Vector2ic, R> regions, Optional<WorldPins> pins) {
-			this.regions = Collections.unmodifiableMap(regions);
+			this.regions = new ConcurrentHashMap<>(regions);
 			this.pins = pins;
+			this.file = null;
 		}
 
 		/**
-		 * Loads a json file that contains the information about all rendered files.
+		 * Loads a json file that contains the information about all rendered files. If the world has an index file of its own, it will be
+		 * streamed instead of loading it at once, and the chunk metadata will only be loaded once it is needed.
 		 * 
 		 * @see #parseSaved(JsonElement)
 		 */
 		@SuppressWarnings("unchecked")
 		protected SavedRegionFolder(T file, String name) throws IOException {
-			Map<String, JsonObject> saved = parseSaved(new JsonParser().parse(new InputStreamReader(getInputStream(file))));
-			/* Parse the saved file and stream it to a map */
+			this.file = file;
+			Map<String, JsonObject> saved;
+			try (Reader reader = new InputStreamReader(getInputStream(file), StandardCharsets.UTF_8)) {
+				saved = parseSaved(new JsonParser().parse(reader));
+			}
 			JsonObject rawFile = null;
 			if (name != null) {
 				rawFile = saved.get(name);
@@ -221,9 +508,64 @@ public abstract class RegionFolder {
 					throw new IllegalArgumentException("The specified file contains more than one saved map, but no name was given");
 				rawFile = saved.values().iterator().next();
 			}
-			pins = Optional.ofNullable(GSON.fromJson(rawFile.get("pins"), WorldPins.class));
-			regions = ((List<RegionHelper>) GSON.fromJson(rawFile.getAsJsonArray("regions"), new TypeToken<List<RegionHelper>>() {
-			}.getType())).stream().collect(Collectors.toMap(r -> new Vector2i(r.x, r.z), r -> getRegion(r, file)));
+			if (rawFile.has("index")) {
+				regions = new ConcurrentHashMap<>();
+				pins = Optional.ofNullable(readIndex(resolve(file, rawFile.get("index").getAsString()), regions));
+			} else {
+				pins = Optional.ofNullable(GSON.fromJson(rawFile.get("pins"), WorldPins.class));
+				regions = ((List<RegionHelper>) GSON.fromJson(rawFile.getAsJsonArray("regions"), new TypeToken<List<RegionHelper>>() {
+				}.getType())).stream().collect(Collectors.toConcurrentMap(r -> new Vector2i(r.x, r.z), r -> getRegion(r, file)));
+			}
+		}
+
+		/**
+		 * Stream the index of a world into the given map, without holding all of it in memory at once.
+		 * 
+		 * @return the pins of the world, or {@code null} if it has none
+		 * @see CachedRegionFolder#save(Path, String, boolean)
+		 */
+		private WorldPins readIndex(T index, Map<Vector2ic, R> regions) throws IOException {
+			WorldPins pins = null;
+			try (JsonReader reader = new JsonReader(new InputStreamReader(getInputStream(index), StandardCharsets.UTF_8))) {
+				reader.beginObject();
+				while (reader.hasNext()) {
+					switch (reader.nextName()) {
+					case "pins":
+						pins = GSON.fromJson(reader, WorldPins.class);
+						break;
+					case "regions":
+						reader.beginArray();
+						while (reader.hasNext()) {
+							RegionHelper region = RegionHelper.read(reader);
+							regions.put(new Vector2i(region.x, region.z), getRegion(region, file));
+						}
+						reader.endArray();
+						break;
+					default:
+						reader.skipValue();
+					}
+				}
+				reader.endObject();
+			} catch (JsonParseException | IllegalStateException e) {
+				throw new IOException("Invalid world index " + index, e);
+			}
+			return pins;
+		}
+
+		/**
+		 * Replace the regions that have been rendered again, and add new ones. The images of the change are resolved against the save file, so the
+		 * {@link ChangeFeed} has to be next to it.
+		 * 
+		 * @return the positions of the changed regions
+		 * @throws IllegalStateException
+		 *             if this folder has not been loaded from a file
+		 */
+		public Set<Vector2ic> update(ChangeFeed.Change change) {
+			if (file == null)
+				throw new IllegalStateException("Only folders loaded from a file can be updated");
+			for (RegionHelper region : change.regions)
+				regions.put(new Vector2i(region.x, region.z), getRegion(region, file));
+			return change.getPositions();
 		}
 
 		@Override
@@ -231,9 +573,23 @@ public abstract class RegionFolder {
 			return regions.get(pos);
 		}
 
+		/** Looking up a saved region does not need any work, the image only gets loaded once it is requested. */
+		@Override
+		public CompletableFuture<Region> renderAsync(Vector2ic pos, Executor executor) {
+			return CompletableFuture.completedFuture(regions.get(pos));
+		}
+
 		/** Mapping from the path type T to an input stream. */
 		protected abstract InputStream getInputStream(T path) throws IOException;
 
+		/**
+		 * Resolve a path relative to the save file. Needed for save files with an index per world. The default implementation does not support
+		 * this.
+		 */
+		protected T resolve(T file, String path) throws IOException {
+			throw new IOException("Loading worlds with a separate index is not supported by " + getClass().getSimpleName());
+		}
+
 		protected abstract R getRegion(RegionHelper rawRegion, T basePath);
 
 		@Override
@@ -247,7 +603,25 @@ public abstract class RegionFolder {
 		}
 
 		/**
-		 * Parses a save file which describes rendered worlds. It is a json file containing json objects, with each one representing one "world":
+		 * Parses a save file which describes rendered worlds. Since version 2, it only lists the worlds, with each one having an index file of
+		 * its own (relative to the save file):
+		 * 
+		 * <pre>
+		 * {
+		 *     "version": 2,
+		 *     "worlds": [{"name": &lt;STRING>, "index": &lt;STRING>}]
+		 * }
+		 * </pre>
+		 * 
+		 * The index of a world is a json object with the world's name, its pins and its regions. Each region is a compact array of its
+		 * coordinates, its image and its chunk metadata. The metadata is either the path of a separate file as written by
+		 * {@link RegionFolder#writeMetadata(Path, RegionMetadata)} or the array of metadata itself:
+		 * 
+		 * <pre>
+		 * {"name": &lt;STRING>, "pins": &lt;OBJECT>, "regions": [[&lt;X>, &lt;Z>, &lt;IMAGE>, &lt;METADATA>]]}
+		 * </pre>
+		 * 
+		 * Older save files contain the worlds directly, with each one represented like this:
 		 * 
 		 * <pre>
 		 * {
@@ -265,11 +639,19 @@ public abstract class RegionFolder {
 		 * If the top-level element is an object, it will be a world. If it is an array, it will represent a list of worlds. More tags are going to
 		 * be added in the future.
 		 * 
-		 * @return A mapping from world names to a {@link JsonObject} containing their data. Each JsonObject may be converted directly to a
-		 *         {@link RegionHelper} using GSON.
+		 * @return A mapping from world names to a {@link JsonObject} containing their data, in the order of the file. Each JsonObject may be
+		 *         converted directly to a {@link RegionHelper} using GSON, unless it is a world with an index file of its own.
+		 * @throws IllegalArgumentException
+		 *             if the file has been written by a newer version
 		 */
 		public static Map<String, JsonObject> parseSaved(JsonElement parsed) {
-			Map<String, JsonObject> saved = new HashMap<>();
+			Map<String, JsonObject> saved = new LinkedHashMap<>();
+			if (parsed.isJsonObject() && parsed.getAsJsonObject().has("version")) {
+				int version = parsed.getAsJsonObject().get("version").getAsInt();
+				if (version > SAVE_VERSION)
+					throw new IllegalArgumentException("Unsupported save file version " + version);
+				parsed = parsed.getAsJsonObject().get("worlds");
+			}
 			if (parsed.isJsonArray()) {
 				for (JsonElement e : parsed.getAsJsonArray()) {
 					JsonObject o = e.getAsJsonObject();
@@ -302,27 +684,43 @@ public abstract class RegionFolder {
 			return Files.newInputStream(path);
 		}
 
+		@Override
+		protected Path resolve(Path file, String path) {
+			return file.resolveSibling(path);
+		}
+
 		@Override
 		protected LocalSavedRegion getRegion(RegionHelper rawRegion, Path basePath) {
 			return new LocalSavedRegion(
 					new Vector2i(rawRegion.x, rawRegion.z),
 					basePath.resolveSibling(rawRegion.image),
-					rawRegion.metadata.stream().collect(Collectors.toMap(meta -> meta.position, Function.identity())));
+					rawRegion.metadataFile == null ? null : basePath.resolveSibling(rawRegion.metadataFile),
+					rawRegion.metadataFile == null ? toMetadataMap(new Vector2i(rawRegion.x, rawRegion.z), rawRegion.metadata) : null);
 		}
 	}
 
 	/**
 	 * An implementation of {@link SavedRegionFolder} based on URIs. It is intended for primary use on remote servers, but with the {@code file}
-	 * schema it can open local files as well.
+	 * schema it can open local files as well. The images are downloaded using a {@link TileDownloader}, which may be shared between multiple
+	 * folders to share their connections and cache.
 	 */
 	public static class RemoteRegionFolder extends SavedRegionFolder<URI, SavedRegion> {
 
+		protected TileDownloader downloader;
+
 		protected RemoteRegionFolder(Map<Vector2ic, SavedRegion> regions, Optional<WorldPins> pins) {
 			super(regions, pins);
+			downloader = TileDownloader.getShared();
 		}
 
+		/** Load the world using the {@link TileDownloader#getShared() shared downloader}, without caching the images on the disk */
 		public RemoteRegionFolder(URI file, String name) throws IOException {
+			this(file, name, TileDownloader.getShared());
+		}
+
+		public RemoteRegionFolder(URI file, String name, TileDownloader downloader) throws IOException {
 			super(file, name);
+			this.downloader = Objects.requireNonNull(downloader);
 		}
 
 		@Override
@@ -330,13 +728,104 @@ public abstract class RegionFolder {
 			return path.toURL().openStream();
 		}
 
+		/** The returned region will get its image using the {@link TileDownloader}. */
+		@Override
+		public SavedRegion render(Vector2ic pos) {
+			SavedRegion region = regions.get(pos);
+			if (region == null)
+				return null;
+			return new RemoteSavedRegion(region, downloader);
+		}
+
+		/**
+		 * Download the image and return it as {@link BufferedRegion}. Unlike the {@link SavedRegion} returned by {@link #render(Vector2ic)}, getting
+		 * the image from it won't block anymore. The download does not occupy the executor, only decoding the image runs on it. Rendering many
+		 * regions at once will download them in parallel, as far as the {@link TileDownloader} allows.
+		 */
+		@Override
+		public CompletableFuture<Region> renderAsync(Vector2ic pos, Executor executor) {
+			SavedRegion region = regions.get(pos);
+			if (region == null)
+				return CompletableFuture.completedFuture(null);
+			return downloader.fetch(region.getURI()).thenApplyAsync(data -> {
+				try {
+					int[] pixels = TileCache.getShared().get(region.getURI(), TileCache.version(data), () -> TileDecoder.decode(data));
+					return new BufferedRegion(pos, pixels, region.getChunkMetadata());
+				} catch (IOException e) {
+					throw new CompletionException(e);
+				}
+			}, executor);
+		}
+
+		/**
+		 * Start downloading the images of the given regions in the background, so that they will be available right away once they are needed.
+		 * This only has an effect if the {@link TileDownloader} caches the images on the disk.
+		 */
+		public void prefetch(Collection<? extends Vector2ic> positions) {
+			for (Vector2ic pos : positions) {
+				SavedRegion region = regions.get(pos);
+				if (region != null)
+					downloader.prefetch(region.getURI());
+			}
+		}
+
+		/** The changed images will be downloaded again, even if they have been checked with the server recently. */
+		@Override
+		public Set<Vector2ic> update(ChangeFeed.Change change) {
+			Set<Vector2ic> changed = super.update(change);
+			for (Vector2ic pos : changed)
+				downloader.invalidate(regions.get(pos).getURI());
+			return changed;
+		}
+
+		@Override
+		protected URI resolve(URI file, String path) {
+			return file.resolve(path);
+		}
+
 		@Override
 		protected SavedRegion getRegion(RegionHelper rawRegion, URI basePath) {
 			return new SavedRegion(
 					new Vector2i(rawRegion.x, rawRegion.z),
 					basePath.resolve(rawRegion.image),
-					Optional.ofNullable(rawRegion.metadata).map(List::stream).orElse(Stream.empty())
-							.collect(Collectors.toMap(meta -> meta.position, Function.identity())));
+					rawRegion.metadataFile == null ? null : basePath.resolve(rawRegion.metadataFile),
+					rawRegion.metadataFile == null ? toMetadataMap(new Vector2i(rawRegion.x, rawRegion.z), rawRegion.metadata) : null);
+		}
+	}
+
+	/**
+	 * An implementation of {@link SavedRegionFolder} that reads a world from a {@link TileArchive}, either locally or from a remote server.
+	 */
+	public static class ArchiveRegionFolder extends SavedRegionFolder<TileArchive, ArchivedRegion> {
+
+		protected ArchiveRegionFolder(Map<Vector2ic, ArchivedRegion> regions, Optional<WorldPins> pins) {
+			super(regions, pins);
+		}
+
+		public ArchiveRegionFolder(TileArchive archive, String name) throws IOException {
+			super(archive, name);
+		}
+
+		@Override
+		protected InputStream getInputStream(TileArchive archive) throws IOException {
+			return archive.getIndex();
+		}
+
+		/** The chunk metadata is either inlined or the hash of a tile containing it, as written by {@link CachedRegionFolder#saveArchive(Path, String)} */
+		@Override
+		protected ArchivedRegion getRegion(RegionHelper rawRegion, TileArchive archive) {
+			return new ArchivedRegion(
+					new Vector2i(rawRegion.x, rawRegion.z),
+					archive,
+					rawRegion.image,
+					rawRegion.metadataFile,
+					rawRegion.metadataFile == null ? toMetadataMap(new Vector2i(rawRegion.x, rawRegion.z), rawRegion.metadata) : null);
+		}
+
+		/** Archives are not changed in place, open them again to see the changes. */
+		@Override
+		public Set<Vector2ic> update(ChangeFeed.Change change) {
+			throw new IllegalStateException("Tile archives can't be updated");
 		}
 	}
 
@@ -349,7 +838,7 @@ public abstract class RegionFolder {
 		protected WorldRegionFolder					world;
 		protected boolean							lazy;
 		protected Path								imageFolder;
-		protected Map<Vector2ic, LocalSavedRegion>	cache	= new HashMap<>();
+		protected Map<Vector2ic, LocalSavedRegion>	cache	= new ConcurrentHashMap<>();
 
 		/**
 		 * @param world
@@ -381,16 +870,117 @@ public abstract class RegionFolder {
 			if (region == null)
 				return null;
 			Path image = imageFolder.resolve(region.getFileName().toString().replace(".mca", ".png"));
-			if (cache.containsKey(pos)
-					&& lazy && Files.getLastModifiedTime(image).compareTo(Files.getLastModifiedTime(region)) > 0) {
+			if (isCached(pos, region, image)) {
 				return cache.get(pos);
 			} else {
 				BufferedRegion rendered = world.render(pos);
-				cache.put(pos, rendered.save(image));
+				cache.put(pos, write(rendered, image));
 				return rendered;
 			}
 		}
 
+		/**
+		 * Cached images are returned right away. Otherwise, the region gets rendered on the executor, and the image is written to disk in a separate task
+		 * afterwards so that rendering the next region can start earlier on a different thread.
+		 * 
+		 * @see #render(Vector2ic)
+		 */
+		@Override
+		public CompletableFuture<Region> renderAsync(Vector2ic pos, Executor executor) {
+			Path region = world.getPath(pos);
+			if (region == null)
+				return CompletableFuture.completedFuture(null);
+			Path image = imageFolder.resolve(region.getFileName().toString().replace(".mca", ".png"));
+			try {
+				if (isCached(pos, region, image))
+					return CompletableFuture.completedFuture(cache.get(pos));
+			} catch (IOException e) {
+				return CompletableFuture.failedFuture(e);
+			}
+			return world.renderAsync(pos, executor).thenApplyAsync(rendered -> {
+				try {
+					cache.put(pos, write((BufferedRegion) rendered, image));
+					return rendered;
+				} catch (IOException e) {
+					throw new CompletionException(e);
+				}
+			}, executor);
+		}
+
+		/**
+		 * Like {@link #renderAsync(Vector2ic, Executor)}, but writing the image happens in the write stage of the pipeline.
+		 */
+		@Override
+		public CompletableFuture<Region> renderAsync(Vector2ic pos, RenderPipeline pipeline) {
+			Path region = world.getPath(pos);
+			if (region == null)
+				return CompletableFuture.completedFuture(null);
+			Path image = imageFolder.resolve(region.getFileName().toString().replace(".mca", ".png"));
+			try {
+				if (isCached(pos, region, image))
+					return CompletableFuture.completedFuture(cache.get(pos));
+			} catch (IOException e) {
+				return CompletableFuture.failedFuture(e);
+			}
+			return world.renderAsync(pos, pipeline).thenApplyAsync(rendered -> {
+				try {
+					cache.put(pos, write((BufferedRegion) rendered, image));
+					return rendered;
+				} catch (IOException e) {
+					throw new CompletionException(e);
+				}
+			}, pipeline.getWrite());
+		}
+
+		/** Cached images load faster than any preview, so only render one if the image will be rendered again. */
+		@Override
+		public Region renderPreview(Vector2ic pos, int sampling) throws IOException {
+			Path region = world.getPath(pos);
+			if (region == null)
+				return null;
+			Path image = imageFolder.resolve(region.getFileName().toString().replace(".mca", ".png"));
+			if (isCached(pos, region, image))
+				return null;
+			return world.renderPreview(pos, sampling);
+		}
+
+		/** The saved image of a region that has been rendered or taken from the cache, or {@code null} if it has not been rendered yet */
+		public LocalSavedRegion getSaved(Vector2ic pos) {
+			return cache.get(pos);
+		}
+
+		/**
+		 * Write the image of a region that has been rendered elsewhere, for example from an archive, and handle it as if it had been rendered by
+		 * this object.
+		 */
+		public LocalSavedRegion put(BufferedRegion rendered) throws IOException {
+			Vector2ic pos = rendered.getPosition();
+			LocalSavedRegion saved = write(rendered, imageFolder.resolve("r." + pos.x() + "." + pos.y() + ".png"));
+			cache.put(pos, saved);
+			return saved;
+		}
+
+		/**
+		 * Write the image of a region and its chunk metadata next to it, so that the index of the world does not need to contain the metadata. The
+		 * returned region still holds the metadata in memory, and its pixels are put into the {@link TileCache#getShared() shared cache} so that
+		 * they are not decoded again if the image is needed soon.
+		 */
+		private LocalSavedRegion write(BufferedRegion rendered, Path image) throws IOException {
+			LocalSavedRegion saved = rendered.save(image);
+			TileCache.getShared().put(image.toUri(), Files.getLastModifiedTime(image).toMillis(), rendered.getPixels());
+			Path metadataFile = image.resolveSibling(image.getFileName().toString().replace(".png", ".metadata.gz"));
+			RegionMetadata metadata = RegionMetadata.of(saved.getPosition(), saved.getChunkMetadata());
+			writeMetadata(metadataFile, metadata);
+			return new LocalSavedRegion(saved.getPosition(), image, metadataFile, metadata);
+		}
+
+		/** Regions with chunks that {@link ChunkRenderState#CHANGING changed while reading them} are never cached, so that they get rendered again. */
+		private boolean isCached(Vector2ic pos, Path region, Path image) throws IOException {
+			return cache.containsKey(pos)
+					&& lazy && Files.getLastModifiedTime(image).compareTo(Files.getLastModifiedTime(region)) > 0
+					&& cache.get(pos).getChunkMetadata().values().stream().noneMatch(chunk -> chunk.renderState == ChunkRenderState.CHANGING);
+		}
+
 		@Override
 		public Set<Vector2ic> listRegions() {
 			return world.listRegions();
@@ -421,61 +1011,183 @@ public abstract class RegionFolder {
 
 		/**
 		 * Saves the paths to all rendered files (and to files that have yet to be rendered; see {@link #save()}) into a save file which will be
-		 * accepted by {@link SavedRegionFolder#parseSaved(JsonElement)}.
+		 * accepted by {@link SavedRegionFolder#parseSaved(JsonElement)}. The regions are written to an index file of this world next to the save
+		 * file, which only references the chunk metadata of each region, so that it stays small and may be loaded without holding all of it in
+		 * memory at once. The save file itself only gets rewritten if this world is new. Worlds from older save files will be moved to index files
+		 * of their own.
 		 * 
 		 * @param file
-		 *            where to write this information to. If the file already exist, the data will be appended, keeping the existing one intact.
+		 *            where to write this information to. If the file already exist, the data will be appended, keeping the existing one intact. The
+		 *            files are replaced atomically if the file system supports it, so that readers never see them half written.
 		 * @param name
 		 *            the name of the saved world in that file
 		 * @param relativePaths
 		 *            wether to use relative paths for referencing the saved images
 		 */
 		public void save(Path file, String name, boolean relativePaths) throws IOException {
-			Collection<JsonObject> existing = Files.exists(file) ? SavedRegionFolder.parseSaved(new JsonParser().parse(new String(Files.readAllBytes(file))))
-					.values() : Collections.emptyList();
-			try (JsonWriter writer = RegionFolder.GSON.newJsonWriter(Files.newBufferedWriter(file, StandardOpenOption.CREATE,
-					StandardOpenOption.TRUNCATE_EXISTING))) {
-				if (!existing.isEmpty()) {
-					writer.beginArray();
-					for (JsonObject e : existing)
-						if (!name.equals(e.getAsJsonPrimitive("name").getAsString()))
-							writer.jsonValue(RegionFolder.GSON.toJson(e));
+			Path base = file.toAbsolutePath().normalize().getParent();
+			String previous = Files.exists(file) ? new String(Files.readAllBytes(file), StandardCharsets.UTF_8) : null;
+			Map<String, JsonObject> existing = previous == null ? Collections.emptyMap() : SavedRegionFolder.parseSaved(new JsonParser().parse(previous));
+
+			Map<String, String> indices = new LinkedHashMap<>();
+			for (JsonObject world : existing.values()) {
+				String worldName = world.getAsJsonPrimitive("name").getAsString();
+				if (world.has("index")) {
+					indices.put(worldName, world.get("index").getAsString());
+				} else {
+					/* The world objects of the older formats are valid index files on their own */
+					String index = indexName(file, worldName, indices.values());
+					indices.put(worldName, index);
+					if (!worldName.equals(name))
+						replace(base.resolve(index), writer -> RegionFolder.GSON.toJson(world, writer));
 				}
+			}
+			String index = indices.computeIfAbsent(name, n -> indexName(file, n, indices.values()));
+
+			replace(base.resolve(index), writer -> {
 				writer.beginObject();
 				writer.name("name");
 				writer.value(name);
+				Optional<WorldPins> pins = getPins();
+				if (pins.isPresent()) {
+					writer.name("pins");
+					RegionFolder.GSON.toJson(pins.get(), WorldPins.class, writer);
+				}
 				writer.name("regions");
 				writer.beginArray();
 				for (Entry<Vector2ic, LocalSavedRegion> e : cache.entrySet()) {
-					writer.beginObject();
-
-					writer.name("x");
+					writer.beginArray();
 					writer.value(e.getKey().x());
-					writer.name("z");
 					writer.value(e.getKey().y());
-					writer.name("image");
-					Path value = imageFolder.resolve(e.getValue().getPath().getFileName().toString().replace(".mca", ".png"));
-					if (relativePaths)
-						value = file.normalize().getParent().relativize(value.normalize());
-					writer.value(value.toString());
-
-					writer.name("metadata");
-					writer.jsonValue(RegionFolder.GSON.toJson(e.getValue().getChunkMetadata().values()));
-
-					writer.endObject();
+					Path image = imageFolder.resolve(e.getValue().getPath().getFileName().toString().replace(".mca", ".png"));
+					writer.value(pathString(base, image, relativePaths));
+					if (e.getValue().getMetadataPath() != null)
+						writer.value(pathString(base, e.getValue().getMetadataPath(), relativePaths));
+					else
+						RegionFolder.GSON.toJson(e.getValue().getChunkMetadata().values(), new TypeToken<Collection<ChunkMetadata>>() {
+						}.getType(), writer);
+					writer.endArray();
 				}
 				writer.endArray();
 				writer.endObject();
-				if (!existing.isEmpty())
-					writer.endArray();
+			});
+
+			JsonArray worlds = new JsonArray();
+			for (Entry<String, String> e : indices.entrySet()) {
+				JsonObject world = new JsonObject();
+				world.addProperty("name", e.getKey());
+				world.addProperty("index", e.getValue());
+				worlds.add(world);
+			}
+			JsonObject saved = new JsonObject();
+			saved.addProperty("version", SAVE_VERSION);
+			saved.add("worlds", worlds);
+			String content = RegionFolder.GSON.toJson(saved);
+			if (!content.equals(previous))
+				replace(file, writer -> writer.jsonValue(content));
+		}
+
+		/** The chunk metadata of a region in the format of {@link #writeMetadata(Path, RegionMetadata)}, taken from its file if it has one */
+		private static byte[] metadataBytes(LocalSavedRegion region) throws IOException {
+			if (region.getMetadataPath() != null)
+				return Files.readAllBytes(region.getMetadataPath());
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			writeMetadata(out, RegionMetadata.of(region.getPosition(), region.getChunkMetadata()));
+			return out.toByteArray();
+		}
+
+		/** Find an unused file name for the index of a world, derived from the name of the save file and the name of the world. */
+		private static String indexName(Path file, String world, Collection<String> used) {
+			String prefix = file.getFileName().toString().replaceFirst("\\.json$", "") + "." + world.replaceAll("[^A-Za-z0-9_-]", "_");
+			String index = prefix + ".json";
+			for (int i = 2; used.contains(index); i++)
+				index = prefix + "-" + i + ".json";
+			return index;
+		}
+
+		private static String pathString(Path base, Path path, boolean relativePaths) {
+			path = path.toAbsolutePath().normalize();
+			if (relativePaths)
+				path = base.relativize(path);
+			return path.toString().replace('\\', '/');
+		}
+
+		private interface JsonContent {
+			void write(JsonWriter writer) throws IOException;
+		}
+
+		/** Write a json file to a temporary file first and then move it to its place, so that readers never see it half written. */
+		private static void replace(Path file, JsonContent content) throws IOException {
+			Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+			try (JsonWriter writer = new JsonWriter(Files.newBufferedWriter(temp, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING))) {
+				content.write(writer);
 				writer.flush();
 			}
+			try {
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+
+		/**
+		 * Append all rendered images to a {@link TileArchive} and add this world to its index, which can then be loaded using
+		 * {@link ArchiveRegionFolder}. Images that are already in the archive, from this world or any other, will not be stored again. The chunk
+		 * metadata of each region is stored next to the images in the compressed binary format of the metadata files, so that the index only
+		 * references it and stays small. Unlike {@link #save(Path, String, boolean)}, regions that have not been rendered yet will be left out.
+		 *
+		 * @param file
+		 *            the archive to write to. If it already exists, the data will be appended, keeping the existing one intact.
+		 * @param name
+		 *            the name of the saved world in that archive
+		 */
+		public void saveArchive(Path file, String name) throws IOException {
+			try (TileArchive.Writer writer = new TileArchive.Writer(file)) {
+				JsonArray regions = new JsonArray();
+				for (Entry<Vector2ic, LocalSavedRegion> e : cache.entrySet()) {
+					JsonObject region = new JsonObject();
+					region.addProperty("x", e.getKey().x());
+					region.addProperty("z", e.getKey().y());
+					region.addProperty("image", writer.putTile(Files.readAllBytes(e.getValue().getPath())));
+					region.addProperty("metadataFile", writer.putTile(metadataBytes(e.getValue())));
+					regions.add(region);
+				}
+				JsonObject world = new JsonObject();
+				world.addProperty("name", name);
+				world.add("regions", regions);
+				getPins().ifPresent(pins -> world.add("pins", RegionFolder.GSON.toJsonTree(pins)));
+				writer.putWorld(world);
+				writer.commit();
+			}
 		}
 	}
 
 	static class RegionHelper {
 		int					x, z;
 		String				image;
+		/** The file containing the chunk metadata. If it is {@code null}, the metadata is inlined. */
+		String				metadataFile;
 		List<ChunkMetadata>	metadata;
+
+		/** Read a region from a world index, either in its compact form {@code [x, z, image, metadata]} or as object. */
+		static RegionHelper read(JsonReader reader) throws IOException {
+			if (reader.peek() == JsonToken.BEGIN_OBJECT)
+				return GSON.fromJson(reader, RegionHelper.class);
+			RegionHelper region = new RegionHelper();
+			reader.beginArray();
+			region.x = reader.nextInt();
+			region.z = reader.nextInt();
+			region.image = reader.nextString();
+			if (reader.hasNext()) {
+				if (reader.peek() == JsonToken.STRING)
+					region.metadataFile = reader.nextString();
+				else
+					region.metadata = GSON.fromJson(reader, new TypeToken<List<ChunkMetadata>>() {
+					}.getType());
+			}
+			reader.endArray();
+			return region;
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,107 @@
+package de.piegames.blockmap.world;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Objects;
+
+import org.joml.Vector2ic;
+
+/**
+ * The information contained in the 8KiB header of a region file: which chunks exist, how much space each of them takes and when it has been
+ * saved. Reading it is a lot faster than reading the chunks themselves, so it can be used to get an overview of a world or to estimate the cost of
+ * rendering it before actually doing so.
+ * <p>
+ * The header only tells how many 4KiB sectors a chunk occupies, so the sizes are rounded up to multiples of that. This is good enough for
+ * estimations.
+ *
+ * @see RegionFolder.WorldRegionFolder#scanHeaders(java.util.concurrent.Executor)
+ */
+public class RegionHeader {
+
+	/** The size of a sector in a region file, in bytes */
+	public static final int		SECTOR_SIZE	= 4096;
+
+	protected final Vector2ic	position;
+	/** Which chunks exist, indexed by {@code x | z << 5} */
+	protected final BitSet		present;
+	/** The number of sectors of each chunk, indexed by {@code x | z << 5} */
+	protected final byte[]		sectors;
+	/** The newest timestamp of all chunks, in seconds since the epoch */
+	protected final int			timestamp;
+
+	public RegionHeader(Vector2ic position, BitSet present, byte[] sectors, int timestamp) {
+		this.position = Objects.requireNonNull(position);
+		this.present = Objects.requireNonNull(present);
+		this.sectors = Objects.requireNonNull(sectors);
+		this.timestamp = timestamp;
+		if (sectors.length != 32 * 32)
+			throw new IllegalArgumentException("There must be 32*32 sector counts");
+	}
+
+	/**
+	 * Read the header of a region file. Files that are too short to have a full header are treated as empty, like Minecraft does.
+	 *
+	 * @param position
+	 *            the position of the region file, in region coordinates
+	 */
+	public static RegionHeader read(Vector2ic position, Path file) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(2 * SECTOR_SIZE);
+		try (SeekableByteChannel channel = Files.newByteChannel(file, StandardOpenOption.READ)) {
+			while (header.hasRemaining() && channel.read(header) >= 0)
+				;
+		}
+		BitSet present = new BitSet(32 * 32);
+		byte[] sectors = new byte[32 * 32];
+		int timestamp = 0;
+		if (!header.hasRemaining()) {
+			header.flip();
+			for (int i = 0; i < 32 * 32; i++) {
+				int location = header.getInt(i * 4);
+				/* The upper three bytes are the offset, the lowest one the number of sectors */
+				if ((location >>> 8) != 0 && (location & 0xFF) != 0) {
+					present.set(i);
+					sectors[i] = (byte) location;
+					timestamp = Math.max(timestamp, header.getInt(SECTOR_SIZE + i * 4));
+				}
+			}
+		}
+		return new RegionHeader(position, present, sectors, timestamp);
+	}
+
+	public Vector2ic getPosition() {
+		return position;
+	}
+
+	/** Returns whether the chunk at the given position within the region exists */
+	public boolean isPresent(int x, int z) {
+		return present.get(x | z << 5);
+	}
+
+	/** Returns the size the chunk at the given position within the region occupies in the file, in bytes. Absent chunks have a size of 0. */
+	public int getSize(int x, int z) {
+		return (sectors[x | z << 5] & 0xFF) * SECTOR_SIZE;
+	}
+
+	/** Returns the number of chunks in this region */
+	public int getChunkCount() {
+		return present.cardinality();
+	}
+
+	/** Returns the total size of all chunks, in bytes. This is a good estimate for the time it will take to render the region. */
+	public long getTotalSize() {
+		long size = 0;
+		for (byte s : sectors)
+			size += s & 0xFF;
+		return size * SECTOR_SIZE;
+	}
+
+	/** Returns the time the most recently saved chunk has been saved, in seconds since the epoch. {@code 0} if the region is empty. */
+	public int getTimestamp() {
+		return timestamp;
+	}
+}
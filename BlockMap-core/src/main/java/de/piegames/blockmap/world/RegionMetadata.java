@@ -0,0 +1,279 @@
+package de.piegames.blockmap.world;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+import org.joml.Vector2i;
+import org.joml.Vector2ic;
+import org.joml.Vector3i;
+import org.joml.Vector3ic;
+
+import de.piegames.blockmap.world.ChunkMetadata.ChunkGenerationStatus;
+import de.piegames.blockmap.world.ChunkMetadata.ChunkRenderState;
+
+/**
+ * The {@link ChunkMetadata} of all chunks of one region, stored in a compact way: the render state and generation status of each chunk take one
+ * byte each, and the few structures are kept in a small table sorted by chunk. Rendered regions are kept around for a long time, so this saves a
+ * lot of memory compared to one object per chunk.
+ * <p>
+ * This is a {@link Map} from chunk positions to their metadata, like the ones returned by {@link Region#getChunkMetadata()}. The
+ * {@link ChunkMetadata} objects are created on each access, so don't rely on their identity. Chunks can be added or replaced using
+ * {@link #put(Vector2ic, ChunkMetadata)}, but not removed.
+ */
+public class RegionMetadata extends AbstractMap<Vector2ic, ChunkMetadata> {
+
+	/** The version of the binary format written by {@link #write(DataOutput)} */
+	public static final int							VERSION				= 1;
+
+	private static final ChunkRenderState[]			RENDER_STATES		= ChunkRenderState.values();
+	private static final ChunkGenerationStatus[]	GENERATION_STATUS	= ChunkGenerationStatus.values();
+
+	protected final Vector2ic						position;
+	/** The ordinal plus one of the render state of each chunk, zero if it does not exist. Indexed by {@code x | z << 5} */
+	protected final byte[]							renderStates		= new byte[32 * 32];
+	/** The ordinal plus one of the generation status of each chunk, zero if it is {@code null}. Indexed by {@code x | z << 5} */
+	protected final byte[]							generationStatus	= new byte[32 * 32];
+	protected int									size;
+
+	/** The index of the chunk of each structure, in ascending order */
+	protected short[]								structureChunks		= new short[0];
+	protected String[]								structureNames		= new String[0];
+	/** The x, y and z coordinate of each structure */
+	protected int[]									structurePositions	= new int[0];
+
+	/**
+	 * Create an empty instance
+	 *
+	 * @param position
+	 *            the position of the region, in region coordinates
+	 */
+	public RegionMetadata(Vector2ic position) {
+		this.position = Objects.requireNonNull(position);
+	}
+
+	/**
+	 * Copy the given metadata into a new instance, unless it already is one.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if any of the chunks is not within the region
+	 */
+	public static RegionMetadata of(Vector2ic position, Map<? extends Vector2ic, ChunkMetadata> metadata) {
+		if (metadata instanceof RegionMetadata && ((RegionMetadata) metadata).position.x() == position.x()
+				&& ((RegionMetadata) metadata).position.y() == position.y())
+			return (RegionMetadata) metadata;
+		RegionMetadata ret = new RegionMetadata(position);
+		for (ChunkMetadata chunk : metadata.values())
+			ret.put(chunk.position, chunk);
+		return ret;
+	}
+
+	public Vector2ic getPosition() {
+		return position;
+	}
+
+	/** Returns the index of the given chunk, or -1 if it is not in this region */
+	private int index(Object key) {
+		if (!(key instanceof Vector2ic))
+			return -1;
+		Vector2ic chunk = (Vector2ic) key;
+		if (chunk.x() >> 5 != position.x() || chunk.y() >> 5 != position.y())
+			return -1;
+		return (chunk.x() & 31) | (chunk.y() & 31) << 5;
+	}
+
+	private ChunkMetadata get(int index) {
+		Vector2ic chunk = new Vector2i(position.x() << 5 | index & 31, position.y() << 5 | index >> 5);
+		ChunkRenderState renderState = RENDER_STATES[renderStates[index] - 1];
+		ChunkGenerationStatus status = generationStatus[index] == 0 ? null : GENERATION_STATUS[generationStatus[index] - 1];
+		int first = firstStructure(index);
+		if (first == structureChunks.length || structureChunks[first] != index)
+			return new ChunkMetadata(chunk, renderState, status);
+		Map<String, Vector3ic> structures = new HashMap<>();
+		for (int i = first; i < structureChunks.length && structureChunks[i] == index; i++)
+			structures.put(structureNames[i], new Vector3i(structurePositions[3 * i], structurePositions[3 * i + 1], structurePositions[3 * i + 2]));
+		return new ChunkMetadata(chunk, renderState, status, structures);
+	}
+
+	/** Returns the first entry of the structure table that belongs to the given chunk or any chunk after it */
+	private int firstStructure(int index) {
+		int low = 0, high = structureChunks.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (structureChunks[mid] < index)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	@Override
+	public ChunkMetadata get(Object key) {
+		int index = index(key);
+		return index < 0 || renderStates[index] == 0 ? null : get(index);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		int index = index(key);
+		return index >= 0 && renderStates[index] != 0;
+	}
+
+	/**
+	 * Add the metadata of a chunk, replacing the existing one.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the chunk is not within this region or if the key is not the position of the metadata
+	 */
+	@Override
+	public ChunkMetadata put(Vector2ic key, ChunkMetadata value) {
+		int index = index(key);
+		if (index < 0)
+			throw new IllegalArgumentException("Chunk " + key + " is not in region " + position);
+		if (key.x() != value.position.x() || key.y() != value.position.y())
+			throw new IllegalArgumentException("The key " + key + " does not match the position of the chunk " + value.position);
+		ChunkMetadata previous = get(key);
+		if (previous == null)
+			size++;
+		renderStates[index] = (byte) (value.renderState.ordinal() + 1);
+		generationStatus[index] = (byte) (value.generationStatus == null ? 0 : value.generationStatus.ordinal() + 1);
+
+		/* Replace the structures of the chunk in the table */
+		int first = firstStructure(index), end = first;
+		while (end < structureChunks.length && structureChunks[end] == index)
+			end++;
+		if (end - first != 0 || !value.structures.isEmpty()) {
+			int length = structureChunks.length - (end - first) + value.structures.size();
+			short[] chunks = new short[length];
+			String[] names = new String[length];
+			int[] positions = new int[3 * length];
+			System.arraycopy(structureChunks, 0, chunks, 0, first);
+			System.arraycopy(structureNames, 0, names, 0, first);
+			System.arraycopy(structurePositions, 0, positions, 0, 3 * first);
+			int i = first;
+			for (Entry<String, Vector3ic> structure : value.structures.entrySet()) {
+				chunks[i] = (short) index;
+				/* There are only a few structure types, so share their names */
+				names[i] = structure.getKey().intern();
+				positions[3 * i] = structure.getValue().x();
+				positions[3 * i + 1] = structure.getValue().y();
+				positions[3 * i + 2] = structure.getValue().z();
+				i++;
+			}
+			System.arraycopy(structureChunks, end, chunks, i, structureChunks.length - end);
+			System.arraycopy(structureNames, end, names, i, structureChunks.length - end);
+			System.arraycopy(structurePositions, 3 * end, positions, 3 * i, 3 * (structureChunks.length - end));
+			structureChunks = chunks;
+			structureNames = names;
+			structurePositions = positions;
+		}
+		return previous;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Set<Entry<Vector2ic, ChunkMetadata>> entrySet() {
+		return new AbstractSet<>() {
+
+			@Override
+			public Iterator<Entry<Vector2ic, ChunkMetadata>> iterator() {
+				return new Iterator<>() {
+					int next = find(0);
+
+					private int find(int from) {
+						while (from < renderStates.length && renderStates[from] == 0)
+							from++;
+						return from;
+					}
+
+					@Override
+					public boolean hasNext() {
+						return next < renderStates.length;
+					}
+
+					@Override
+					public Entry<Vector2ic, ChunkMetadata> next() {
+						if (!hasNext())
+							throw new NoSuchElementException();
+						ChunkMetadata chunk = get(next);
+						next = find(next + 1);
+						return new SimpleImmutableEntry<>(chunk.position, chunk);
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	/** Write this object in a binary format. The per-chunk data is written as is, without converting it. */
+	public void write(DataOutput out) throws IOException {
+		out.writeByte(VERSION);
+		out.writeInt(position.x());
+		out.writeInt(position.y());
+		out.write(renderStates);
+		out.write(generationStatus);
+		out.writeInt(structureChunks.length);
+		for (int i = 0; i < structureChunks.length; i++) {
+			out.writeShort(structureChunks[i]);
+			out.writeUTF(structureNames[i]);
+			out.writeInt(structurePositions[3 * i]);
+			out.writeInt(structurePositions[3 * i + 1]);
+			out.writeInt(structurePositions[3 * i + 2]);
+		}
+	}
+
+	/**
+	 * Read an object written using {@link #write(DataOutput)}.
+	 *
+	 * @throws IOException
+	 *             if the data is not valid or has been written by a newer version
+	 */
+	public static RegionMetadata read(DataInput in) throws IOException {
+		int version = in.readUnsignedByte();
+		if (version != VERSION)
+			throw new IOException("Unsupported metadata version " + version);
+		RegionMetadata ret = new RegionMetadata(new Vector2i(in.readInt(), in.readInt()));
+		in.readFully(ret.renderStates);
+		in.readFully(ret.generationStatus);
+		for (int i = 0; i < 32 * 32; i++) {
+			if (ret.renderStates[i] < 0 || ret.renderStates[i] > RENDER_STATES.length
+					|| ret.generationStatus[i] < 0 || ret.generationStatus[i] > GENERATION_STATUS.length)
+				throw new IOException("Invalid metadata of chunk " + i);
+			if (ret.renderStates[i] != 0)
+				ret.size++;
+		}
+		int structures = in.readInt();
+		if (structures < 0 || structures > 32 * 32 * 64)
+			throw new IOException("Invalid number of structures: " + structures);
+		ret.structureChunks = new short[structures];
+		ret.structureNames = new String[structures];
+		ret.structurePositions = new int[3 * structures];
+		for (int i = 0; i < structures; i++) {
+			ret.structureChunks[i] = in.readShort();
+			if (ret.structureChunks[i] < 0 || ret.structureChunks[i] >= 32 * 32 || i > 0 && ret.structureChunks[i] < ret.structureChunks[i - 1])
+				throw new IOException("Invalid structure table");
+			ret.structureNames[i] = in.readUTF().intern();
+			ret.structurePositions[3 * i] = in.readInt();
+			ret.structurePositions[3 * i + 1] = in.readInt();
+			ret.structurePositions[3 * i + 2] = in.readInt();
+		}
+		return ret;
+	}
+}
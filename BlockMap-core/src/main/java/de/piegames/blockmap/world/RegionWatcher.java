@@ -0,0 +1,119 @@
+package de.piegames.blockmap.world;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.joml.Vector2i;
+import org.joml.Vector2ic;
+
+/**
+ * Watch a region folder for changes, for example to keep a rendering of a running server up to date. Minecraft saves many chunks at once, so the
+ * changes are collected until the folder has been quiet for a while before reporting them, instead of reporting each write on its own.
+ * <p>
+ * Modification events only tell that a region file has been written to, not that anything visible changed. Use the {@link RegionHeader} of the
+ * changed files to find out which ones actually need to be rendered again.
+ */
+public class RegionWatcher implements AutoCloseable {
+
+	private static Log				log	= LogFactory.getLog(RegionWatcher.class);
+
+	protected final Path			regionFolder;
+	protected final WatchService	watcher;
+	protected final WatchKey		regionKey;
+
+	/**
+	 * @param regionFolder
+	 *            the folder containing the region files
+	 * @param otherFolders
+	 *            additional folders to watch, like {@code playerdata/}. Changes to them will be reported, but not which files changed. Folders that
+	 *            don't exist will be ignored.
+	 */
+	public RegionWatcher(Path regionFolder, Path... otherFolders) throws IOException {
+		this.regionFolder = regionFolder;
+		watcher = regionFolder.getFileSystem().newWatchService();
+		regionKey = regionFolder.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		for (Path folder : otherFolders)
+			if (Files.isDirectory(folder))
+				folder.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+						StandardWatchEventKinds.ENTRY_DELETE);
+	}
+
+	/**
+	 * Wait until something changed, and then until no more changes happen for the given time. Only if the folders keep changing without a break,
+	 * the changes will be reported after {@code maxDelay} nevertheless.
+	 *
+	 * @return the positions of the region files that have been created or modified. This may be empty if only the other folders changed.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting or if the watcher has been closed
+	 */
+	public Set<Vector2ic> awaitChanges(Duration quiet, Duration maxDelay) throws InterruptedException {
+		Set<Vector2ic> changed = new HashSet<>();
+		try {
+			WatchKey key = watcher.take();
+			long deadline = System.nanoTime() + maxDelay.toNanos();
+			while (key != null) {
+				collect(key, changed);
+				long remaining = Math.min(quiet.toNanos(), deadline - System.nanoTime());
+				key = remaining > 0 ? watcher.poll(remaining, TimeUnit.NANOSECONDS) : null;
+			}
+		} catch (ClosedWatchServiceException e) {
+			throw new InterruptedException("The watcher has been closed");
+		}
+		return changed;
+	}
+
+	private void collect(WatchKey key, Set<Vector2ic> changed) {
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (key != regionKey)
+				continue;
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				/* Too many events to keep track of them, so all files may have changed */
+				log.debug("Lost track of the changes, checking all region files");
+				changed.addAll(listRegions());
+				continue;
+			}
+			Matcher m = RegionFolder.WorldRegionFolder.rfpat.matcher(((Path) event.context()).getFileName().toString());
+			if (m.matches())
+				changed.add(new Vector2i(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2))));
+		}
+		if (!key.reset())
+			log.warn("Stopped watching " + key.watchable() + " since it is not accessible anymore");
+	}
+
+	private Set<Vector2ic> listRegions() {
+		try (Stream<Path> files = Files.list(regionFolder)) {
+			return files.map(p -> RegionFolder.WorldRegionFolder.rfpat.matcher(p.getFileName().toString()))
+					.filter(Matcher::matches)
+					.map(m -> new Vector2i(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2))))
+					.collect(Collectors.toSet());
+		} catch (IOException e) {
+			log.warn("Could not list the region files", e);
+			return new HashSet<>();
+		}
+	}
+
+	/** Returns the path of the region file at the given position. It does not need to exist. */
+	public Path getRegionPath(Vector2ic pos) {
+		return regionFolder.resolve("r." + pos.x() + "." + pos.y() + ".mca");
+	}
+
+	@Override
+	public void close() throws IOException {
+		watcher.close();
+	}
+}
@@ -0,0 +1,191 @@
+package de.piegames.blockmap.world;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joml.Vector2ic;
+
+import de.piegames.blockmap.renderer.DecodedRegion;
+
+/**
+ * Render many regions at once by splitting the work into stages, each one with its own threads and a bounded queue:
+ * <ol>
+ * <li>{@link #getRead() read}: Read and decode the region files (see {@link DecodedRegion}). This is mostly I/O.</li>
+ * <li>{@link #getRender() render}: Render and shade the decoded regions. This is purely CPU bound.</li>
+ * <li>{@link #getWrite() write}: Encode and write the resulting images, if the {@link RegionFolder} does so.</li>
+ * </ol>
+ * If the queue of a stage is full, submitting to it blocks until there is space again. This way, the read stage reads ahead only as far as the
+ * render stage can keep up, and the memory used for decoded regions stays bounded. Looking at the {@link Stage#getQueued() queue depth} of each stage
+ * tells where the bottleneck is: if the render queue is always full, the machine is CPU-bound, if it is always empty, it is I/O-bound.
+ *
+ * @see RegionFolder#renderAll(Collection, RenderPipeline)
+ */
+public class RenderPipeline implements AutoCloseable {
+
+	/**
+	 * A bounded thread pool. Other than most {@link Executor}s, {@link #execute(Runnable)} blocks while the queue is full instead of rejecting the
+	 * task.
+	 */
+	public static class Stage implements Executor {
+
+		protected final String				name;
+		protected final ThreadPoolExecutor	executor;
+
+		public Stage(String name, int threads, int queueDepth) {
+			this.name = name;
+			AtomicInteger count = new AtomicInteger();
+			executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueDepth), r -> {
+				Thread thread = new Thread(r, "blockmap-" + name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}, (r, e) -> {
+				if (e.isShutdown())
+					throw new RejectedExecutionException("The " + name + " stage has been shut down");
+				try {
+					e.getQueue().put(r);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new RejectedExecutionException(ex);
+				}
+			});
+		}
+
+		@Override
+		public void execute(Runnable command) {
+			executor.execute(command);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getThreads() {
+			return executor.getMaximumPoolSize();
+		}
+
+		/** The number of tasks waiting in the queue of this stage */
+		public int getQueued() {
+			return executor.getQueue().size();
+		}
+
+		/** The maximum number of tasks waiting in the queue of this stage */
+		public int getQueueDepth() {
+			return executor.getQueue().size() + executor.getQueue().remainingCapacity();
+		}
+
+		/** The approximate number of threads of this stage that are currently working */
+		public int getActive() {
+			return executor.getActiveCount();
+		}
+
+		/** The approximate number of tasks this stage has completed */
+		public long getCompleted() {
+			return executor.getCompletedTaskCount();
+		}
+
+		@Override
+		public String toString() {
+			return name + ": " + getActive() + "/" + getThreads() + " active, " + getQueued() + "/" + getQueueDepth() + " queued";
+		}
+	}
+
+	protected final Stage	read, render, write;
+
+	/**
+	 * Create a pipeline with the given number of threads per stage. The queue of each stage holds twice as many tasks as it has threads.
+	 */
+	public RenderPipeline(int readThreads, int renderThreads, int writeThreads) {
+		this(new Stage("read", readThreads, 2 * readThreads), new Stage("render", renderThreads, 2 * renderThreads),
+				new Stage("write", writeThreads, 2 * writeThreads));
+	}
+
+	public RenderPipeline(Stage read, Stage render, Stage write) {
+		this.read = read;
+		this.render = render;
+		this.write = write;
+	}
+
+	public Stage getRead() {
+		return read;
+	}
+
+	public Stage getRender() {
+		return render;
+	}
+
+	public Stage getWrite() {
+		return write;
+	}
+
+	public List<Stage> getStages() {
+		return List.of(read, render, write);
+	}
+
+	/** Stop all stages once the already submitted tasks are done. */
+	@Override
+	public void close() {
+		read.executor.shutdown();
+		render.executor.shutdown();
+		write.executor.shutdown();
+	}
+
+	@Override
+	public String toString() {
+		return read + " | " + render + " | " + write;
+	}
+
+	/**
+	 * Sort the given positions along a Hilbert curve spanning their bounding box. Consecutive regions in this order are next to each other in the
+	 * world, which keeps the caches warm and tends to keep disk accesses close together.
+	 */
+	public static List<Vector2ic> hilbertOrder(Collection<? extends Vector2ic> positions) {
+		List<Vector2ic> ret = new ArrayList<>(positions);
+		if (ret.isEmpty())
+			return ret;
+		int minX = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+		for (Vector2ic pos : ret) {
+			minX = Math.min(minX, pos.x());
+			minZ = Math.min(minZ, pos.y());
+			maxX = Math.max(maxX, pos.x());
+			maxZ = Math.max(maxZ, pos.y());
+		}
+		int size = Integer.highestOneBit(Math.max(Math.max(maxX - minX, maxZ - minZ), 1)) << 1;
+		final int x0 = minX, z0 = minZ;
+		ret.sort(Comparator.comparingLong(pos -> hilbertIndex(size, pos.x() - x0, pos.y() - z0)));
+		return ret;
+	}
+
+	/**
+	 * Map a position to its index along a Hilbert curve that fills a square of the given size.
+	 *
+	 * @param size
+	 *            the size of the square, must be a power of two
+	 */
+	static long hilbertIndex(int size, int x, int y) {
+		long index = 0;
+		for (int s = size / 2; s > 0; s /= 2) {
+			int rx = (x & s) > 0 ? 1 : 0;
+			int ry = (y & s) > 0 ? 1 : 0;
+			index += (long) s * s * ((3 * rx) ^ ry);
+			/* Rotate the quadrant so that the curve continues correctly */
+			if (ry == 0) {
+				if (rx == 1) {
+					x = size - 1 - x;
+					y = size - 1 - y;
+				}
+				int t = x;
+				x = y;
+				y = t;
+			}
+		}
+		return index;
+	}
+}
@@ -0,0 +1,448 @@
+package de.piegames.blockmap.world;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * A rendered world in a single file, instead of thousands of images next to a save file. Each distinct image is only stored once, which saves a
+ * lot of space on empty or all-ocean regions. The file can be memory-mapped locally, or read remotely using HTTP range requests.
+ * <p>
+ * The file has the following layout, with all numbers in big endian:
+ * <ul>
+ * <li>A header of 32 bytes: the magic number {@code BMTA}, the version (currently 1), the offset and length of the index, and the offset and
+ * number of entries of the tile table.</li>
+ * <li>The tiles: the PNG images and the compressed chunk metadata of the regions, one after another.</li>
+ * <li>The index: the gzip compressed save file in the same format as accepted by
+ * {@link RegionFolder.SavedRegionFolder#parseSaved(com.google.gson.JsonElement)}, with the {@code image} and {@code metadataFile} of each
+ * region being the hashes of its tiles.</li>
+ * <li>The tile table: the SHA-256 hash of each tile (32 bytes), followed by its offset (8 bytes) and length (4 bytes).</li>
+ * </ul>
+ * New tiles, index and tile table are only ever appended to the file. The header gets updated to point to the new index last. Thus, readers that
+ * opened the archive earlier can still read it while it is being written to, and a failed write will leave the previous version intact. Once
+ * outdated indices and tiles take up more than {@link Writer#COMPACT_THRESHOLD} of the file, it gets rewritten to a new file with only the
+ * referenced tiles, which then replaces the old one.
+ *
+ * @see Writer
+ * @see RegionFolder.ArchiveRegionFolder
+ */
+public abstract class TileArchive {
+
+	private static Log					log			= LogFactory.getLog(TileArchive.class);
+
+	/** The usual file extension of tile archives */
+	public static final String			EXTENSION	= ".bmtiles";
+
+	static final int					MAGIC		= 0x424D5441;
+	static final int					VERSION		= 1;
+	static final int					HEADER_SIZE	= 32;
+	/** The size of an entry in the tile table */
+	static final int					ENTRY_SIZE	= 32 + 8 + 4;
+
+	/** The compressed index */
+	protected byte[]					index;
+	/** The location of each tile by its hash, as {@code [offset, length]} */
+	protected final Map<String, long[]>	tiles		= new HashMap<>();
+
+	/** Read the given range of the file */
+	protected abstract ByteBuffer read(long offset, int length) throws IOException;
+
+	/** The location of the archive, for the use in messages and as base for the URIs of its regions */
+	public abstract URI getURI();
+
+	/** Read the header, index and tile table. */
+	protected void load() throws IOException {
+		ByteBuffer header = read(0, HEADER_SIZE);
+		if (header.getInt(0) != MAGIC)
+			throw new IOException(getURI() + " is not a tile archive");
+		if (header.getInt(4) != VERSION)
+			throw new IOException("Unsupported version " + header.getInt(4) + " of tile archive " + getURI());
+		long indexOffset = header.getLong(8);
+		int indexLength = header.getInt(16);
+		long tableOffset = header.getLong(20);
+		int tableSize = header.getInt(28);
+
+		ByteBuffer indexData = read(indexOffset, indexLength);
+		index = new byte[indexLength];
+		indexData.get(index);
+		ByteBuffer table = read(tableOffset, tableSize * ENTRY_SIZE);
+		byte[] hash = new byte[32];
+		for (int i = 0; i < tableSize; i++) {
+			table.get(hash);
+			tiles.put(toHex(hash), new long[] { table.getLong(), table.getInt() });
+		}
+	}
+
+	/** Get the uncompressed index. It is a save file like it is accepted by {@link RegionFolder.SavedRegionFolder#parseSaved(com.google.gson.JsonElement)}. */
+	public InputStream getIndex() throws IOException {
+		return new GZIPInputStream(new ByteArrayInputStream(index));
+	}
+
+	/**
+	 * Get the image data of a tile.
+	 *
+	 * @param hash
+	 *            the hash of the tile, as referenced in the index
+	 * @throws IOException
+	 *             if the archive does not contain such a tile or it could not be read
+	 */
+	public byte[] getTile(String hash) throws IOException {
+		long[] location = tiles.get(hash);
+		if (location == null)
+			throw new IOException("Tile " + hash + " is missing in " + getURI());
+		ByteBuffer buffer = read(location[0], (int) location[1]);
+		byte[] data = new byte[buffer.remaining()];
+		buffer.get(data);
+		return data;
+	}
+
+	/**
+	 * Open a local archive and memory-map it. The file does not need to be kept open afterwards.
+	 */
+	public static TileArchive open(Path file) throws IOException {
+		TileArchive archive = new LocalArchive(file);
+		archive.load();
+		return archive;
+	}
+
+	/**
+	 * Get the current version of this archive, to see the worlds that have been added since opening it. Local archives are only opened again if
+	 * their size or modification time changed. Otherwise, this instance is returned.
+	 */
+	public TileArchive reopen() throws IOException {
+		return open(getURI());
+	}
+
+	/**
+	 * Open an archive from an URI. Archives on HTTP servers are read using range requests, so the server must support them. Other URIs must be
+	 * local files.
+	 */
+	public static TileArchive open(URI uri) throws IOException {
+		if ("http".equalsIgnoreCase(uri.getScheme()) || "https".equalsIgnoreCase(uri.getScheme())) {
+			TileArchive archive = new RemoteArchive(uri);
+			archive.load();
+			return archive;
+		}
+		return open(Paths.get(uri));
+	}
+
+	private static class LocalArchive extends TileArchive {
+
+		protected final Path		file;
+		/** The size of the file while opening it */
+		protected final long		size;
+		/** The modification time of the file while opening it, to notice when it has been compacted to the same size */
+		protected final FileTime	modified;
+		/** The whole file, if it is small enough to be mapped at once */
+		protected final ByteBuffer	mapped;
+
+		LocalArchive(Path file) throws IOException {
+			this.file = file;
+			modified = Files.getLastModifiedTime(file);
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				size = channel.size();
+				/* A mapping stays valid after closing the channel */
+				mapped = size <= Integer.MAX_VALUE ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : null;
+			}
+		}
+
+		@Override
+		public TileArchive reopen() throws IOException {
+			/* Mappings can't be released explicitly, so don't create a new one unless needed */
+			return Files.size(file) == size && Files.getLastModifiedTime(file).equals(modified) ? this : open(file);
+		}
+
+		@Override
+		protected ByteBuffer read(long offset, int length) throws IOException {
+			if (mapped != null) {
+				if (offset < 0 || length < 0 || offset + length > mapped.capacity())
+					throw new EOFException("Invalid range in " + file);
+				return mapped.duplicate().position((int) offset).limit((int) offset + length).slice();
+			}
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				while (buffer.hasRemaining())
+					if (channel.read(buffer, offset + buffer.position()) < 0)
+						throw new EOFException("Invalid range in " + file);
+			}
+			return buffer.flip();
+		}
+
+		@Override
+		public URI getURI() {
+			return file.toUri();
+		}
+	}
+
+	private static class RemoteArchive extends TileArchive {
+
+		private static final HttpClient	client	= HttpClient.newBuilder()
+				.followRedirects(HttpClient.Redirect.NORMAL)
+				.connectTimeout(Duration.ofSeconds(30))
+				.build();
+
+		protected final URI				uri;
+
+		RemoteArchive(URI uri) {
+			this.uri = uri;
+		}
+
+		@Override
+		protected ByteBuffer read(long offset, int length) throws IOException {
+			if (length == 0)
+				return ByteBuffer.allocate(0);
+			HttpRequest request = HttpRequest.newBuilder(uri)
+					.header("Range", "bytes=" + offset + "-" + (offset + length - 1))
+					.timeout(Duration.ofSeconds(30))
+					.build();
+			HttpResponse<byte[]> response;
+			try {
+				response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while reading " + uri);
+			}
+			if (response.statusCode() != 206)
+				throw new IOException("Could not read " + uri + ", the server returned status " + response.statusCode()
+						+ (response.statusCode() == 200 ? " (no support for range requests)" : ""));
+			if (response.body().length != length)
+				throw new EOFException("Invalid range in " + uri);
+			return ByteBuffer.wrap(response.body());
+		}
+
+		@Override
+		public URI getURI() {
+			return uri;
+		}
+	}
+
+	/**
+	 * Add tiles and worlds to an archive. Tiles that are already in it will not be stored again. Nothing will be visible to readers until
+	 * {@link #commit()} is called.
+	 */
+	public static class Writer implements Closeable {
+
+		/** Compact the archive once more than this fraction of the file is not referenced by the current index anymore */
+		public static final double				COMPACT_THRESHOLD	= 0.5;
+
+		protected final Path					file;
+		/** Replaced when the archive gets compacted */
+		protected FileChannel					channel;
+		protected final Map<String, long[]>		tiles				= new LinkedHashMap<>();
+		protected final Map<String, JsonObject>	worlds;
+
+		/** Open an archive for writing, or create it if it doesn't exist yet. The existing tiles and worlds will be kept. */
+		public Writer(Path file) throws IOException {
+			this.file = file;
+			if (Files.exists(file) && Files.size(file) > 0) {
+				TileArchive existing = open(file);
+				tiles.putAll(existing.tiles);
+				try (InputStream index = existing.getIndex()) {
+					worlds = RegionFolder.SavedRegionFolder.parseSaved(new JsonParser().parse(new InputStreamReader(index, StandardCharsets.UTF_8)));
+				}
+			} else {
+				worlds = new LinkedHashMap<>();
+			}
+			channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			if (channel.size() < HEADER_SIZE) {
+				/* Reserve the space for the header and make it point to an empty index, so that the file is valid even if nothing gets committed */
+				writeFully(channel, ByteBuffer.allocate(HEADER_SIZE), 0);
+				commit();
+			}
+		}
+
+		/**
+		 * Append a tile to the archive, unless there already is an identical one.
+		 *
+		 * @return the hash of the tile, to reference it in the index
+		 */
+		public synchronized String putTile(byte[] data) throws IOException {
+			String hash = toHex(sha256(data));
+			if (!tiles.containsKey(hash)) {
+				long offset = channel.size();
+				writeFully(channel, ByteBuffer.wrap(data), offset);
+				tiles.put(hash, new long[] { offset, data.length });
+			}
+			return hash;
+		}
+
+		/**
+		 * Add a world to the index, replacing any world with the same name.
+		 *
+		 * @param world
+		 *            the world in the format of a save file, with the tile hashes as images
+		 */
+		public synchronized void putWorld(JsonObject world) {
+			worlds.put(world.getAsJsonPrimitive("name").getAsString(), world);
+		}
+
+		/**
+		 * Write the index and the tile table to the end of the file, and update the header to point to them. If too much of the file is taken by
+		 * tiles and indices that are not referenced anymore afterwards, it will be {@linkplain #compact(byte[], Map) compacted}.
+		 */
+		public synchronized void commit() throws IOException {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			JsonArray array = new JsonArray();
+			worlds.values().forEach(array::add);
+			try (OutputStreamWriter writer = new OutputStreamWriter(new GZIPOutputStream(compressed), StandardCharsets.UTF_8)) {
+				/* The pretty printing of the default instance would only waste space */
+				writer.write(array.toString());
+			}
+			byte[] index = compressed.toByteArray();
+			writeIndex(channel, index, channel.size(), tiles);
+
+			Map<String, long[]> live = new LinkedHashMap<>();
+			for (JsonObject world : worlds.values()) {
+				if (!world.has("regions"))
+					continue;
+				for (JsonElement region : world.getAsJsonArray("regions"))
+					for (String key : new String[] { "image", "metadataFile" }) {
+						JsonElement hash = region.getAsJsonObject().get(key);
+						if (hash != null && tiles.containsKey(hash.getAsString()))
+							live.put(hash.getAsString(), tiles.get(hash.getAsString()));
+					}
+			}
+			long liveSize = HEADER_SIZE + index.length + (long) live.size() * ENTRY_SIZE + live.values().stream().mapToLong(l -> l[1]).sum();
+			long size = channel.size();
+			if (size - liveSize > size * COMPACT_THRESHOLD) {
+				try {
+					compact(index, live);
+				} catch (IOException e) {
+					/* The appended index is valid, so this is not fatal */
+					log.warn("Could not compact " + file, e);
+				}
+			}
+		}
+
+		/**
+		 * Copy the given tiles and the index to a new file and replace the archive with it. Readers that still have the old file open can continue
+		 * reading it.
+		 */
+		protected void compact(byte[] index, Map<String, long[]> live) throws IOException {
+			log.debug("Compacting " + file);
+			Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+			Map<String, long[]> moved = new LinkedHashMap<>();
+			try {
+				try (FileChannel target = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+					long offset = HEADER_SIZE;
+					for (Map.Entry<String, long[]> tile : live.entrySet()) {
+						long[] location = tile.getValue();
+						for (long done = 0; done < location[1];)
+							done += channel.transferTo(location[0] + done, location[1] - done, target.position(offset + done));
+						moved.put(tile.getKey(), new long[] { offset, location[1] });
+						offset += location[1];
+					}
+					writeIndex(target, index, offset, moved);
+				}
+				channel.close();
+				try {
+					try {
+						Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					} catch (AtomicMoveNotSupportedException e) {
+						Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+					}
+					tiles.clear();
+					tiles.putAll(moved);
+				} finally {
+					channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				}
+			} finally {
+				Files.deleteIfExists(temp);
+			}
+		}
+
+		/** Write the index and tile table at the given offset, and then the header pointing to them. */
+		private static void writeIndex(FileChannel channel, byte[] index, long indexOffset, Map<String, long[]> tiles) throws IOException {
+			writeFully(channel, ByteBuffer.wrap(index), indexOffset);
+
+			ByteBuffer table = ByteBuffer.allocate(tiles.size() * ENTRY_SIZE);
+			for (Map.Entry<String, long[]> tile : tiles.entrySet()) {
+				table.put(fromHex(tile.getKey()));
+				table.putLong(tile.getValue()[0]);
+				table.putInt((int) tile.getValue()[1]);
+			}
+			long tableOffset = indexOffset + index.length;
+			writeFully(channel, table.flip(), tableOffset);
+			/* Everything the header points to must be on the disk before the header itself */
+			channel.force(false);
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putLong(indexOffset);
+			header.putInt(index.length);
+			header.putLong(tableOffset);
+			header.putInt(tiles.size());
+			writeFully(channel, header.flip(), 0);
+			channel.force(false);
+		}
+
+		private static void writeFully(FileChannel channel, ByteBuffer data, long position) throws IOException {
+			while (data.hasRemaining())
+				position += channel.write(data, position);
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	static byte[] sha256(byte[] data) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new InternalError("SHA-256 is required to be supported", e);
+		}
+	}
+
+	static String toHex(byte[] data) {
+		StringBuilder hex = new StringBuilder(data.length * 2);
+		for (byte b : data)
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return hex.toString();
+	}
+
+	static byte[] fromHex(String hex) {
+		byte[] data = new byte[hex.length() / 2];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		return data;
+	}
+}
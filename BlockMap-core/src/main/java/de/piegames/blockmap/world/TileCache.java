@@ -0,0 +1,162 @@
+package de.piegames.blockmap.world;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+/**
+ * A size-bounded cache of decoded region images, by their URI. Decoding an image takes a lot longer than reading it, so this keeps the pixels of
+ * images that have been loaded recently, no matter which {@link RegionFolder.SavedRegionFolder} they have been loaded through. Reopening a
+ * saved world or stitching together the images that have just been rendered won't decode them again.
+ * <p>
+ * Each entry has a version, which must be given when looking it up. If the image may change, use something like the modification time of its
+ * file or the {@link #version(byte[]) checksum} of its data, so that outdated pixels won't be returned. The least recently used images are
+ * removed once the cache is full.
+ * <p>
+ * The cached pixels are shared, so they must not be modified. This class is thread safe. If the same image is requested twice at once, it may
+ * be decoded twice.
+ */
+public class TileCache {
+
+	/** Loads the pixels of an image if it is not in the cache */
+	@FunctionalInterface
+	public static interface Loader {
+		public int[] load() throws IOException;
+	}
+
+	/** The maximum size of the {@link #getShared() shared cache}, unless that would be more than an eighth of the available memory */
+	public static final long			DEFAULT_SIZE	= 128L << 20;
+
+	private static final TileCache		shared			= new TileCache(Math.min(DEFAULT_SIZE, Runtime.getRuntime().maxMemory() / 8));
+
+	private static class Entry {
+		final long	version;
+		final int[]	pixels;
+
+		Entry(long version, int[] pixels) {
+			this.version = version;
+			this.pixels = pixels;
+		}
+	}
+
+	protected final long				maxSize;
+	/** In access order, so that the first entry is the least recently used one */
+	private final Map<URI, Entry>		entries			= new LinkedHashMap<>(64, 0.75f, true);
+	private long						size;
+	private long						hits, misses, evictions;
+
+	/**
+	 * @param maxSize
+	 *            the maximum number of bytes of all cached pixels. Each image takes one MiB.
+	 */
+	public TileCache(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/** The cache used by all saved regions */
+	public static TileCache getShared() {
+		return shared;
+	}
+
+	/** A version of the image with the given data that changes whenever the data does */
+	public static long version(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return (long) data.length << 32 | crc.getValue();
+	}
+
+	/**
+	 * Get the pixels of an image, loading them if they are not in the cache or if the cached ones have a different version.
+	 *
+	 * @param uri
+	 *            where the image has been loaded from
+	 * @param version
+	 *            the current version of the image
+	 * @param loader
+	 *            loads and decodes the image. The pixels will be added to the cache.
+	 */
+	public int[] get(URI uri, long version, Loader loader) throws IOException {
+		int[] pixels = get(uri, version);
+		if (pixels == null) {
+			pixels = loader.load();
+			put(uri, version, pixels);
+		}
+		return pixels;
+	}
+
+	/** Get the pixels of an image if they are in the cache with the given version, {@code null} otherwise */
+	public synchronized int[] get(URI uri, long version) {
+		Entry entry = entries.get(uri);
+		if (entry != null && entry.version == version) {
+			hits++;
+			return entry.pixels;
+		}
+		misses++;
+		return null;
+	}
+
+	/**
+	 * Add the pixels of an image, for example because it has just been written. They replace any other version of it.
+	 *
+	 * @param pixels
+	 *            the decoded image, as returned by {@link Region#getPixels()}. It must not be modified afterwards.
+	 */
+	public synchronized void put(URI uri, long version, int[] pixels) {
+		Entry previous = entries.put(Objects.requireNonNull(uri), new Entry(version, Objects.requireNonNull(pixels)));
+		if (previous != null)
+			size -= 4L * previous.pixels.length;
+		size += 4L * pixels.length;
+		for (Iterator<Entry> it = entries.values().iterator(); size > maxSize && it.hasNext();) {
+			size -= 4L * it.next().pixels.length;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/** Remove the image at the given URI from the cache */
+	public synchronized void invalidate(URI uri) {
+		Entry entry = entries.remove(uri);
+		if (entry != null)
+			size -= 4L * entry.pixels.length;
+	}
+
+	/** Remove all images from the cache. This does not reset the statistics. */
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	/** The number of lookups that returned a cached image */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/** The number of lookups that did not find the image or only found an outdated version of it */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/** The number of images that have been removed to make room for new ones */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/** The number of bytes taken by the cached pixels */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("TileCache [%d images, %d of %d MiB, %d hits, %d misses, %d evictions]", entries.size(), size >> 20, maxSize >> 20, hits,
+				misses, evictions);
+	}
+}
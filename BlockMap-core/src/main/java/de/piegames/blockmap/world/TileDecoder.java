@@ -0,0 +1,177 @@
+package de.piegames.blockmap.world;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Decode the images of rendered regions into packed ARGB pixels, like {@link Region#getPixels()} returns them. The images written by BlockMap are
+ * always non-interlaced 512×512 PNGs with eight bits per channel, which are decoded directly into the pixel array here, reusing the buffers of
+ * the decoder on each thread. This is a lot faster than going through {@link ImageIO} and converting the result. Other images are still decoded
+ * using {@link ImageIO}.
+ */
+public class TileDecoder {
+
+	private static final byte[]						SIGNATURE	= { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+	private static final int						IHDR		= 0x49484452, IDAT = 0x49444154, IEND = 0x49454E44;
+	/** The PNG color types with and without alpha channel */
+	private static final int						RGB			= 2, RGBA = 6;
+
+	private static final ThreadLocal<TileDecoder>	decoders	= ThreadLocal.withInitial(TileDecoder::new);
+
+	private final Inflater							inflater	= new Inflater();
+	/** The current and the previous scanline, each starting with the filter type */
+	private byte[]									line		= new byte[512 * 4 + 1], previous = new byte[512 * 4 + 1];
+	private ByteBuffer								data;
+
+	private TileDecoder() {
+	}
+
+	/**
+	 * Decode an image of a region.
+	 *
+	 * @return the 512*512 pixels of the image, as packed ARGB values in XZ order
+	 * @throws IOException
+	 *             if the data is not a valid image or if the image is not 512×512 pixels large
+	 */
+	public static int[] decode(byte[] image) throws IOException {
+		int[] pixels = decoders.get().decodePng(image);
+		if (pixels != null)
+			return pixels;
+		BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(image));
+		if (decoded == null)
+			throw new IOException("Not a valid image");
+		if (decoded.getWidth() != 512 || decoded.getHeight() != 512)
+			throw new IOException("Images of regions must be 512×512 pixels, not " + decoded.getWidth() + "×" + decoded.getHeight());
+		return Region.unwrapPixels(decoded);
+	}
+
+	/** Returns {@code null} if the image is not a PNG or not in the format written by BlockMap */
+	private int[] decodePng(byte[] image) throws IOException {
+		data = ByteBuffer.wrap(image);
+		try {
+			for (byte b : SIGNATURE)
+				if (data.get() != b)
+					return null;
+			int length = data.getInt();
+			if (data.getInt() != IHDR || length != 13)
+				return null;
+			int width = data.getInt(), height = data.getInt();
+			int bitDepth = data.get(), colorType = data.get(), compression = data.get(), filter = data.get(), interlace = data.get();
+			if (width != 512 || height != 512 || bitDepth != 8 || (colorType != RGB && colorType != RGBA) || compression != 0 || filter != 0
+					|| interlace != 0)
+				return null;
+			/* Skip the CRC */
+			data.getInt();
+
+			int bytesPerPixel = colorType == RGBA ? 4 : 3;
+			int lineLength = 512 * bytesPerPixel;
+			int[] pixels = new int[512 * 512];
+			inflater.reset();
+			Arrays.fill(previous, (byte) 0);
+			for (int z = 0; z < 512; z++) {
+				inflate(line, lineLength + 1);
+				unfilter(line, previous, bytesPerPixel, lineLength);
+				int offset = z * 512;
+				if (colorType == RGBA)
+					for (int x = 0, i = 1; x < 512; x++, i += 4)
+						pixels[offset + x] = (line[i + 3] & 0xFF) << 24 | (line[i] & 0xFF) << 16 | (line[i + 1] & 0xFF) << 8 | (line[i + 2] & 0xFF);
+				else
+					for (int x = 0, i = 1; x < 512; x++, i += 3)
+						pixels[offset + x] = 0xFF000000 | (line[i] & 0xFF) << 16 | (line[i + 1] & 0xFF) << 8 | (line[i + 2] & 0xFF);
+				byte[] swap = previous;
+				previous = line;
+				line = swap;
+			}
+			return pixels;
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+			throw new IOException("Truncated image", e);
+		} catch (DataFormatException e) {
+			throw new IOException("Invalid image data", e);
+		} finally {
+			data = null;
+		}
+	}
+
+	/** Inflate exactly {@code length} bytes of image data into the buffer, moving on to the next IDAT chunk when needed */
+	private void inflate(byte[] buffer, int length) throws IOException, DataFormatException {
+		int offset = 0;
+		while (offset < length) {
+			int read = inflater.inflate(buffer, offset, length - offset);
+			if (read == 0) {
+				if (inflater.finished() || inflater.needsDictionary())
+					throw new IOException("Not enough image data");
+				if (inflater.needsInput())
+					nextData();
+			}
+			offset += read;
+		}
+	}
+
+	/** Skip to the next IDAT chunk and pass its content to the inflater */
+	private void nextData() throws IOException {
+		while (true) {
+			int length = data.getInt();
+			int type = data.getInt();
+			if (type == IEND)
+				throw new IOException("Not enough image data");
+			if (type == IDAT) {
+				inflater.setInput(data.array(), data.position(), length);
+				/* Skip the data and the CRC */
+				data.position(data.position() + length + 4);
+				return;
+			}
+			data.position(data.position() + length + 4);
+		}
+	}
+
+	/** Reverse the filter of a scanline. Both arrays start with the filter type, followed by the bytes of the line. */
+	private static void unfilter(byte[] line, byte[] previous, int bytesPerPixel, int length) throws IOException {
+		switch (line[0]) {
+		case 0:
+			break;
+		case 1:
+			for (int i = 1 + bytesPerPixel; i <= length; i++)
+				line[i] += line[i - bytesPerPixel];
+			break;
+		case 2:
+			for (int i = 1; i <= length; i++)
+				line[i] += previous[i];
+			break;
+		case 3:
+			for (int i = 1; i <= length; i++) {
+				int left = i > bytesPerPixel ? line[i - bytesPerPixel] & 0xFF : 0;
+				line[i] += (left + (previous[i] & 0xFF)) >>> 1;
+			}
+			break;
+		case 4:
+			for (int i = 1; i <= length; i++) {
+				int left = i > bytesPerPixel ? line[i - bytesPerPixel] & 0xFF : 0;
+				int up = previous[i] & 0xFF;
+				int upLeft = i > bytesPerPixel ? previous[i - bytesPerPixel] & 0xFF : 0;
+				line[i] += paeth(left, up, upLeft);
+			}
+			break;
+		default:
+			throw new IOException("Invalid filter type " + line[0]);
+		}
+	}
+
+	private static int paeth(int a, int b, int c) {
+		int p = a + b - c;
+		int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc)
+			return a;
+		else if (pb <= pc)
+			return b;
+		else
+			return c;
+	}
+}
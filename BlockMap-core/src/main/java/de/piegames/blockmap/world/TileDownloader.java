@@ -0,0 +1,407 @@
+package de.piegames.blockmap.world;
+
+import java.awt.image.BufferedImage;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Download the images of a {@link RegionFolder.RemoteRegionFolder} over HTTP. All downloads share one {@link HttpClient}, so connections to the
+ * server are kept open and reused. At most a fixed number of requests run at the same time, everything else is queued. Requesting an image that
+ * is already being downloaded won't download it twice.
+ * <p>
+ * The downloaded images may be kept in a folder on the disk, together with their {@code ETag}. Once they are needed again, the server is asked
+ * if they are still up to date, so that unchanged images don't have to be downloaded again. Servers that don't send an {@code ETag} are asked
+ * using the {@code Last-Modified} date instead. If there is neither, there is no way to tell if an image changed without downloading it, so it
+ * is downloaded again each time and the cache only gets rewritten if its hash changed. If the server can't be reached, the cached images are
+ * used anyway. Images that have been checked recently are taken from the cache without asking the server at all.
+ * <p>
+ * URIs that are not {@code http} or {@code https} are simply opened using {@link java.net.URL#openStream()}, without caching.
+ */
+public class TileDownloader implements AutoCloseable {
+
+	private static Log									log					= LogFactory.getLog(TileDownloader.class);
+
+	/** The number of requests that may run at the same time if nothing else is specified */
+	public static final int								DEFAULT_REQUESTS	= 8;
+	/** How long cached images are used without asking the server again if nothing else is specified */
+	public static final Duration						DEFAULT_FRESHNESS	= Duration.ofMinutes(1);
+	/**
+	 * The default location for the cache on the disk. It is in the usual folder for caches of the current operating system. Like
+	 * {@link de.piegames.blockmap.DotMinecraft#DOTMINECRAFT}, it may not exist yet.
+	 */
+	public static final Path							DEFAULT_CACHE_FOLDER;
+
+	static {
+		Path cache = null;
+		String OS = System.getProperty("os.name").toUpperCase();
+		if (OS.contains("WIN") && System.getenv("LOCALAPPDATA") != null) {
+			cache = Paths.get(System.getenv("LOCALAPPDATA"), "BlockMap", "cache");
+		} else if (OS.contains("MAC")) {
+			cache = Paths.get(System.getProperty("user.home"), "Library", "Caches", "BlockMap");
+		} else if (System.getenv("XDG_CACHE_HOME") != null) {
+			cache = Paths.get(System.getenv("XDG_CACHE_HOME"), "blockmap");
+		} else {
+			cache = Paths.get(System.getProperty("user.home"), ".cache", "blockmap");
+		}
+		DEFAULT_CACHE_FOLDER = cache.resolve("tiles");
+	}
+
+	private static final Duration						TIMEOUT				= Duration.ofSeconds(30);
+
+	/** The response headers that may be used to check if a cached image is still up to date, in order of preference */
+	private static final String							ETAG				= "ETag", LAST_MODIFIED = "Last-Modified";
+	/** Used instead of a header if the server sent neither, to only compare the content once it got downloaded again */
+	private static final String							CONTENT_HASH		= "SHA-256";
+
+	/** Only created once it is needed, since it comes with its own threads */
+	private static class Shared {
+		static final TileDownloader shared = new TileDownloader(DEFAULT_REQUESTS);
+	}
+
+	protected final HttpClient							client;
+	protected final ExecutorService						executor;
+	protected final Path								cacheFolder;
+	protected final long								maxCacheSize;
+	protected final long								freshness;
+
+	/** The downloads that are currently running or queued */
+	protected final Map<URI, CompletableFuture<byte[]>>	pending				= new ConcurrentHashMap<>();
+	/** When each cached image has been checked with the server the last time, in {@link System#nanoTime()} */
+	protected final Map<URI, Long>						validated			= new ConcurrentHashMap<>();
+	protected final AtomicLong							cacheSize			= new AtomicLong();
+
+	/** Download without caching anything on the disk */
+	public TileDownloader(int maxRequests) {
+		this(null, 0, maxRequests, Duration.ZERO);
+	}
+
+	/**
+	 * @param cacheFolder
+	 *            where to keep the downloaded images. It will be created if needed. If {@code null}, nothing will be cached.
+	 * @param maxCacheSize
+	 *            once the cache grows larger than this many bytes, the images that haven't been used for the longest time will be deleted
+	 * @param maxRequests
+	 *            how many requests may run at the same time
+	 * @param freshness
+	 *            how long to use an image from the cache after checking it with the server, without checking it again
+	 */
+	public TileDownloader(Path cacheFolder, long maxCacheSize, int maxRequests, Duration freshness) {
+		this.cacheFolder = cacheFolder;
+		this.maxCacheSize = maxCacheSize;
+		this.freshness = freshness.toNanos();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(maxRequests, maxRequests, 20, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+			Thread thread = new Thread(r, "Tile download");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.allowCoreThreadTimeOut(true);
+		this.executor = executor;
+		client = HttpClient.newBuilder()
+				.followRedirects(HttpClient.Redirect.NORMAL)
+				.connectTimeout(TIMEOUT)
+				.build();
+		if (cacheFolder != null)
+			try (Stream<Path> files = Files.list(cacheFolder)) {
+				cacheSize.set(files.mapToLong(TileDownloader::size).sum());
+			} catch (IOException e) {
+				/* The folder will be created on the first download */
+			}
+	}
+
+	/**
+	 * A downloader without a cache on the disk, for everything that does not bring its own. Closing it has no effect, since it may be used by any
+	 * number of folders.
+	 */
+	public static TileDownloader getShared() {
+		return Shared.shared;
+	}
+
+	/**
+	 * Get the content of the given URI, either from the cache or by downloading it. If too many requests are running already, it will be queued.
+	 *
+	 * @return a future that completes with the content, or exceptionally with an {@link IOException} as cause if it could not be retrieved
+	 */
+	public CompletableFuture<byte[]> fetch(URI uri) {
+		CompletableFuture<byte[]> future = new CompletableFuture<>();
+		CompletableFuture<byte[]> existing = pending.putIfAbsent(uri, future);
+		if (existing != null)
+			return existing;
+		try {
+			executor.execute(() -> {
+				/* Remove it before completing, so that requesting it again afterwards won't return the old result */
+				try {
+					byte[] data = isHttp(uri) ? download(uri) : read(uri);
+					pending.remove(uri, future);
+					future.complete(data);
+				} catch (IOException | RuntimeException e) {
+					pending.remove(uri, future);
+					future.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			pending.remove(uri, future);
+			future.completeExceptionally(new IOException("The downloader has been closed", e));
+		}
+		return future;
+	}
+
+	/**
+	 * Like {@link #fetch(URI)}, but only if the content is not in the cache or has to be checked with the server again. Use it to get images
+	 * ahead that will likely be needed soon. Without a cache on the disk, this does nothing since the result would be lost.
+	 */
+	public void prefetch(URI uri) {
+		if (cacheFolder == null || !isHttp(uri) || isFresh(uri))
+			return;
+		fetch(uri);
+	}
+
+	/** Get the image at the given URI, waiting until it has been downloaded. */
+	public BufferedImage getImage(URI uri) throws IOException {
+		return decode(uri, join(fetch(uri)));
+	}
+
+	/**
+	 * Forget that the image at the given URI has been checked with the server, for example because it is known to have changed. It will be
+	 * checked again the next time it is requested.
+	 */
+	public void invalidate(URI uri) {
+		validated.remove(uri);
+	}
+
+	/** Stop all downloads. Requests that are still queued will not complete. This does nothing on the {@link #getShared() shared downloader}. */
+	@Override
+	public void close() {
+		if (this == Shared.shared)
+			return;
+		executor.shutdownNow();
+	}
+
+	private byte[] download(URI uri) throws IOException {
+		Path file = cacheFolder == null ? null : cacheFolder.resolve(key(uri));
+		CachedTile cached = file == null ? null : readCache(file);
+		if (cached != null && isFresh(uri))
+			return cached.data;
+
+		HttpRequest.Builder request = HttpRequest.newBuilder(uri).timeout(TIMEOUT);
+		if (cached != null && cached.header.equals(ETAG))
+			request.header("If-None-Match", cached.value);
+		else if (cached != null && cached.header.equals(LAST_MODIFIED))
+			request.header("If-Modified-Since", cached.value);
+		HttpResponse<byte[]> response;
+		try {
+			response = send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+		} catch (InterruptedIOException e) {
+			throw e;
+		} catch (IOException e) {
+			if (cached == null)
+				throw e;
+			log.warn("Could not check " + uri + " with the server, using the cached image (" + e + ")");
+			return cached.data;
+		}
+
+		if (response.statusCode() == 304 && cached != null) {
+			validated.put(uri, System.nanoTime());
+			return cached.data;
+		} else if (response.statusCode() == 200) {
+			CachedTile downloaded = validator(response);
+			/* Images without a version are downloaded every time, but most of them won't have changed */
+			if (file != null && (cached == null || !cached.header.equals(downloaded.header) || !cached.value.equals(downloaded.value)))
+				writeCache(file, downloaded);
+			validated.put(uri, System.nanoTime());
+			return response.body();
+		} else {
+			throw new IOException("Could not download " + uri + ", the server returned status " + response.statusCode());
+		}
+	}
+
+	private <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> body) throws IOException {
+		try {
+			return client.send(request, body);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while downloading " + request.uri());
+		}
+	}
+
+	/** The header to check the downloaded image with the server next time. If there is none, the hash of the image is used. */
+	private static CachedTile validator(HttpResponse<byte[]> response) {
+		for (String header : new String[] { ETAG, LAST_MODIFIED }) {
+			String value = response.headers().firstValue(header).orElse(null);
+			if (value != null)
+				return new CachedTile(header, value, response.body());
+		}
+		return new CachedTile(CONTENT_HASH, TileArchive.toHex(TileArchive.sha256(response.body())), response.body());
+	}
+
+	private static byte[] read(URI uri) throws IOException {
+		try (InputStream in = uri.toURL().openStream()) {
+			return in.readAllBytes();
+		}
+	}
+
+	private boolean isFresh(URI uri) {
+		Long time = validated.get(uri);
+		return time != null && System.nanoTime() - time < freshness;
+	}
+
+	/** A downloaded image together with its version */
+	private static class CachedTile {
+		/** The name of the response header the version has been taken from */
+		final String	header;
+		final String	value;
+		final byte[]	data;
+
+		CachedTile(String header, String value, byte[] data) {
+			this.header = header;
+			this.value = value;
+			this.data = data;
+		}
+	}
+
+	/** Read a cached image, or return {@code null} if it has not been cached or the cached file is not valid */
+	private CachedTile readCache(Path file) {
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+			CachedTile cached = new CachedTile(in.readUTF(), in.readUTF(), in.readAllBytes());
+			/* Keep track of which images are used, to delete the oldest ones first */
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+			return cached;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Write an image to the cache. The version is stored in the same file, so that both can be replaced at once. Failing to write it is not
+	 * fatal, it will only be downloaded again next time.
+	 */
+	private void writeCache(Path file, CachedTile tile) {
+		try {
+			Files.createDirectories(cacheFolder);
+			long oldSize = size(file);
+			Path tmp = Files.createTempFile(cacheFolder, file.getFileName().toString(), ".tmp");
+			try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmp))) {
+				out.writeUTF(tile.header);
+				out.writeUTF(tile.value);
+				out.write(tile.data);
+			}
+			try {
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+			if (cacheSize.addAndGet(size(file) - oldSize) > maxCacheSize)
+				evict();
+		} catch (IOException e) {
+			log.warn("Could not cache " + file, e);
+		}
+	}
+
+	/** Delete the least recently used images until the cache is down to three quarters of its maximum size */
+	private synchronized void evict() {
+		if (cacheSize.get() <= maxCacheSize)
+			return;
+		List<Path> files;
+		try (Stream<Path> list = Files.list(cacheFolder)) {
+			files = list.sorted(Comparator.comparing(TileDownloader::lastModified)).collect(Collectors.toList());
+		} catch (IOException e) {
+			log.warn("Could not clean up the cache", e);
+			return;
+		}
+		for (Path file : files) {
+			if (cacheSize.get() <= maxCacheSize / 4 * 3)
+				break;
+			long size = size(file);
+			try {
+				Files.deleteIfExists(file);
+				cacheSize.addAndGet(-size);
+			} catch (IOException e) {
+				log.debug("Could not delete " + file, e);
+			}
+		}
+	}
+
+	private static long size(Path file) {
+		try {
+			return Files.size(file);
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	private static FileTime lastModified(Path file) {
+		try {
+			return Files.getLastModifiedTime(file);
+		} catch (IOException e) {
+			return FileTime.fromMillis(0);
+		}
+	}
+
+	/** The name of the cache file for an URI */
+	private static String key(URI uri) {
+		try {
+			StringBuilder key = new StringBuilder();
+			for (byte b : MessageDigest.getInstance("SHA-1").digest(uri.toString().getBytes(StandardCharsets.UTF_8)))
+				key.append(String.format("%02x", b));
+			return key.append(".tile").toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new InternalError("SHA-1 is required to be supported", e);
+		}
+	}
+
+	private static boolean isHttp(URI uri) {
+		return "http".equalsIgnoreCase(uri.getScheme()) || "https".equalsIgnoreCase(uri.getScheme());
+	}
+
+	/** Wait for a future and unwrap its exception */
+	static <T> T join(CompletableFuture<T> future) throws IOException {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw e;
+		}
+	}
+
+	static BufferedImage decode(URI uri, byte[] data) throws IOException {
+		try {
+			return Region.wrapPixels(TileDecoder.decode(data));
+		} catch (IOException e) {
+			throw new IOException("Could not decode " + uri, e);
+		}
+	}
+}
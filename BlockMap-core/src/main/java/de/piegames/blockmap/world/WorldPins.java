@@ -378,7 +378,7 @@ public class WorldPins {
 		for (MinecraftDimension dimension : MinecraftDimension.values()) {
 			if (filterDimension != null && dimension != filterDimension)
 				continue;
-			try (NBTInputStream in = new NBTInputStream(Files.newInputStream(worldPath.resolve(dimension.villagePath)), NBTInputStream.GZIP_COMPRESSION)) {
+			try (NBTInputStream in = new NBTInputStream(Files.newInputStream(dimension.resolveVillagePath(worldPath)), NBTInputStream.GZIP_COMPRESSION)) {
 				// TODO check data version
 				CompoundMap villageMap = (CompoundMap) ((CompoundMap) in.readTag().getValue()).get("data").getValue();
 				villageMap.entrySet().forEach(System.out::println);
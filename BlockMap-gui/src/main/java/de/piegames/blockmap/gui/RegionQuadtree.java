@@ -0,0 +1,194 @@
+package de.piegames.blockmap.gui;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.function.LongFunction;
+import java.util.function.Predicate;
+
+import org.joml.AABBd;
+
+/**
+ * A sparse, concurrent quadtree over the tiles of a map that supports multiple levels of detail. Level 0 contains the regions themselves (512 blocks per
+ * tile), positive levels split each tile into four children and negative levels merge four tiles into their parent.
+ * <p>
+ * Nodes are not linked to each other. Instead, every tile is identified by a {@code long} that packs its level and its position (see {@link #key(int, int,
+ * int)}). Moving to the parent or to a child is plain bit arithmetic on that key followed by a lookup in a {@link ConcurrentHashMap}, so the tree may be
+ * navigated and modified from any thread without locking.
+ * <p>
+ * Adding a region only marks its tile and all tiles above it as occupied, the nodes themselves get created lazily by the caller the first time they are
+ * actually needed. They may be {@link #removeIf(Predicate) removed} again at any time to free memory.
+ *
+ * @param <T>
+ *            the type of the nodes
+ */
+public class RegionQuadtree<T> {
+
+	private static final int					COORD_BITS	= 28;
+	private static final long					COORD_MASK	= (1L << COORD_BITS) - 1;
+
+	/** How many levels below level 0 will be tracked. */
+	protected final int							depth;
+	protected final ConcurrentHashMap<Long, T>	nodes		= new ConcurrentHashMap<>();
+	/** The keys of all tiles on a level {@code <= 0} that contain at least one region. */
+	protected final Set<Long>					occupied	= ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param depth
+	 *            the number of levels below zero that will be tracked. Tiles on lower levels will never be occupied.
+	 */
+	public RegionQuadtree(int depth) {
+		this.depth = depth;
+	}
+
+	/**
+	 * Mark a region on level 0 and all its parent tiles as occupied.
+	 */
+	public void add(int x, int z) {
+		long key = key(0, x, z);
+		for (int i = 0; i <= depth; i++)
+			occupied.add(ancestor(key, i));
+	}
+
+	public T get(long key) {
+		return nodes.get(key);
+	}
+
+	/**
+	 * Get the node with the given key, and create it if it does not exist yet. Creation happens atomically, at most one node will be created per key. Tiles that
+	 * are not {@link #isOccupied(long) occupied} won't be created, {@code null} is returned for them instead.
+	 */
+	public T computeIfAbsent(long key, LongFunction<? extends T> factory) {
+		T node = nodes.get(key);
+		if (node == null && isOccupied(key))
+			node = nodes.computeIfAbsent(key, factory::apply);
+		return node;
+	}
+
+	/**
+	 * Whether the given tile lies within the bounds of the map. On levels greater than zero, this is the case if the tile on level 0 containing it is occupied.
+	 */
+	public boolean isOccupied(long key) {
+		int level = level(key);
+		if (level > 0)
+			key = ancestor(key, level);
+		return occupied.contains(key);
+	}
+
+	/** Call the action on all existing nodes above the given one, starting with its parent. This does not visit any levels greater than zero. */
+	public void forEachAbove(long key, Consumer<? super T> action) {
+		for (int level = level(key) - 1; level >= -depth; level--) {
+			key = parent(key);
+			if (level > 0)
+				continue;
+			T node = nodes.get(key);
+			if (node != null)
+				action.accept(node);
+		}
+	}
+
+	/** Call the action on every existing node in the tree, on all levels. */
+	public void forEach(Consumer<? super T> action) {
+		nodes.values().forEach(action);
+	}
+
+	/** Call the action with the key of every occupied tile on the given level, regardless of whether a node exists for it or not. */
+	public void forEachOccupied(int level, LongConsumer action) {
+		for (long key : occupied)
+			if (level(key) == level)
+				action.accept(key);
+	}
+
+	/** Remove all existing nodes matching the predicate. The tiles stay occupied, so the nodes may be created again later on. */
+	public void removeIf(Predicate<? super T> filter) {
+		nodes.values().removeIf(filter);
+	}
+
+	/**
+	 * Find all nodes on one level that intersect with the given frustum. Only the tiles that actually lie within the frustum are visited, making the costs of
+	 * this independent of the size of the map.
+	 *
+	 * @param factory
+	 *            if not {@code null}, missing nodes on occupied tiles will be created using this function. Otherwise, only existing nodes will be returned.
+	 */
+	public List<T> query(int level, AABBd frustum, LongFunction<? extends T> factory) {
+		List<T> ret = new ArrayList<>();
+		double size = level >= 0 ? 512.0 / (1 << level) : 512.0 * (1 << -level);
+		/* Bounds are inclusive, tiles that only touch the frustum are visible as well */
+		long minX = (long) Math.ceil(frustum.minX / size) - 1, maxX = (long) Math.floor(frustum.maxX / size);
+		long minZ = (long) Math.ceil(frustum.minY / size) - 1, maxZ = (long) Math.floor(frustum.maxY / size);
+		if (!(minX <= maxX && minZ <= maxZ))
+			return ret;
+		if ((factory == null || level <= 0) && (maxX - minX + 1) * (maxZ - minZ + 1) > nodes.size() + occupied.size()) {
+			/* The frustum is large compared to the map, so don't visit every empty tile in it */
+			for (long key : factory == null ? nodes.keySet() : occupied) {
+				if (level(key) != level)
+					continue;
+				int x = x(key), z = z(key);
+				if (x >= minX && x <= maxX && z >= minZ && z <= maxZ)
+					add(ret, key, factory);
+			}
+		} else {
+			for (long z = minZ; z <= maxZ; z++)
+				for (long x = minX; x <= maxX; x++)
+					add(ret, key(level, (int) x, (int) z), factory);
+		}
+		return ret;
+	}
+
+	private void add(List<T> ret, long key, LongFunction<? extends T> factory) {
+		T node = factory == null ? nodes.get(key) : computeIfAbsent(key, factory);
+		if (node != null)
+			ret.add(node);
+	}
+
+	public boolean isEmpty() {
+		return nodes.isEmpty();
+	}
+
+	public void clear() {
+		nodes.clear();
+		occupied.clear();
+	}
+
+	/**
+	 * Pack a tile position into a single {@code long}. The level is stored in the upper 8 bits, followed by 28 bits for each coordinate. All coordinates of a
+	 * Minecraft world fit into this range, even on the highest level of detail.
+	 */
+	public static long key(int level, int x, int z) {
+		return ((level & 0xFFL) << (2 * COORD_BITS)) | ((x & COORD_MASK) << COORD_BITS) | (z & COORD_MASK);
+	}
+
+	public static int level(long key) {
+		return (byte) (key >>> (2 * COORD_BITS));
+	}
+
+	public static int x(long key) {
+		/* Shift left and right again to restore the sign */
+		return (int) (key >>> COORD_BITS) << (32 - COORD_BITS) >> (32 - COORD_BITS);
+	}
+
+	public static int z(long key) {
+		return (int) key << (32 - COORD_BITS) >> (32 - COORD_BITS);
+	}
+
+	public static long parent(long key) {
+		return ancestor(key, 1);
+	}
+
+	/** Go up {@code levelDiff} levels. */
+	public static long ancestor(long key, int levelDiff) {
+		return key(level(key) - levelDiff, x(key) >> levelDiff, z(key) >> levelDiff);
+	}
+
+	/**
+	 * Get one of the four children of a tile. They are numbered the same way as in {@link RenderedMap#belowPos(org.joml.Vector2ic)}: top left, top right,
+	 * bottom left, bottom right.
+	 */
+	public static long child(long key, int index) {
+		return key(level(key) + 1, (x(key) << 1) | (index & 1), (z(key) << 1) | (index >> 1));
+	}
+}
@@ -17,6 +17,8 @@ public class RenderedImage {
 		this.map = Objects.requireNonNull(map);
 		this.cache = Objects.requireNonNull(cache);
 		this.key = Objects.requireNonNull(key);
+		/* The region this belongs to may have been released and created again, while its image stayed in the cache */
+		hasValue = cache.containsKey(key) || !map.isImageLoaded(key);
 		// System.out.println(cache + " " + key);
 	}
 
@@ -4,15 +4,17 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.ConcurrentModificationException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.joml.AABBd;
 import org.joml.Vector2i;
 import org.joml.Vector2ic;
@@ -25,6 +27,9 @@ import org.mapdb.DataOutput2;
 import org.mapdb.HTreeMap;
 import org.mapdb.Serializer;
 
+import de.piegames.blockmap.gui.RenderedRegion.RenderingState;
+import de.piegames.blockmap.renderer.RegionLayers;
+import de.piegames.blockmap.renderer.SurfaceStacks;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.image.PixelFormat;
 import javafx.scene.image.PixelReader;
@@ -34,6 +39,8 @@ import javafx.scene.paint.Color;
 
 public class RenderedMap {
 
+	private static Log										log					= LogFactory.getLog(RenderedMap.class);
+
 	/** https://github.com/jankotek/mapdb/issues/839 */
 	protected Set<Vector3ic>								unloaded			= ConcurrentHashMap.newKeySet();
 	public final Serializer<Vector3ic>						VECTOR_SERIALIZER	= new Serializer<Vector3ic>() {
@@ -84,16 +91,67 @@ public class RenderedMap {
 																							}
 																				};
 
+	/** Layers are only written to disk on cache overflow, so the files are always local and temporary. */
+	public static final Serializer<RegionLayers>			LAYERS_SERIALIZER	= new Serializer<RegionLayers>() {
+
+																					@Override
+																					public boolean isTrusted() {
+																						return true;
+																					}
+
+																					@Override
+																					public void serialize(DataOutput2 out, RegionLayers value) throws IOException {
+																						value.write(out);
+																					}
+
+																					@Override
+																					public RegionLayers deserialize(DataInput2 input, int available) throws IOException {
+																						return RegionLayers.read(input);
+																					}
+																				};
+
+	public static final Serializer<SurfaceStacks>			STACKS_SERIALIZER	= new Serializer<SurfaceStacks>() {
+
+																					@Override
+																					public boolean isTrusted() {
+																						return true;
+																					}
+
+																					@Override
+																					public void serialize(DataOutput2 out, SurfaceStacks value) throws IOException {
+																						value.write(out);
+																					}
+
+																					@Override
+																					public SurfaceStacks deserialize(DataInput2 input, int available) throws IOException {
+																						return SurfaceStacks.read(input);
+																					}
+																				};
+
 	// Disk for overflow
 	private static final DB									cacheDBDisk			= DBMaker.tempFileDB().fileDeleteAfterClose().closeOnJvmShutdown().make();
 	// Fast memory cache
 	private static final DB									cacheDBMem			= DBMaker.heapDB().closeOnJvmShutdown().make();
 
 	private final HTreeMap<Vector3ic, WritableImage>		cacheMapDisk, cacheMapDiskMem, cacheMapMem;
+	/** The unshaded layers of rendered regions on level 0, to apply a different shader without rendering them again. */
+	private final HTreeMap<Long, RegionLayers>				layersDisk, layersMem;
+	/** The surface stacks of rendered regions on level 0, to apply a different color map without rendering them again. */
+	private final HTreeMap<Long, SurfaceStacks>				stacksDisk, stacksMem;
 
-	private Map<Vector2ic, RenderedRegion>					plainRegions		= new HashMap<>();
-	private Map<Integer, Map<Vector2ic, RenderedRegion>>	regions				= new HashMap<>();
-	private int														regionsCount, regionsRendered;
+	/**
+	 * All regions on all levels of detail. The {@link RenderedRegion} objects are only created once they are visible or get rendered, and released again once
+	 * they are neither.
+	 */
+	private final RegionQuadtree<RenderedRegion>			regions				= new RegionQuadtree<>(DisplayViewport.MAX_ZOOM_LEVEL);
+	/** The keys of all regions on level 0 that need to be rendered. This is the render queue. */
+	private final Set<Long>									pending				= ConcurrentHashMap.newKeySet();
+	/** The keys of all regions on level 0 for which a preview has already been rendered */
+	private final Set<Long>									previewed			= ConcurrentHashMap.newKeySet();
+	/** The area that was drawn last. Regions outside of it may be released. */
+	private volatile AABBd									lastFrustum			= new AABBd();
+	private volatile int									regionsCount;
+	private final AtomicInteger								regionsRendered		= new AtomicInteger();
 
 	@SuppressWarnings("unchecked")
 	public RenderedMap(ScheduledExecutorService executor) {
@@ -127,9 +185,47 @@ public class RenderedMap {
 				.expireExecutor(executor)
 				.expireExecutorPeriod(10000)
 				.create();
+		/* Keep the overflow from growing without limit, the oldest layers are dropped and will be rendered again if needed */
+		layersDisk = cacheDBDisk.hashMap("LayersOnDisk" + System.identityHashCode(this), Serializer.LONG, LAYERS_SERIALIZER)
+				.expireMaxSize(512)
+				.expireAfterCreate()
+				.expireAfterUpdate()
+				.expireExecutor(executor)
+				.expireExecutorPeriod(10000)
+				.create();
+		layersMem = cacheDBMem.hashMap("LayersCache" + System.identityHashCode(this), Serializer.LONG, Serializer.JAVA)
+				.expireMaxSize(128)
+				.expireAfterCreate(30, TimeUnit.SECONDS)
+				.expireAfterUpdate(30, TimeUnit.SECONDS)
+				.expireAfterGet(60, TimeUnit.SECONDS)
+				.expireOverflow(layersDisk)
+				.expireExecutor(executor)
+				.expireExecutorPeriod(10000)
+				.create();
+		stacksDisk = cacheDBDisk.hashMap("StacksOnDisk" + System.identityHashCode(this), Serializer.LONG, STACKS_SERIALIZER)
+				.expireMaxSize(128)
+				.expireAfterCreate()
+				.expireAfterUpdate()
+				.expireExecutor(executor)
+				.expireExecutorPeriod(10000)
+				.create();
+		/* Stacks are a few times larger than the layers, so keep fewer of them in memory */
+		stacksMem = cacheDBMem.hashMap("StacksCache" + System.identityHashCode(this), Serializer.LONG, Serializer.JAVA)
+				.expireMaxSize(32)
+				.expireAfterCreate(30, TimeUnit.SECONDS)
+				.expireAfterUpdate(30, TimeUnit.SECONDS)
+				.expireAfterGet(60, TimeUnit.SECONDS)
+				.expireOverflow(stacksDisk)
+				.expireExecutor(executor)
+				.expireExecutorPeriod(10000)
+				.create();
 		cacheMapDisk.checkThreadSafe();
 		cacheMapDiskMem.checkThreadSafe();
 		cacheMapMem.checkThreadSafe();
+		layersDisk.checkThreadSafe();
+		layersMem.checkThreadSafe();
+		stacksDisk.checkThreadSafe();
+		stacksMem.checkThreadSafe();
 		clearReload(Collections.emptyList());
 	}
 
@@ -138,6 +234,10 @@ public class RenderedMap {
 		cacheMapDiskMem.close();
 		cacheMapMem.close();
 		cacheMapDisk.close();
+		layersMem.close();
+		layersDisk.close();
+		stacksMem.close();
+		stacksDisk.close();
 		cacheDBMem.close();
 		cacheDBDisk.close();
 	}
@@ -146,108 +246,175 @@ public class RenderedMap {
 		cacheMapDiskMem.expireEvict();
 		cacheMapMem.expireEvict();
 		cacheMapDisk.expireEvict();
+		layersMem.expireEvict();
+		layersDisk.expireEvict();
+		stacksMem.expireEvict();
+		stacksDisk.expireEvict();
+		/* Release all regions that are not visible and not currently being rendered. Their images stay in the cache. */
+		AABBd frustum = lastFrustum;
+		regions.removeIf(r -> !r.isVisible(frustum) && (r.valid.get() == RenderingState.VALID || r.valid.get() == RenderingState.INVALID));
 	}
 
 	public void clearReload(Collection<Vector2ic> positions) {
 		cacheMapDisk.clear();
 		cacheMapDiskMem.clear();
 		cacheMapMem.clear();
+		clearLayers();
+		clearStacks();
+		unloaded.clear();
 		regions.clear();
-		plainRegions.clear();
-		regions.put(0, plainRegions);
-		positions.stream().map(r -> new RenderedRegion(this, r)).forEach(r -> plainRegions.put(r.position, r));
-		regionsRendered = 0;
+		pending.clear();
+		previewed.clear();
+		for (Vector2ic position : positions) {
+			regions.add(position.x(), position.y());
+			pending.add(RegionQuadtree.key(0, position.x(), position.y()));
+		}
+		regionsRendered.set(0);
 		regionsCount = positions.size();
 	}
 
 	public void invalidateAll() {
-		regionsRendered = 0;
-		plainRegions.values().forEach(r -> r.invalidateTree(true));
+		regionsRendered.set(0);
+		regions.forEachOccupied(0, pending::add);
+		regions.forEach(r -> r.invalidate(true));
+	}
+
+	/**
+	 * Mark only the given regions on level 0 as outdated and queue them for rendering again, for example because their saved images changed. Regions
+	 * that are not part of the map yet will be added. Their old images will be shown until the new ones are there.
+	 */
+	public void invalidate(Collection<Vector2ic> positions) {
+		for (Vector2ic position : positions) {
+			long key = RegionQuadtree.key(0, position.x(), position.y());
+			if (!regions.isOccupied(key)) {
+				regions.add(position.x(), position.y());
+				regionsCount++;
+			} else if (!pending.contains(key) && regionsRendered.get() > 0) {
+				regionsRendered.decrementAndGet();
+			}
+			layersMem.remove(key);
+			layersDisk.remove(key);
+			stacksMem.remove(key);
+			stacksDisk.remove(key);
+			pending.add(key);
+			RenderedRegion region = regions.get(key);
+			/* Regions that are not in the tree can't be drawn right now, so there is no render to outdate */
+			if (region != null)
+				region.invalidateGeneration();
+		}
+	}
+
+	/** Get the unshaded layers of a rendered region on level 0, or {@code null} if they are not cached. */
+	public RegionLayers getLayers(long key) {
+		return layersMem.get(key);
+	}
+
+	public void putLayers(long key, RegionLayers layers) {
+		layersMem.put(key, layers);
+	}
+
+	/** Call this if the layers became invalid, i.e. on any settings change except for the shader. */
+	public void clearLayers() {
+		layersMem.clear();
+		layersDisk.clear();
+	}
+
+	/** Get the surface stacks of a rendered region on level 0, or {@code null} if they are not cached. */
+	public SurfaceStacks getStacks(long key) {
+		return stacksMem.get(key);
+	}
+
+	public void putStacks(long key, SurfaceStacks stacks) {
+		stacksMem.put(key, stacks);
+	}
+
+	/** Call this if the stacks became invalid, i.e. on any settings change except for the shader and the color map. */
+	public void clearStacks() {
+		stacksMem.clear();
+		stacksDisk.clear();
 	}
 
 	public boolean isNothingLoaded() {
-		return get(0).isEmpty();
+		return regionsCount == 0;
+	}
+
+	/** The keys of all regions on level 0 that still need to be rendered. Use {@link #claim(long)} to take one of them. */
+	public Set<Long> getPending() {
+		return Collections.unmodifiableSet(pending);
+	}
+
+	/**
+	 * Remove a region from the render queue and mark it as {@link RenderingState#DRAWING}.
+	 *
+	 * @return the region with the given key or {@code null} if it is not pending anymore, e.g. because an other thread claimed it first.
+	 */
+	public RenderedRegion claim(long key) {
+		if (!pending.remove(key))
+			return null;
+		RenderedRegion region = regions.computeIfAbsent(key, this::createRegion);
+		if (region == null) // Race hazard with clearReload()
+			return null;
+		for (RenderingState state = region.valid.get(); state == RenderingState.VALID || state == RenderingState.INVALID; state = region.valid.get())
+			if (region.valid.compareAndSet(state, RenderingState.DRAWING))
+				return region;
+		// Already being drawn. It has been marked for redrawing while at it, so nothing to do here
+		return null;
+	}
+
+	/**
+	 * Find a visible region on level 0 that needs a preview because it has not been rendered yet and has no image at all. Each region will only be returned
+	 * once until the map gets reloaded.
+	 */
+	public RenderedRegion claimPreview(AABBd frustum) {
+		for (RenderedRegion region : regions.query(0, frustum, this::createRegion))
+			if (region.valid.get() == RenderingState.INVALID && !region.hasImage() && previewed.add(region.key))
+				return region;
+		return null;
 	}
 
 	public void draw(GraphicsContext gc, int level, AABBd frustum, double scale) {
-		Map<Vector2ic, RenderedRegion> map = get(level > 0 ? 0 : level);
+		lastFrustum = frustum;
+		int drawLevel = level > 0 ? 0 : level;
+		/* Query once, we need the visible regions for the background and the foreground */
+		List<RenderedRegion> visible = regions.query(0, frustum, this::createRegion);
 		gc.setFill(new Color(0.3f, 0.3f, 0.9f, 1.0f)); // Background color
-		plainRegions.values().stream()
-				.filter(r -> r.isVisible(frustum))
-				.forEach(r -> r.drawBackground(gc, scale));
-		map.entrySet().stream()
-				.filter(e -> RenderedRegion.isVisible(e.getKey(), level > 0 ? 0 : level, frustum))
-				.map(e -> {
-					RenderedRegion r = e.getValue();
-					if (e.getValue() == null)
-						r = get(level, e.getKey(), true);
-					return r;
-				})
+		visible.forEach(r -> r.drawBackground(gc, scale));
+		(drawLevel == 0 ? visible : regions.query(drawLevel, frustum, this::createRegion))
 				.forEach(r -> r.draw(gc, level, frustum, scale));
-		plainRegions.values().stream()
-				.filter(r -> r.isVisible(frustum))
-				.forEach(r -> r.drawForeground(gc, frustum, scale));
+		visible.forEach(r -> r.drawForeground(gc, frustum, scale));
 	}
 
 	public boolean updateImage(int level, AABBd frustum) {
-		try {
-			Thread current = Thread.currentThread();
-			if (regions.isEmpty())
-				// Race hazard: updateImage() is called while clearReload() is reloading all the chunks
-				return false;
-			return get(level)
-					.entrySet()
-					.stream()
-					.map(e -> e.getValue())
-					.filter(r -> r != null)
-					.filter(r -> r.isVisible(frustum))
-					.filter(r -> current.isInterrupted() ? false : r.updateImage())
-					.limit(10)
-					.collect(Collectors.toList())
-					.size() > 0;
-		} catch (ConcurrentModificationException e) {
-			// System.out.println(e);
-			return true;
+		Thread current = Thread.currentThread();
+		int updated = 0;
+		for (RenderedRegion r : regions.query(level, frustum, null)) {
+			if (updated >= 10 || current.isInterrupted())
+				break;
+			if (r.updateImage())
+				updated++;
 		}
-	}
-
-	public Map<Vector2ic, RenderedRegion> get(int level) {
-		Map<Vector2ic, RenderedRegion> ret = regions.get(level);
-		try {
-			// the bug might be when requesting values on level 0 that are null (not calculated)
-			if (ret == null && level != 0) {
-				Map<Vector2ic, RenderedRegion> ret2 = new HashMap<>();
-				ret = ret2;
-				// the bug might be to using abovePos() regardless of the level being zoomed in or out
-				get(level < 0 ? level + 1 : level - 1).keySet().stream().map(RenderedMap::abovePos).map(v -> new Vector2i(v)).distinct().forEach(v -> ret2.put(
-						v, null));
-
-				regions.put(level, ret);
-			}
-		} catch (StackOverflowError e) {
-			System.out.println(level + " " + ret);
-			throw e;
-		}
-		return ret;
+		return updated > 0;
 	}
 
 	public void putImage(Vector2ic pos, WritableImage image) {
-		if (!plainRegions.containsKey(pos))
+		RenderedRegion region = regions.get(RegionQuadtree.key(0, pos.x(), pos.y()));
+		if (region == null)
 			throw new IllegalArgumentException("Position out of bounds");
-		plainRegions.get(pos).setImage(image);
+		region.setImage(image);
 	}
 
 	public void updateCounter(RenderedRegion r) {
-		if (get(0).containsValue(r))
-			regionsRendered++;
+		if (regions.get(r.key) == r)
+			regionsRendered.incrementAndGet();
 		else
-			System.out.println("[RenderedMap] NOT FOUND"); // TODO what is this
+			/* The map has been cleared or reloaded while the region was being rendered */
+			log.warn("Rendered region " + r.position + " at level " + r.level + " is not part of the map anymore");
 	}
 
 	public float getProgress() {
 		if (isNothingLoaded())
 			return 1;
-		return (float) regionsRendered / regionsCount;
+		return (float) regionsRendered.get() / regionsCount;
 	}
 
 	public RenderedImage createImage(RenderedRegion r) {
@@ -259,25 +426,37 @@ public class RenderedMap {
 	}
 
 	public RenderedRegion get(int level, Vector2ic position, boolean create) {
-		Map<Vector2ic, RenderedRegion> map = get(level);
-		RenderedRegion r = map.get(new Vector2i(position));
-		if (create && r == null && level != 0 && ((level > 0 /* && plainRegions.containsKey(new Vector2i(position.x() >> level, position.y() >>
-																 * level).toImmutable()) */) || map.containsKey(position))) {
-			r = new RenderedRegion(this, level, position);
-			if (level < 0)
-				Arrays.stream(belowPos(position)).forEach(pos -> get(level + 1, position, true));
+		return get(RegionQuadtree.key(level, position.x(), position.y()), create);
+	}
+
+	/**
+	 * Get the region with the given {@link RegionQuadtree#key(int, int, int) key}. Regions on level 0 are always present if they are part of the world, all
+	 * other levels will only be created if requested.
+	 */
+	public RenderedRegion get(long key, boolean create) {
+		RenderedRegion r = regions.get(key);
+		int level = RegionQuadtree.level(key);
+		if (create && r == null && level != 0) {
+			// Make sure that the parents exist so that invalidating a region will reach all its children
 			if (level > 0)
-				get(level - 1, abovePos(position), true);
-			map.put(position, r);
+				get(RegionQuadtree.parent(key), true);
+			r = regions.computeIfAbsent(key, this::createRegion);
 		}
 		return r;
 	}
 
-	public RenderedRegion[] get(int level, Vector2ic[] belowPos, boolean create) {
-		RenderedRegion[] ret = new RenderedRegion[belowPos.length];
-		for (int i = 0; i < belowPos.length; i++)
-			ret[i] = get(level, belowPos[i], create);
-		return ret;
+	/** Call the action on all regions on the levels above the given one that contain it. */
+	public void forEachAbove(RenderedRegion region, Consumer<RenderedRegion> action) {
+		regions.forEachAbove(region.key, action);
+	}
+
+	private RenderedRegion createRegion(long key) {
+		int level = RegionQuadtree.level(key);
+		RenderedRegion region = new RenderedRegion(this, level, new Vector2i(RegionQuadtree.x(key), RegionQuadtree.z(key)));
+		/* Regions on level 0 that got released after rendering are still valid, their image is in the cache */
+		if (level == 0 && !pending.contains(key))
+			region.valid.set(RenderingState.VALID);
+		return region;
 	}
 
 	public static Vector2ic abovePos(Vector2ic pos) {
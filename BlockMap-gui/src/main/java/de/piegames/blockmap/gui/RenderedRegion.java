@@ -2,6 +2,7 @@ package de.piegames.blockmap.gui;
 
 import java.util.Arrays;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.joml.AABBd;
@@ -17,9 +18,7 @@ public class RenderedRegion {
 	public enum RenderingState {
 		VALID, // Don't touch
 		INVALID, // Recalculate please
-		DRAWING, // Recalculating
-		REDRAW; // Aborted while recalculating, re-recalculate
-		// ABORT; // World changed, abort calculation
+		DRAWING; // Recalculating
 
 		public boolean isInvalid() {
 			return this != VALID;
@@ -30,7 +29,11 @@ public class RenderedRegion {
 	protected final RenderedImage					image;
 	public final int								level;
 	public final Vector2ic							position;
-	public final AtomicReference<RenderingState>	valid	= new AtomicReference<>(RenderingState.INVALID);
+	/** The {@link RegionQuadtree#key(int, int, int) key} of this region in the map */
+	public final long								key;
+	public final AtomicReference<RenderingState>	valid		= new AtomicReference<>(RenderingState.INVALID);
+	/** Gets increased each time the data of this region changed, see {@link #invalidateGeneration()}. Renders started before that are outdated. */
+	public final AtomicInteger						generation	= new AtomicInteger();
 
 	public RenderedRegion(RenderedMap map, Vector2ic pos) {
 		this(map, 0, pos);
@@ -40,41 +43,94 @@ public class RenderedRegion {
 		this.map = map;
 		this.level = level;
 		this.position = new Vector2i(position);
+		this.key = RegionQuadtree.key(level, position.x(), position.y());
 		this.image = map.createImage(this);
 		// setImage(null);
 	}
 
-	public void setImage(WritableImage image) {
+	public synchronized void setImage(WritableImage image) {
 		Objects.requireNonNull(image);
 		invalidateTree(true);
 		this.image.setImage(image);
 		valid.set(RenderingState.VALID);
 	}
 
+	/**
+	 * Like {@link #setImage(WritableImage)}, but only if the region has not been {@linkplain #invalidateGeneration() invalidated} since the render
+	 * started.
+	 *
+	 * @param generation
+	 *            the value of {@link #generation} when the render started
+	 * @return whether the image has been set
+	 */
+	public synchronized boolean setImage(WritableImage image, int generation) {
+		if (this.generation.get() != generation)
+			return false;
+		setImage(image);
+		return true;
+	}
+
+	/**
+	 * Invalidate this region and all regions that depend on it because its data changed. A render that is running right now will not be able to
+	 * set its outdated image afterwards.
+	 */
+	public synchronized void invalidateGeneration() {
+		generation.incrementAndGet();
+		invalidateTree(true);
+	}
+
+	/**
+	 * Show a low resolution preview until the actual image has been rendered. Does nothing if the region is already valid, so the preview will never
+	 * replace the final image. The region will not be marked as valid.
+	 */
+	public synchronized void setPreviewImage(WritableImage image) {
+		Objects.requireNonNull(image);
+		if (valid.get() == RenderingState.VALID)
+			return;
+		this.image.setImage(image);
+		/* Levels of lower detail should include the preview */
+		map.forEachAbove(this, r -> r.invalidate(true));
+	}
+
+	/** Returns true if any image has been set to this region, even if it is only a preview or if it is invalid. */
+	public boolean hasImage() {
+		return image.isImageSet();
+	}
+
+	/** Invalidate this region and all regions that depend on it, which are all regions below and above it (on levels of lower detail). */
 	public void invalidateTree(boolean keepImage) {
-		if (!valid.compareAndSet(RenderingState.DRAWING, RenderingState.REDRAW))
-			valid.set(RenderingState.INVALID);
+		invalidate(keepImage);
 		if (level >= 0)
-			Arrays.stream(getBelow(false)).filter(__ -> __ != null).forEach(r -> r.invalidateTree(keepImage));
-		if (level <= 0) {
-			RenderedRegion above = getAbove(false);
-			if (above != null)
-				above.invalidateTree(keepImage);
-		}
+			for (RenderedRegion r : getBelow(false))
+				if (r != null)
+					r.invalidateTree(keepImage);
+		if (level <= 0)
+			map.forEachAbove(this, r -> r.invalidate(keepImage));
+	}
+
+	/**
+	 * Invalidate only this region. If it is currently being drawn, the drawing thread will notice that its result is outdated and discard it, so it
+	 * is safe to render the region again right away.
+	 */
+	public void invalidate(boolean keepImage) {
+		valid.set(RenderingState.INVALID);
 		if (!keepImage)
 			this.image.setImage(null);
 	}
 
 	public RenderedRegion[] getBelow(boolean create) {
-		return map.get(level + 1, RenderedMap.belowPos(position), create);
+		RenderedRegion[] below = new RenderedRegion[4];
+		for (int i = 0; i < 4; i++)
+			below[i] = map.get(RegionQuadtree.child(key, i), create);
+		return below;
 	}
 
 	public RenderedRegion getAbove(boolean create) {
-		return map.get(level - 1, RenderedMap.abovePos(position), create);
+		return map.get(RegionQuadtree.parent(key), create);
 	}
 
 	public RenderedRegion getGround(boolean create) {
-		return map.get(0, RenderedMap.groundPos(position, level), create);
+		return map.get(RegionQuadtree.ancestor(key, level), create);
 	}
 
 	public boolean updateImage() {
@@ -172,7 +228,7 @@ public class RenderedRegion {
 			gc.setFill(new Color(0f, 0f, 0f, 0.5f));
 			gc.fillRect(position.x() * size, position.y() * size, size, size);
 		}
-		if (valid.get() == RenderingState.DRAWING || valid.get() == RenderingState.REDRAW) {
+		if (valid.get() == RenderingState.DRAWING) {
 			gc.setFill(new Color(0.9f, 0.9f, 0.15f, 1.0f));
 
 			double x = position.x() * 512, y = position.y() * 512, w = 512, h = 512, m = Math.min(6 / scale, 35);
@@ -1,25 +1,36 @@
 package de.piegames.blockmap.gui;
 
-import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.joml.AABBd;
+import org.joml.Vector2d;
 import org.joml.Vector2dc;
+import org.joml.Vector2i;
 import org.joml.Vector2ic;
-import org.joml.Vector3d;
 
 import de.piegames.blockmap.gui.RenderedRegion.RenderingState;
+import de.piegames.blockmap.renderer.RegionLayers;
+import de.piegames.blockmap.renderer.SurfaceStacks;
 import de.piegames.blockmap.world.ChunkMetadata;
 import de.piegames.blockmap.world.Region;
 import de.piegames.blockmap.world.RegionFolder;
-import javafx.application.Platform;
+import de.piegames.blockmap.world.RegionFolder.RemoteRegionFolder;
+import javafx.animation.AnimationTimer;
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.ReadOnlyFloatProperty;
 import javafx.beans.property.ReadOnlyFloatWrapper;
@@ -29,15 +40,17 @@ import javafx.beans.property.ReadOnlyObjectProperty;
 import javafx.beans.property.ReadOnlyObjectWrapper;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.collections.FXCollections;
-import javafx.embed.swing.SwingFXUtils;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.PixelFormat;
 import javafx.scene.image.WritableImage;
 import javafx.scene.paint.Color;
 
 public class WorldRendererCanvas extends Canvas implements Runnable {
 
 	public static final int									THREAD_COUNT	= 4;
+	/** Visible regions will first be rendered with this {@link de.piegames.blockmap.renderer.RenderSettings#sampling sampling} to fill the screen quickly. */
+	public static final int									PREVIEW_SAMPLING	= 8;
 
 	protected RenderedMap									map;
 
@@ -53,6 +66,23 @@ public class WorldRendererCanvas extends Canvas implements Runnable {
 
 	public final ObjectProperty<RegionFolder>				regionFolder	= new SimpleObjectProperty<>();
 
+	/*
+	 * Changes requested from other threads are collected here and applied at most once per frame by the frame timer. This keeps the JavaFX
+	 * Application Thread's queue from flooding while rendering.
+	 */
+	protected final AtomicBoolean							repaintPending	= new AtomicBoolean();
+	protected final AtomicBoolean							progressPending	= new AtomicBoolean();
+	protected final AtomicReference<String>					statusPending	= new AtomicReference<>();
+	/** The chunk metadata of rendered regions, resolved on the rendering threads since it may need to be loaded */
+	protected final Queue<Map.Entry<Vector2ic, Map<Vector2ic, ChunkMetadata>>>	metadataPending	= new ConcurrentLinkedQueue<>();
+	/** Gets increased each time the cached layers become invalid, to detect layers from renders that have been started before that. */
+	protected final AtomicInteger							layersVersion	= new AtomicInteger();
+	/** Like {@link #layersVersion}, but for the cached surface stacks */
+	protected final AtomicInteger							stacksVersion	= new AtomicInteger();
+	/** Gets increased each time all regions need to be rendered again. Regions that finish rendering after that are outdated. */
+	protected final AtomicInteger							renderVersion	= new AtomicInteger();
+	protected AnimationTimer								frameTimer;
+
 	public WorldRendererCanvas(RegionFolder regionFolder) {
 		this.regionFolder.set(regionFolder);
 		this.regionFolder.addListener((obs, prev, val) -> {
@@ -83,22 +113,79 @@ public class WorldRendererCanvas extends Canvas implements Runnable {
 		viewport.widthProperty.bind(widthProperty());
 		viewport.heightProperty.bind(heightProperty());
 		invalidateTextures();
-		viewport.frustumProperty.addListener(e -> repaint());
+		viewport.frustumProperty.addListener((observable, previous, frustum) -> {
+			repaint();
+			prefetch(previous, frustum);
+		});
+		frameTimer = new AnimationTimer() {
+
+			@Override
+			public void handle(long now) {
+				nextFrame();
+			}
+		};
+		frameTimer.start();
 		repaint();
 	}
 
+	/**
+	 * Render all regions again. Call this if the world or any of the render settings changed. Renders that are still running with the old settings
+	 * will be aborted.
+	 */
 	public void invalidateTextures() {
+		stacksVersion.incrementAndGet();
+		map.clearStacks();
+		layersVersion.incrementAndGet();
+		map.clearLayers();
+		metadataPending.clear();
 		chunkMetadata.clear();
+		restart();
+	}
+
+	/**
+	 * Update all regions after only the shader changed. Regions whose unshaded layers are still cached will only be shaded again instead of being
+	 * rendered from scratch.
+	 */
+	public void reshadeTextures() {
+		restart();
+	}
+
+	/**
+	 * Update all regions after only the color map (and possibly the shader) changed. Regions whose surface stacks are still cached will be colored
+	 * again without reading their files.
+	 */
+	public void recolorTextures() {
+		layersVersion.incrementAndGet();
+		map.clearLayers();
+		restart();
+	}
+
+	/**
+	 * Render only the given regions again, because they changed in the {@link #regionFolder}. Regions that are not part of the map yet will be
+	 * added. All other regions and the cached data stay valid. May be called from any thread.
+	 */
+	public void invalidateRegions(Collection<Vector2ic> positions) {
+		if (positions.isEmpty())
+			return;
+		map.invalidate(positions);
+		for (int i = 0; i < Math.min(positions.size(), THREAD_COUNT); i++)
+			executor.submit(this);
+		progressPending.set(true);
+	}
+
+	private void restart() {
+		renderVersion.incrementAndGet();
 		map.invalidateAll();
 		for (int i = 0; i < THREAD_COUNT; i++)
 			executor.submit(this);
 
-		progress.set(map.getProgress());
+		progressPending.set(true);
 		if (map.isNothingLoaded())
-			status.set("No regions loaded");
+			updateStatus("No regions loaded");
 	}
 
 	public void shutDown() {
+		frameTimer.stop();
 		status.set("Stopped");
 		executor.shutdownNow();
 		try {
@@ -109,12 +196,30 @@ public class WorldRendererCanvas extends Canvas implements Runnable {
 		map.close();
 	}
 
-	/** Queues in a repaint event calling {@link renderWorld} from the JavaFX Application Thread */
+	/**
+	 * Request a call to {@link #renderWorld()} on the next frame. Multiple requests within the same frame are collapsed into a single redraw.
+	 * May be called from any thread.
+	 */
 	public void repaint() {
-		if (Platform.isFxApplicationThread())
+		repaintPending.set(true);
+	}
+
+	/** Set the status text on the next frame. If it gets set multiple times before that, only the last value will be shown. */
+	protected void updateStatus(String status) {
+		statusPending.set(status);
+	}
+
+	/** Called once per pulse on the JavaFX Application Thread. Applies all the updates that accumulated since the last frame. */
+	protected void nextFrame() {
+		for (Map.Entry<Vector2ic, Map<Vector2ic, ChunkMetadata>> metadata = metadataPending.poll(); metadata != null; metadata = metadataPending.poll())
+			chunkMetadata.put(metadata.getKey(), metadata.getValue());
+		String status = statusPending.getAndSet(null);
+		if (status != null)
+			this.status.set(status);
+		if (progressPending.getAndSet(false))
+			progress.set(map.getProgress());
+		if (repaintPending.getAndSet(false))
 			renderWorld();
-		else
-			Platform.runLater(this::renderWorld);
 	}
 
 	/** Requires to be called from the JavaFX Application Thread. */
@@ -153,54 +258,134 @@ public class WorldRendererCanvas extends Canvas implements Runnable {
 
 	@Override
 	public void run() {
+		RenderedRegion preview = map.claimPreview(viewport.getFrustum());
+		if (preview != null) {
+			renderPreview(preview);
+			return;
+		}
 		RenderedRegion region = null;
 		region = nextRegion();
 		if (region == null) {
-			Platform.runLater(() -> status.set(map.isNothingLoaded() ? "No regions loaded" : "Done"));
+			updateStatus(map.isNothingLoaded() ? "No regions loaded" : "Done");
 			return;
 		}
 		repaint();
-		Platform.runLater(this::renderWorld);
-		Platform.runLater(() -> status.set("Rendering"));
+		updateStatus("Rendering");
+		/* Results of renders that got superseded by a later call to restart() or invalidateRegions() must be discarded */
+		int version = renderVersion.get();
+		int generation = region.generation.get();
 		try {
-			BufferedImage texture2 = null;
-			do {
-				Vector2ic position = region.position;
-				Region renderedRegion = regionFolder.get().render(position);
-				texture2 = renderedRegion.getImage();
-				Platform.runLater(() -> chunkMetadata.put(position, Collections.unmodifiableMap(renderedRegion.getChunkMetadata())));
-				// Re-render the texture if it has been invalidated ('REDRAW')
-			} while (region.valid.compareAndSet(RenderingState.REDRAW, RenderingState.DRAWING) && !Thread.interrupted());
-			map.updateCounter(region);
-			Platform.runLater(() -> progress.set(map.getProgress()));
-
-			WritableImage texture = SwingFXUtils.toFXImage(texture2, null);
-			region.setImage(texture);
-			repaint();
+			Vector2ic position = region.position;
+			RegionFolder folder = regionFolder.get();
+			RegionLayers layers = map.getLayers(region.key);
+			SurfaceStacks stacks = map.getStacks(region.key);
+			int layersVersion = this.layersVersion.get();
+			/* Only shade the region again if possible, or at least don't read the file again */
+			Region reshaded = layers == null ? null : folder.reshade(position, layers);
+			Region recolored = reshaded != null || stacks == null ? null : folder.recolor(position, stacks);
+			int[] pixels;
+			if (reshaded != null) {
+				pixels = reshaded.getPixels();
+			} else if (recolored != null) {
+				pixels = recolored.getPixels();
+				if (recolored.getLayers() != null && layersVersion == this.layersVersion.get() && generation == region.generation.get())
+					map.putLayers(region.key, recolored.getLayers());
+			} else {
+				int stacksVersion = this.stacksVersion.get();
+				Region renderedRegion = folder.render(position, true);
+				pixels = renderedRegion.getPixels();
+				metadataPending.add(Map.entry(renderedRegion.getPosition(), Collections.unmodifiableMap(renderedRegion.getChunkMetadata())));
+				if (renderedRegion.getLayers() != null && layersVersion == this.layersVersion.get() && generation == region.generation.get())
+					map.putLayers(region.key, renderedRegion.getLayers());
+				if (renderedRegion.getStacks() != null && stacksVersion == this.stacksVersion.get() && generation == region.generation.get())
+					map.putStacks(region.key, renderedRegion.getStacks());
+			}
+			if (version == renderVersion.get() && region.setImage(toImage(pixels), generation)) {
+				map.updateCounter(region);
+				progressPending.set(true);
+				repaint();
+			}
+		} catch (CancellationException e) {
+			/* The region has been invalidated and queued again in the meantime, nothing to do here */
+		} catch (Throwable e) {
+			e.printStackTrace();
+			region.valid.compareAndSet(RenderingState.DRAWING, RenderingState.VALID);
+		} finally {
+			executor.submit(this);
+		}
+	}
+
+	/**
+	 * Render a low resolution preview of a region that has not been rendered yet. Previews of all visible regions are rendered before any region is rendered
+	 * in full detail, so that the screen gets filled quickly.
+	 */
+	protected void renderPreview(RenderedRegion region) {
+		updateStatus("Rendering preview");
+		try {
+			Region preview = regionFolder.get().renderPreview(region.position, PREVIEW_SAMPLING);
+			if (preview != null) {
+				region.setPreviewImage(toImage(preview.getPixels()));
+				repaint();
+			}
+		} catch (CancellationException e) {
+			/* The settings changed, the region will get an other preview anyway */
 		} catch (Throwable e) {
 			e.printStackTrace();
 		} finally {
-			region.valid.set(RenderingState.VALID);
 			executor.submit(this);
 		}
 	}
 
+	private static WritableImage toImage(int[] pixels) {
+		WritableImage texture = new WritableImage(512, 512);
+		texture.getPixelWriter().setPixels(0, 0, 512, 512, PixelFormat.getIntArgbInstance(), pixels, 0, 512);
+		return texture;
+	}
+
+	/**
+	 * Remote worlds are slow to load, so start downloading the regions that will become visible next if the view keeps moving in the same
+	 * direction. This looks ahead by half a screen. Zooming is not taken into account.
+	 */
+	protected void prefetch(AABBd previous, AABBd frustum) {
+		RegionFolder folder = regionFolder.get();
+		if (!(folder instanceof RemoteRegionFolder) || previous == null)
+			return;
+		double width = frustum.maxX - frustum.minX, height = frustum.maxY - frustum.minY;
+		if (width != previous.maxX - previous.minX || height != previous.maxY - previous.minY)
+			return;
+		Vector2d motion = new Vector2d(frustum.minX - previous.minX, frustum.minY - previous.minY);
+		if (motion.lengthSquared() == 0)
+			return;
+		motion.normalize(Math.max(width, height) / 2);
+		List<Vector2ic> ahead = new ArrayList<>();
+		for (int x = (int) Math.floor((frustum.minX + motion.x) / 512); x <= (int) Math.floor((frustum.maxX + motion.x) / 512); x++)
+			for (int z = (int) Math.floor((frustum.minY + motion.y) / 512); z <= (int) Math.floor((frustum.maxY + motion.y) / 512); z++)
+				ahead.add(new Vector2i(x, z));
+		((RemoteRegionFolder) folder).prefetch(ahead);
+	}
+
 	/** Returns the next Region to render */
 	protected synchronized RenderedRegion nextRegion() {
 		// In region coordinates
-		Vector3d cursorPos = new Vector3d(viewport.getMouseInWorld(), 0).div(512).sub(.5, .5, 0);
-
-		Comparator<RenderedRegion> comp = (a, b) -> Double.compare(new Vector3d(a.position.x(), a.position.y(), 0).sub(cursorPos).length(),
-				new Vector3d(b.position.x(), b.position.y(), 0).sub(cursorPos).length());
-		RenderedRegion min = null;
-		for (RenderedRegion r : map.get(0).values())
-			if (r.valid.get() == RenderingState.INVALID && (min == null || comp.compare(min, r) > 0))
-				min = r;
-		if (min != null)
-			// min got handled by another thread already (while we were still searching), so get a new one
-			if (!min.valid.compareAndSet(RenderingState.INVALID, RenderingState.DRAWING))
-				return nextRegion();
-		return min;
+		Vector2d cursorPos = new Vector2d(viewport.getMouseInWorld()).mul(1 / 512.0).sub(.5, .5);
+
+		while (true) {
+			long min = 0;
+			double minDistance = Double.POSITIVE_INFINITY;
+			for (long key : map.getPending()) {
+				double distance = cursorPos.distanceSquared(RegionQuadtree.x(key), RegionQuadtree.z(key));
+				if (distance < minDistance) {
+					min = key;
+					minDistance = distance;
+				}
+			}
+			if (minDistance == Double.POSITIVE_INFINITY)
+				return null;
+			RenderedRegion region = map.claim(min);
+			// If min got handled by another thread already (while we were still searching), get a new one
+			if (region != null)
+				return region;
+		}
 	}
 
 	/** @return a*2^n using bit shifting */
@@ -5,12 +5,10 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -34,6 +32,8 @@ import com.codepoetics.protonpack.StreamUtils;
 import de.piegames.blockmap.gui.DisplayViewport;
 import de.piegames.blockmap.world.ChunkMetadata;
 import de.piegames.blockmap.world.ChunkMetadata.ChunkGenerationStatus;
+import de.piegames.blockmap.world.LongMap;
+import de.piegames.blockmap.world.LongSet;
 import de.piegames.blockmap.world.WorldPins;
 import de.saibotk.jmaw.ApiResponseException;
 import de.saibotk.jmaw.MojangAPI;
@@ -801,44 +801,41 @@ public class Pin {
 	/** Convert the {@link ChunkMetadata} that was generated while rendering into (dynamic) pins. */
 	public static List<Pin> convertDynamic(Map<Vector2ic, ChunkMetadata> metadataMap, DisplayViewport viewport) {
 		List<Pin> pins = new ArrayList<>();
-		Set<Vector2ic> oldChunks = new HashSet<>(), failedChunks = new HashSet<>(), unfinishedChunks = new HashSet<>();
+		LongSet oldChunks = new LongSet(), failedChunks = new LongSet(), unfinishedChunks = new LongSet();
 		/* Map each generation status to the amount of chunks with this state */
 		int[] unfinishedCount = new int[ChunkGenerationStatus.values().length];
 		for (ChunkMetadata metadata : metadataMap.values()) {
 			switch (metadata.renderState) {
 			case RENDERED:
 				if (metadata.generationStatus != null && metadata.generationStatus != ChunkGenerationStatus.POSTPROCESSED)
-					unfinishedChunks.add(metadata.position);
+					unfinishedChunks.add(LongMap.key(metadata.position));
 				unfinishedCount[metadata.generationStatus.ordinal()]++;
 				break;
 			case FAILED:
-				failedChunks.add(metadata.position);
+				failedChunks.add(LongMap.key(metadata.position));
 				break;
 			case TOO_OLD:
-				oldChunks.add(metadata.position);
+				oldChunks.add(LongMap.key(metadata.position));
 				break;
 			default:
 				break;
 			}
 		}
 
-		for (Set<Vector2ic> chunks : splitChunks(unfinishedChunks)) {
-			Vector2dc center = chunks.stream().map(v -> new Vector2d(v.x() * 16.0 + 8, v.y() * 16.0 + 8)).collect(Vector2d::new, Vector2d::add,
-					Vector2d::add).mul(1.0 / chunks.size());
+		for (LongSet chunks : splitChunks(unfinishedChunks)) {
+			Vector2dc center = center(chunks);
 			pins.add(new UnfinishedChunkPin(center, outlineSet(chunks), unfinishedCount,
 					new Image(Pin.class.getResource("textures/overlays/chunk_unfinished.png").toString(), 64, 64, true, false),
 					viewport));
 		}
-		for (Set<Vector2ic> chunks : splitChunks(failedChunks)) {
-			Vector2dc center = chunks.stream().map(v -> new Vector2d(v.x() * 16.0 + 8, v.y() * 16.0 + 8)).collect(Vector2d::new, Vector2d::add,
-					Vector2d::add).mul(1.0 / chunks.size());
+		for (LongSet chunks : splitChunks(failedChunks)) {
+			Vector2dc center = center(chunks);
 			pins.add(new ChunkPin(PinType.CHUNK_UNFINISHED, center, outlineSet(chunks),
 					new Image(Pin.class.getResource("textures/overlays/chunk_corrupted.png").toString(), 64, 64, true, false),
 					viewport));
 		}
-		for (Set<Vector2ic> chunks : splitChunks(oldChunks)) {
-			Vector2dc center = chunks.stream().map(v -> new Vector2d(v.x() * 16.0 + 8, v.y() * 16.0 + 8)).collect(Vector2d::new, Vector2d::add,
-					Vector2d::add).mul(1.0 / chunks.size());
+		for (LongSet chunks : splitChunks(oldChunks)) {
+			Vector2dc center = center(chunks);
 			pins.add(new ChunkPin(PinType.CHUNK_UNFINISHED, center, outlineSet(chunks),
 					new Image(Pin.class.getResource("textures/overlays/chunk_outdated.png").toString(), 64, 64, true, false),
 					viewport));
@@ -893,19 +890,22 @@ public class Pin {
 	 * @param chunks
 	 *            A set of chunk positions. This will be emptied during the calculation.
 	 */
-	private static List<Set<Vector2ic>> splitChunks(Set<Vector2ic> chunks) {
-		List<Set<Vector2ic>> islands = new ArrayList<>();
-		while (!chunks.isEmpty()) {
-			Set<Vector2ic> done = new HashSet<>();
-			Queue<Vector2ic> todo = new LinkedList<>();
-			todo.add(chunks.iterator().next());
-			chunks.remove(todo.element());
-			while (!todo.isEmpty()) {
-				Vector2ic current = todo.remove();
-				for (Vector2i neighbor : new Vector2i[] { new Vector2i(-1, 0), new Vector2i(1, 0), new Vector2i(0, -1), new Vector2i(0, 1) }) {
-					neighbor.add(current);
+	private static List<LongSet> splitChunks(LongSet chunks) {
+		List<LongSet> islands = new ArrayList<>();
+		/* Each chunk gets visited at most once */
+		long[] todo = new long[chunks.size()];
+		for (long start : chunks.toArray()) {
+			if (!chunks.remove(start))
+				continue;
+			LongSet done = new LongSet();
+			int todoCount = 0;
+			todo[todoCount++] = start;
+			while (todoCount > 0) {
+				long current = todo[--todoCount];
+				for (int i = 0; i < 4; i++) {
+					long neighbor = LongMap.key(LongMap.x(current) + NEIGHBORS[2 * i], LongMap.z(current) + NEIGHBORS[2 * i + 1]);
 					if (chunks.remove(neighbor))
-						todo.add(neighbor);
+						todo[todoCount++] = neighbor;
 				}
 				done.add(current);
 			}
@@ -914,8 +914,18 @@ public class Pin {
 		return islands;
 	}
 
+	/** The offsets of the four direct neighbors of a chunk */
+	private static final int[] NEIGHBORS = { -1, 0, 1, 0, 0, -1, 0, 1 };
+
+	/** The center of a set of chunks, in world coordinates */
+	private static Vector2dc center(LongSet chunks) {
+		Vector2d center = new Vector2d();
+		chunks.forEach(chunk -> center.add(LongMap.x(chunk) * 16.0 + 8, LongMap.z(chunk) * 16.0 + 8));
+		return center.mul(1.0 / chunks.size());
+	}
+
 	/**
-	 * This method takes in a set of four-connected chunk coordinates (as {@link #splitChunks(Set)} would output) and calculates its outline.
+	 * This method takes in a set of four-connected chunk coordinates (as {@link #splitChunks(LongSet)} would output) and calculates its outline.
 	 * The outline is a set of vertices that when taken together as a polygon result in a shape exactly covering the input set. The input may
 	 * have concavities, but no enclaves.<br />
 	 * 
@@ -936,24 +946,25 @@ public class Pin {
 	 * samples. Then, the position is updated based on the current move direction and the sample is updated based on the new position. The
 	 * sample is updated using bit magic, so (except for the start) only two queries are made to the input set per move.
 	 */
-	private static List<Vector2ic> outlineSet(Set<Vector2ic> chunks) {
+	private static List<Vector2ic> outlineSet(LongSet chunks) {
 		if (chunks.isEmpty())
 			return Collections.emptyList();
-		Vector2i pos = new Vector2i(chunks.iterator().next());
+		long first = chunks.toArray()[0];
+		Vector2i pos = new Vector2i(LongMap.x(first), LongMap.z(first));
 		/* O O <- bit 4, 3 */
 		/* O X <- bit 2, 1 | X: Current position */
 		int sample = 0;
 		/* top-left */
-		if (chunks.contains(new Vector2i(0, 0).add(pos)))
+		if (chunks.contains(pos.x, pos.y))
 			sample |= 0b1000;
 		/* top-right */
-		if (chunks.contains(new Vector2i(1, 0).add(pos)))
+		if (chunks.contains(pos.x + 1, pos.y))
 			sample |= 0b0100;
 		/* bottom-left */
-		if (chunks.contains(new Vector2i(0, 1).add(pos)))
+		if (chunks.contains(pos.x, pos.y + 1))
 			sample |= 0b0010;
 		/* bottom-right */
-		if (chunks.contains(new Vector2i(1, 1).add(pos)))
+		if (chunks.contains(pos.x + 1, pos.y + 1))
 			sample |= 0b0001;
 		int direction = 0;
 
@@ -1009,10 +1020,10 @@ public class Pin {
 				sample = (sample << 1) & 0b1010;
 
 				/* top-right */
-				if (chunks.contains(new Vector2i(1, 0).add(pos)))
+				if (chunks.contains(pos.x + 1, pos.y))
 					sample |= 0b0100;
 				/* bottom-right */
-				if (chunks.contains(new Vector2i(1, 1).add(pos)))
+				if (chunks.contains(pos.x + 1, pos.y + 1))
 					sample |= 0b0001;
 				break;
 
@@ -1022,10 +1033,10 @@ public class Pin {
 				sample = (sample << 2) & 0b1100;
 
 				/* bottom-left */
-				if (chunks.contains(new Vector2i(0, 1).add(pos)))
+				if (chunks.contains(pos.x, pos.y + 1))
 					sample |= 0b0010;
 				/* bottom-right */
-				if (chunks.contains(new Vector2i(1, 1).add(pos)))
+				if (chunks.contains(pos.x + 1, pos.y + 1))
 					sample |= 0b0001;
 				break;
 
@@ -1035,10 +1046,10 @@ public class Pin {
 				sample = (sample >>> 1) & 0b0101;
 
 				/* top-left */
-				if (chunks.contains(new Vector2i(0, 0).add(pos)))
+				if (chunks.contains(pos.x, pos.y))
 					sample |= 0b1000;
 				/* bottom-left */
-				if (chunks.contains(new Vector2i(0, 1).add(pos)))
+				if (chunks.contains(pos.x, pos.y + 1))
 					sample |= 0b0010;
 				break;
 
@@ -1048,10 +1059,10 @@ public class Pin {
 				sample = (sample >>> 2) & 0b0011;
 
 				/* top-left */
-				if (chunks.contains(new Vector2i(0, 0).add(pos)))
+				if (chunks.contains(pos.x, pos.y))
 					sample |= 0b1000;
 				/* top-right */
-				if (chunks.contains(new Vector2i(1, 0).add(pos)))
+				if (chunks.contains(pos.x + 1, pos.y))
 					sample |= 0b0100;
 				break;
 			}
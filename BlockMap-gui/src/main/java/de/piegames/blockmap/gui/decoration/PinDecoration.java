@@ -3,7 +3,6 @@ package de.piegames.blockmap.gui.decoration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -11,7 +10,6 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Queue;
 import java.util.function.Consumer;
-import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import org.apache.commons.logging.Log;
@@ -24,6 +22,8 @@ import org.joml.Vector2ic;
 import de.piegames.blockmap.gui.DisplayViewport;
 import de.piegames.blockmap.gui.decoration.Pin.MergedPin;
 import de.piegames.blockmap.gui.decoration.Pin.PinType;
+import de.piegames.blockmap.world.LongMap;
+import de.piegames.blockmap.world.LongSet;
 import javafx.animation.KeyFrame;
 import javafx.animation.Timeline;
 import javafx.beans.InvalidationListener;
@@ -55,7 +55,10 @@ public class PinDecoration extends AnchorPane implements ChangeListener<Number>
 	public final SetProperty<PinType>	visiblePins		= new SimpleSetProperty<>(FXCollections.observableSet());
 
 	private Collection<Pin>				staticPins;
-	private Map<Vector2ic, PinRegion>	byRegion		= Collections.emptyMap();
+	/** The positions of all regions in the world */
+	private LongSet						worldRegions	= new LongSet();
+	/** Only the regions that contain pins or have been loaded, and their neighbors. */
+	private LongMap<PinRegion>			byRegion		= new LongMap<>();
 	private final List<PinGroup>		byGroup			= new ArrayList<>();
 
 	private LimitedExecutionHandler		executeUpdate	= new LimitedExecutionHandler(this::updateVisible,
@@ -102,13 +105,28 @@ public class PinDecoration extends AnchorPane implements ChangeListener<Number>
 		final Vector2ic			position;
 		List<Pin>				pins		= new ArrayList<>();
 		private List<PinGroup>	clusters	= new ArrayList<>();
-		PinRegion[]				neighbors;
+		private PinRegion[]		neighbors;
 		private boolean			valid		= false, loaded = false;
 
 		PinRegion(Vector2ic position) {
 			this.position = Objects.requireNonNull(position);
 		}
 
+		/** All regions in a 3×3 area around this one that are part of the world, including this one. They will be created if needed. */
+		PinRegion[] neighbors() {
+			if (neighbors == null) {
+				List<PinRegion> regions = new ArrayList<>(9);
+				for (int z = -1; z <= 1; z++)
+					for (int x = -1; x <= 1; x++) {
+						PinRegion region = getRegion(position.x() + x, position.y() + z);
+						if (region != null)
+							regions.add(region);
+					}
+				neighbors = regions.toArray(new PinRegion[regions.size()]);
+			}
+			return neighbors;
+		}
+
 		void updateVisible() {
 			valid = false;
 			clusters.clear();
@@ -128,16 +146,16 @@ public class PinDecoration extends AnchorPane implements ChangeListener<Number>
 		}
 
 		private void mergeGroups() {
-			if (valid && Arrays.stream(neighbors).allMatch(r -> r.valid)) {
+			if (valid && Arrays.stream(neighbors()).allMatch(r -> r.valid)) {
 				/* Merge nearby clusters */
 				while (true) {
 					double minDist = Double.POSITIVE_INFINITY;
 					PinGroup minG = null, minH = null;
 					PinRegion minR = null, minS = null;
 
-					for (PinRegion r : neighbors)
+					for (PinRegion r : neighbors())
 						for (PinGroup g : r.clusters)
-							for (PinRegion s : neighbors)
+							for (PinRegion s : neighbors())
 								for (PinGroup h : s.clusters) {
 									if (g == h)
 										continue;
@@ -160,7 +178,7 @@ public class PinDecoration extends AnchorPane implements ChangeListener<Number>
 							this.clusters.add(merged);
 						else {
 							Vector2i regionPos = new Vector2i((int) merged.center.x() >> 9, (int) merged.center.y() >> 9);
-							Arrays.stream(neighbors)
+							Arrays.stream(neighbors())
 									.filter(n -> n.position.equals(regionPos))
 									.findAny()
 									.orElseThrow(() -> new InternalError("regionPos should be the same as one of the merged pin's parents")).clusters.add(
@@ -234,7 +252,7 @@ public class PinDecoration extends AnchorPane implements ChangeListener<Number>
 
 			/* Notify all neighbors in a 3×3 area so they may merge nearby groups */
 
-			for (PinRegion r : neighbors)
+			for (PinRegion r : neighbors())
 				r.mergeGroups();
 		}
 	}
@@ -344,53 +362,49 @@ public class PinDecoration extends AnchorPane implements ChangeListener<Number>
 		}
 	}
 
-	private static final Vector2ic[] connectivity8 = new Vector2ic[] {
-			new Vector2i(-1, -1), new Vector2i(0, -1), new Vector2i(1, -1),
-			new Vector2i(-1, 0), new Vector2i(0, 0), new Vector2i(1, 0),
-			new Vector2i(-1, 1), new Vector2i(0, 1), new Vector2i(1, 1)
-	};
-
 	public void loadWorld(Collection<Vector2ic> regions, Collection<Pin> staticPins) {
 		this.staticPins = Objects.requireNonNull(staticPins);
-
-		byRegion = regions.stream().collect(Collectors.toMap(Function.identity(), PinRegion::new));
-		for (Vector2ic r : byRegion.keySet())
-			byRegion.get(r).neighbors = Arrays.stream(connectivity8)
-					.map(v -> v.add(r, new Vector2i()))
-					.filter(byRegion::containsKey)
-					.map(byRegion::get)
-					.collect(Collectors.toList())
-					.toArray(new PinRegion[0]);
+		this.worldRegions = new LongSet(regions.size());
+		for (Vector2ic region : regions)
+			worldRegions.add(LongMap.key(region));
 		reloadWorld();
 	}
 
 	public void reloadWorld() {
 		byGroup.forEach(PinGroup::remove);
 		byGroup.clear();
-		byRegion.values().forEach(PinRegion::unload);
+		/* Regions are created lazily, so simply drop them all */
+		byRegion.clear();
 		for (Pin p : staticPins) {
-			Vector2i pos = new Vector2i((int) (p.position.x()) >> 9, (int) (p.position.y()) >> 9);
-			if (!byRegion.containsKey(pos))
+			PinRegion region = getRegion((int) (p.position.x()) >> 9, (int) (p.position.y()) >> 9);
+			if (region == null)
 				log.warn("Pin " + p + " is outside of the world's bounds and will be ignored");
 			else
-				byRegion.get(pos).pins.add(p);
+				region.pins.add(p);
 		}
 	}
 
 	public void loadRegion(Vector2ic region, Collection<Pin> dynamicPins) {
-		if (byRegion.containsKey(region))
-			byRegion.get(region).load(dynamicPins);
+		PinRegion pinRegion = getRegion(region.x(), region.y());
+		if (pinRegion != null)
+			pinRegion.load(dynamicPins);
 		else
 			log.warn("Dynamic pins for region " + region + " are out of the world's bounds and will be ignored");
 	}
 
+	/** Get the region at that position, and create it if it does not exist yet. Returns {@code null} if the position is outside of the world. */
+	private PinRegion getRegion(int x, int z) {
+		long key = LongMap.key(x, z);
+		if (!worldRegions.contains(key))
+			return null;
+		return byRegion.computeIfAbsent(key, k -> new PinRegion(new Vector2i(x, z)));
+	}
+
 	private void updateVisible() {
 		byGroup.forEach(PinGroup::remove);
 		byGroup.clear();
-		int i = 0;
 		Timeline t = new Timeline();
-		for (PinRegion r : byRegion.values())
-			t.getKeyFrames().add(new KeyFrame(Duration.millis(1 * i++), e -> r.updateVisible()));
+		byRegion.forEachValue(r -> t.getKeyFrames().add(new KeyFrame(Duration.millis(t.getKeyFrames().size()), e -> r.updateVisible())));
 		t.playFromStart();
 	}
 
@@ -8,7 +8,7 @@ import java.util.ResourceBundle;
 import org.controlsfx.control.RangeSlider;
 
 import de.piegames.blockmap.gui.WorldRendererCanvas;
-import de.piegames.blockmap.renderer.RenderSettings;
+import de.piegames.blockmap.renderer.RegionRenderer;
 import javafx.animation.TranslateTransition;
 import javafx.beans.binding.Bindings;
 import javafx.beans.value.ChangeListener;
@@ -33,11 +33,11 @@ public class SettingsOverlay extends AnchorPane implements Initializable {
 	private VBox					rightMenu;
 
 	protected WorldRendererCanvas	panel;
-	protected RenderSettings		settings;
+	protected RegionRenderer		renderer;
 
-	public SettingsOverlay(WorldRendererCanvas panel, RenderSettings settings) {
+	public SettingsOverlay(WorldRendererCanvas panel, RegionRenderer renderer) {
 		this.panel = Objects.requireNonNull(panel);
-		this.settings = Objects.requireNonNull(settings);
+		this.renderer = Objects.requireNonNull(renderer);
 		try {
 			FXMLLoader loader = new FXMLLoader(getClass().getResource("SettingsOverlay.fxml"));
 			loader.setRoot(this);
@@ -55,10 +55,9 @@ public class SettingsOverlay extends AnchorPane implements Initializable {
 
 		ChangeListener<? super Boolean> heightListener = (e, oldVal, newVal) -> {
 			if (oldVal && !newVal) {
-				if (e == heightSlider.lowValueChangingProperty())
-					settings.minY = (int) Math.round(heightSlider.lowValueProperty().getValue().doubleValue());
-				else if (e == heightSlider.highValueChangingProperty())
-					settings.maxY = (int) Math.round(heightSlider.highValueProperty().getValue().doubleValue());
+				renderer.setSettings(renderer.getSettings().withHeight(
+						(int) Math.round(heightSlider.lowValueProperty().getValue().doubleValue()),
+						(int) Math.round(heightSlider.highValueProperty().getValue().doubleValue())));
 				panel.invalidateTextures();
 				panel.repaint();
 			}
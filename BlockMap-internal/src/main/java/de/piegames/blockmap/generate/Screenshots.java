@@ -39,17 +39,16 @@ public class Screenshots {
 	private static Log log = LogFactory.getLog(Screenshots.class);
 
 	public static void generateDemoRenders() throws IOException {
-		RenderSettings settings = new RenderSettings();
-		settings.loadDefaultColors();
+		RenderSettings settings = new RenderSettings().withDefaultColors();
 		RegionRenderer renderer = new RegionRenderer(settings);
 		{ /* Color maps */
 			log.info("Generating color map screenshots");
-			settings.maxY = 50;
-			BufferedImage img1 = generateScreenshot(renderer, settings, new Vector2i(-1, 1), BlockColorMap.InternalColorMap.CAVES);
-			settings.maxY = 255;
-			BufferedImage img2 = generateScreenshot(renderer, settings, new Vector2i(0, 1), BlockColorMap.InternalColorMap.NO_FOLIAGE);
-			BufferedImage img3 = generateScreenshot(renderer, settings, new Vector2i(-1, 2), BlockColorMap.InternalColorMap.OCEAN_GROUND);
-			BufferedImage img4 = generateScreenshot(renderer, settings, new Vector2i(0, 2), BlockColorMap.InternalColorMap.DEFAULT);
+			renderer.setSettings(settings.withHeight(settings.minY, 50));
+			BufferedImage img1 = generateScreenshot(renderer, new Vector2i(-1, 1), BlockColorMap.InternalColorMap.CAVES);
+			renderer.setSettings(settings.withHeight(settings.minY, 255));
+			BufferedImage img2 = generateScreenshot(renderer, new Vector2i(0, 1), BlockColorMap.InternalColorMap.NO_FOLIAGE);
+			BufferedImage img3 = generateScreenshot(renderer, new Vector2i(-1, 2), BlockColorMap.InternalColorMap.OCEAN_GROUND);
+			BufferedImage img4 = generateScreenshot(renderer, new Vector2i(0, 2), BlockColorMap.InternalColorMap.DEFAULT);
 			BufferedImage img = new BufferedImage(1024, 1024, BufferedImage.TYPE_INT_ARGB);
 			Graphics2D g = img.createGraphics();
 			g.drawImage(img1, 0, 0, null);
@@ -68,14 +67,13 @@ public class Screenshots {
 		}
 		{ /* Shaders */
 			log.info("Generating shader screenshots");
-			BufferedImage img1 = generateScreenshot(renderer, settings, new Vector2i(-1, 1), BlockColorMap.InternalColorMap.DEFAULT);
-			settings.shader = RegionShader.DefaultShader.RELIEF.getShader();
-			settings.shader = RegionShader.DefaultShader.FLAT.getShader();
-			BufferedImage img2 = generateScreenshot(renderer, settings, new Vector2i(0, 1), BlockColorMap.InternalColorMap.DEFAULT);
-			settings.shader = RegionShader.DefaultShader.HEIGHTMAP.getShader();
-			BufferedImage img3 = generateScreenshot(renderer, settings, new Vector2i(-1, 2), BlockColorMap.InternalColorMap.OCEAN_GROUND);
-			settings.shader = RegionShader.DefaultShader.BIOMES.getShader();
-			BufferedImage img4 = generateScreenshot(renderer, settings, new Vector2i(0, 2), BlockColorMap.InternalColorMap.DEFAULT);
+			BufferedImage img1 = generateScreenshot(renderer, new Vector2i(-1, 1), BlockColorMap.InternalColorMap.DEFAULT);
+			renderer.setSettings(renderer.getSettings().withShader(RegionShader.DefaultShader.FLAT.getShader()));
+			BufferedImage img2 = generateScreenshot(renderer, new Vector2i(0, 1), BlockColorMap.InternalColorMap.DEFAULT);
+			renderer.setSettings(renderer.getSettings().withShader(RegionShader.DefaultShader.HEIGHTMAP.getShader()));
+			BufferedImage img3 = generateScreenshot(renderer, new Vector2i(-1, 2), BlockColorMap.InternalColorMap.OCEAN_GROUND);
+			renderer.setSettings(renderer.getSettings().withShader(RegionShader.DefaultShader.BIOMES.getShader()));
+			BufferedImage img4 = generateScreenshot(renderer, new Vector2i(0, 2), BlockColorMap.InternalColorMap.DEFAULT);
 			BufferedImage img = new BufferedImage(1024, 1024, BufferedImage.TYPE_INT_ARGB);
 			Graphics2D g = img.createGraphics();
 			g.drawImage(img1, 0, 0, null);
@@ -95,8 +93,7 @@ public class Screenshots {
 	}
 
 	public static void generateScreenshots() throws Exception {
-		RenderSettings settings = new RenderSettings();
-		settings.loadDefaultColors();
+		RenderSettings settings = new RenderSettings().withDefaultColors();
 		RegionRenderer renderer = new RegionRenderer(settings);
 		Thread th = new Thread(() -> GuiMain.main());
 		th.start();
@@ -210,12 +207,11 @@ public class Screenshots {
 		}
 	}
 
-	private static BufferedImage generateScreenshot(RegionRenderer renderer, RenderSettings settings, Vector2i toRender, BlockColorMap.InternalColorMap colors)
-			throws IOException {
+	private static BufferedImage generateScreenshot(RegionRenderer renderer, Vector2i toRender, BlockColorMap.InternalColorMap colors) throws IOException {
 		RegionFile file = new RegionFile(Paths.get(URI.create(Generator.class.getResource("/BlockMapWorld/region/r." + toRender.x + "." + toRender.y
 				+ ".mca")
 				.toString())));
-		settings.blockColors = colors.getColorMap();
+		renderer.setSettings(renderer.getSettings().withBlockColors(colors.getColorMap()));
 		return renderer.render(toRender, file).getImage();
 	}
 
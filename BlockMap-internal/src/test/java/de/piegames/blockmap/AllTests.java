@@ -9,6 +9,14 @@ import org.junit.runners.Suite;
 		ColorCompilerTest.class,
 		RegionRendererTest.class,
 		RegionFolderTest.class,
+		RegionArchivesTest.class,
+		RenderPipelineTest.class,
+		RegionMetadataTest.class,
+		LongMapTest.class,
+		TileCacheTest.class,
+		TileDownloaderTest.class,
+		PostProcessingTest.class,
+		RegionQuadtreeTest.class,
 		CommandLineTest.class
 })
 public class AllTests {
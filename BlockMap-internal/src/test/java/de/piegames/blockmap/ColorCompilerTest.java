@@ -50,11 +50,11 @@ public class ColorCompilerTest {
 	/** The debug world contains every single block and block state that exists in the game, so let's test it */
 	@Test
 	public void testDebugWorld() throws IOException, URISyntaxException, InterruptedException {
-		RenderSettings settings = new RenderSettings();
-		settings.shader = RegionShader.DefaultShader.FLAT.getShader();
-		settings.blockColors = ColorCompiler.compileBlockColors(minecraftJarfile, Paths.get(getClass().getResource("/block-color-instructions.json").toURI()))
-				.get("default");
-		settings.biomeColors = ColorCompiler.compileBiomeColors(minecraftJarfile, Paths.get(getClass().getResource("/biome-color-instructions.json").toURI()));
+		RenderSettings settings = new RenderSettings()
+				.withShader(RegionShader.DefaultShader.FLAT.getShader())
+				.withBlockColors(ColorCompiler.compileBlockColors(minecraftJarfile, Paths.get(getClass().getResource("/block-color-instructions.json").toURI()))
+						.get("default"))
+				.withBiomeColors(ColorCompiler.compileBiomeColors(minecraftJarfile, Paths.get(getClass().getResource("/biome-color-instructions.json").toURI())));
 		RegionRenderer renderer = new RegionRenderer(settings);
 		assertNoMissing(renderer.render(new Vector2i(-1, -1), new RegionFile(Paths.get(getClass().getResource("/Debug/region/r.-1.-1.mca").toURI())))
 				.getImage());
@@ -2,17 +2,53 @@ package de.piegames.blockmap;
 
 import static org.junit.Assert.*;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
+import org.joml.Vector2i;
+import org.joml.Vector2ic;
 import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import com.flowpowered.nbt.regionfile.RegionFile;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+
+import de.piegames.blockmap.renderer.RegionRenderer;
 import de.piegames.blockmap.standalone.CommandLineMain;
 import de.piegames.blockmap.standalone.PostProcessing;
+import de.piegames.blockmap.standalone.TileServer;
+import de.piegames.blockmap.world.ChangeFeed;
+import de.piegames.blockmap.world.ChunkMetadata;
+import de.piegames.blockmap.world.ChunkMetadata.ChunkGenerationStatus;
+import de.piegames.blockmap.world.ChunkMetadata.ChunkRenderState;
+import de.piegames.blockmap.world.Region.LocalSavedRegion;
 import de.piegames.blockmap.world.RegionFolder;
+import de.piegames.blockmap.world.RegionWatcher;
+import de.piegames.blockmap.world.RenderPipeline;
 
 public class CommandLineTest {
 
@@ -52,6 +88,217 @@ public class CommandLineTest {
 				"--dimension=OVERWORLD", "save", "--world-name=testworld", "-p");
 	}
 
+	/** Scan a world with a corrupt chunk, both directly and using the CLI */
+	@Test
+	public void testScan() throws IOException {
+		Path world = folder.newFolder().toPath();
+		Path region = Files.createDirectories(world.resolve("region"));
+		TestRegions.write(region.resolve("r.0.0.mca"), List.of(new Vector2i(0, 0), new Vector2i(1, 0)), 1, "minecraft:stone");
+		byte[] corrupt = TestRegions.region(List.of(new Vector2i(3, 3), new Vector2i(4, 3)), 1, "minecraft:stone");
+		/* Overwrite the compressed data of the second chunk */
+		int offset = (ByteBuffer.wrap(corrupt).getInt((4 | 3 << 5) * 4) >>> 8) * 4096;
+		Arrays.fill(corrupt, offset + 5, offset + 50, (byte) 0x55);
+		Files.write(region.resolve("r.-1.0.mca"), corrupt);
+
+		Map<Vector2ic, ChunkMetadata> scanned = RegionRenderer.scan(new Vector2i(-1, 0), new RegionFile(region.resolve("r.-1.0.mca")));
+		assertEquals(Set.of(new Vector2i(-29, 3), new Vector2i(-28, 3)), scanned.keySet());
+		assertEquals(ChunkRenderState.RENDERED, scanned.get(new Vector2i(-29, 3)).renderState);
+		assertEquals(ChunkGenerationStatus.POSTPROCESSED, scanned.get(new Vector2i(-29, 3)).generationStatus);
+		assertEquals(ChunkRenderState.FAILED, scanned.get(new Vector2i(-28, 3)).renderState);
+
+		Path output = folder.getRoot().toPath().resolve("scan.json");
+		CommandLineMain.main("scan", "--dimension=OVERWORLD", "-o=" + output, world.toString());
+		JsonArray regions = new JsonParser().parse(Files.readString(output)).getAsJsonArray();
+		/* Written in the order they were scanned */
+		List<Vector2ic> order = RenderPipeline.hilbertOrder(List.of(new Vector2i(-1, 0), new Vector2i(0, 0)));
+		assertEquals(2, regions.size());
+		for (int i = 0; i < order.size(); i++)
+			assertEquals(order.get(i).x(), regions.get(i).getAsJsonObject().get("x").getAsInt());
+		List<ChunkMetadata> written = RegionFolder.GSON.fromJson(regions.get(order.indexOf(new Vector2i(-1, 0))).getAsJsonObject().get("metadata"),
+				new TypeToken<List<ChunkMetadata>>() {
+				}.getType());
+		assertEquals(scanned.size(), written.size());
+		for (ChunkMetadata chunk : written)
+			assertEquals(scanned.get(chunk.position).renderState, chunk.renderState);
+		assertEquals(2, regions.get(order.indexOf(new Vector2i(0, 0))).getAsJsonObject().getAsJsonArray("metadata").size());
+	}
+
+	/** The {@link RegionWatcher} must report the positions of changed region files, but not other files */
+	@Test
+	public void testRegionWatcher() throws Exception {
+		Path region = folder.newFolder().toPath();
+		try (RegionWatcher watcher = new RegionWatcher(region)) {
+			Files.write(region.resolve("r.2.-3.mca"), new byte[0]);
+			Files.write(region.resolve("r.2.-3.mca.tmp"), new byte[0]);
+			Files.write(region.resolve("level.dat"), new byte[0]);
+			assertEquals(Set.of(new Vector2i(2, -3)), watcher.awaitChanges(Duration.ofMillis(500), Duration.ofSeconds(10)));
+			assertEquals(region.resolve("r.2.-3.mca"), watcher.getRegionPath(new Vector2i(2, -3)));
+		}
+	}
+
+	/** Watch a world for changes and check that only the regions with newly saved chunks get rendered again */
+	@Test
+	public void testWatch() throws Exception {
+		Path region = folder.newFolder().toPath();
+		Path output = folder.newFolder().toPath();
+		List<Vector2i> chunks = List.of(new Vector2i(0, 0), new Vector2i(1, 0));
+		TestRegions.write(region.resolve("r.0.0.mca"), chunks, 1, "minecraft:stone");
+		byte[] unchanged = TestRegions.region(chunks, 1, "minecraft:grass_block");
+		Files.write(region.resolve("r.1.0.mca"), unchanged);
+
+		Thread watch = new Thread(() -> CommandLineMain.main("render", "--watch", "--watch-delay=1", "-o=" + output, region.toString()));
+		watch.start();
+		try {
+			Path feed = output.resolve(ChangeFeed.FILE_NAME);
+			FileTime rendered = null;
+			/* The watcher may not be running yet, so keep saving until it notices */
+			for (int timestamp = 2; !Files.exists(feed) || Files.size(feed) == 0; timestamp++) {
+				assertTrue("No change has been reported", timestamp < 30);
+				if (Files.exists(output.resolve("r.1.0.png"))) {
+					if (rendered == null) {
+						/* The image may still be written to */
+						Thread.sleep(2000);
+						rendered = Files.getLastModifiedTime(output.resolve("r.1.0.png"));
+					}
+					/* The server saved new chunks to one region file, and wrote the other one without changing anything */
+					TestRegions.write(region.resolve("r.0.0.mca"), chunks, timestamp, "minecraft:stone");
+					Files.write(region.resolve("r.1.0.mca"), unchanged);
+				}
+				Thread.sleep(1000);
+			}
+
+			List<ChangeFeed.Change> changes = ChangeFeed.read(feed, -1);
+			assertFalse(changes.isEmpty());
+			for (ChangeFeed.Change change : changes)
+				assertEquals(Set.of(new Vector2i(0, 0)), change.getPositions());
+			assertEquals(rendered, Files.getLastModifiedTime(output.resolve("r.1.0.png")));
+		} finally {
+			watch.interrupt();
+			watch.join(10000);
+		}
+	}
+
+	/** Serve a folder on localhost and check the caching and range headers */
+	@Test
+	public void testServe() throws IOException {
+		File root = folder.newFolder();
+		byte[] data = new byte[10000];
+		new Random(42).nextBytes(data);
+		Files.write(root.toPath().resolve("r.0.0.png"), data);
+		try (TileServer server = new TileServer(root.toPath(), new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2, 1 << 20)) {
+			server.start();
+			URL url = new URL("http", "localhost", server.getAddress().getPort(), "/r.0.0.png");
+
+			HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+			assertEquals(200, connection.getResponseCode());
+			assertEquals("image/png", connection.getContentType());
+			String etag = connection.getHeaderField("ETag");
+			assertNotNull(etag);
+			try (InputStream in = connection.getInputStream()) {
+				assertArrayEquals(data, in.readAllBytes());
+			}
+
+			connection = (HttpURLConnection) url.openConnection();
+			connection.setRequestProperty("If-None-Match", etag);
+			assertEquals(304, connection.getResponseCode());
+
+			connection = (HttpURLConnection) url.openConnection();
+			connection.setRequestProperty("Range", "bytes=100-199");
+			assertEquals(206, connection.getResponseCode());
+			assertEquals("bytes 100-199/10000", connection.getHeaderField("Content-Range"));
+			try (InputStream in = connection.getInputStream()) {
+				assertArrayEquals(Arrays.copyOfRange(data, 100, 200), in.readAllBytes());
+			}
+
+			connection = (HttpURLConnection) url.openConnection();
+			connection.setRequestProperty("Range", "bytes=20000-");
+			assertEquals(416, connection.getResponseCode());
+
+			/* Files too large for the cache are streamed from disk, in multiple reads */
+			byte[] large = new byte[200000];
+			new Random(43).nextBytes(large);
+			Files.write(root.toPath().resolve("rendered.json.gz"), large);
+			URL largeUrl = new URL(url, "/rendered.json.gz");
+			connection = (HttpURLConnection) largeUrl.openConnection();
+			assertEquals(200, connection.getResponseCode());
+			try (InputStream in = connection.getInputStream()) {
+				assertArrayEquals(large, in.readAllBytes());
+			}
+			connection = (HttpURLConnection) largeUrl.openConnection();
+			connection.setRequestProperty("Range", "bytes=60000-139999");
+			assertEquals(206, connection.getResponseCode());
+			assertEquals("bytes 60000-139999/200000", connection.getHeaderField("Content-Range"));
+			try (InputStream in = connection.getInputStream()) {
+				assertArrayEquals(Arrays.copyOfRange(large, 60000, 140000), in.readAllBytes());
+			}
+
+			/* Files outside of the folder must not be accessible */
+			Files.write(root.toPath().resolveSibling("secret.png"), data);
+			connection = (HttpURLConnection) new URL(url, "/%2e%2e/secret.png").openConnection();
+			assertEquals(404, connection.getResponseCode());
+			connection = (HttpURLConnection) new URL(url, "/missing.png").openConnection();
+			assertEquals(404, connection.getResponseCode());
+		}
+	}
+
+	/** Test that changes appended to the {@link ChangeFeed} get sent to the subscribers of the {@link TileServer}, and replayed if they ask for it */
+	@Test
+	public void testChangeFeed() throws IOException {
+		Path root = folder.newFolder().toPath();
+		try (TileServer server = new TileServer(root, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2, 1 << 20)) {
+			server.start();
+			URL url = new URL("http", "localhost", server.getAddress().getPort(), "/changes");
+
+			HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+			connection.setReadTimeout(10000);
+			assertEquals(200, connection.getResponseCode());
+			assertTrue(connection.getContentType().startsWith("text/event-stream"));
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+				/* Wait until the server knows about us, otherwise the change might be missed */
+				assertTrue(reader.readLine().startsWith(":"));
+				long id = new ChangeFeed(root.resolve(ChangeFeed.FILE_NAME))
+						.append(List.of(new LocalSavedRegion(new Vector2i(1, -2), root.resolve("r.1.-2.png"), Collections.emptyMap())));
+
+				String line = reader.readLine();
+				while (line.isEmpty() || line.startsWith(":"))
+					line = reader.readLine();
+				assertEquals("id: " + id, line);
+				line = reader.readLine();
+				assertTrue(line.startsWith("data:"));
+				ChangeFeed.Change change = ChangeFeed.Change.parse(line.substring("data:".length()));
+				assertEquals(id, change.id);
+				assertEquals(Set.of(new Vector2i(1, -2)), change.getPositions());
+			}
+
+			/* Reconnecting clients get what they missed */
+			connection = (HttpURLConnection) new URL(url, "/changes?since=0").openConnection();
+			connection.setReadTimeout(10000);
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+				assertTrue(reader.readLine().startsWith("id: "));
+				assertTrue(reader.readLine().startsWith("data:"));
+			}
+		}
+	}
+
+	/** Lines of the {@link ChangeFeed} that are incomplete or invalid must be skipped */
+	@Test
+	public void testChangeFeedRead() throws IOException {
+		Path file = folder.newFolder().toPath().resolve(ChangeFeed.FILE_NAME);
+		ChangeFeed feed = new ChangeFeed(file);
+		long first = feed.append(List.of(new LocalSavedRegion(new Vector2i(1, -2), file.resolveSibling("r.1.-2.png"), Collections.emptyMap())));
+		Files.write(file, List.of("[]", "{\"id\": 5}", "{\"id\": \"x\", \"time\": 1, \"regions\": []}", "{\"id\": 6, \"time\": 1, \"regions\": [1, null]}"),
+				StandardOpenOption.APPEND);
+		long second = feed.append(List.of());
+		Files.write(file, "{\"id\": 7, \"ti".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+		List<ChangeFeed.Change> changes = ChangeFeed.read(file, -1);
+		assertEquals(2, changes.size());
+		assertEquals(first, changes.get(0).id);
+		assertEquals(Set.of(new Vector2i(1, -2)), changes.get(0).getPositions());
+		assertEquals(second, changes.get(1).id);
+		assertEquals(List.of(), ChangeFeed.read(file, second));
+	}
+
 	/**
 	 * Test the bounds on {@link PostProcessing#createTileHtml(RegionFolder, java.nio.file.Path, de.piegames.blockmap.renderer.RenderSettings)}
 	 * and {@link PostProcessing#createBigImage(RegionFolder, java.nio.file.Path, de.piegames.blockmap.renderer.RenderSettings)}.
@@ -0,0 +1,52 @@
+package de.piegames.blockmap;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.joml.Vector2i;
+import org.joml.Vector2ic;
+import org.junit.Test;
+
+import de.piegames.blockmap.world.LongMap;
+import de.piegames.blockmap.world.LongSet;
+
+public class LongMapTest {
+
+	/** Compare {@link LongMap} and {@link LongSet} with the collections from the JDK, with enough positions to make them grow and collide */
+	@Test
+	public void testLongMap() {
+		Random random = new Random(42);
+		LongMap<Vector2ic> map = new LongMap<>();
+		LongSet set = new LongSet();
+		Map<Vector2ic, Vector2ic> expected = new HashMap<>();
+		for (int i = 0; i < 20000; i++) {
+			Vector2ic pos = new Vector2i(random.nextInt(200) - 100, random.nextInt(200) - 100);
+			long key = LongMap.key(pos);
+			assertEquals(pos, new Vector2i(LongMap.x(key), LongMap.z(key)));
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.containsKey(pos), set.remove(key));
+				assertEquals(expected.remove(pos), map.remove(key));
+			} else {
+				assertEquals(!expected.containsKey(pos), set.add(key));
+				assertEquals(expected.put(pos, pos), map.put(key, pos));
+			}
+		}
+		assertEquals(expected.size(), map.size());
+		assertEquals(expected.size(), set.size());
+		for (int x = -101; x <= 101; x++)
+			for (int z = -101; z <= 101; z++) {
+				Vector2ic pos = new Vector2i(x, z);
+				assertEquals(expected.get(pos), map.get(LongMap.key(pos)));
+				assertEquals(expected.containsKey(pos), set.contains(x, z));
+			}
+		List<Vector2ic> values = new ArrayList<>();
+		map.forEachValue(values::add);
+		assertEquals(expected.keySet(), new HashSet<>(values));
+	}
+}
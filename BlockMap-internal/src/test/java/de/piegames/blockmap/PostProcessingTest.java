@@ -0,0 +1,69 @@
+package de.piegames.blockmap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.joml.Vector2i;
+import org.joml.Vector2ic;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.piegames.blockmap.renderer.RenderSettings;
+import de.piegames.blockmap.standalone.PostProcessing;
+import de.piegames.blockmap.world.Region.BufferedRegion;
+import de.piegames.blockmap.world.Region.LocalSavedRegion;
+
+public class PostProcessingTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/** Test that the post processing stages put each region in the right place, no matter if it has been expected or not */
+	@Test
+	public void testPostProcessingStages() throws IOException {
+		Path out = folder.newFolder().toPath();
+		/* Cut off the left half of the first region */
+		RenderSettings settings = new RenderSettings(256, Integer.MAX_VALUE, 0, 255, Integer.MIN_VALUE, Integer.MAX_VALUE, null, null, null, 1);
+		PostProcessing.BigImage big = new PostProcessing.BigImage(out.resolve("big.png"), settings);
+		PostProcessing.TileHtml html = new PostProcessing.TileHtml(out);
+		/* Only the first region is expected. The last one replaces it, like in watch mode after the first result has been written. */
+		big.expect(Arrays.asList(new Vector2i(0, 0)));
+		List<Vector2ic> positions = Arrays.asList(new Vector2i(0, 0), new Vector2i(1, -1), new Vector2i(0, 0));
+		for (int i = 0; i < positions.size(); i++) {
+			Vector2ic pos = positions.get(i);
+			int[] pixels = new int[512 * 512];
+			Arrays.fill(pixels, 0xFF000000 | i);
+			BufferedRegion region = new BufferedRegion(pos, pixels, Collections.emptyMap());
+			LocalSavedRegion saved = region.save(out.resolve("r." + pos.x() + "." + pos.y() + ".png"));
+			big.accept(region, saved);
+			html.accept(region, saved);
+			if (i == 1)
+				big.finish();
+		}
+		big.finish();
+		html.finish();
+
+		BufferedImage image = ImageIO.read(out.resolve("big.png").toFile());
+		assertEquals(256 + 512, image.getWidth());
+		assertEquals(1024, image.getHeight());
+		assertEquals(0, image.getRGB(0, 0));
+		assertEquals(0xFF000001, image.getRGB(256, 511));
+		assertEquals(0xFF000002, image.getRGB(0, 512));
+		assertEquals(0xFF000002, image.getRGB(255, 1023));
+		String page = new String(Files.readAllBytes(out.resolve("tiles.html")), StandardCharsets.UTF_8);
+		assertTrue(page.contains("r.0.0.png"));
+		assertTrue(page.contains("r.1.-1.png"));
+	}
+}
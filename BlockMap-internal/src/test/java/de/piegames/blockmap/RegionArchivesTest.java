@@ -0,0 +1,137 @@
+package de.piegames.blockmap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joml.Vector2i;
+import org.joml.Vector2ic;
+import org.junit.Test;
+
+import de.piegames.blockmap.renderer.DecodedRegion;
+import de.piegames.blockmap.world.RegionArchives;
+
+public class RegionArchivesTest {
+
+	private static final List<Vector2ic>	CHUNKS	= List.of(new Vector2i(0, 0), new Vector2i(1, 0));
+
+	/** Read the region files of a tar archive that uses all the different ways to store long names */
+	@Test
+	public void testReadTar() throws IOException {
+		byte[] region = TestRegions.region(CHUNKS, 1, "minecraft:stone");
+		/* Trailing data that needs padding to the next block */
+		byte[] padded = Arrays.copyOf(region, region.length + 100);
+		String longFolder = "backups/" + "x".repeat(120);
+
+		ByteArrayOutputStream tar = new ByteArrayOutputStream();
+		entry(tar, "world/", "", '5', new byte[0]);
+		entry(tar, "world/region/r.0.0.mca", "", '0', padded);
+		/* POSIX ustar splits long names into a prefix and a name */
+		entry(tar, "region/r.1.0.mca", "backups/world", '0', region);
+		/* GNU tar stores long names in an entry of their own */
+		entry(tar, "././@LongLink", null, 'L', (longFolder + "/world/region/r.0.1.mca\0").getBytes(StandardCharsets.UTF_8));
+		entry(tar, longFolder.substring(0, 100), null, '0', region);
+		/* PAX headers may contain the path as well, which overrides the name of the next entry */
+		String record = " path=world/region/r.-1.0.mca\n";
+		record = (record.length() + 2) + record;
+		entry(tar, "PaxHeaders/r.9.9.mca", "", 'x', record.getBytes(StandardCharsets.UTF_8));
+		entry(tar, "world/region/r.9.9.mca", "", '0', region);
+		/* Files that are not region files of the overworld */
+		entry(tar, "world/DIM-1/region/r.2.2.mca", "", '0', region);
+		entry(tar, "world/DIM1/region/r.3.3.mca", "", '0', region);
+		entry(tar, "world/poi/r.0.0.mca", "", '0', region);
+		entry(tar, "world/entities/r.0.0.mca", "", '0', region);
+		entry(tar, "world/level.dat", "", '0', new byte[1000]);
+		tar.write(new byte[1024]);
+
+		Map<Vector2ic, ByteBuffer> overworld = readTar(tar.toByteArray(), null);
+		assertEquals(Map.of(
+				new Vector2i(0, 0), ByteBuffer.wrap(padded),
+				new Vector2i(1, 0), ByteBuffer.wrap(region),
+				new Vector2i(0, 1), ByteBuffer.wrap(region),
+				new Vector2i(-1, 0), ByteBuffer.wrap(region)),
+				overworld);
+		assertEquals(overworld, readTar(tar.toByteArray(), MinecraftDimension.OVERWORLD));
+		assertEquals(Map.of(new Vector2i(2, 2), ByteBuffer.wrap(region)), readTar(tar.toByteArray(), MinecraftDimension.NETHER));
+		assertEquals(Map.of(new Vector2i(3, 3), ByteBuffer.wrap(region)), readTar(tar.toByteArray(), MinecraftDimension.END));
+	}
+
+	/** Chunks whose location or length don't fit into the data must be marked as failed */
+	@Test
+	public void testReadBuffer() throws IOException {
+		List<Vector2ic> chunks = List.of(new Vector2i(0, 0), new Vector2i(1, 0), new Vector2i(2, 0), new Vector2i(3, 0));
+		ByteBuffer data = ByteBuffer.wrap(TestRegions.region(chunks, 1, "minecraft:stone"));
+		int sectors = data.getInt(0) & 0xFF;
+		/* Too many sectors */
+		data.putInt(1 * 4, (data.getInt(1 * 4) & ~0xFF) | 0xFF);
+		/* Within the header */
+		data.putInt(2 * 4, 1 << 8 | sectors);
+		/* Longer than its sectors */
+		data.putInt((data.getInt(3 * 4) >>> 8) * 4096, sectors * 4096);
+
+		DecodedRegion decoded = DecodedRegion.read(data);
+		assertEquals(0, data.position());
+		assertTrue(decoded.isPresent(0, 0));
+		assertFalse(decoded.isFailed(0, 0));
+		for (int x = 1; x < 4; x++) {
+			assertTrue(decoded.isFailed(x, 0));
+			assertNull(decoded.getChunk(x, 0));
+		}
+		assertFalse(decoded.isPresent(4, 0));
+	}
+
+	private static Map<Vector2ic, ByteBuffer> readTar(byte[] tar, MinecraftDimension dimension) throws IOException {
+		Map<Vector2ic, ByteBuffer> ret = new HashMap<>();
+		RegionArchives.readTar(new ByteArrayInputStream(tar), dimension, (pos, data) -> assertNull(ret.put(pos, data)));
+		return ret;
+	}
+
+	/**
+	 * Write an entry of a tar archive.
+	 *
+	 * @param prefix
+	 *            the prefix of the name in the ustar format, or {@code null} to write the header in the format of GNU tar
+	 */
+	private static void entry(ByteArrayOutputStream tar, String name, String prefix, char type, byte[] data) throws IOException {
+		byte[] header = new byte[512];
+		put(header, 0, name);
+		put(header, 100, "0000644");
+		put(header, 108, "0000000");
+		put(header, 116, "0000000");
+		put(header, 124, String.format("%011o", data.length));
+		put(header, 136, String.format("%011o", 0));
+		header[156] = (byte) type;
+		if (prefix != null) {
+			put(header, 257, "ustar");
+			put(header, 263, "00");
+			put(header, 345, prefix);
+		} else {
+			put(header, 257, "ustar  ");
+		}
+		/* The checksum is calculated with the field itself set to spaces */
+		Arrays.fill(header, 148, 156, (byte) ' ');
+		int checksum = 0;
+		for (byte b : header)
+			checksum += b & 0xFF;
+		put(header, 148, String.format("%06o", checksum));
+		tar.write(header);
+		tar.write(data);
+		tar.write(new byte[(512 - data.length % 512) % 512]);
+	}
+
+	private static void put(byte[] header, int offset, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		System.arraycopy(bytes, 0, header, offset, bytes.length);
+	}
+}
@@ -2,12 +2,36 @@ package de.piegames.blockmap;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.ImageIO;
 
 import org.joml.Vector2i;
 import org.joml.Vector2ic;
@@ -16,15 +40,32 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import com.flowpowered.nbt.regionfile.RegionFile;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 
+import de.piegames.blockmap.renderer.DecodedRegion;
 import de.piegames.blockmap.renderer.RegionRenderer;
 import de.piegames.blockmap.renderer.RenderSettings;
 import de.piegames.blockmap.standalone.PostProcessing;
+import de.piegames.blockmap.standalone.TileServer;
+import de.piegames.blockmap.world.ChunkMetadata;
+import de.piegames.blockmap.world.ChunkMetadata.ChunkGenerationStatus;
+import de.piegames.blockmap.world.ChunkMetadata.ChunkRenderState;
+import de.piegames.blockmap.world.Region;
 import de.piegames.blockmap.world.Region.BufferedRegion;
+import de.piegames.blockmap.world.Region.SavedRegion;
+import de.piegames.blockmap.world.RegionFolder;
+import de.piegames.blockmap.world.RegionFolder.ArchiveRegionFolder;
 import de.piegames.blockmap.world.RegionFolder.CachedRegionFolder;
 import de.piegames.blockmap.world.RegionFolder.LocalRegionFolder;
 import de.piegames.blockmap.world.RegionFolder.RemoteRegionFolder;
+import de.piegames.blockmap.world.RegionFolder.SavedRegionFolder;
 import de.piegames.blockmap.world.RegionFolder.WorldRegionFolder;
+import de.piegames.blockmap.world.RegionArchives;
+import de.piegames.blockmap.world.RegionHeader;
+import de.piegames.blockmap.world.RenderPipeline;
+import de.piegames.blockmap.world.TileArchive;
 
 public class RegionFolderTest {
 	/* The region coordinates that exist in the test world */
@@ -36,8 +77,7 @@ public class RegionFolderTest {
 	@Test
 	public void testCacheSave() throws IOException {
 		Queue<Vector2ic> rendered = new LinkedList<>();
-		RenderSettings settings = new RenderSettings();
-		settings.loadDefaultColors();
+		RenderSettings settings = new RenderSettings().withDefaultColors();
 		RegionRenderer renderer = new RegionRenderer(settings) {
 			@Override
 			public BufferedRegion render(Vector2ic regionPos, RegionFile file) {
@@ -92,6 +132,408 @@ public class RegionFolderTest {
 		assertTrue(rendered.isEmpty());
 	}
 
+	@Test
+	public void testRenderAll() throws IOException {
+		RegionRenderer renderer = new RegionRenderer(new RenderSettings().withDefaultColors());
+		WorldRegionFolder localWorld = WorldRegionFolder.load(
+				Paths.get(URI.create(getClass().getResource("/BlockMapWorld/region").toString())),
+				renderer);
+		File out = folder.newFolder();
+		CachedRegionFolder cachedWorld = new CachedRegionFolder(localWorld, true, out.toPath());
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Map<Vector2ic, CompletableFuture<Region>> futures = cachedWorld.renderAll(Arrays.asList(REGIONS), executor);
+			assertEquals(Arrays.asList(REGIONS), new ArrayList<>(futures.keySet()));
+			for (Vector2ic v : REGIONS)
+				assertEquals(v, futures.get(v).join().getPosition());
+			/* All regions are cached now, so they get returned right away */
+			for (Vector2ic v : REGIONS)
+				assertTrue(cachedWorld.renderAsync(v, executor).isDone());
+
+			cachedWorld.save(out.toPath().resolve("saved.json"), "testworld", true);
+			RemoteRegionFolder remote = new RemoteRegionFolder(out.toPath().resolve("saved.json").toUri(), "testworld");
+			for (Vector2ic v : REGIONS)
+				assertNotNull(remote.renderAsync(v, executor).join().getImage());
+			assertNull(remote.renderAsync(new Vector2i(100, 100), executor).join());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testRenderPipeline() throws IOException {
+		RegionRenderer renderer = new RegionRenderer(new RenderSettings().withDefaultColors());
+		WorldRegionFolder localWorld = WorldRegionFolder.load(
+				Paths.get(URI.create(getClass().getResource("/BlockMapWorld/region").toString())),
+				renderer);
+		File out = folder.newFolder();
+		CachedRegionFolder cachedWorld = new CachedRegionFolder(localWorld, true, out.toPath());
+		try (RenderPipeline pipeline = new RenderPipeline(1, 2, 1)) {
+			Map<Vector2ic, CompletableFuture<Region>> futures = cachedWorld.renderAll(Arrays.asList(REGIONS), pipeline);
+			assertEquals(new HashSet<>(Arrays.asList(REGIONS)), futures.keySet());
+			for (Vector2ic v : REGIONS) {
+				Region rendered = futures.get(v).join();
+				assertEquals(v, rendered.getPosition());
+				/* Reading the decoded region gives the same result as rendering the file directly */
+				assertArrayEquals(renderer.render(v, new RegionFile(localWorld.getPath(v))).getPixels(), ((BufferedRegion) rendered).getPixels());
+			}
+			assertEquals(REGIONS.length, pipeline.getWrite().getCompleted());
+		}
+	}
+
+	/** Each region is passed to the callback once it has been written, and missing ones are passed as {@code null} */
+	@Test
+	public void testRenderAllCallback() throws IOException {
+		RegionRenderer renderer = new RegionRenderer(new RenderSettings().withDefaultColors());
+		WorldRegionFolder localWorld = WorldRegionFolder.load(
+				Paths.get(URI.create(getClass().getResource("/BlockMapWorld/region").toString())),
+				renderer);
+		CachedRegionFolder cachedWorld = new CachedRegionFolder(localWorld, false, folder.newFolder().toPath());
+		List<Vector2ic> positions = new ArrayList<>(Arrays.asList(REGIONS));
+		positions.add(new Vector2i(100, 100));
+		Map<Vector2ic, Region> rendered = new ConcurrentHashMap<>();
+		try (RenderPipeline pipeline = new RenderPipeline(1, 2, 1)) {
+			cachedWorld.renderAll(positions, pipeline, (pos, region, error) -> {
+				assertNull(error);
+				if (region == null) {
+					assertEquals(new Vector2i(100, 100), pos);
+					return;
+				}
+				assertEquals(pos, region.getPosition());
+				/* The image has already been written */
+				assertNotNull(cachedWorld.getSaved(pos));
+				assertNull(rendered.put(pos, region));
+			}).join();
+			assertEquals(new HashSet<>(Arrays.asList(REGIONS)), rendered.keySet());
+			assertEquals(REGIONS.length, pipeline.getWrite().getCompleted());
+		}
+	}
+
+	@Test
+	public void testZip() throws IOException {
+		RegionRenderer renderer = new RegionRenderer(new RenderSettings().withDefaultColors());
+		WorldRegionFolder localWorld = WorldRegionFolder.load(
+				Paths.get(URI.create(getClass().getResource("/BlockMapWorld/region").toString())),
+				renderer);
+		Path zipFile = folder.getRoot().toPath().resolve("world.zip");
+		try (FileSystem zip = FileSystems.newFileSystem(URI.create("jar:" + zipFile.toUri()), Collections.singletonMap("create", "true"))) {
+			Path region = zip.getPath("world", "region");
+			Files.createDirectories(region);
+			for (Vector2ic v : REGIONS)
+				Files.copy(localWorld.getPath(v), region.resolve(localWorld.getPath(v).getFileName().toString()));
+		}
+
+		Path world = RegionArchives.openZip(zipFile);
+		try {
+			assertEquals("world", world.getFileName().toString());
+			WorldRegionFolder zipWorld = WorldRegionFolder.load(world, MinecraftDimension.OVERWORLD, renderer, false);
+			assertEquals(localWorld.listRegions(), zipWorld.listRegions());
+			for (Vector2ic v : REGIONS)
+				assertArrayEquals(localWorld.render(v).getPixels(), zipWorld.render(v).getPixels());
+		} finally {
+			world.getFileSystem().close();
+		}
+	}
+
+	@Test
+	public void testScanHeaders() throws IOException {
+		WorldRegionFolder localWorld = WorldRegionFolder.load(
+				Paths.get(URI.create(getClass().getResource("/BlockMapWorld/region").toString())),
+				new RegionRenderer(new RenderSettings()));
+		Map<Vector2ic, RegionHeader> headers = localWorld.scanHeaders(ForkJoinPool.commonPool()).join();
+		assertEquals(localWorld.listRegions(), headers.keySet());
+		for (Vector2ic v : REGIONS) {
+			RegionHeader header = headers.get(v);
+			DecodedRegion decoded = DecodedRegion.read(new RegionFile(localWorld.getPath(v)));
+			int count = 0;
+			for (int z = 0; z < 32; z++)
+				for (int x = 0; x < 32; x++) {
+					assertEquals(decoded.isPresent(x, z), header.isPresent(x, z));
+					if (header.isPresent(x, z)) {
+						assertTrue(header.getSize(x, z) > 0);
+						count++;
+					}
+				}
+			assertEquals(count, header.getChunkCount());
+			assertTrue(header.getTimestamp() > 0);
+		}
+	}
+
+	@Test
+	public void testReadTruncated() throws IOException {
+		WorldRegionFolder localWorld = WorldRegionFolder.load(
+				Paths.get(URI.create(getClass().getResource("/BlockMapWorld/region").toString())),
+				new RegionRenderer(new RenderSettings()));
+		Path original = localWorld.getPath(REGIONS[0]);
+		DecodedRegion expected = DecodedRegion.read(new RegionFile(original));
+		DecodedRegion full = DecodedRegion.read(original);
+		/* Simulate a region file that is being extended by a server while reading it */
+		Path truncated = folder.getRoot().toPath().resolve(original.getFileName());
+		byte[] data = Files.readAllBytes(original);
+		Files.write(truncated, Arrays.copyOf(data, data.length / 2));
+		DecodedRegion torn = DecodedRegion.read(truncated);
+		int failed = 0;
+		for (int z = 0; z < 32; z++)
+			for (int x = 0; x < 32; x++) {
+				assertEquals(expected.isPresent(x, z), full.isPresent(x, z));
+				assertFalse(full.isFailed(x, z));
+				assertEquals(expected.isPresent(x, z), torn.isPresent(x, z));
+				/* The header did not change, so the chunks are broken and not changing */
+				assertFalse(torn.isChanging(x, z));
+				if (torn.isFailed(x, z))
+					failed++;
+				else
+					assertEquals(expected.getChunk(x, z) != null, torn.getChunk(x, z) != null);
+			}
+		assertTrue(failed > 0);
+	}
+
+	/**
+	 * Chunks that fail to read are read again at the location from the new header. If they keep failing while their header entry changes, they
+	 * are marked as changing, which the renderer and the scanner report as {@link ChunkRenderState#CHANGING}.
+	 */
+	@Test
+	public void testReadChanging() throws IOException {
+		List<Vector2ic> chunks = Arrays.asList(new Vector2i(0, 0), new Vector2i(1, 0));
+		Vector2ic pos = new Vector2i(0, 0);
+		/* The server moved the chunk after the header has been read, and updated the header while waiting to retry */
+		ChangingChannel moved = new ChangingChannel(broken(TestRegions.region(chunks, 1, "minecraft:stone"), 1), TestRegions.region(chunks, 2,
+				"minecraft:stone"));
+		DecodedRegion decoded = DecodedRegion.read(moved);
+		assertEquals(2, moved.headerReads);
+		assertFalse(decoded.isFailed(1, 0));
+		assertFalse(decoded.isChanging(1, 0));
+		assertNotNull(decoded.getChunk(1, 0));
+
+		/* The chunk is broken each time it is read, but its header entry keeps changing */
+		ChangingChannel changing = new ChangingChannel(
+				broken(TestRegions.region(chunks, 1, "minecraft:stone"), 1),
+				broken(TestRegions.region(chunks, 2, "minecraft:stone"), 1),
+				broken(TestRegions.region(chunks, 3, "minecraft:stone"), 1),
+				broken(TestRegions.region(chunks, 4, "minecraft:stone"), 1));
+		decoded = DecodedRegion.read(changing);
+		assertFalse(decoded.isFailed(0, 0));
+		assertFalse(decoded.isChanging(0, 0));
+		assertTrue(decoded.isFailed(1, 0));
+		assertTrue(decoded.isChanging(1, 0));
+		assertTrue(decoded.isPresent(1, 0));
+		assertNull(decoded.getChunk(1, 0));
+
+		Map<Vector2ic, ChunkMetadata> scanned = RegionRenderer.scan(pos, decoded);
+		assertEquals(ChunkRenderState.CHANGING, scanned.get(new Vector2i(1, 0)).renderState);
+		assertNotEquals(ChunkRenderState.CHANGING, scanned.get(new Vector2i(0, 0)).renderState);
+		Region rendered = new RegionRenderer(new RenderSettings().withDefaultColors()).render(pos, decoded, true);
+		assertEquals(ChunkRenderState.CHANGING, rendered.getChunkMetadata().get(new Vector2i(1, 0)).renderState);
+		assertEquals(ChunkRenderState.RENDERED, rendered.getChunkMetadata().get(new Vector2i(0, 0)).renderState);
+		assertNotNull(rendered.getLayers());
+
+		/* The same goes for region files on the disk */
+		Path file = folder.newFolder().toPath().resolve("r.0.0.mca");
+		Files.write(file, changing.versions.get(0));
+		WorldRegionFolder world = new WorldRegionFolder(Collections.singletonMap(pos, file), new RegionRenderer(new RenderSettings()
+				.withDefaultColors()));
+		assertEquals(ChunkRenderState.FAILED, world.render(pos).getChunkMetadata().get(new Vector2i(1, 0)).renderState);
+		assertEquals(ChunkRenderState.FAILED, world.renderPreview(pos, 4).getChunkMetadata().get(new Vector2i(1, 0)).renderState);
+	}
+
+	/** Break the chunk at the given index of a region file by setting its length to zero */
+	private static byte[] broken(byte[] region, int index) {
+		ByteBuffer data = ByteBuffer.wrap(region);
+		data.putInt((data.getInt(index * 4) >>> 8) * 4096, 0);
+		return region;
+	}
+
+	/**
+	 * A region file that is being written to while reading it. Each time its header is read again, it changes to the next version, the last one
+	 * stays.
+	 */
+	private static class ChangingChannel implements SeekableByteChannel {
+
+		final List<byte[]>	versions;
+		int					version		= -1, headerReads;
+		long				position;
+
+		ChangingChannel(byte[]... versions) {
+			this.versions = Arrays.asList(versions);
+		}
+
+		@Override
+		public SeekableByteChannel position(long position) {
+			if (position == 0) {
+				version = Math.min(version + 1, versions.size() - 1);
+				headerReads++;
+			}
+			this.position = position;
+			return this;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) {
+			byte[] data = versions.get(Math.max(version, 0));
+			if (position >= data.length)
+				return -1;
+			int length = (int) Math.min(dst.remaining(), data.length - position);
+			dst.put(data, (int) position, length);
+			position += length;
+			return length;
+		}
+
+		@Override
+		public long position() {
+			return position;
+		}
+
+		@Override
+		public long size() {
+			return versions.get(Math.max(version, 0)).length;
+		}
+
+		@Override
+		public int write(ByteBuffer src) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public SeekableByteChannel truncate(long size) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/** Test writing worlds to a {@link TileArchive} and reading them back, both locally and using range requests */
+	@Test
+	public void testTileArchive() throws IOException {
+		Path file = folder.newFolder().toPath().resolve("rendered" + TileArchive.EXTENSION);
+		int[] empty = new int[512 * 512], pixels = new int[512 * 512];
+		Arrays.fill(pixels, 0xFF336699);
+		/* Archives are valid even before the first commit */
+		try (TileArchive.Writer writer = new TileArchive.Writer(file)) {
+			writer.putTile(toPng(empty));
+		}
+		TileArchive archive = TileArchive.open(file);
+		assertEquals("[]", new String(archive.getIndex().readAllBytes(), StandardCharsets.UTF_8));
+
+		try (TileArchive.Writer writer = new TileArchive.Writer(file)) {
+			String emptyHash = writer.putTile(toPng(empty));
+			/* Identical images are only stored once */
+			assertEquals(emptyHash, writer.putTile(toPng(empty)));
+			writer.putWorld(archivedWorld("a", emptyHash, writer.putTile(toPng(pixels))));
+			writer.commit();
+		}
+		long size = Files.size(file);
+		try (TileArchive.Writer writer = new TileArchive.Writer(file)) {
+			writer.putWorld(archivedWorld("b", writer.putTile(toPng(pixels)), writer.putTile(toPng(empty))));
+			writer.commit();
+		}
+		/* Only the new index got appended */
+		assertTrue(Files.size(file) - size < 1024);
+
+		/* Unchanged archives are not opened again */
+		TileArchive reopened = archive.reopen();
+		assertNotSame(archive, reopened);
+		assertSame(reopened, reopened.reopen());
+		ArchiveRegionFolder a = new ArchiveRegionFolder(reopened, "a");
+		assertEquals(new HashSet<>(Arrays.asList(new Vector2i(0, 0), new Vector2i(1, 0))), a.listRegions());
+		assertArrayEquals(empty, a.render(new Vector2i(0, 0)).getPixels());
+		assertArrayEquals(pixels, a.render(new Vector2i(1, 0)).getPixels());
+
+		try (TileServer server = new TileServer(file.getParent(), new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2, 0)) {
+			server.start();
+			URI uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/" + file.getFileName());
+			ArchiveRegionFolder b = new ArchiveRegionFolder(TileArchive.open(uri), "b");
+			assertArrayEquals(pixels, b.render(new Vector2i(0, 0)).getPixels());
+			assertArrayEquals(empty, b.render(new Vector2i(1, 0)).getPixels());
+		}
+
+		/* Replacing both worlds leaves most of the file unreferenced, so it gets compacted */
+		size = Files.size(file);
+		int[] other = new int[512 * 512];
+		Arrays.fill(other, 0xFF996633);
+		try (TileArchive.Writer writer = new TileArchive.Writer(file)) {
+			String otherHash = writer.putTile(toPng(other));
+			writer.putWorld(archivedWorld("a", otherHash));
+			writer.putWorld(archivedWorld("b", otherHash));
+			writer.commit();
+		}
+		assertTrue(Files.size(file) < size);
+		TileArchive compacted = reopened.reopen();
+		assertNotSame(reopened, compacted);
+		assertArrayEquals(other, new ArchiveRegionFolder(compacted, "b").render(new Vector2i(0, 0)).getPixels());
+		/* Readers of the old file are not affected */
+		assertArrayEquals(pixels, a.render(new Vector2i(1, 0)).getPixels());
+	}
+
+	private static byte[] toPng(int[] pixels) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(Region.wrapPixels(pixels), "png", out);
+		return out.toByteArray();
+	}
+
+	private static JsonObject archivedWorld(String name, String... images) {
+		JsonArray regions = new JsonArray();
+		for (int i = 0; i < images.length; i++) {
+			JsonObject region = new JsonObject();
+			region.addProperty("x", i);
+			region.addProperty("z", 0);
+			region.addProperty("image", images[i]);
+			regions.add(region);
+		}
+		JsonObject world = new JsonObject();
+		world.addProperty("name", name);
+		world.add("regions", regions);
+		return world;
+	}
+
+	/** Test that saving a world keeps the other worlds of an older save file, and that its chunk metadata only gets loaded when needed */
+	@Test
+	public void testSaveIndex() throws IOException {
+		Path out = folder.newFolder().toPath();
+		Path file = out.resolve("rendered.json");
+		Files.write(file, archivedWorld("old", "old.png").toString().getBytes(StandardCharsets.UTF_8));
+
+		Vector2ic pos = new Vector2i(2, -3);
+		ChunkMetadata chunk = new ChunkMetadata(new Vector2i(64, -96), ChunkRenderState.RENDERED, ChunkGenerationStatus.FULLCHUNK);
+		CachedRegionFolder cached = new CachedRegionFolder(WorldRegionFolder.load(folder.newFolder().toPath(), new RegionRenderer(new RenderSettings())),
+				false, out);
+		cached.put(new BufferedRegion(pos, new int[512 * 512], Collections.singletonMap(chunk.position, chunk)));
+		cached.save(file, "new");
+
+		JsonObject saved = new JsonParser().parse(new String(Files.readAllBytes(file), StandardCharsets.UTF_8)).getAsJsonObject();
+		assertEquals(RegionFolder.SAVE_VERSION, saved.get("version").getAsInt());
+		assertEquals(Arrays.asList("old", "new"), new ArrayList<>(SavedRegionFolder.parseSaved(saved).keySet()));
+		assertEquals(Collections.singleton(new Vector2i(0, 0)), new LocalRegionFolder(file, "old").listRegions());
+
+		for (SavedRegionFolder<?, ?> world : Arrays.asList(new LocalRegionFolder(file, "new"), new RemoteRegionFolder(file.toUri(), "new"))) {
+			SavedRegion region = world.render(pos);
+			assertEquals(out.resolve("r.2.-3.png").toUri(), region.getURI());
+			assertNotNull(region.getMetadataURI());
+			ChunkMetadata loaded = region.getChunkMetadata().get(chunk.position);
+			assertEquals(ChunkRenderState.RENDERED, loaded.renderState);
+			assertEquals(ChunkGenerationStatus.FULLCHUNK, loaded.generationStatus);
+		}
+
+		/* Tile archives reference the metadata as a separate tile instead of inlining it */
+		Path archive = out.resolve("rendered" + TileArchive.EXTENSION);
+		cached.saveArchive(archive, "new");
+		SavedRegion archived = new ArchiveRegionFolder(TileArchive.open(archive), "new").render(pos);
+		assertNotNull(archived.getMetadataURI());
+		assertEquals(ChunkRenderState.RENDERED, archived.getChunkMetadata().get(chunk.position).renderState);
+
+		/* Saving the same world again only replaces its index */
+		long modified = Files.getLastModifiedTime(file).toMillis();
+		Files.setLastModifiedTime(file, FileTime.fromMillis(modified - 10000));
+		cached.save(file, "new");
+		assertEquals(modified - 10000, Files.getLastModifiedTime(file).toMillis());
+	}
+
 	/**
 	 * Test for #15 ({@link https://github.com/Minecraft-Technik-Wiki/BlockMap/issues/15})
 	 * 
@@ -100,8 +542,7 @@ public class RegionFolderTest {
 	@Test
 	public void testCreateBigImage() throws IOException {
 		Queue<Vector2ic> rendered = new LinkedList<>();
-		RenderSettings settings = new RenderSettings();
-		settings.loadDefaultColors();
+		RenderSettings settings = new RenderSettings().withDefaultColors();
 		RegionRenderer renderer = new RegionRenderer(settings) {
 			@Override
 			public BufferedRegion render(Vector2ic regionPos, RegionFile file) {
@@ -0,0 +1,66 @@
+package de.piegames.blockmap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.joml.Vector2i;
+import org.joml.Vector3i;
+import org.junit.Test;
+
+import de.piegames.blockmap.world.ChunkMetadata;
+import de.piegames.blockmap.world.ChunkMetadata.ChunkGenerationStatus;
+import de.piegames.blockmap.world.ChunkMetadata.ChunkRenderState;
+import de.piegames.blockmap.world.RegionMetadata;
+
+public class RegionMetadataTest {
+
+	/** Test the map view of {@link RegionMetadata} and that it survives writing it */
+	@Test
+	public void testRegionMetadata() throws IOException {
+		RegionMetadata metadata = new RegionMetadata(new Vector2i(-1, 2));
+		ChunkMetadata plain = new ChunkMetadata(new Vector2i(-32, 64), ChunkRenderState.FAILED, null);
+		ChunkMetadata village = new ChunkMetadata(new Vector2i(-1, 95), ChunkRenderState.RENDERED, ChunkGenerationStatus.FULLCHUNK,
+				Map.of("village", new Vector3i(-10, 70, 1520), "mineshaft", new Vector3i(-12, 30, 1525)));
+		ChunkMetadata monument = new ChunkMetadata(new Vector2i(-20, 70), ChunkRenderState.RENDERED, ChunkGenerationStatus.DECORATED,
+				Map.of("monument", new Vector3i(-320, 50, 1120)));
+		for (ChunkMetadata chunk : Arrays.asList(plain, village, monument))
+			metadata.put(chunk.position, chunk);
+		try {
+			metadata.put(new Vector2i(0, 64), plain);
+			fail("Chunks outside of the region must be rejected");
+		} catch (IllegalArgumentException e) {
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		metadata.write(new DataOutputStream(out));
+		RegionMetadata read = RegionMetadata.read(new DataInputStream(new ByteArrayInputStream(out.toByteArray())));
+		for (RegionMetadata map : Arrays.asList(metadata, read)) {
+			assertEquals(3, map.size());
+			assertEquals(new HashSet<>(Arrays.asList(plain.position, village.position, monument.position)), map.keySet());
+			assertNull(map.get(new Vector2i(-31, 64)));
+			for (ChunkMetadata chunk : Arrays.asList(plain, village, monument)) {
+				ChunkMetadata stored = map.get(chunk.position);
+				assertEquals(chunk.renderState, stored.renderState);
+				assertEquals(chunk.generationStatus, stored.generationStatus);
+				assertEquals(chunk.structures, stored.structures);
+			}
+		}
+
+		/* Replacing a chunk replaces its structures */
+		metadata.put(village.position, new ChunkMetadata(village.position, ChunkRenderState.CHANGING, null));
+		assertEquals(3, metadata.size());
+		assertTrue(metadata.get(village.position).structures.isEmpty());
+		assertEquals(monument.structures, metadata.get(monument.position).structures);
+	}
+}
@@ -0,0 +1,60 @@
+package de.piegames.blockmap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.joml.AABBd;
+import org.junit.Test;
+
+import de.piegames.blockmap.gui.RegionQuadtree;
+
+public class RegionQuadtreeTest {
+
+	@Test
+	public void testKeys() {
+		Random random = new Random(123456789);
+		for (int i = 0; i < 10000; i++) {
+			int level = random.nextInt(15) - 7;
+			int x = random.nextInt(1 << 24) - (1 << 23);
+			int z = random.nextInt(1 << 24) - (1 << 23);
+			long key = RegionQuadtree.key(level, x, z);
+			assertEquals(level, RegionQuadtree.level(key));
+			assertEquals(x, RegionQuadtree.x(key));
+			assertEquals(z, RegionQuadtree.z(key));
+			assertEquals(RegionQuadtree.key(level - 1, x >> 1, z >> 1), RegionQuadtree.parent(key));
+			for (int j = 0; j < 4; j++)
+				assertEquals(key, RegionQuadtree.parent(RegionQuadtree.child(key, j)));
+		}
+	}
+
+	@Test
+	public void testQuery() {
+		RegionQuadtree<String> tree = new RegionQuadtree<>(2);
+		tree.add(-1, -1);
+		tree.add(0, 0);
+		tree.add(5, 0);
+
+		assertTrue(tree.isOccupied(RegionQuadtree.key(-1, -1, -1)));
+		assertTrue(tree.isOccupied(RegionQuadtree.key(-2, 1, 0)));
+		assertFalse(tree.isOccupied(RegionQuadtree.key(-3, 0, 0)));
+		assertTrue(tree.isOccupied(RegionQuadtree.key(3, 7, 7)));
+		assertFalse(tree.isOccupied(RegionQuadtree.key(3, 8, 7)));
+
+		/* Nodes are created on demand */
+		assertEquals(0, tree.query(0, new AABBd(-10, -10, 0, 10, 10, 0), null).size());
+		assertEquals(2, tree.query(0, new AABBd(-10, -10, 0, 10, 10, 0), key -> "region").size());
+		assertEquals(2, tree.query(0, new AABBd(-10, -10, 0, 10, 10, 0), null).size());
+		assertEquals(1, tree.query(0, new AABBd(2600, 0, 0, 2700, 100, 0), key -> "region").size());
+		assertNull(tree.get(RegionQuadtree.key(-1, 0, 0)));
+		assertEquals(3, tree.query(-1, new AABBd(-10000, -10000, 0, 10000, 10000, 0), key -> "lod").size());
+		assertEquals("lod", tree.get(RegionQuadtree.key(-1, 0, 0)));
+
+		tree.removeIf("lod"::equals);
+		assertNull(tree.get(RegionQuadtree.key(-1, 0, 0)));
+		assertTrue(tree.isOccupied(RegionQuadtree.key(-1, 0, 0)));
+	}
+}
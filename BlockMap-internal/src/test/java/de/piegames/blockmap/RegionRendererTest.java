@@ -1,23 +1,50 @@
 package de.piegames.blockmap;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.imageio.ImageIO;
 
 import org.joml.Vector2i;
+import org.joml.Vector2ic;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import com.flowpowered.nbt.regionfile.RegionFile;
 
+import de.piegames.blockmap.color.BlockColorMap;
+import de.piegames.blockmap.renderer.RegionLayers;
 import de.piegames.blockmap.renderer.RegionRenderer;
+import de.piegames.blockmap.renderer.RegionShader.DefaultShader;
+import de.piegames.blockmap.renderer.RenderedChunk;
 import de.piegames.blockmap.renderer.RenderSettings;
+import de.piegames.blockmap.renderer.SurfaceStacks;
+import de.piegames.blockmap.world.ChunkMetadata;
+import de.piegames.blockmap.world.Region.BufferedRegion;
 
 public class RegionRendererTest {
 
@@ -26,11 +53,157 @@ public class RegionRendererTest {
 
 	@Test
 	public void simpleTest1() throws IOException, URISyntaxException, InterruptedException {
-		RenderSettings settings = new RenderSettings();
-		settings.loadDefaultColors();
+		RenderSettings settings = new RenderSettings().withDefaultColors();
 		RegionRenderer renderer = new RegionRenderer(settings);
 		BufferedImage image = renderer.render(new Vector2i(0, 0), new RegionFile(Paths.get(URI.create(getClass().getResource("/r.0.0.mca").toString()))))
 				.getImage();
 		ImageIO.write(image, "png", Files.newOutputStream(folder.newFile().toPath()));
 	}
+
+	/** Previews must fill every sampled area with a single color */
+	@Test
+	public void previewTest() throws IOException, URISyntaxException {
+		RenderSettings settings = new RenderSettings().withDefaultColors().withShader(DefaultShader.FLAT.getShader());
+		RegionRenderer renderer = new RegionRenderer(settings);
+		int[] pixels = renderer.renderPreview(new Vector2i(0, 0), new RegionFile(Paths.get(URI.create(getClass().getResource("/r.0.0.mca").toString()))), 4)
+				.getPixels();
+		for (int z = 0; z < 512; z++)
+			for (int x = 0; x < 512; x++)
+				assertEquals(pixels[(x & ~3) | (z & ~3) << 9], pixels[x | z << 9]);
+	}
+
+	/** Applying a different color map to the surface stacks must give the same result as rendering with it */
+	@Test
+	public void recolorTest() throws IOException, URISyntaxException {
+		RenderSettings settings = new RenderSettings().withDefaultColors();
+		RegionRenderer renderer = new RegionRenderer(settings);
+		RegionFile file = new RegionFile(Paths.get(URI.create(getClass().getResource("/r.0.0.mca").toString())));
+		BufferedRegion rendered = renderer.render(new Vector2i(0, 0), file, true);
+		SurfaceStacks stacks = rendered.getStacks();
+		assertNotNull(stacks);
+		assertArrayEquals(renderer.render(new Vector2i(0, 0), file, false).getPixels(), rendered.getPixels());
+
+		renderer.setSettings(settings.withBlockColors(BlockColorMap.loadInternal("foliage")));
+		BufferedRegion recolored = renderer.recolor(new Vector2i(0, 0), stacks);
+		assertNotNull(recolored);
+		assertArrayEquals(renderer.render(new Vector2i(0, 0), file).getPixels(), recolored.getPixels());
+	}
+
+	/**
+	 * Applying a different shader to the stored layers must give the same result as rendering with it, except for the rounding errors of the
+	 * packed colors.
+	 */
+	@Test
+	public void reshadeTest() throws IOException, URISyntaxException {
+		RenderSettings settings = new RenderSettings().withDefaultColors();
+		RegionRenderer renderer = new RegionRenderer(settings);
+		RegionFile file = new RegionFile(Paths.get(URI.create(getClass().getResource("/r.0.0.mca").toString())));
+		RegionLayers layers = renderer.render(new Vector2i(0, 0), file, true).getLayers();
+		assertNotNull(layers);
+		/* The GUI keeps the layers of its regions in their serialized form */
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		layers.write(new DataOutputStream(out));
+		RegionLayers stored = RegionLayers.read(new DataInputStream(new ByteArrayInputStream(out.toByteArray())));
+
+		for (DefaultShader shader : DefaultShader.values()) {
+			renderer.setSettings(settings.withShader(shader.getShader()));
+			int[] expected = renderer.render(new Vector2i(0, 0), file).getPixels();
+			assertSimilar(shader.name(), expected, renderer.shade(new Vector2i(0, 0), layers).getPixels());
+			assertSimilar(shader.name(), expected, renderer.shade(new Vector2i(0, 0), stored).getPixels());
+		}
+	}
+
+	/** Assert that each channel of the ARGB pixels differs by at most one */
+	private static void assertSimilar(String message, int[] expected, int[] actual) {
+		assertEquals(message, expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++)
+			for (int shift = 0; shift < 32; shift += 8)
+				if (Math.abs((expected[i] >>> shift & 0xFF) - (actual[i] >>> shift & 0xFF)) > 1)
+					fail(message + ": pixel " + i + " is " + Integer.toHexString(actual[i]) + " instead of " + Integer.toHexString(expected[i]));
+	}
+
+	/**
+	 * Recording the surface stacks must not change the image, even if there are more translucent layers than the stacks can hold. Those need to
+	 * be rendered again to change their colors.
+	 */
+	@Test
+	public void deepTranslucencyTest() throws IOException {
+		String[] column = new String[64];
+		Arrays.fill(column, 0, 8, "minecraft:stone");
+		for (int y = 8; y < 64; y++)
+			column[y] = y % 2 == 0 ? "minecraft:red_stained_glass" : "minecraft:blue_stained_glass";
+		Path path = folder.newFile("r.0.0.mca").toPath();
+		TestRegions.write(path, Arrays.asList(new Vector2i(0, 0), new Vector2i(5, 7)), 0, column);
+
+		RenderSettings settings = new RenderSettings().withDefaultColors();
+		RegionRenderer renderer = new RegionRenderer(settings);
+		RegionFile file = new RegionFile(path);
+		BufferedRegion rendered = renderer.render(new Vector2i(0, 0), file, true);
+		int[] expected = renderer.render(new Vector2i(0, 0), file, false).getPixels();
+		assertArrayEquals(expected, rendered.getPixels());
+		/* The stone at the bottom is below all the glass, so the column must be opaque */
+		assertEquals(0xFF, expected[0] >>> 24);
+		assertFalse(rendered.getStacks().isComplete(0));
+
+		renderer.setSettings(settings.withBlockColors(BlockColorMap.loadInternal("foliage")));
+		assertNull(renderer.recolor(new Vector2i(0, 0), rendered.getStacks()));
+	}
+
+	/** Stitching the published chunks together and shading them must give the same image as rendering the whole region */
+	@Test
+	public void renderChunksTest() throws IOException, URISyntaxException, InterruptedException, ExecutionException {
+		RenderSettings settings = new RenderSettings().withDefaultColors();
+		RegionRenderer renderer = new RegionRenderer(settings);
+		RegionFile file = new RegionFile(Paths.get(URI.create(getClass().getResource("/r.0.0.mca").toString())));
+		BufferedRegion rendered = renderer.render(new Vector2i(0, 0), file, false);
+		Map<? extends Vector2ic, ChunkMetadata> expected = rendered.getChunkMetadata();
+
+		Map<Vector2ic, ChunkMetadata> metadata = new HashMap<>();
+		int[] colors = new int[512 * 512];
+		short[] height = new short[512 * 512];
+		byte[] biomes = new byte[512 * 512];
+		Arrays.fill(height, (short) settings.minY);
+		Arrays.fill(biomes, (byte) 0xFF);
+		CompletableFuture<Void> done = new CompletableFuture<>();
+		renderer.renderChunks(new Vector2i(0, 0), file, ForkJoinPool.commonPool()).subscribe(new Flow.Subscriber<RenderedChunk>() {
+
+			private Flow.Subscription subscription;
+
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				this.subscription = subscription;
+				subscription.request(1);
+			}
+
+			@Override
+			public void onNext(RenderedChunk item) {
+				metadata.put(item.metadata.position, item.metadata);
+				int offset = (item.metadata.position.x() & 31) << 4 | (item.metadata.position.y() & 31) << 13;
+				for (int z = 0; z < 16; z++)
+					for (int x = 0; x < 16; x++) {
+						colors[offset | x | z << 9] = item.colors[x | z << 4];
+						height[offset | x | z << 9] = (short) item.height[x | z << 4];
+						biomes[offset | x | z << 9] = (byte) item.biomes[x | z << 4];
+					}
+				subscription.request(1);
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				done.completeExceptionally(throwable);
+			}
+
+			@Override
+			public void onComplete() {
+				done.complete(null);
+			}
+		});
+		done.get();
+
+		assertEquals(expected.keySet(), metadata.keySet());
+		for (Vector2ic pos : expected.keySet())
+			assertEquals(expected.get(pos).renderState, metadata.get(pos).renderState);
+		/* Chunks are published with packed colors, like the layers */
+		assertSimilar("stitched", rendered.getPixels(), renderer.shade(new Vector2i(0, 0), new RegionLayers(colors, height, biomes)).getPixels());
+	}
 }
\ No newline at end of file
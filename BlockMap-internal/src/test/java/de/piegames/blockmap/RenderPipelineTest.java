@@ -0,0 +1,29 @@
+package de.piegames.blockmap;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.joml.Vector2i;
+import org.joml.Vector2ic;
+import org.junit.Test;
+
+import de.piegames.blockmap.world.RenderPipeline;
+
+public class RenderPipelineTest {
+
+	@Test
+	public void testHilbertOrder() {
+		List<Vector2ic> positions = new ArrayList<>();
+		for (int x = -3; x < 5; x++)
+			for (int z = 10; z < 18; z++)
+				positions.add(new Vector2i(x, z));
+		List<Vector2ic> sorted = RenderPipeline.hilbertOrder(positions);
+		assertEquals(new HashSet<>(positions), new HashSet<>(sorted));
+		/* Each region is next to the previous one */
+		for (int i = 1; i < sorted.size(); i++)
+			assertEquals(1, sorted.get(i).gridDistance(sorted.get(i - 1)));
+	}
+}
@@ -0,0 +1,144 @@
+package de.piegames.blockmap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+
+import org.joml.Vector2ic;
+
+/**
+ * Write small region files for tests, so that they don't depend on a real world. All columns of all chunks consist of the same blocks, which is
+ * enough to test how the renderer and the region folders handle them.
+ */
+public class TestRegions {
+
+	/** The data version of Minecraft 1.13.2 */
+	public static final int		DATA_VERSION	= 1631;
+
+	private static final int	TAG_END			= 0, TAG_BYTE = 1, TAG_INT = 3, TAG_STRING = 8, TAG_LIST = 9, TAG_COMPOUND = 10, TAG_INT_ARRAY = 11,
+			TAG_LONG_ARRAY = 12;
+
+	private TestRegions() {
+	}
+
+	/**
+	 * Write a region file.
+	 *
+	 * @see #region(Collection, int, String...)
+	 */
+	public static void write(Path file, Collection<? extends Vector2ic> chunks, int timestamp, String... column) throws IOException {
+		Files.write(file, region(chunks, timestamp, column));
+	}
+
+	/**
+	 * Create the content of a region file.
+	 *
+	 * @param chunks
+	 *            the positions of the chunks within the region, between 0 and 31
+	 * @param timestamp
+	 *            the timestamp of each chunk in the header, in seconds since the epoch
+	 * @param column
+	 *            the name of the block at each height, starting at y=0. {@code null} entries are air.
+	 */
+	public static byte[] region(Collection<? extends Vector2ic> chunks, int timestamp, String... column) throws IOException {
+		byte[] chunk = chunk(column);
+		int sectors = (chunk.length + 5 + 4095) / 4096;
+		ByteBuffer ret = ByteBuffer.allocate((2 + chunks.size() * sectors) * 4096);
+		int sector = 2;
+		for (Vector2ic pos : chunks) {
+			int i = pos.x() | pos.y() << 5;
+			ret.putInt(i * 4, sector << 8 | sectors);
+			ret.putInt(4096 + i * 4, timestamp);
+			ret.position(sector * 4096);
+			ret.putInt(chunk.length + 1);
+			/* Zlib compression */
+			ret.put((byte) 2);
+			ret.put(chunk);
+			sector += sectors;
+		}
+		return ret.array();
+	}
+
+	/** The compressed NBT data of a fully generated chunk */
+	private static byte[] chunk(String[] column) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+			name(out, TAG_COMPOUND, "");
+			name(out, TAG_INT, "DataVersion");
+			out.writeInt(DATA_VERSION);
+			name(out, TAG_COMPOUND, "Level");
+			name(out, TAG_STRING, "Status");
+			out.writeUTF("postprocessed");
+			name(out, TAG_INT_ARRAY, "Biomes");
+			out.writeInt(256);
+			for (int i = 0; i < 256; i++)
+				/* Plains */
+				out.writeInt(1);
+
+			List<Integer> sections = new ArrayList<>();
+			for (int s = 0; s < 16; s++)
+				for (int y = s << 4; y < (s + 1) << 4 && y < column.length; y++)
+					if (column[y] != null && !sections.contains(s))
+						sections.add(s);
+			name(out, TAG_LIST, "Sections");
+			out.writeByte(TAG_COMPOUND);
+			out.writeInt(sections.size());
+			for (int s : sections)
+				section(out, s, column);
+			out.writeByte(TAG_END);
+			out.writeByte(TAG_END);
+		}
+		return bytes.toByteArray();
+	}
+
+	/** Write the content of a section compound, in the format of 1.13 */
+	private static void section(DataOutputStream out, int s, String[] column) throws IOException {
+		List<String> palette = new ArrayList<>();
+		palette.add("minecraft:air");
+		int[] indices = new int[16];
+		for (int y = 0; y < 16; y++) {
+			String block = (s << 4 | y) < column.length && column[s << 4 | y] != null ? column[s << 4 | y] : "minecraft:air";
+			if (!palette.contains(block))
+				palette.add(block);
+			indices[y] = palette.indexOf(block);
+		}
+		int bits = Math.max(4, 32 - Integer.numberOfLeadingZeros(palette.size() - 1));
+		/* Indices may span two longs */
+		long[] states = new long[4096 * bits / 64];
+		for (int i = 0; i < 4096; i++) {
+			long value = indices[i >> 8];
+			int bit = i * bits;
+			states[bit >> 6] |= value << (bit & 63);
+			if ((bit & 63) + bits > 64)
+				states[(bit >> 6) + 1] |= value >>> (64 - (bit & 63));
+		}
+
+		name(out, TAG_BYTE, "Y");
+		out.writeByte(s);
+		name(out, TAG_LIST, "Palette");
+		out.writeByte(TAG_COMPOUND);
+		out.writeInt(palette.size());
+		for (String block : palette) {
+			name(out, TAG_STRING, "Name");
+			out.writeUTF(block);
+			out.writeByte(TAG_END);
+		}
+		name(out, TAG_LONG_ARRAY, "BlockStates");
+		out.writeInt(states.length);
+		for (long state : states)
+			out.writeLong(state);
+		out.writeByte(TAG_END);
+	}
+
+	private static void name(DataOutputStream out, int type, String name) throws IOException {
+		out.writeByte(type);
+		out.writeUTF(name);
+	}
+}
@@ -0,0 +1,92 @@
+package de.piegames.blockmap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.joml.Vector2i;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.piegames.blockmap.world.Region.LocalSavedRegion;
+import de.piegames.blockmap.world.TileCache;
+import de.piegames.blockmap.world.TileDecoder;
+
+public class TileCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/** Test that the {@link TileDecoder} decodes images like {@link ImageIO} and that the {@link TileCache} does not decode them twice */
+	@Test
+	public void testTileCache() throws IOException {
+		Random random = new Random(42);
+		BufferedImage argb = new BufferedImage(512, 512, BufferedImage.TYPE_INT_ARGB);
+		BufferedImage rgb = new BufferedImage(512, 512, BufferedImage.TYPE_INT_RGB);
+		for (int x = 0; x < 512; x++)
+			for (int z = 0; z < 512; z++) {
+				/* Noise and gradients, so that different filters get used */
+				int color = z < 256 ? random.nextInt() : (x / 2) * 0x01010101 + z;
+				argb.setRGB(x, z, color);
+				rgb.setRGB(x, z, color);
+			}
+		byte[][] encoded = new byte[2][];
+		for (int i = 0; i < 2; i++) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ImageIO.write(i == 0 ? argb : rgb, "png", out);
+			encoded[i] = out.toByteArray();
+		}
+		assertArrayEquals(argb.getRGB(0, 0, 512, 512, null, 0, 512), TileDecoder.decode(encoded[0]));
+		assertArrayEquals(rgb.getRGB(0, 0, 512, 512, null, 0, 512), TileDecoder.decode(encoded[1]));
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ImageIO.write(new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB), "png", out);
+			TileDecoder.decode(out.toByteArray());
+			fail("Only images of regions can be decoded");
+		} catch (IOException e) {
+		}
+
+		/* Room for three images */
+		TileCache cache = new TileCache(3 * 4 * 512 * 512);
+		AtomicInteger loads = new AtomicInteger();
+		TileCache.Loader loader = () -> {
+			loads.incrementAndGet();
+			return new int[512 * 512];
+		};
+		for (int i = 0; i < 4; i++)
+			cache.get(URI.create("r." + i + ".0.png"), 0, loader);
+		assertEquals(1, cache.getEvictions());
+		cache.get(URI.create("r.3.0.png"), 0, loader);
+		cache.get(URI.create("r.3.0.png"), 1, loader);
+		cache.get(URI.create("r.0.0.png"), 0, loader);
+		assertEquals(6, loads.get());
+		assertEquals(1, cache.getHits());
+		assertEquals(6, cache.getMisses());
+		assertEquals(3 * 4 * 512 * 512, cache.getSize());
+
+		/* Saved regions use the shared cache, until their file gets changed */
+		Path file = folder.newFile("r.0.0.png").toPath();
+		Files.write(file, encoded[0]);
+		LocalSavedRegion region = new LocalSavedRegion(new Vector2i(), file, Collections.emptyMap());
+		int[] pixels = region.getPixels();
+		assertSame(pixels, region.getPixels());
+		Files.write(file, encoded[1]);
+		Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 10000));
+		assertArrayEquals(rgb.getRGB(0, 0, 512, 512, null, 0, 512), region.getPixels());
+	}
+}
@@ -0,0 +1,136 @@
+package de.piegames.blockmap;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpServer;
+
+import de.piegames.blockmap.world.TileDownloader;
+
+public class TileDownloaderTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/** Test that the {@link TileDownloader} only downloads images again if they changed, and falls back to the cache if the server is gone */
+	@Test
+	public void testTileDownloader() throws Exception {
+		AtomicReference<String> etag = new AtomicReference<>("\"1\"");
+		AtomicInteger requests = new AtomicInteger(), downloads = new AtomicInteger();
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/", exchange -> {
+			requests.incrementAndGet();
+			exchange.getResponseHeaders().set("ETag", etag.get());
+			if (etag.get().equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+				exchange.sendResponseHeaders(304, -1);
+			} else {
+				downloads.incrementAndGet();
+				byte[] body = etag.get().getBytes(StandardCharsets.UTF_8);
+				exchange.sendResponseHeaders(200, body.length);
+				exchange.getResponseBody().write(body);
+			}
+			exchange.close();
+		});
+		server.start();
+		URI uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/r.0.0.png");
+		Path cache = folder.newFolder().toPath();
+		try (TileDownloader downloader = new TileDownloader(cache, 1 << 20, 2, Duration.ofHours(1))) {
+			assertEquals("\"1\"", new String(downloader.fetch(uri).join(), StandardCharsets.UTF_8));
+			/* It has just been checked, so it's taken from the cache */
+			assertEquals("\"1\"", new String(downloader.fetch(uri).join(), StandardCharsets.UTF_8));
+			assertEquals(1, requests.get());
+		}
+		/* The cache is kept on the disk, but needs to be checked again */
+		try (TileDownloader downloader = new TileDownloader(cache, 1 << 20, 2, Duration.ofHours(1))) {
+			assertEquals("\"1\"", new String(downloader.fetch(uri).join(), StandardCharsets.UTF_8));
+			assertEquals(2, requests.get());
+			assertEquals(1, downloads.get());
+
+			etag.set("\"2\"");
+			downloader.invalidate(uri);
+			assertEquals("\"2\"", new String(downloader.fetch(uri).join(), StandardCharsets.UTF_8));
+			assertEquals(2, downloads.get());
+		} finally {
+			server.stop(0);
+		}
+		try (TileDownloader downloader = new TileDownloader(cache, 1 << 20, 2, Duration.ZERO)) {
+			assertEquals("\"2\"", new String(downloader.fetch(uri).join(), StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Images from servers that don't send an {@code ETag} are cached as well and checked using their modification date. Without that, they have
+	 * to be downloaded again, even if they have the same length.
+	 */
+	@Test
+	public void testTileDownloaderWithoutETag() throws Exception {
+		AtomicReference<String> content = new AtomicReference<>("1");
+		AtomicReference<String> lastModified = new AtomicReference<>("Sat, 17 Oct 2026 12:00:00 GMT");
+		AtomicInteger requests = new AtomicInteger(), downloads = new AtomicInteger();
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/", exchange -> {
+			requests.incrementAndGet();
+			byte[] body = content.get().getBytes(StandardCharsets.UTF_8);
+			if (lastModified.get() != null)
+				exchange.getResponseHeaders().set("Last-Modified", lastModified.get());
+			if (lastModified.get() != null && lastModified.get().equals(exchange.getRequestHeaders().getFirst("If-Modified-Since"))) {
+				exchange.sendResponseHeaders(304, -1);
+			} else {
+				downloads.incrementAndGet();
+				exchange.sendResponseHeaders(200, body.length);
+				exchange.getResponseBody().write(body);
+			}
+			exchange.close();
+		});
+		server.start();
+		URI uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/r.0.0.png");
+		Path cache = folder.newFolder().toPath();
+		try (TileDownloader downloader = new TileDownloader(cache, 1 << 20, 2, Duration.ZERO)) {
+			assertEquals("1", new String(downloader.fetch(uri).join(), StandardCharsets.UTF_8));
+			assertEquals("1", new String(downloader.fetch(uri).join(), StandardCharsets.UTF_8));
+			assertEquals(2, requests.get());
+			assertEquals(1, downloads.get());
+
+			/* Without any version, it must be downloaded each time to notice changes that keep the length */
+			lastModified.set(null);
+			content.set("2");
+			assertEquals("2", new String(downloader.fetch(uri).join(), StandardCharsets.UTF_8));
+			assertEquals(2, downloads.get());
+			assertEquals("2", new String(downloader.fetch(uri).join(), StandardCharsets.UTF_8));
+			assertEquals(3, downloads.get());
+			content.set("3");
+			assertEquals("3", new String(downloader.fetch(uri).join(), StandardCharsets.UTF_8));
+			assertEquals(4, downloads.get());
+		} finally {
+			server.stop(0);
+		}
+		/* But the cache is still used if the server is gone */
+		try (TileDownloader downloader = new TileDownloader(cache, 1 << 20, 2, Duration.ZERO)) {
+			assertEquals("3", new String(downloader.fetch(uri).join(), StandardCharsets.UTF_8));
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	/** The shared downloader can't be closed by one of its users */
+	@Test
+	public void testSharedTileDownloader() throws Exception {
+		TileDownloader.getShared().close();
+		Path file = folder.newFile().toPath();
+		Files.writeString(file, "1");
+		assertEquals("1", new String(TileDownloader.getShared().fetch(file.toUri()).join(), StandardCharsets.UTF_8));
+	}
+}
@@ -31,6 +31,7 @@ import de.piegames.blockmap.gui.decoration.GridDecoration;
 import de.piegames.blockmap.gui.decoration.Pin;
 import de.piegames.blockmap.gui.decoration.Pin.PinType;
 import de.piegames.blockmap.gui.decoration.PinDecoration;
+import de.piegames.blockmap.guistandalone.RegionFolderProvider.ArchiveFolderProvider;
 import de.piegames.blockmap.guistandalone.RegionFolderProvider.LocalFolderProvider;
 import de.piegames.blockmap.guistandalone.RegionFolderProvider.RemoteFolderProvider;
 import de.piegames.blockmap.renderer.RegionRenderer;
@@ -38,6 +39,7 @@ import de.piegames.blockmap.renderer.RegionShader;
 import de.piegames.blockmap.renderer.RenderSettings;
 import de.piegames.blockmap.world.ChunkMetadata;
 import de.piegames.blockmap.world.RegionFolder;
+import de.piegames.blockmap.world.TileArchive;
 import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
 import javafx.beans.property.ObjectProperty;
@@ -108,9 +110,7 @@ public class GuiController implements Initializable {
 	@Override
 	public void initialize(URL location, ResourceBundle resources) {
 		log.debug("Initializing GUI");
-		RenderSettings settings = new RenderSettings();
-		settings.loadDefaultColors();
-		regionRenderer = new RegionRenderer(settings);
+		regionRenderer = new RegionRenderer(new RenderSettings().withDefaultColors());
 
 		renderer = new WorldRendererCanvas(null);
 		root.setCenter(pane = new MapPane(renderer));
@@ -146,10 +146,9 @@ public class GuiController implements Initializable {
 		maxHeight.textProperty().bind(Bindings.format("Max: %3.0f", heightSlider.highValueProperty()));
 		ChangeListener<? super Boolean> heightListener = (e, oldVal, newVal) -> {
 			if (oldVal && !newVal) {
-				if (e == heightSlider.lowValueChangingProperty())
-					settings.minY = (int) Math.round(heightSlider.lowValueProperty().getValue().doubleValue());
-				else if (e == heightSlider.highValueChangingProperty())
-					settings.maxY = (int) Math.round(heightSlider.highValueProperty().getValue().doubleValue());
+				regionRenderer.setSettings(regionRenderer.getSettings().withHeight(
+						(int) Math.round(heightSlider.lowValueProperty().getValue().doubleValue()),
+						(int) Math.round(heightSlider.highValueProperty().getValue().doubleValue())));
 				renderer.invalidateTextures();
 				renderer.repaint();
 			}
@@ -158,14 +157,14 @@ public class GuiController implements Initializable {
 		heightSlider.highValueChangingProperty().addListener(heightListener);
 
 		colorBox.valueProperty().addListener((observer, old, value) -> {
-			settings.blockColors = BlockColorMap
-					.loadInternal(new String[] { "default", "caves", "foliage", "water" }[colorBox.getSelectionModel().getSelectedIndex()]);
-			renderer.invalidateTextures();
+			regionRenderer.setSettings(regionRenderer.getSettings().withBlockColors(BlockColorMap
+					.loadInternal(new String[] { "default", "caves", "foliage", "water" }[colorBox.getSelectionModel().getSelectedIndex()])));
+			renderer.recolorTextures();
 			renderer.repaint();
 		});
 		shadingBox.valueProperty().addListener((observer, old, value) -> {
-			settings.shader = RegionShader.DEFAULT_SHADERS[shadingBox.getSelectionModel().getSelectedIndex()];
-			renderer.invalidateTextures();
+			regionRenderer.setSettings(regionRenderer.getSettings().withShader(RegionShader.DEFAULT_SHADERS[shadingBox.getSelectionModel().getSelectedIndex()]));
+			renderer.reshadeTextures();
 			renderer.repaint();
 		});
 
@@ -187,10 +186,13 @@ public class GuiController implements Initializable {
 		{
 			ChangeListener<? super RegionFolderProvider> regionFolderProviderListener = (observable, previous, val) -> {
 				regionSettings.getChildren().clear();
+				if (previous != null)
+					previous.close();
 				if (val == null) {
 					regionFolder.unbind();
 					regionFolder.set(null);
 				} else {
+					val.setOnRegionsChanged(renderer::invalidateRegions);
 					regionFolder.bind(val.folderProperty());
 					regionSettings.getChildren().addAll(val.getGUI());
 				}
@@ -294,7 +296,10 @@ public class GuiController implements Initializable {
 		f = dialog.showOpenDialog(null);
 		if (f != null) {
 			lastBrowsedPath = f.toPath();
-			regionFolderProvider.set(new LocalFolderProvider(lastBrowsedPath));
+			if (lastBrowsedPath.getFileName().toString().endsWith(TileArchive.EXTENSION))
+				regionFolderProvider.set(new ArchiveFolderProvider(lastBrowsedPath.toUri()));
+			else
+				regionFolderProvider.set(new LocalFolderProvider(lastBrowsedPath));
 		}
 	}
 
@@ -306,7 +311,11 @@ public class GuiController implements Initializable {
 		dialog.setGraphic(null);
 		dialog.showAndWait().ifPresent(s -> {
 			try {
-				regionFolderProvider.set(new RemoteFolderProvider(new URI(s)));
+				URI uri = new URI(s);
+				if (uri.getPath() != null && uri.getPath().endsWith(TileArchive.EXTENSION))
+					regionFolderProvider.set(new ArchiveFolderProvider(uri));
+				else
+					regionFolderProvider.set(new RemoteFolderProvider(uri));
 			} catch (URISyntaxException | IllegalArgumentException e) {
 				log.warn("Malformed input uri", e);
 			}
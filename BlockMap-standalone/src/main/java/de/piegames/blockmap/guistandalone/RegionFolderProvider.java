@@ -1,29 +1,40 @@
 package de.piegames.blockmap.guistandalone;
 
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.function.Consumer;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.joml.Vector2ic;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 
 import de.piegames.blockmap.MinecraftDimension;
 import de.piegames.blockmap.renderer.RegionRenderer;
+import de.piegames.blockmap.world.ChangeFeed;
+import de.piegames.blockmap.world.Region.ArchivedRegion;
 import de.piegames.blockmap.world.Region.LocalSavedRegion;
 import de.piegames.blockmap.world.Region.SavedRegion;
 import de.piegames.blockmap.world.RegionFolder;
 import de.piegames.blockmap.world.RegionFolder.SavedRegionFolder;
 import de.piegames.blockmap.world.RegionFolder.WorldRegionFolder;
+import de.piegames.blockmap.world.TileArchive;
+import de.piegames.blockmap.world.TileDownloader;
 import javafx.beans.property.ReadOnlyObjectProperty;
 import javafx.beans.property.ReadOnlyObjectWrapper;
 import javafx.collections.FXCollections;
@@ -35,14 +46,27 @@ import javafx.util.StringConverter;
 
 public abstract class RegionFolderProvider {
 
-	private static Log								log		= LogFactory.getLog(RegionFolderProvider.class);
+	private static Log								log					= LogFactory.getLog(RegionFolderProvider.class);
 
-	protected ReadOnlyObjectWrapper<RegionFolder>	folder	= new ReadOnlyObjectWrapper<>();
+	protected ReadOnlyObjectWrapper<RegionFolder>	folder				= new ReadOnlyObjectWrapper<>();
+	protected Consumer<Collection<Vector2ic>>		onRegionsChanged;
 
 	public ReadOnlyObjectProperty<RegionFolder> folderProperty() {
 		return folder.getReadOnlyProperty();
 	}
 
+	/**
+	 * Set a listener that will be called if some regions of the current {@link #folderProperty() folder} changed, without the folder itself being
+	 * replaced. It may be called from any thread.
+	 */
+	public void setOnRegionsChanged(Consumer<Collection<Vector2ic>> onRegionsChanged) {
+		this.onRegionsChanged = onRegionsChanged;
+	}
+
+	/** Stop any background work. Called once the provider isn't used anymore. */
+	public void close() {
+	}
+
 	public abstract boolean hideSettings();
 
 	public abstract List<Node> getGUI();
@@ -131,7 +155,7 @@ public abstract class RegionFolderProvider {
 
 		protected abstract JsonElement load() throws IOException;
 
-		protected abstract SavedRegionFolder<T, ?> load(String world);
+		protected abstract SavedRegionFolder<?, ?> load(String world);
 
 		@Override
 		public String getLocation() {
@@ -168,8 +192,89 @@ public abstract class RegionFolderProvider {
 
 	public static class RemoteFolderProvider extends SavedFolderProvider<URI> {
 
+		private static Log						log				= LogFactory.getLog(RemoteFolderProvider.class);
+
+		/** How long to wait before reconnecting to the change feed, in milliseconds */
+		private static final int				RECONNECT_DELAY	= 5000;
+		/** The maximum size of the downloaded images on the disk, in bytes */
+		private static final long				CACHE_SIZE		= 512L << 20;
+		/** Shared by all remote worlds, so that they share their connections and cache */
+		private static final TileDownloader		downloader		= new TileDownloader(TileDownloader.DEFAULT_CACHE_FOLDER, CACHE_SIZE,
+				TileDownloader.DEFAULT_REQUESTS, TileDownloader.DEFAULT_FRESHNESS);
+
+		protected Thread						feedThread;
+		protected volatile HttpURLConnection	connection;
+		protected volatile boolean				closed;
+
 		public RemoteFolderProvider(URI file) {
 			super(file);
+			if ("http".equals(file.getScheme()) || "https".equals(file.getScheme())) {
+				feedThread = new Thread(this::followChanges, "Change feed of " + file);
+				feedThread.setDaemon(true);
+				feedThread.start();
+			}
+		}
+
+		/**
+		 * Follow the {@link ChangeFeed} the server publishes next to the saved world as server-sent events (see {@code BlockMap serve}), and
+		 * update only the regions that changed. If the connection gets lost, reconnect and continue where it stopped. Servers that don't have a
+		 * feed will be left alone.
+		 */
+		private void followChanges() {
+			long lastId = -1;
+			while (!closed) {
+				try {
+					connection = (HttpURLConnection) file.resolve("changes").toURL().openConnection();
+					connection.setRequestProperty("Accept", "text/event-stream");
+					if (lastId >= 0)
+						connection.setRequestProperty("Last-Event-ID", Long.toString(lastId));
+					if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+						log.debug("The server of " + file + " does not publish any changes");
+						return;
+					}
+					try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+						for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+							if (line.startsWith("id:"))
+								lastId = Long.parseLong(line.substring("id:".length()).trim());
+							else if (line.startsWith("data:"))
+								update(line.substring("data:".length()).trim());
+						}
+					}
+				} catch (IOException | NumberFormatException e) {
+					if (!closed)
+						log.debug("Lost connection to the change feed of " + file, e);
+				}
+				try {
+					Thread.sleep(RECONNECT_DELAY);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		private void update(String data) {
+			try {
+				ChangeFeed.Change change = ChangeFeed.Change.parse(data);
+				RegionFolder current = folder.get();
+				if (!(current instanceof SavedRegionFolder))
+					return;
+				Collection<Vector2ic> changed = ((SavedRegionFolder<?, ?>) current).update(change);
+				Consumer<Collection<Vector2ic>> onRegionsChanged = this.onRegionsChanged;
+				if (onRegionsChanged != null)
+					onRegionsChanged.accept(changed);
+			} catch (JsonParseException | IllegalStateException e) {
+				log.warn("Invalid change of " + file, e);
+			}
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+			if (feedThread != null)
+				feedThread.interrupt();
+			HttpURLConnection connection = this.connection;
+			if (connection != null)
+				connection.disconnect();
 		}
 
 		@Override
@@ -180,7 +285,7 @@ public abstract class RegionFolderProvider {
 		@Override
 		protected SavedRegionFolder<URI, SavedRegion> load(String world) {
 			try {
-				return new RegionFolder.RemoteRegionFolder(file, world);
+				return new RegionFolder.RemoteRegionFolder(file, world, downloader);
 			} catch (IOException e) {
 				log.warn("Could not load world " + world + " from remote file " + file);
 				return null;
@@ -188,6 +293,33 @@ public abstract class RegionFolderProvider {
 		}
 	}
 
+	/** Load worlds from a {@link TileArchive}, either locally or from a remote server */
+	public static class ArchiveFolderProvider extends SavedFolderProvider<URI> {
+
+		protected TileArchive archive;
+
+		public ArchiveFolderProvider(URI file) {
+			super(file);
+		}
+
+		@Override
+		protected JsonElement load() throws IOException {
+			/* Open it again if it changed to see the new worlds */
+			archive = archive == null ? TileArchive.open(file) : archive.reopen();
+			return new JsonParser().parse(new InputStreamReader(archive.getIndex(), StandardCharsets.UTF_8));
+		}
+
+		@Override
+		protected SavedRegionFolder<TileArchive, ArchivedRegion> load(String world) {
+			try {
+				return new RegionFolder.ArchiveRegionFolder(archive, world);
+			} catch (IOException e) {
+				log.warn("Could not load world " + world + " from archive " + file);
+				return null;
+			}
+		}
+	}
+
 	public static class WorldRegionFolderProvider extends RegionFolderProvider {
 
 		private static Log						log	= LogFactory.getLog(WorldRegionFolderProvider.class);
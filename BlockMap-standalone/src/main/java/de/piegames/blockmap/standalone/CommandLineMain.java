@@ -1,12 +1,38 @@
 package de.piegames.blockmap.standalone;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Reader;
 import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -14,16 +40,35 @@ import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.config.Configurator;
 import org.joml.Vector2ic;
 
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonWriter;
+
 import de.piegames.blockmap.MinecraftDimension;
 import de.piegames.blockmap.color.BiomeColorMap;
 import de.piegames.blockmap.color.BlockColorMap;
 import de.piegames.blockmap.color.BlockColorMap.InternalColorMap;
+import de.piegames.blockmap.renderer.DecodedRegion;
 import de.piegames.blockmap.renderer.RegionRenderer;
 import de.piegames.blockmap.renderer.RegionShader.DefaultShader;
 import de.piegames.blockmap.renderer.RenderSettings;
 import de.piegames.blockmap.standalone.CommandLineMain.CommandRender;
+import de.piegames.blockmap.standalone.CommandLineMain.CommandScan;
+import de.piegames.blockmap.standalone.CommandLineMain.CommandServe;
+import de.piegames.blockmap.world.ChangeFeed;
+import de.piegames.blockmap.world.ChunkMetadata;
+import de.piegames.blockmap.world.ChunkMetadata.ChunkGenerationStatus;
+import de.piegames.blockmap.world.ChunkMetadata.ChunkRenderState;
+import de.piegames.blockmap.world.Region;
+import de.piegames.blockmap.world.Region.LocalSavedRegion;
+import de.piegames.blockmap.world.RegionArchives;
+import de.piegames.blockmap.world.RegionFolder;
+import de.piegames.blockmap.world.RegionHeader;
+import de.piegames.blockmap.world.RegionWatcher;
+import de.piegames.blockmap.world.RenderPipeline;
+import de.piegames.blockmap.world.TileArchive;
 import de.piegames.blockmap.world.WorldPins;
 import de.piegames.blockmap.world.RegionFolder.CachedRegionFolder;
+import de.piegames.blockmap.world.RegionFolder.LocalRegionFolder;
 import de.piegames.blockmap.world.RegionFolder.WorldRegionFolder;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
@@ -37,7 +82,7 @@ import picocli.CommandLine.RunLast;
 @Command(name = "blockmap",
 		versionProvider = VersionProvider.class,
 		footer = "To access the GUI, omit the [COMMAND].",
-		subcommands = { CommandRender.class, HelpCommand.class })
+		subcommands = { CommandRender.class, CommandScan.class, CommandServe.class, HelpCommand.class })
 public class CommandLineMain implements Runnable {
 
 	private static Log	log	= LogFactory.getLog(RegionRenderer.class);
@@ -70,7 +115,8 @@ public class CommandLineMain implements Runnable {
 		@Parameters(index = "0",
 				paramLabel = "INPUT",
 				description = "Path to the world data. Normally, this should point to a 'region/' of a world. If --dimension is set, this must point to a "
-						+ "world folder instead (the one with the level.dat in it)")
+						+ "world folder instead (the one with the level.dat in it). This may also be a zip or tar(.gz) file containing the world, which "
+						+ "will be read without extracting it.")
 		private Path				input;
 		@Option(names = { "-c", "--color-map" },
 				paramLabel = "{DEFAULT|CAVES|NO_FOLIAGE|OCEAN_GROUND}",
@@ -104,9 +150,26 @@ public class CommandLineMain implements Runnable {
 		private int					minZ;
 		@Option(names = "--max-Z", description = "Don't draw blocks to the south of this coordinate.", defaultValue = "2147483647")
 		private int					maxZ;
+		@Option(names = { "-j", "--threads" }, description = "The number of region files to render in parallel. Defaults to the number of processors.")
+		private int					threads	= Runtime.getRuntime().availableProcessors();
+		@Option(names = "--io-threads",
+				description = "The number of threads reading region files ahead and writing the images, each.",
+				defaultValue = "2",
+				showDefaultValue = Visibility.ALWAYS)
+		private int					ioThreads;
 		@Option(names = { "-l", "--lazy" },
 				description = "Don't render region files if there is already an up to date. This saves time when rendering the same world regularly with the same settings.")
 		private boolean				lazy;
+		@Option(names = "--watch",
+				description = "Don't exit after rendering, but keep watching the world and render the region files again when they change. Use this to keep "
+						+ "the map of a running server up to date. The changed regions will be logged to changes.jsonl in the output folder, which allows "
+						+ "viewers to update only those. Archives can't be watched.")
+		private boolean				watch;
+		@Option(names = "--watch-delay",
+				description = "In watch mode, wait until the world hasn't been written to for this many seconds before rendering the changes.",
+				defaultValue = "10",
+				showDefaultValue = Visibility.ALWAYS)
+		private int					watchDelay;
 
 		@Option(names = "--create-tile-html",
 				description = "Generate a tiles.html in the output directory that will show all rendered images ona mapin your browsed.")
@@ -115,40 +178,120 @@ public class CommandLineMain implements Runnable {
 				description = "Merge all rendered images into a single file. May require a lot of RAM.")
 		private boolean				createBigPic;
 
+		/** How often to log the progress while rendering, in nanoseconds */
+		private static final long			PROGRESS_INTERVAL	= TimeUnit.SECONDS.toNanos(5);
+
+		/** The post processing steps, fed with the regions while rendering them */
+		private List<PostProcessing.Stage>	stages				= new ArrayList<>();
+
 		@Override
 		public CachedRegionFolder call() {
+			return render(rendered -> {
+			});
+		}
+
+		/**
+		 * Render the world and do the post processing. In watch mode, this does not return but keeps rendering the changes instead.
+		 *
+		 * @param onRendered
+		 *            called after the post processing each time something has been rendered
+		 * @return the rendered world, or {@code null} if it could not be rendered. If it has been read from a zip file, that is closed again already.
+		 */
+		CachedRegionFolder render(Consumer<CachedRegionFolder> onRendered) {
 			main.runAll();
-			RenderSettings settings = new RenderSettings();
-			settings.minX = minX;
-			settings.maxX = maxX;
-			settings.minY = minY;
-			settings.maxY = maxY;
-			settings.minZ = minZ;
-			settings.maxZ = maxZ;
+			BlockColorMap blockColors;
 			if (customColorMap == null)
-				settings.blockColors = colorMap.getColorMap();
+				blockColors = colorMap.getColorMap();
 			else
 				try (Reader r = Files.newBufferedReader(customColorMap)) {
-					settings.blockColors = BlockColorMap.load(r);
+					blockColors = BlockColorMap.load(r);
 				} catch (IOException e) {
 					log.error("Could not load custom block color map", e);
 					return null;
 				}
+			BiomeColorMap biomeColors;
 			if (customBiomeMap == null)
-				settings.biomeColors = BiomeColorMap.loadDefault();
+				biomeColors = BiomeColorMap.loadDefault();
 			else
 				try (Reader r = Files.newBufferedReader(customBiomeMap)) {
-					settings.biomeColors = BiomeColorMap.load(r);
+					biomeColors = BiomeColorMap.load(r);
 				} catch (IOException e) {
 					log.error("Could not load custom block color map", e);
 					return null;
 				}
-			settings.shader = shader.getShader();
+			RenderSettings settings = new RenderSettings(minX, maxX, minY, maxY, minZ, maxZ, blockColors, biomeColors, shader.getShader(), 1);
+			stages.clear();
+			if (createBigPic)
+				stages.add(new PostProcessing.BigImage(output.resolve("big.png"), settings));
+			if (createHtml)
+				stages.add(new PostProcessing.TileHtml(output));
 
 			RegionRenderer renderer = new RegionRenderer(settings);
+			if (watch && (RegionArchives.isTar(input) || RegionArchives.isZip(input))) {
+				log.error("Archives can't be watched for changes");
+				return null;
+			}
+			if (RegionArchives.isTar(input)) {
+				CachedRegionFolder cached = renderTar(renderer);
+				if (cached != null) {
+					postProcess();
+					onRendered.accept(cached);
+				}
+				return cached;
+			} else
+				return renderFolder(renderer, onRendered);
+		}
+
+		/** The stages already got all regions while rendering, so they only need to write their results */
+		private void postProcess() {
+			for (PostProcessing.Stage stage : stages)
+				stage.finish();
+		}
+
+		/**
+		 * Pass a region to the post processing stages right after it has been written, while its pixels are still in memory. A failing stage
+		 * does not stop the rendering, it will only miss that region.
+		 */
+		private void postProcess(Region region, LocalSavedRegion saved) {
+			for (PostProcessing.Stage stage : stages)
+				try {
+					stage.accept(region, saved);
+				} catch (RuntimeException e) {
+					log.error("Could not post process region " + region.getPosition().x() + " " + region.getPosition().y(), e);
+				}
+		}
+
+		/** Render a world folder, which may be within a zip file. The zip file is closed again after the world has been rendered and saved. */
+		private CachedRegionFolder renderFolder(RegionRenderer renderer, Consumer<CachedRegionFolder> onRendered) {
+			if (!RegionArchives.isZip(input))
+				return renderWorld(renderer, onRendered);
+			Path zipFile = input;
+			FileSystem zip;
+			try {
+				/* Replace the input so that the pins will be loaded from within the archive as well */
+				input = RegionArchives.openZip(zipFile);
+				zip = input.getFileSystem();
+			} catch (IOException e) {
+				log.error("Could not open zip file", e);
+				return null;
+			}
+			try {
+				return renderWorld(renderer, onRendered);
+			} finally {
+				input = zipFile;
+				try {
+					zip.close();
+				} catch (IOException e) {
+					log.warn("Could not close zip file", e);
+				}
+			}
+		}
+
+		private CachedRegionFolder renderWorld(RegionRenderer renderer, Consumer<CachedRegionFolder> onRendered) {
+			RenderSettings settings = renderer.getSettings();
 			Path input = this.input;
 			if (dimension != null)
-				input = input.resolve(dimension.getRegionPath());
+				input = dimension.resolveRegionPath(input);
 			log.debug("Input " + input.normalize().toAbsolutePath());
 			log.debug("Output: " + output.normalize().toAbsolutePath());
 			WorldRegionFolder world;
@@ -160,25 +303,346 @@ public class CommandLineMain implements Runnable {
 			}
 			CachedRegionFolder cached = new CachedRegionFolder(world, lazy, output);
 
-			for (Vector2ic pos : world.listRegions()) {
-				if (!PostProcessing.inBounds(pos.x(), settings.minX, settings.maxX)
-						|| !PostProcessing.inBounds(pos.y(), settings.minZ, settings.maxZ))
-					continue;
+			List<Vector2ic> toRender = world.listRegions().stream()
+					.filter(pos -> PostProcessing.inBounds(pos.x(), settings.minX, settings.maxX)
+							&& PostProcessing.inBounds(pos.y(), settings.minZ, settings.maxZ))
+					.collect(Collectors.toList());
+
+			Path[] other = dimension != null ? new Path[] { this.input.resolve("playerdata") } : new Path[0];
+			/*
+			 * In watch mode, start watching before reading the headers, so that regions that get written to during the first pass will be rendered
+			 * again afterwards
+			 */
+			try (RegionWatcher watcher = watch ? new RegionWatcher(input, other) : null;
+					RenderPipeline pipeline = new RenderPipeline(ioThreads, threads, ioThreads)) {
+				/* The size of each region is used to estimate the remaining time. In watch mode, the timestamps tell which regions changed. */
+				Map<Vector2ic, RegionHeader> headers = new HashMap<>();
 				try {
-					cached.render(pos);
-				} catch (IOException e) {
-					log.error("Could not render region file", e);
+					headers.putAll(world.scanHeaders(ForkJoinPool.commonPool()).join());
+				} catch (CompletionException e) {
+					log.warn("Could not scan the region files, no time estimations will be available", e.getCause());
 				}
+
+				renderRegions(cached, toRender, headers, pipeline);
+				postProcess();
+				onRendered.accept(cached);
+				if (watcher != null)
+					watch(cached, settings, input, watcher, headers, pipeline, onRendered);
+			} catch (IOException e) {
+				log.error("Could not watch the region folder", e);
+				return null;
+			}
+			return cached;
+		}
+
+		/**
+		 * Render the given regions through the pipeline and log the progress. Each region is passed to the post processing as soon as it has been
+		 * written and dropped afterwards, so that only the regions in the pipeline are kept in memory. This returns once all of them are done.
+		 */
+		private void renderRegions(CachedRegionFolder cached, List<Vector2ic> toRender, Map<Vector2ic, RegionHeader> headers, RenderPipeline pipeline) {
+			long totalSize = 0;
+			AtomicLong renderedSize = new AtomicLong();
+			int totalChunks = 0;
+			for (Vector2ic pos : toRender)
+				if (headers.containsKey(pos)) {
+					totalSize += headers.get(pos).getTotalSize();
+					totalChunks += headers.get(pos).getChunkCount();
+				}
+			log.info("Rendering " + toRender.size() + " region files with " + totalChunks + " chunks (" + (totalSize >> 20) + "MiB)");
+			for (PostProcessing.Stage stage : stages)
+				stage.expect(toRender);
+
+			long start = System.nanoTime(), total = totalSize;
+			AtomicInteger renderedRegions = new AtomicInteger();
+			AtomicLong lastProgress = new AtomicLong(start);
+			cached.renderAll(toRender, pipeline, (pos, region, error) -> {
+				if (error != null)
+					log.error("Could not render region file " + pos.x() + " " + pos.y(), error);
+				else if (region != null)
+					postProcess(region, cached.getSaved(pos));
+				/* The regions complete on several threads, so the progress is counted atomically and logged by one of them at a time */
+				int regions = renderedRegions.incrementAndGet();
+				long rendered = headers.containsKey(pos) ? renderedSize.addAndGet(headers.get(pos).getTotalSize()) : renderedSize.get();
+				long now = System.nanoTime(), last = lastProgress.get();
+				if (rendered > 0 && rendered < total && now - last >= PROGRESS_INTERVAL && lastProgress.compareAndSet(last, now)) {
+					long remaining = (long) ((double) (now - start) / rendered * (total - rendered));
+					log.info("Rendered " + regions + " of " + toRender.size() + " region files, about " + TimeUnit.NANOSECONDS.toSeconds(remaining)
+							+ "s remaining");
+				}
+				/* This tells whether reading or rendering is the bottleneck */
+				log.debug(pipeline);
+			}).join();
+		}
+
+		/**
+		 * Keep watching the region folder and render the regions that had chunks saved since they have been rendered the last time. If a world
+		 * folder is given, changes to the player data will update the pins too. This only returns if something goes wrong.
+		 *
+		 * @param watcher
+		 *            watching the region folder since before the headers have been read
+		 * @param headers
+		 *            the headers of the region files as they were when they got rendered
+		 */
+		private void watch(CachedRegionFolder cached, RenderSettings settings, Path regionFolder, RegionWatcher watcher, Map<Vector2ic, RegionHeader> headers,
+				RenderPipeline pipeline, Consumer<CachedRegionFolder> onRendered) {
+			try {
+				ChangeFeed feed = new ChangeFeed(output.resolve(ChangeFeed.FILE_NAME));
+				log.info("Watching " + regionFolder.normalize().toAbsolutePath() + " for changes");
+				while (true) {
+					Set<Vector2ic> changed = watcher.awaitChanges(Duration.ofSeconds(watchDelay), Duration.ofSeconds(10 * watchDelay));
+					List<Vector2ic> toRender = new ArrayList<>();
+					for (Vector2ic pos : changed) {
+						if (!PostProcessing.inBounds(pos.x(), settings.minX, settings.maxX) || !PostProcessing.inBounds(pos.y(), settings.minZ, settings.maxZ))
+							continue;
+						Path file = watcher.getRegionPath(pos);
+						try {
+							RegionHeader header = RegionHeader.read(pos, file);
+							RegionHeader old = headers.get(pos);
+							/* Region files get written to without saving any chunks, so only the timestamps tell if something changed */
+							if (old != null && old.getTimestamp() == header.getTimestamp() && old.getChunkCount() == header.getChunkCount())
+								continue;
+							headers.put(pos, header);
+							cached.getWorldRegionFolder().addRegion(pos, file);
+							toRender.add(pos);
+						} catch (IOException e) {
+							log.warn("Could not read region file " + file, e);
+						}
+					}
+					if (!toRender.isEmpty())
+						renderRegions(cached, toRender, headers, pipeline);
+					/* If no region changed at all, the player data did */
+					if (!toRender.isEmpty() || changed.isEmpty()) {
+						postProcess();
+						onRendered.accept(cached);
+					}
+					/* Tell the viewers only after saving, so that they'll find the same regions when loading the world */
+					if (!toRender.isEmpty()) {
+						LocalRegionFolder saved = cached.save();
+						List<LocalSavedRegion> rendered = new ArrayList<>();
+						for (Vector2ic pos : toRender) {
+							LocalSavedRegion region = saved.render(pos);
+							if (region != null)
+								rendered.add(region);
+						}
+						feed.append(rendered);
+					}
+				}
+			} catch (IOException e) {
+				log.error("Could not watch the region folder", e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Tar archives can only be read sequentially, so each region file is rendered as soon as it has been read. The main thread does the reading
+		 * while the pipeline renders and writes the images.
+		 */
+		private CachedRegionFolder renderTar(RegionRenderer renderer) {
+			RenderSettings settings = renderer.getSettings();
+			log.debug("Input " + input.normalize().toAbsolutePath());
+			log.debug("Output: " + output.normalize().toAbsolutePath());
+			CachedRegionFolder cached = new CachedRegionFolder(new WorldRegionFolder(Collections.emptyMap(), renderer), false, output);
+			List<CompletableFuture<Void>> futures = new ArrayList<>();
+			try (RenderPipeline pipeline = new RenderPipeline(ioThreads, threads, ioThreads);
+					InputStream in = RegionArchives.openTar(input)) {
+				RegionArchives.readTar(in, dimension, (pos, data) -> {
+					if (!PostProcessing.inBounds(pos.x(), settings.minX, settings.maxX) || !PostProcessing.inBounds(pos.y(), settings.minZ, settings.maxZ))
+						return;
+					futures.add(CompletableFuture.supplyAsync(() -> renderer.render(pos, data), pipeline.getRender())
+							.thenAcceptAsync(rendered -> {
+								try {
+									postProcess(rendered, cached.put(rendered));
+								} catch (IOException e) {
+									throw new CompletionException(e);
+								}
+							}, pipeline.getWrite())
+							.exceptionally(e -> {
+								log.error("Could not render region file " + pos.x() + " " + pos.y(), e.getCause());
+								return null;
+							}));
+					log.debug(pipeline);
+				});
+				CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).join();
+			} catch (IOException e) {
+				log.error("Could not read tar file", e);
+				return null;
 			}
-			if (createBigPic)
-				PostProcessing.createBigImage(cached.save(), output, settings);
-			if (createHtml)
-				PostProcessing.createTileHtml(cached.save(), output, settings);
 			return cached;
 		}
 
 	}
 
+	@Command(name = "scan",
+			sortOptions = false,
+			description = "Check the chunks of a world without rendering it. This reports chunks that are corrupt, too old or not fully generated.",
+			footer = "Chunks with corrupt block data may only be detected while rendering them.")
+	public static class CommandScan implements Runnable {
+
+		@ParentCommand
+		private CommandLineMain		main;
+
+		@Parameters(index = "0",
+				paramLabel = "INPUT",
+				description = "Path to the world data. Normally, this should point to a 'region/' of a world. If --dimension is set, this must point to a "
+						+ "world folder instead (the one with the level.dat in it)")
+		private Path				input;
+		@Option(names = { "-d", "--dim", "--dimension" },
+				paramLabel = "{OVERWORLD|NETHER|END}",
+				description = "The dimension of the world to scan. If this is set, INPUT must point to a world folder instead of a region folder")
+		private MinecraftDimension	dimension;
+		@Option(names = { "--output", "-o" },
+				description = "Write the metadata of all chunks to this file, in the same format as the metadata in saved renderings.",
+				paramLabel = "<FILE>")
+		private Path				output;
+		@Option(names = { "-j", "--threads" }, description = "The number of region files to scan in parallel. Defaults to the number of processors.")
+		private int					threads	= Runtime.getRuntime().availableProcessors();
+
+		@Override
+		public void run() {
+			main.runAll();
+			Path input = this.input;
+			if (dimension != null)
+				input = dimension.resolveRegionPath(input);
+			WorldRegionFolder world;
+			try {
+				world = WorldRegionFolder.load(input, new RegionRenderer(new RenderSettings()));
+			} catch (IOException e) {
+				log.error("Could not load region folder", e);
+				return;
+			}
+
+			Map<ChunkRenderState, Integer> states = new EnumMap<>(ChunkRenderState.class);
+			Map<ChunkGenerationStatus, Integer> statuses = new EnumMap<>(ChunkGenerationStatus.class);
+			int scanned = 0, chunks = 0;
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			/* The results are written in submission order as soon as they are done, so only the ones waiting for earlier regions are kept */
+			Deque<Entry<Vector2ic, CompletableFuture<Map<Vector2ic, ChunkMetadata>>>> pending = new ArrayDeque<>();
+			try (JsonWriter writer = output == null ? null : RegionFolder.GSON.newJsonWriter(Files.newBufferedWriter(output))) {
+				if (writer != null)
+					writer.beginArray();
+				Iterator<Vector2ic> positions = RenderPipeline.hilbertOrder(world.listRegions()).iterator();
+				while (positions.hasNext() || !pending.isEmpty()) {
+					/* Keep every thread busy, but don't queue up more results than that */
+					while (positions.hasNext() && pending.size() < threads * 4) {
+						Vector2ic pos = positions.next();
+						pending.add(Map.entry(pos, CompletableFuture.supplyAsync(() -> {
+							try {
+								return RegionRenderer.scan(pos, DecodedRegion.read(world.getPath(pos)));
+							} catch (IOException e) {
+								throw new CompletionException(e);
+							}
+						}, executor)));
+					}
+					Entry<Vector2ic, CompletableFuture<Map<Vector2ic, ChunkMetadata>>> next = pending.remove();
+					Map<Vector2ic, ChunkMetadata> region;
+					try {
+						region = next.getValue().join();
+					} catch (CompletionException e) {
+						log.error("Could not read region file " + next.getKey().x() + " " + next.getKey().y(), e.getCause());
+						continue;
+					}
+					scanned++;
+					chunks += region.size();
+					summarize(next.getKey(), region, states, statuses);
+					if (writer != null) {
+						writer.beginObject();
+						writer.name("x");
+						writer.value(next.getKey().x());
+						writer.name("z");
+						writer.value(next.getKey().y());
+						writer.name("metadata");
+						RegionFolder.GSON.toJson(region.values(), new TypeToken<Collection<ChunkMetadata>>() {
+						}.getType(), writer);
+						writer.endObject();
+					}
+				}
+				if (writer != null) {
+					writer.endArray();
+					writer.flush();
+				}
+			} catch (IOException e) {
+				log.error("Could not write the chunk metadata to " + output, e);
+				pending.forEach(region -> region.getValue().cancel(false));
+				return;
+			} finally {
+				executor.shutdown();
+			}
+			log.info("Scanned " + scanned + " of " + world.listRegions().size() + " region files with " + chunks + " chunks");
+			log.info("Chunks by state: " + states);
+			log.info("Chunks by generation status: " + statuses);
+		}
+
+		/** Count the chunks of a scanned region by state and status, and log its problems */
+		private static void summarize(Vector2ic pos, Map<Vector2ic, ChunkMetadata> region, Map<ChunkRenderState, Integer> states,
+				Map<ChunkGenerationStatus, Integer> statuses) {
+			int failed = 0, tooOld = 0, changing = 0;
+			for (ChunkMetadata chunk : region.values()) {
+				states.merge(chunk.renderState, 1, Integer::sum);
+				if (chunk.generationStatus != null)
+					statuses.merge(chunk.generationStatus, 1, Integer::sum);
+				if (chunk.renderState == ChunkRenderState.FAILED)
+					failed++;
+				else if (chunk.renderState == ChunkRenderState.TOO_OLD)
+					tooOld++;
+				else if (chunk.renderState == ChunkRenderState.CHANGING)
+					changing++;
+			}
+			if (failed > 0 || tooOld > 0)
+				log.warn("Region " + pos.x() + " " + pos.y() + ": " + failed + " corrupt chunks, " + tooOld + " chunks too old");
+			if (changing > 0)
+				log.info("Region " + pos.x() + " " + pos.y() + ": " + changing + " chunks were being written, scan again later");
+		}
+	}
+
+	@Command(name = "serve",
+			sortOptions = false,
+			description = "Publish a folder of rendered images over HTTP. Open <URL>/rendered.json in the GUI to view it.",
+			footer = "Only files within the folder will be served. Press Ctrl+C to stop the server.")
+	public static class CommandServe implements Runnable {
+
+		@ParentCommand
+		private CommandLineMain	main;
+
+		@Parameters(index = "0",
+				paramLabel = "FOLDER",
+				description = "The output folder of the render command, containing the images and the rendered.json",
+				defaultValue = "./")
+		private Path			input;
+		@Option(names = "--host",
+				description = "The address to listen on. Use 0.0.0.0 to make the server reachable from other computers.",
+				defaultValue = "localhost",
+				showDefaultValue = Visibility.ALWAYS)
+		private String			host;
+		@Option(names = { "-p", "--port" }, description = "The port to listen on.", defaultValue = "8080", showDefaultValue = Visibility.ALWAYS)
+		private int				port;
+		@Option(names = { "-j", "--threads" }, description = "The number of requests to handle in parallel.", defaultValue = "4",
+				showDefaultValue = Visibility.ALWAYS)
+		private int				threads;
+		@Option(names = "--cache-size",
+				description = "How many MiB of the most requested images to keep in memory.",
+				defaultValue = "64",
+				showDefaultValue = Visibility.ALWAYS)
+		private int				cacheSize;
+
+		@Override
+		public void run() {
+			main.runAll();
+			if (!Files.isDirectory(input)) {
+				log.error(input + " is not a folder");
+				return;
+			}
+			try {
+				TileServer server = new TileServer(input, new InetSocketAddress(host, port), threads, (long) cacheSize << 20);
+				server.start();
+				/* The server's threads keep running after returning */
+				log.info("Serving " + input.normalize().toAbsolutePath() + " on http://" + host + ":" + server.getAddress().getPort() + "/");
+			} catch (IOException e) {
+				log.error("Could not start the server", e);
+			}
+		}
+	}
+
 	@Command(name = "save",
 			description = "Save the rendering information to a file for later use. If the file already exists, the rendering's data will be appended, preserving the existing ones. "
 					+ "The file is in json format and contains the paths of the rendered images, along with additional data.")
@@ -201,35 +665,48 @@ public class CommandLineMain implements Runnable {
 				description = "By default, all paths are relativized to this file so moving the whole folder won't break the paths. This is useful if you want to put this file on a server, "
 						+ "but if you want to be able to move this file and keep all images in place, use this option instead.")
 		private boolean	absolute;
+		@Option(names = "--archive",
+				description = "Additionally put all images together with the rendering information into a single tile archive file, which is easier to copy around and "
+						+ "stores identical images only once. If the file already exists, the rendering's data will be appended like with --file. If relative, it will be "
+						+ "resolved against the output directory. The usual file extension is " + TileArchive.EXTENSION + ".")
+		private Path	archive;
 
 		@Option(names = { "-p", "--pins" }, description = "Load pin data from the world. This requires the use of the --dimension option")
 		private boolean	pins;
 
 		@Override
 		public void run() {
-			CachedRegionFolder rendered = parent.call();
-			if (rendered != null)
-				try {
-					if (pins) {
-						if (parent.dimension != null) {
-							WorldRegionFolder world = rendered.getWorldRegionFolder();
-							world.setPins(WorldPins.loadFromWorld(parent.input, parent.dimension));
-						} else
-							log.error("You must specify the --dimension option to load the pin information");
-					}
-					Path out = file;
-					if (out == null)
-						out = Paths.get("rendered.json");
-					if (!out.isAbsolute())
-						out = parent.output.resolve(out);
-					log.info("Saving rendering information to " + out.normalize());
-					rendered.save(out, name, !absolute);
-				} catch (IOException e) {
-					log.error(e);
-				}
-			else
+			/* In watch mode, this will be called again after each change */
+			CachedRegionFolder world = parent.render(this::save);
+			if (world == null)
 				log.warn("Could not save the world's information to a file since it didn't get rendered correctly");
 		}
+
+		private void save(CachedRegionFolder rendered) {
+			try {
+				if (pins) {
+					if (parent.dimension != null) {
+						WorldRegionFolder world = rendered.getWorldRegionFolder();
+						world.setPins(WorldPins.loadFromWorld(parent.input, parent.dimension));
+					} else
+						log.error("You must specify the --dimension option to load the pin information");
+				}
+				Path out = file;
+				if (out == null)
+					out = Paths.get("rendered.json");
+				if (!out.isAbsolute())
+					out = parent.output.resolve(out);
+				log.info("Saving rendering information to " + out.normalize());
+				rendered.save(out, name, !absolute);
+				if (archive != null) {
+					Path archive = this.archive.isAbsolute() ? this.archive : parent.output.resolve(this.archive);
+					log.info("Saving images to archive " + archive.normalize());
+					rendered.saveArchive(archive, name);
+				}
+			} catch (IOException e) {
+				log.error(e);
+			}
+		}
 	}
 
 	public void runAll() {
@@ -1,15 +1,14 @@
 package de.piegames.blockmap.standalone;
 
 import java.awt.image.BufferedImage;
-import java.io.File;
+import java.awt.image.DataBufferInt;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collection;
 import java.util.Date;
-import java.util.Set;
-import java.util.stream.Collectors;
 
 import javax.imageio.ImageIO;
 
@@ -20,8 +19,12 @@ import org.joml.Vector2ic;
 
 import de.piegames.blockmap.renderer.RegionRenderer;
 import de.piegames.blockmap.renderer.RenderSettings;
+import de.piegames.blockmap.world.LongMap;
+import de.piegames.blockmap.world.Region;
+import de.piegames.blockmap.world.Region.LocalSavedRegion;
 import de.piegames.blockmap.world.RegionFolder;
 import de.piegames.blockmap.world.RegionFolder.LocalRegionFolder;
+import de.piegames.blockmap.world.TileCache;
 
 /** This class contains a collection of methods that transform the rendered map into another, more accessible representation */
 public class PostProcessing {
@@ -31,119 +34,293 @@ public class PostProcessing {
 	private PostProcessing() {
 	}
 
-	public static void createTileHtml(LocalRegionFolder world, Path outputDir, RenderSettings settings) {
-		log.info("Writing HTML tiles...");
-		if (world.listRegions().isEmpty()) {
-			log.warn("The world is empty, there is nothing to do!");
-			return;
+	/**
+	 * A post processing step that gets each region while it is being rendered, so that it does not need to load all images again afterwards. The
+	 * result is written by {@link #finish()}. In watch mode, the changed regions are passed again afterwards and {@link #finish()} is called
+	 * once more, so implementations keep what they need of the other regions.
+	 * <p>
+	 * Regions are passed from the threads that wrote their images, as soon as they are done, and may be passed from several threads at once.
+	 * {@link #finish()} is only called once all regions of a pass have been passed.
+	 */
+	public static interface Stage {
+
+		/**
+		 * Called with the positions of the regions that are about to be rendered, if they are known in advance. Other regions may still be passed
+		 * to {@link #accept(Region, LocalSavedRegion)} later on. Does nothing by default.
+		 */
+		public default void expect(Collection<? extends Vector2ic> positions) {
 		}
 
-		Path cssFile = outputDir.resolve("tiles.css");
-		// Copy css file from local resources to destination
-		if (!Files.exists(cssFile)) {
-			try (InputStream cssInputStream = PostProcessing.class.getResourceAsStream("tiles.css");) {
-				Files.copy(cssInputStream, cssFile);
-			} catch (IOException e) {
-				log.error("Could not copy style sheet file", e);
+		/**
+		 * Called for each region that has been rendered or taken from the cache, replacing the previous one at the same position.
+		 *
+		 * @param region
+		 *            the rendered region, while its pixels are still in memory
+		 * @param saved
+		 *            the saved image of the region. May be {@code null} if the region has not been saved.
+		 */
+		public void accept(Region region, LocalSavedRegion saved);
+
+		/** Write the result, containing all regions passed so far */
+		public void finish();
+	}
+
+	/** Write a {@code tiles.html} that shows all saved images on a map in the browser */
+	public static class TileHtml implements Stage {
+
+		protected final Path						outputDir;
+		protected final LongMap<LocalSavedRegion>	regions	= new LongMap<>();
+		/** The bounds of the regions, in region coordinates */
+		protected int								minX	= Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, minZ = Integer.MAX_VALUE, maxZ = Integer.MIN_VALUE;
+
+		/**
+		 * @param outputDir
+		 *            the folder where the page will be written. It must contain the images, since they are linked relative to it.
+		 */
+		public TileHtml(Path outputDir) {
+			this.outputDir = outputDir;
+		}
+
+		@Override
+		public synchronized void accept(Region region, LocalSavedRegion saved) {
+			if (saved == null)
 				return;
-			}
+			Vector2ic pos = saved.getPosition();
+			regions.put(LongMap.key(pos), saved);
+			minX = Math.min(minX, pos.x());
+			maxX = Math.max(maxX, pos.x());
+			minZ = Math.min(minZ, pos.y());
+			maxZ = Math.max(maxZ, pos.y());
 		}
 
-		Set<Vector2ic> allowedBlocks = world.listRegions().stream().filter(v -> inBounds(v.x(), settings.minX, settings.maxX) && inBounds(v.y(), settings.minZ,
-				settings.maxZ)).collect(Collectors.toSet());
-		int minX = allowedBlocks.stream().mapToInt(v -> v.x()).min().getAsInt();
-		int maxX = allowedBlocks.stream().mapToInt(v -> v.x()).max().getAsInt();
-		int minZ = allowedBlocks.stream().mapToInt(v -> v.y()).min().getAsInt();
-		int maxZ = allowedBlocks.stream().mapToInt(v -> v.y()).max().getAsInt();
-
-		try (Writer w = Files.newBufferedWriter(outputDir.resolve("tiles.html"));) {
-			w.write("<html><head>\n");
-			w.write("<link rel=\"stylesheet\" type=\"text/css\" href=\"tiles.css\"/>\n");
-			w.write("</head><body>\n");
-			w.write("<div style=\"height: " + (maxZ - minZ + 1) * 512 + "px\">");
-
-			for (int z = minZ; z <= maxZ; z++) {
-				for (int x = minX; x <= maxX; x++) {
-					Vector2i pos = new Vector2i(x, z);
-					Path region = world.render(pos).getPath();
-					if (region != null) {
-						int top = (z - minZ) * 512, left = (x - minX) * 512;
-						String title = "Region " + x + ", " + z;
-						String name = "r." + x + "." + z;
-						String style = "width: " + 512 + "px; height: " + 512 + "px; " +
-								"position: absolute; top: " + top + "px; left: " + left + "px; " +
-								"background-image: url(" + outputDir.relativize(region) + ")";
-						w.write("<a\n" +
-								"\tclass=\"tile\"\n" +
-								"\tstyle=\"" + style + "\"\n" +
-								"\ttitle=\"" + title + "\"\n" +
-								"\tname=\"" + name + "\"\n" +
-								"\thref=\"" + outputDir.relativize(region) + "\"\n" +
-								">&nbsp;</a>");
-					}
+		@Override
+		public synchronized void finish() {
+			log.info("Writing HTML tiles...");
+			if (regions.isEmpty()) {
+				log.warn("The world is empty, there is nothing to do!");
+				return;
+			}
+
+			Path cssFile = outputDir.resolve("tiles.css");
+			// Copy css file from local resources to destination
+			if (!Files.exists(cssFile)) {
+				try (InputStream cssInputStream = PostProcessing.class.getResourceAsStream("tiles.css");) {
+					Files.copy(cssInputStream, cssFile);
+				} catch (IOException e) {
+					log.error("Could not copy style sheet file", e);
+					return;
 				}
 			}
 
-			w.write("</div>\n");
-			w.write("<p class=\"notes\">");
-			w.write("Page rendered at " + new Date().toString());
-			w.write("</p>\n");
-			w.write("</body></html>");
-		} catch (IOException e) {
-			log.error("Could not write html file", e);
+			try (Writer w = Files.newBufferedWriter(outputDir.resolve("tiles.html"));) {
+				w.write("<html><head>\n");
+				w.write("<link rel=\"stylesheet\" type=\"text/css\" href=\"tiles.css\"/>\n");
+				w.write("</head><body>\n");
+				w.write("<div style=\"height: " + (maxZ - minZ + 1) * 512 + "px\">");
+
+				for (int z = minZ; z <= maxZ; z++) {
+					for (int x = minX; x <= maxX; x++) {
+						LocalSavedRegion saved = regions.get(LongMap.key(x, z));
+						if (saved != null) {
+							Path region = saved.getPath();
+							int top = (z - minZ) * 512, left = (x - minX) * 512;
+							String title = "Region " + x + ", " + z;
+							String name = "r." + x + "." + z;
+							String style = "width: " + 512 + "px; height: " + 512 + "px; " +
+									"position: absolute; top: " + top + "px; left: " + left + "px; " +
+									"background-image: url(" + outputDir.relativize(region) + ")";
+							w.write("<a\n" +
+									"\tclass=\"tile\"\n" +
+									"\tstyle=\"" + style + "\"\n" +
+									"\ttitle=\"" + title + "\"\n" +
+									"\tname=\"" + name + "\"\n" +
+									"\thref=\"" + outputDir.relativize(region) + "\"\n" +
+									">&nbsp;</a>");
+						}
+					}
+				}
+
+				w.write("</div>\n");
+				w.write("<p class=\"notes\">");
+				w.write("Page rendered at " + new Date().toString());
+				w.write("</p>\n");
+				w.write("</body></html>");
+			} catch (IOException e) {
+				log.error("Could not write html file", e);
+			}
 		}
 	}
 
-	public static void createBigImage(RegionFolder world, Path outputDir, RenderSettings settings) {
-		log.info("Creating big image...");
-		if (world.listRegions().isEmpty()) {
-			log.warn("The world is empty, there is nothing to do!");
-			return;
+	/**
+	 * Merge all regions into a single image, cropped to the bounds of the render settings. The pixels of each region are copied into the image as
+	 * soon as it gets passed, if the image has already been allocated for its position by {@link #expect(Collection)}. Other regions are kept
+	 * until {@link #finish()} grows the image to fit them.
+	 */
+	public static class BigImage implements Stage {
+
+		protected final Path					file;
+		protected final RenderSettings			settings;
+
+		/** The pixels of the regions that are not within the image yet */
+		protected final LongMap<int[]>			pending	= new LongMap<>();
+		/** The bounds of all regions, in region coordinates */
+		protected int							minX	= Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, minZ = Integer.MAX_VALUE, maxZ = Integer.MIN_VALUE;
+
+		protected BufferedImage					image;
+		protected int[]							data;
+		/** The pixel position of the upper left corner of the image */
+		protected int							imageX, imageZ;
+		/** Set if the image could not be allocated, so that it won't be tried again for every region */
+		protected boolean						failed;
+
+		public BigImage(Path file, RenderSettings settings) {
+			this.file = file;
+			this.settings = settings;
 		}
 
-		/** The bounds of the rendered files, in region coordinates */
-		Set<Vector2ic> allowedBlocks = world.listRegions().stream().filter(v -> inBounds(v.x(), settings.minX, settings.maxX) && inBounds(v.y(), settings.minZ,
-				settings.maxZ)).collect(Collectors.toSet());
-		int minX = allowedBlocks.stream().mapToInt(v -> v.x()).min().getAsInt();
-		int maxX = allowedBlocks.stream().mapToInt(v -> v.x()).max().getAsInt();
-		int minZ = allowedBlocks.stream().mapToInt(v -> v.y()).min().getAsInt();
-		int maxZ = allowedBlocks.stream().mapToInt(v -> v.y()).max().getAsInt();
-
-		/** The bounds of the selected area intersected with the rendered area. */
-		int minPixelX = (minX << 9) < settings.minX ? settings.minX : (minX << 9);
-		int maxPixelX = (maxX << 9) + 512 > settings.maxX ? settings.maxX : (maxX << 9) + 512;
-		int minPixelZ = (minZ << 9) < settings.minZ ? settings.minZ : (minZ << 9);
-		int maxPixelZ = (maxZ << 9) + 512 > settings.maxZ ? settings.maxZ : (maxZ << 9) + 512;
-
-		int width = maxPixelX - minPixelX;
-		int height = maxPixelZ - minPixelZ;
-		log.debug("Dimension: " + width + ", " + height);
-		BufferedImage bigImage = null;
-		try {
-			bigImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-		} catch (Throwable t) {
-			log.error("Could not create image, is it too big?", t);
-			return;
+		@Override
+		public synchronized void expect(Collection<? extends Vector2ic> positions) {
+			for (Vector2ic pos : positions)
+				include(pos);
+			grow();
 		}
 
-		for (Vector2ic pos : world.listRegions()) {
-			BufferedImage region = null;
+		@Override
+		public synchronized void accept(Region region, LocalSavedRegion saved) {
+			if (failed)
+				return;
+			Vector2ic pos = region.getPosition();
+			int[] pixels;
 			try {
-				region = world.render(pos).getImage();
+				pixels = region.getPixels();
 			} catch (IOException e) {
 				log.warn("Could not load image " + pos, e);
-				continue;
+				return;
+			}
+			if (covers(pos)) {
+				draw(pos, pixels);
+			} else {
+				include(pos);
+				pending.put(LongMap.key(pos), pixels);
 			}
-			bigImage.createGraphics().drawImage(region, pos.x() * 512 - minPixelX, pos.y() * 512 - minPixelZ, null);
-			log.debug("Region " + pos.x() + ", " + pos.y() + " drawn to " + (pos.x() * 512 - minPixelX) + ", " + (pos.y() * 512 - minPixelZ));
 		}
-		try {
-			ImageIO.write(bigImage, "png", new File(outputDir + "/big.png"));
-		} catch (IOException e) {
-			log.error("Could not write big image to " + outputDir + "/big.png", e);
+
+		@Override
+		public synchronized void finish() {
+			log.info("Creating big image...");
+			if (failed)
+				return;
+			if (image == null && pending.isEmpty()) {
+				log.warn("The world is empty, there is nothing to do!");
+				return;
+			}
+			grow();
+			if (failed)
+				return;
+			for (long key : pending.keys())
+				draw(new Vector2i(LongMap.x(key), LongMap.z(key)), pending.get(key));
+			pending.clear();
+			log.debug(TileCache.getShared());
+			try {
+				ImageIO.write(image, "png", file.toFile());
+			} catch (IOException e) {
+				log.error("Could not write big image to " + file, e);
+			}
+		}
+
+		private void include(Vector2ic pos) {
+			minX = Math.min(minX, pos.x());
+			maxX = Math.max(maxX, pos.x());
+			minZ = Math.min(minZ, pos.y());
+			maxZ = Math.max(maxZ, pos.y());
+		}
+
+		/** Make the image cover the current bounds, keeping what has been drawn into it so far */
+		private void grow() {
+			if (minX > maxX)
+				return;
+			/* The bounds of the selected area intersected with the rendered area. */
+			int minPixelX = Math.max(minX << 9, settings.minX);
+			int maxPixelX = (int) Math.min(((long) maxX << 9) + 512, settings.maxX);
+			int minPixelZ = Math.max(minZ << 9, settings.minZ);
+			int maxPixelZ = (int) Math.min(((long) maxZ << 9) + 512, settings.maxZ);
+			int width = maxPixelX - minPixelX;
+			int height = maxPixelZ - minPixelZ;
+			if (image != null && minPixelX == imageX && minPixelZ == imageZ && width == image.getWidth() && height == image.getHeight())
+				return;
+
+			log.debug("Dimension: " + width + ", " + height);
+			BufferedImage grown;
+			try {
+				grown = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+			} catch (Throwable t) {
+				log.error("Could not create image, is it too big?", t);
+				failed = true;
+				image = null;
+				data = null;
+				pending.clear();
+				return;
+			}
+			int[] grownData = ((DataBufferInt) grown.getRaster().getDataBuffer()).getData();
+			if (image != null)
+				for (int z = 0; z < image.getHeight(); z++)
+					System.arraycopy(data, z * image.getWidth(), grownData, (z + imageZ - minPixelZ) * width + imageX - minPixelX, image.getWidth());
+			image = grown;
+			data = grownData;
+			imageX = minPixelX;
+			imageZ = minPixelZ;
+		}
+
+		/** Regions are aligned to the image, so if any of its pixels are in the image, all of them that are in the selected area are. */
+		private boolean covers(Vector2ic pos) {
+			return image != null
+					&& (pos.x() << 9) + 512 > imageX && (pos.x() << 9) < imageX + image.getWidth()
+					&& (pos.y() << 9) + 512 > imageZ && (pos.y() << 9) < imageZ + image.getHeight();
+		}
+
+		/** Copy the pixels of a region into the image, as far as they are within it */
+		private void draw(Vector2ic pos, int[] pixels) {
+			int width = image.getWidth();
+			int fromX = Math.max(pos.x() << 9, imageX), toX = Math.min((pos.x() << 9) + 512, imageX + width);
+			int fromZ = Math.max(pos.y() << 9, imageZ), toZ = Math.min((pos.y() << 9) + 512, imageZ + image.getHeight());
+			for (int z = fromZ; z < toZ; z++)
+				System.arraycopy(pixels, (z - (pos.y() << 9)) * 512 + fromX - (pos.x() << 9), data, (z - imageZ) * width + fromX - imageX, toX - fromX);
+			log.debug("Region " + pos.x() + ", " + pos.y() + " drawn to " + (pos.x() * 512 - imageX) + ", " + (pos.y() * 512 - imageZ));
 		}
 	}
 
+	/** Write a {@code tiles.html} for all regions of an already saved world */
+	public static void createTileHtml(LocalRegionFolder world, Path outputDir, RenderSettings settings) {
+		TileHtml html = new TileHtml(outputDir);
+		for (Vector2ic pos : world.listRegions())
+			if (inBounds(pos.x(), settings.minX, settings.maxX) && inBounds(pos.y(), settings.minZ, settings.maxZ)) {
+				try {
+					LocalSavedRegion region = world.render(pos);
+					if (region != null)
+						html.accept(region, region);
+				} catch (IOException e) {
+					log.warn("Could not load region " + pos, e);
+				}
+			}
+		html.finish();
+	}
+
+	/** Merge all regions of an already rendered world into {@code big.png} in the output folder */
+	public static void createBigImage(RegionFolder world, Path outputDir, RenderSettings settings) {
+		BigImage big = new BigImage(outputDir.resolve("big.png"), settings);
+		for (Vector2ic pos : world.listRegions())
+			if (inBounds(pos.x(), settings.minX, settings.maxX) && inBounds(pos.y(), settings.minZ, settings.maxZ)) {
+				try {
+					Region region = world.render(pos);
+					if (region != null)
+						big.accept(region, null);
+				} catch (IOException e) {
+					log.warn("Could not load image " + pos, e);
+				}
+			}
+		big.finish();
+	}
+
 	/** Test if the given region file contains blocks that should be rendered. The bounds are given in world space. */
 	public static boolean inBounds(int region, int min, int max) {
 		return (min >> 9) <= region && region <= (max >> 9);
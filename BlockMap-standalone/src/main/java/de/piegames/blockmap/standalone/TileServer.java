@@ -0,0 +1,443 @@
+package de.piegames.blockmap.standalone;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import de.piegames.blockmap.world.ChangeFeed;
+
+/**
+ * A small HTTP server that publishes a folder of rendered images together with its {@code rendered.json}, so that it can be opened with the
+ * {@link de.piegames.blockmap.world.RegionFolder.RemoteRegionFolder RemoteRegionFolder} (and thus from the GUI) or any web browser. Only files
+ * within the folder are served, directories are not listed.
+ * <p>
+ * Rendered images only change when they are rendered again, so clients are expected to cache them. Each response carries an {@code ETag} and a
+ * {@code Last-Modified} header derived from the file's size and modification time, and conditional requests are answered with
+ * {@code 304 Not Modified}. Range requests are supported for a single range. The most recently requested small files are kept in memory up to a
+ * given size, all others are streamed from disk.
+ * <p>
+ * If the folder contains a {@link ChangeFeed}, it can be followed as server-sent events on {@code /changes}. Each event has the id of the change
+ * and the line of the log as data. Clients that reconnect with a {@code Last-Event-ID} header (or a {@code since} query parameter) will get all
+ * changes after that first.
+ */
+public class TileServer implements AutoCloseable {
+
+	private static Log							log				= LogFactory.getLog(TileServer.class);
+
+	private static final Pattern				RANGE			= Pattern.compile("^bytes=(\\d*)-(\\d*)$");
+	private static final DateTimeFormatter		HTTP_DATE		= DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+	private static final Map<String, String>	CONTENT_TYPES	= Map.of(
+			"png", "image/png",
+			"json", "application/json",
+			"gz", "application/gzip",
+			"html", "text/html; charset=utf-8",
+			"js", "text/javascript",
+			"css", "text/css");
+
+	/** A client following the change feed */
+	private static class Subscriber {
+		final HttpExchange	exchange;
+		final OutputStream	out;
+		/** The id of the last change sent to this client */
+		long				lastId;
+
+		Subscriber(HttpExchange exchange, long lastId) {
+			this.exchange = exchange;
+			this.out = exchange.getResponseBody();
+			this.lastId = lastId;
+		}
+	}
+
+	/** A file as it is kept in memory, with the validators it had while reading it */
+	private static class CachedFile {
+		final byte[]	data;
+		final String	etag;
+
+		CachedFile(byte[] data, String etag) {
+			this.data = data;
+			this.etag = etag;
+		}
+	}
+
+	protected final Path							root;
+	protected final HttpServer						server;
+	protected final ExecutorService					executor;
+	protected final long							cacheSize;
+	/** The cached files in the order they have been requested, least recently used first */
+	private final LinkedHashMap<Path, CachedFile>	cache		= new LinkedHashMap<>(16, 0.75f, true);
+	private long									cachedBytes;
+
+	protected final Path							feed;
+	protected final ScheduledExecutorService		feedExecutor;
+	private final List<Subscriber>					subscribers	= new CopyOnWriteArrayList<>();
+	/** How much of the change feed has been read already. Only accessed by the feed thread. */
+	private long									feedOffset;
+	private int										idlePolls;
+
+	/**
+	 * Create the server. It won't accept connections until it is {@link #start() started}.
+	 *
+	 * @param root
+	 *            the folder to serve, usually the output folder of the render command
+	 * @param address
+	 *            the address to listen on. Use port 0 to pick any free port, see {@link #getAddress()}.
+	 * @param threads
+	 *            the number of requests to handle in parallel
+	 * @param cacheSize
+	 *            the number of bytes of file contents to keep in memory. Files larger than an eighth of it won't be cached at all.
+	 */
+	public TileServer(Path root, InetSocketAddress address, int threads, long cacheSize) throws IOException {
+		this.root = root.toAbsolutePath().normalize();
+		this.cacheSize = cacheSize;
+		AtomicInteger count = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(threads, r -> new Thread(r, "blockmap-server-" + count.incrementAndGet()));
+		server = HttpServer.create(address, 0);
+		server.setExecutor(executor);
+		server.createContext("/", this::handle);
+
+		/* Only new changes will be sent to clients as they come in, the old ones on request */
+		feed = this.root.resolve(ChangeFeed.FILE_NAME);
+		feedOffset = Files.exists(feed) ? Files.size(feed) : 0;
+		feedExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "blockmap-server-changes");
+			thread.setDaemon(true);
+			return thread;
+		});
+		server.createContext("/changes", this::handleChanges);
+	}
+
+	public void start() {
+		server.start();
+		feedExecutor.scheduleWithFixedDelay(this::pollFeed, 1, 1, TimeUnit.SECONDS);
+	}
+
+	/** The address the server is listening on */
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+
+	/** Stop the server right away, aborting running requests */
+	@Override
+	public void close() {
+		feedExecutor.shutdownNow();
+		for (Subscriber subscriber : subscribers)
+			subscriber.exchange.close();
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			String method = exchange.getRequestMethod();
+			if (!method.equals("GET") && !method.equals("HEAD")) {
+				exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			Path file = resolve(exchange.getRequestURI());
+			BasicFileAttributes attributes;
+			try {
+				attributes = file == null ? null : Files.readAttributes(file, BasicFileAttributes.class);
+			} catch (IOException e) {
+				attributes = null;
+			}
+			if (attributes == null || !attributes.isRegularFile()) {
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			}
+
+			/* Rendered files only change when they get rendered again, which changes both their size and their modification time */
+			Instant modified = attributes.lastModifiedTime().toInstant();
+			String etag = "\"" + Long.toHexString(attributes.size()) + "-" + Long.toHexString(modified.toEpochMilli()) + "\"";
+			String name = file.getFileName().toString();
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPES.getOrDefault(name.substring(name.lastIndexOf('.') + 1), "application/octet-stream"));
+			exchange.getResponseHeaders().set("ETag", etag);
+			exchange.getResponseHeaders().set("Last-Modified", HTTP_DATE.format(modified));
+			exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+			exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+			if (isNotModified(exchange, etag, modified)) {
+				exchange.sendResponseHeaders(304, -1);
+				return;
+			}
+
+			/* Only small files are kept in memory, all others are streamed from disk */
+			byte[] data = attributes.size() <= cacheSize / 8 ? read(file, etag, attributes.size()) : null;
+			long length = data != null ? data.length : attributes.size();
+			long start = 0, end = length;
+			String range = exchange.getRequestHeaders().getFirst("Range");
+			String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+			int status = 200;
+			if (range != null && (ifRange == null || ifRange.equals(etag))) {
+				Matcher m = RANGE.matcher(range.trim());
+				/* Multiple ranges are not supported, the whole file will be sent instead which is allowed as well */
+				if (m.matches() && !(m.group(1).isEmpty() && m.group(2).isEmpty())) {
+					long first, last;
+					if (m.group(1).isEmpty()) {
+						/* The last n bytes */
+						first = Math.max(length - parseLong(m.group(2)), 0);
+						last = length - 1;
+					} else {
+						first = parseLong(m.group(1));
+						last = m.group(2).isEmpty() ? length - 1 : Math.min(parseLong(m.group(2)), length - 1);
+					}
+					if (first >= length || first > last) {
+						exchange.getResponseHeaders().set("Content-Range", "bytes */" + length);
+						exchange.sendResponseHeaders(416, -1);
+						return;
+					}
+					start = first;
+					end = last + 1;
+					status = 206;
+					exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + length);
+				}
+			}
+
+			if (method.equals("HEAD")) {
+				exchange.getResponseHeaders().set("Content-Length", Long.toString(end - start));
+				exchange.sendResponseHeaders(status, -1);
+			} else {
+				/* A length of 0 would mean chunked encoding */
+				exchange.sendResponseHeaders(status, end > start ? end - start : -1);
+				try (OutputStream out = exchange.getResponseBody()) {
+					if (data != null)
+						out.write(data, (int) start, (int) (end - start));
+					else
+						transfer(file, start, end, out);
+				}
+			}
+		} catch (IOException | RuntimeException | Error e) {
+			log.warn("Could not answer request for " + exchange.getRequestURI(), e);
+			throw e;
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Start sending the change feed to the client. The exchange stays open after returning, the events are sent by the feed thread so that clients
+	 * don't occupy any of the request threads.
+	 */
+	private void handleChanges(HttpExchange exchange) throws IOException {
+		/* The context matches on any prefix, so this may be a request for a file as well */
+		if (!exchange.getRequestURI().getPath().equals("/changes")) {
+			handle(exchange);
+			return;
+		}
+		if (!exchange.getRequestMethod().equals("GET")) {
+			exchange.getResponseHeaders().set("Allow", "GET");
+			exchange.sendResponseHeaders(405, -1);
+			exchange.close();
+			return;
+		}
+		String since = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+		String query = exchange.getRequestURI().getQuery();
+		if (since == null && query != null && query.startsWith("since="))
+			since = query.substring("since=".length());
+		long lastId = -1;
+		if (since != null)
+			try {
+				lastId = Long.parseLong(since.trim());
+			} catch (NumberFormatException e) {
+				exchange.sendResponseHeaders(400, -1);
+				exchange.close();
+				return;
+			}
+
+		exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+		exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+		exchange.sendResponseHeaders(200, 0);
+		Subscriber subscriber = new Subscriber(exchange, lastId);
+		/* Register before catching up so that no change gets lost in between, duplicates are filtered by their id */
+		synchronized (subscriber) {
+			subscribers.add(subscriber);
+			if (lastId >= 0 && Files.exists(feed))
+				for (String line : Files.readAllLines(feed, StandardCharsets.UTF_8))
+					send(subscriber, line);
+			sendComment(subscriber, "connected");
+		}
+	}
+
+	/** Check the change feed for new lines and send them to all clients. Called regularly on the feed thread. */
+	private void pollFeed() {
+		try {
+			long size = Files.exists(feed) ? Files.size(feed) : 0;
+			if (size < feedOffset)
+				/* The log has been replaced */
+				feedOffset = 0;
+			List<String> lines = new ArrayList<>();
+			if (size > feedOffset) {
+				byte[] data = new byte[(int) Math.min(size - feedOffset, Integer.MAX_VALUE - 8)];
+				try (SeekableByteChannel channel = Files.newByteChannel(feed)) {
+					channel.position(feedOffset);
+					ByteBuffer buffer = ByteBuffer.wrap(data);
+					while (buffer.hasRemaining() && channel.read(buffer) >= 0)
+						;
+				}
+				/* Only take complete lines, the last one may still be written */
+				int start = 0;
+				for (int i = 0; i < data.length; i++)
+					if (data[i] == '\n') {
+						lines.add(new String(data, start, i - start, StandardCharsets.UTF_8));
+						start = i + 1;
+					}
+				feedOffset += start;
+			}
+			for (String line : lines)
+				for (Subscriber subscriber : subscribers)
+					send(subscriber, line);
+			/* Keep idle connections from timing out and detect closed ones */
+			if (lines.isEmpty() && ++idlePolls % 15 == 0)
+				for (Subscriber subscriber : subscribers)
+					sendComment(subscriber, "keep-alive");
+		} catch (IOException | RuntimeException e) {
+			log.warn("Could not read the change feed", e);
+		}
+	}
+
+	/** Send a line of the change feed as event, unless the client already has it */
+	private void send(Subscriber subscriber, String line) {
+		long id;
+		try {
+			id = ChangeFeed.Change.parse(line).id;
+		} catch (RuntimeException e) {
+			return;
+		}
+		synchronized (subscriber) {
+			if (id <= subscriber.lastId)
+				return;
+			if (write(subscriber, "id: " + id + "\ndata: " + line + "\n\n"))
+				subscriber.lastId = id;
+		}
+	}
+
+	private void sendComment(Subscriber subscriber, String comment) {
+		synchronized (subscriber) {
+			write(subscriber, ": " + comment + "\n\n");
+		}
+	}
+
+	private boolean write(Subscriber subscriber, String message) {
+		try {
+			subscriber.out.write(message.getBytes(StandardCharsets.UTF_8));
+			subscriber.out.flush();
+			return true;
+		} catch (IOException e) {
+			/* The client went away */
+			subscribers.remove(subscriber);
+			subscriber.exchange.close();
+			return false;
+		}
+	}
+
+	/** Map the path of the request to a file within the root folder, or {@code null} if it points somewhere else */
+	private Path resolve(URI uri) {
+		String path = uri.getPath();
+		if (path == null || path.isEmpty() || path.equals("/"))
+			return null;
+		try {
+			Path file = root.resolve(path.substring(1)).normalize();
+			return file.startsWith(root) ? file : null;
+		} catch (InvalidPathException e) {
+			return null;
+		}
+	}
+
+	private static boolean isNotModified(HttpExchange exchange, String etag, Instant modified) {
+		String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+		/* If-None-Match takes precedence over If-Modified-Since */
+		if (ifNoneMatch != null)
+			return ifNoneMatch.trim().equals("*") || Arrays.stream(ifNoneMatch.split(",")).map(String::trim).anyMatch(etag::equals);
+		String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+		if (ifModifiedSince != null)
+			try {
+				/* HTTP dates only have a precision of seconds */
+				return modified.getEpochSecond() <= ZonedDateTime.parse(ifModifiedSince, HTTP_DATE).toEpochSecond();
+			} catch (DateTimeParseException e) {
+				return false;
+			}
+		return false;
+	}
+
+	private static long parseLong(String value) {
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			/* Too large to be meaningful */
+			return Long.MAX_VALUE;
+		}
+	}
+
+	/** Send the bytes from {@code start} (inclusive) to {@code end} (exclusive) of a file using positioned reads */
+	private static void transfer(Path file, long start, long end, OutputStream out) throws IOException {
+		byte[] data = new byte[(int) Math.min(end - start, 64 * 1024)];
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			for (long position = start; position < end;) {
+				buffer.clear().limit((int) Math.min(end - position, data.length));
+				int read = channel.read(buffer, position);
+				if (read < 0)
+					/* The headers have been sent already, so all that can be done is aborting the response */
+					throw new IOException("File " + file + " got truncated while sending it");
+				out.write(data, 0, read);
+				position += read;
+			}
+		}
+	}
+
+	/** Get the contents of a small file from the cache, or read it and put it into the cache */
+	private byte[] read(Path file, String etag, long size) throws IOException {
+		synchronized (cache) {
+			CachedFile cached = cache.get(file);
+			if (cached != null && cached.etag.equals(etag))
+				return cached.data;
+		}
+		byte[] data = Files.readAllBytes(file);
+		/* The file might have been changed in the meantime */
+		if (data.length == size) {
+			synchronized (cache) {
+				CachedFile old = cache.put(file, new CachedFile(data, etag));
+				cachedBytes += data.length - (old == null ? 0 : old.data.length);
+				for (Iterator<CachedFile> it = cache.values().iterator(); cachedBytes > cacheSize && it.hasNext();) {
+					cachedBytes -= it.next().data.length;
+					it.remove();
+				}
+			}
+		}
+		return data;
+	}
+}